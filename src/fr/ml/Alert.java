@@ -0,0 +1,136 @@
+package fr.ml;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A rule alerting on the values of a series: {@code <op> <threshold> [for <duration>] [clear <level>]}, e.g.
+ * {@code > 83 for 10s clear 78}.
+ * <ul>
+ * <li>{@code <op>} is {@code >}, {@code >=}, {@code <} or {@code <=};</li>
+ * <li>the alert fires once values compare to {@code <threshold>} for {@code <duration>} ({@code ms}, {@code s},
+ * {@code m} or {@code h}, seconds if none; immediately if not given);</li>
+ * <li>it clears once a value does not compare to {@code <level>} anymore (hysteresis), the threshold if not given.</li>
+ * </ul>
+ * Missing values ({@code NaN}) are ignored.
+ * <p>
+ * Rules are compiled once and evaluated in constant time without allocation, with a {@link State} per series of
+ * rows (e.g. per GPU).
+ */
+public class Alert {
+	
+	/** Changes of state given by {@link #update(long, float, State)}. */
+	static public final int UNCHANGED = 0, FIRED = 1, CLEARED = -1;
+	
+	static private final Pattern RULE = Pattern.compile("(>=|<=|>|<)\\s*(\\S+?)(?:\\s+for\\s+([0-9.]+)\\s*(ms|s|m|h)?)?(?:\\s+clear\\s+(\\S+))?",
+			Pattern.CASE_INSENSITIVE);
+	
+	private final String text;
+	/** Whether values above (rather than below) the threshold fire, and whether values equal to it do not. */
+	private final boolean above, strict;
+	private final float threshold, clear;
+	/** Time values must compare to the threshold before firing, ms. */
+	private final long forMs;
+	
+	/**
+	 * Compile a rule.
+	 * @throws IllegalArgumentException If it is malformed, or its clear level is on the firing side of the threshold.
+	 */
+	public Alert(String text) throws IllegalArgumentException {
+		this.text = text.trim();
+		Matcher m = RULE.matcher(this.text);
+		if (!m.matches()) {
+			throw new IllegalArgumentException("Malformed alert '"+text+"': should be <op> <threshold> [for <duration>] [clear <level>] (e.g. \"> 83 for 10s clear 78\")");
+		}
+		above = m.group(1).startsWith(">");
+		strict = (m.group(1).length() == 1);
+		try {
+			threshold = Float.parseFloat(m.group(2));
+			clear = (m.group(5) == null ? threshold : Float.parseFloat(m.group(5)));
+			forMs = (m.group(3) == null ? 0 : Math.round(Double.parseDouble(m.group(3)) * unitMs(m.group(4))));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Malformed alert '"+text+"': "+e.getMessage());
+		}
+		if (above ? clear > threshold : clear < threshold) {
+			throw new IllegalArgumentException("Malformed alert '"+text+"': clear level "+clear+" should be "+(above ? "below" : "above")+" threshold "+threshold);
+		}
+	}
+	
+	/** @return The length of a duration unit, ms (seconds if {@code null}). */
+	static private double unitMs(String unit) {
+		switch (unit == null ? "s" : unit.toLowerCase()) {
+			case "ms": return 1;
+			case "m": return 60_000;
+			case "h": return 3_600_000;
+			default: return 1000;
+		}
+	}
+	
+	/** @return A new state of a series, not firing. */
+	public State newState() {
+		return new State();
+	}
+	
+	/** @return Whether {@code v} compares to {@code level}. */
+	private boolean compares(float v, float level) {
+		return (above ? (strict ? v > level : v >= level) : (strict ? v < level : v <= level));
+	}
+	
+	/**
+	 * Evaluate the rule on a value of a series.
+	 * @param t The value timestamp, ms.
+	 * @param state The state of the series.
+	 * @return {@link #FIRED} or {@link #CLEARED} when the alert changes, {@link #UNCHANGED} otherwise.
+	 */
+	public int update(long t, float v, State state) {
+		if (Float.isNaN(v)) {
+			return UNCHANGED;
+		}
+		if (state.firing) {
+			if (compares(v, clear)) {
+				return UNCHANGED;
+			}
+			state.firing = state.pending = false;
+			return CLEARED;
+		}
+		if (!compares(v, threshold)) {
+			state.pending = false;
+			return UNCHANGED;
+		}
+		if (!state.pending) {
+			state.pending = true;
+			state.since = t;
+		}
+		if (t - state.since < forMs) {
+			return UNCHANGED;
+		}
+		state.firing = true;
+		return FIRED;
+	}
+	
+	@Override
+	public String toString() {
+		return text;
+	}
+	
+	
+	
+	/**
+	 * Whether the alert of a series fires, or since when its values compare to the threshold.
+	 */
+	static public class State {
+		
+		private boolean firing, pending;
+		private long since;
+		
+		private State() {
+		}
+		
+		/** @return Whether the alert fires. */
+		public boolean firing() {
+			return firing;
+		}
+		
+	}
+	
+}
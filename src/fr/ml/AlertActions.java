@@ -0,0 +1,108 @@
+package fr.ml;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * What is done when alerts fire or clear (see {@link Alert}): a line appended to a log file ({@code alert.log}),
+ * and/or a command run ({@code alert.command}), or a line printed on {@code System.err} if neither is configured.
+ * <p>
+ * Actions run in a thread of their own, from a bounded queue ({@code alert.queue}): when they are slower than alerts,
+ * new ones are dropped (and counted) rather than waiting, so that alerts never slow down the thread adding measures.
+ * Alerts on measures older than the actions (e.g. back-filled from history) are not acted upon.
+ */
+class AlertActions {
+	
+	private final Path log;
+	/** The command and its arguments, {@code null} if none, and how long it may run, ms. */
+	private final List<String> command;
+	private final long timeoutMs;
+	private final ThreadPoolExecutor exec;
+	/** Number of actions dropped since the last one run. */
+	private final AtomicInteger dropped = new AtomicInteger();
+	/** Alerts on measures before that time are not acted upon. */
+	private final long from = System.currentTimeMillis();
+	/** Only used by the actions thread. */
+	private final SimpleDateFormat tsFormat = new SimpleDateFormat(NVTop.tsFormat);
+	
+	AlertActions(Properties conf) {
+		String file = conf.getProperty("alert.log", "").trim();
+		log = (file.isEmpty() ? null : Paths.get(file));
+		String cmd = conf.getProperty("alert.command", "").trim();
+		command = (cmd.isEmpty() ? null : Arrays.asList(cmd.split("\\s+")));
+		timeoutMs = NVMeasure.parseInt(conf, "alert.command.timeout", 10) * 1000L;
+		exec = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(1, NVMeasure.parseInt(conf, "alert.queue", 64))), r -> {
+			Thread th = new Thread(r, "Alert actions");
+			th.setDaemon(true);
+			return th;
+		}, (r, ex) -> dropped.incrementAndGet());
+	}
+	
+	/**
+	 * Act upon an alert firing or clearing, in the actions thread.
+	 * @param t The timestamp of the measure, ms.
+	 * @param name The graph and series names.
+	 * @param alert The rule.
+	 * @param v The measure.
+	 * @param fired Whether the alert fired, or cleared.
+	 */
+	void alert(long t, String name, Alert alert, float v, boolean fired) {
+		if (t < from) {
+			return;
+		}
+		exec.execute(() -> act(t, name, alert, v, fired));
+	}
+	
+	private void act(long t, String name, Alert alert, float v, boolean fired) {
+		int n = dropped.getAndSet(0);
+		if (n > 0) {
+			System.err.println(n+" alert actions dropped, actions being slower than alerts");
+		}
+		String state = (fired ? "FIRED" : "CLEARED");
+		String line = tsFormat.format(t)+" "+state+" "+name+" = "+v+" ("+alert+")";
+		if (log == null && command == null) {
+			System.err.println("Alert "+line);
+		}
+		if (log != null) {
+			try {
+				Files.write(log, Arrays.asList(line), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			} catch (IOException e) {
+				System.err.println("Cannot log alert to "+log+": "+e.getMessage());
+			}
+		}
+		if (command != null) {
+			List<String> cmd = new ArrayList<>(command);
+			cmd.addAll(Arrays.asList(state.toLowerCase(), name, Float.toString(v), alert.toString(), Long.toString(t)));
+			try {
+				Process p = new ProcessBuilder(cmd).inheritIO().start();
+				if (!p.waitFor(timeoutMs, TimeUnit.MILLISECONDS)) {
+					p.destroyForcibly();
+					System.err.println("Alert command "+command.get(0)+" did not end within "+timeoutMs+" ms, killed");
+				}
+			} catch (IOException e) {
+				System.err.println("Cannot run alert command "+command.get(0)+": "+e.getMessage());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/** Stop once the queued actions are done. */
+	void close() {
+		exec.shutdown();
+	}
+	
+}
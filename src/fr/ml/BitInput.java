@@ -0,0 +1,84 @@
+package fr.ml;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reader of bits written by {@link BitOutput}, from a {@link ByteBuffer}.
+ */
+class BitInput {
+	
+	private final ByteBuffer buf;
+	private int pos;
+	/** Bits read from {@link #buf} but not consumed yet: the {@code nAcc} least significant bits of {@code acc}. */
+	private long acc;
+	private int nAcc;
+	
+	/** @param pos Where the bits start in {@code buf}. */
+	BitInput(ByteBuffer buf, int pos) {
+		this.buf = buf;
+		this.pos = pos;
+	}
+	
+	/** @return The next {@code n} bits, {@code n <= 64}. */
+	long read(int n) {
+		if (n > 32) {
+			long hi = read(n - 32);
+			return (hi << 32) | read(32);
+		}
+		if (n == 0) {
+			return 0;
+		}
+		while (nAcc < n) {
+			acc = (acc << 8) | (buf.get(pos++) & 0xFF);
+			nAcc += 8;
+		}
+		nAcc -= n;
+		return (acc >>> nAcc) & (-1L >>> (64 - n));
+	}
+	
+	boolean readBit() {
+		return read(1) != 0;
+	}
+	
+	/** @return The {@code n} next bits, as a signed value. */
+	private long readSigned(int n) {
+		return (read(n) << (64 - n)) >> (64 - n);
+	}
+	
+	/** @return The delta-of-delta written by {@link BitOutput#writeDeltaOfDelta(long)}. */
+	long readDeltaOfDelta() {
+		if (!readBit()) {
+			return 0;
+		}
+		if (!readBit()) {
+			return readSigned(7);
+		}
+		if (!readBit()) {
+			return readSigned(9);
+		}
+		if (!readBit()) {
+			return readSigned(12);
+		}
+		return read(64);
+	}
+	
+	/**
+	 * @param window The leading and trailing zeros of the previous meaningful XOR, updated when a new one is read.
+	 * @return The XOR written by {@link BitOutput#writeXor(int, int[])}.
+	 */
+	int readXor(int[] window) {
+		if (!readBit()) {
+			return 0;
+		}
+		if (!readBit()) {
+			return (int)read(32 - window[0] - window[1]) << window[1];
+		}
+		int lead = (int)read(5);
+		int len = (int)read(5) + 1;
+		int trail = 32 - lead - len;
+		window[0] = lead;
+		window[1] = trail;
+		return (int)read(len) << trail;
+	}
+	
+}
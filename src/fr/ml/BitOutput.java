@@ -0,0 +1,111 @@
+package fr.ml;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Growable buffer of bits, written most significant bit first.
+ */
+class BitOutput {
+	
+	private byte[] buf = new byte[4096];
+	/** Number of complete bytes in {@link #buf}. */
+	private int pos;
+	/** Bits not written to {@link #buf} yet: the {@code nAcc} least significant bits of {@code acc}. */
+	private long acc;
+	private int nAcc;
+	
+	/** Write the {@code n} least significant bits of {@code bits}, {@code n <= 64}. */
+	void write(long bits, int n) {
+		if (n > 32) {
+			write(bits >>> 32, n - 32);
+			n = 32;
+		}
+		if (n == 0) {
+			return;
+		}
+		acc = (acc << n) | (bits & (-1L >>> (64 - n)));
+		nAcc += n;
+		while (nAcc >= 8) {
+			if (pos == buf.length) {
+				buf = Arrays.copyOf(buf, pos * 2);
+			}
+			nAcc -= 8;
+			buf[pos++] = (byte)(acc >>> nAcc);
+		}
+	}
+	
+	void write(boolean bit) {
+		write(bit ? 1 : 0, 1);
+	}
+	
+	/** @return The number of bytes written, counting a partial last byte. */
+	int length() {
+		return pos + (nAcc > 0 ? 1 : 0);
+	}
+	
+	/** Copy written bits to {@code to}, the last byte padded with 0s. */
+	void copyTo(ByteBuffer to) {
+		to.put(buf, 0, pos);
+		if (nAcc > 0) {
+			to.put((byte)(acc << (8 - nAcc)));
+		}
+	}
+	
+	void clear() {
+		pos = nAcc = 0;
+		acc = 0;
+	}
+	
+	/**
+	 * Write a timestamp as its delta-of-delta: the difference between its distance to the previous timestamp
+	 * and the previous distance. Regular timestamps then take one bit.
+	 * @param dod The delta-of-delta.
+	 */
+	void writeDeltaOfDelta(long dod) {
+		if (dod == 0) {
+			write(0b0, 1);
+		} else if (dod >= -64 && dod <= 63) {
+			write(0b10, 2);
+			write(dod, 7);
+		} else if (dod >= -256 && dod <= 255) {
+			write(0b110, 3);
+			write(dod, 9);
+		} else if (dod >= -2048 && dod <= 2047) {
+			write(0b1110, 4);
+			write(dod, 12);
+		} else {
+			write(0b1111, 4);
+			write(dod, 64);
+		}
+	}
+	
+	/**
+	 * Write a float as the XOR of its bits with the previous value's (Gorilla encoding): a single {@code 0} bit if
+	 * unchanged, otherwise only the bits that differ, positioned by their leading and trailing zeros.
+	 * @param xor The XOR of the value bits with the previous value bits.
+	 * @param window The leading and trailing zeros of the previous meaningful XOR ({@code -1} if none),
+	 * 		updated when a new one is written.
+	 */
+	void writeXor(int xor, int[] window) {
+		if (xor == 0) {
+			write(0b0, 1);
+			return;
+		}
+		int lead = Integer.numberOfLeadingZeros(xor);
+		int trail = Integer.numberOfTrailingZeros(xor);
+		if (window[0] >= 0 && lead >= window[0] && trail >= window[1]) { // Fits in previous window
+			write(0b10, 2);
+			write(xor >>> window[1], 32 - window[0] - window[1]);
+		} else {
+			int len = 32 - lead - trail;
+			write(0b11, 2);
+			write(lead, 5);
+			write(len - 1, 5);
+			write(xor >>> trail, len);
+			window[0] = lead;
+			window[1] = trail;
+		}
+	}
+	
+}
@@ -0,0 +1,95 @@
+package fr.ml;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Watch a configuration file, and give its new properties when they change.
+ * <p>
+ * The file directory is watched (editors often replace files rather than writing them), and the file is only read
+ * once it was left unmodified for {@link #SETTLE_MS}, so that a save in several writes is read once. Files that
+ * cannot be read, or whose properties did not change (e.g. only comments), are ignored.
+ */
+public class ConfigWatcher implements Closeable {
+	
+	/** Time the file must be left unmodified before being read, ms. */
+	static public final int SETTLE_MS = 200;
+	
+	private final Path file;
+	private final WatchService watcher;
+	private final Consumer<Properties> changed;
+	/** The last properties read. */
+	private Properties current;
+	
+	/**
+	 * @param file The configuration file.
+	 * @param current Its current properties.
+	 * @param changed Called with the new properties when they change, from the watching thread.
+	 * @throws IOException When the file directory cannot be watched.
+	 */
+	public ConfigWatcher(Path file, Properties current, Consumer<Properties> changed) throws IOException {
+		this.file = file.toAbsolutePath();
+		this.current = current;
+		this.changed = changed;
+		watcher = this.file.getFileSystem().newWatchService();
+		this.file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+	}
+	
+	/** Start watching, in a daemon thread. */
+	public ConfigWatcher start() {
+		Thread th = new Thread(this::watch, "Configuration watcher");
+		th.setDaemon(true);
+		th.start();
+		return this;
+	}
+	
+	private void watch() {
+		try {
+			for (;;) {
+				WatchKey key = watcher.take();
+				boolean modified = false;
+				for (WatchEvent<?> e : key.pollEvents()) {
+					modified |= (e.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(e.context()));
+				}
+				key.reset();
+				if (!modified) {
+					continue;
+				}
+				while ((key = watcher.poll(SETTLE_MS, TimeUnit.MILLISECONDS)) != null) { // Wait for writes to settle
+					key.pollEvents();
+					key.reset();
+				}
+				Properties prop = new Properties();
+				try (InputStream is = Files.newInputStream(file)) {
+					prop.load(is);
+				} catch (IOException | IllegalArgumentException e) { // E.g. deleted, or a malformed Unicode escape
+					System.err.println("Cannot read configuration "+file+", keeping the current one: "+e.getMessage());
+					continue;
+				}
+				if (!prop.equals(current)) {
+					current = prop;
+					changed.accept(prop);
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// Closed
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		watcher.close();
+	}
+	
+}
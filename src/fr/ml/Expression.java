@@ -0,0 +1,421 @@
+package fr.ml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A series computed from the queries of a row of measures, e.g. {@code memory.used / memory.total * 100}.
+ * <p>
+ * Expressions are made of numbers, queries, {@code + - * /}, parentheses and functions:
+ * <ul>
+ * <li>{@code abs(x)}, {@code min(x, y)}, {@code max(x, y)};</li>
+ * <li>{@code delta(x)}: difference with the previous row, and {@code rate(x)}: that difference per second;</li>
+ * <li>{@code ema(x, n)}: exponential moving average over about {@code n} rows ({@code alpha = 2 / (n + 1)});</li>
+ * <li>{@code rolling_avg(x, n)}, {@code rolling_min(x, n)}, {@code rolling_max(x, n)}: over the last {@code n} rows.</li>
+ * </ul>
+ * {@code n} must be a number. Missing values ({@code NaN}) make the result missing, but are left out of moving
+ * averages and rolling windows.
+ * <p>
+ * Expressions are compiled once into a flat stack program, evaluated without allocation. Functions of previous
+ * rows keep their state (e.g. rolling windows, as rings) in a {@link State}, one per series of rows (e.g. per GPU).
+ * Rolling min and max are kept by monotonic deques, so that each row takes amortized constant time whatever {@code n}.
+ */
+public class Expression {
+	
+	/** Instructions: a code, and its argument (column, constant or state slot). */
+	static private final int COLUMN = 0, CONST = 1, ADD = 2, SUB = 3, MUL = 4, DIV = 5, NEG = 6, ABS = 7, MIN = 8, MAX = 9,
+			DELTA = 10, RATE = 11, EMA = 12, ROLLING_AVG = 13, ROLLING_MIN = 14, ROLLING_MAX = 15;
+	/** Functions names, by instruction code ({@code null} if not a function), and their number of arguments. */
+	static private final String[] FUNCTIONS = { null, null, null, null, null, null, null, "abs", "min", "max",
+			"delta", "rate", "ema", "rolling_avg", "rolling_min", "rolling_max" };
+	static private final int[] ARGS = { 0, 0, 0, 0, 0, 0, 0, 1, 2, 2, 1, 1, 2, 2, 2, 2 };
+	/** Maximum {@code n} of rolling windows, rows. */
+	static private final int MAX_WINDOW = 100_000;
+	
+	private final String text;
+	/** Instructions, as code/argument pairs. */
+	private int[] code = new int[16];
+	private int nCode;
+	private float[] consts = new float[4];
+	private int nConsts;
+	/** Queries used, and their column in rows ({@code -1} if absent). */
+	private final List<String> queries = new ArrayList<>();
+	private int[] cols = new int[0];
+	/** Function of each state slot, its rolling window length ({@code 0} if not a rolling window), and the {@code ema} alpha. */
+	private int[] ops = new int[0];
+	private int[] windows = new int[0];
+	private float[] alphas = new float[0];
+	/** Stack depth needed to evaluate. */
+	private int depth, maxDepth;
+	
+	/** Parser position in {@link #text}. */
+	private int pos;
+	
+	/**
+	 * Compile an expression.
+	 * @throws IllegalArgumentException If it is malformed.
+	 */
+	public Expression(String text) throws IllegalArgumentException {
+		this.text = text;
+		expr();
+		skipSpaces();
+		if (pos < text.length()) {
+			throw error("Unexpected '"+text.charAt(pos)+"'");
+		}
+		code = Arrays.copyOf(code, nCode);
+		cols = new int[queries.size()];
+		Arrays.fill(cols, -1);
+	}
+	
+	/** @return The queries used by the expression. */
+	public List<String> queries() {
+		return queries;
+	}
+	
+	/**
+	 * Set the columns order of rows given to {@link #eval(long, float[], State)}.
+	 * @param rowQueries The queries, in the order their values appear in rows.
+	 */
+	public void setColumns(List<String> rowQueries) {
+		for (int i = 0; i < cols.length; i++) {
+			cols[i] = rowQueries.indexOf(queries.get(i));
+		}
+	}
+	
+	/** @return A new state of functions of previous rows, for a series of rows (e.g. of a GPU). */
+	public State newState() {
+		return new State();
+	}
+	
+	/**
+	 * Evaluate the expression on a row.
+	 * @param t The row timestamp, ms (used by {@code rate}).
+	 * @param row The row values, ordered as set by {@link #setColumns(List)}.
+	 * @param state The state of the series the row is part of (e.g. its GPU), updated.
+	 * @return The value, {@code NaN} if missing.
+	 */
+	public float eval(long t, float[] row, State state) {
+		float[] st = state.stack;
+		int sp = 0;
+		for (int pc = 0; pc < code.length; pc += 2) {
+			int arg = code[pc + 1];
+			switch (code[pc]) {
+				case COLUMN: {
+					int c = cols[arg];
+					st[sp++] = (c < 0 || c >= row.length ? Float.NaN : row[c]);
+					break;
+				}
+				case CONST: st[sp++] = consts[arg]; break;
+				case ADD: sp--; st[sp - 1] += st[sp]; break;
+				case SUB: sp--; st[sp - 1] -= st[sp]; break;
+				case MUL: sp--; st[sp - 1] *= st[sp]; break;
+				case DIV: sp--; st[sp - 1] /= st[sp]; break;
+				case NEG: st[sp - 1] = -st[sp - 1]; break;
+				case ABS: st[sp - 1] = Math.abs(st[sp - 1]); break;
+				case MIN: sp--; st[sp - 1] = Math.min(st[sp - 1], st[sp]); break;
+				case MAX: sp--; st[sp - 1] = Math.max(st[sp - 1], st[sp]); break;
+				case DELTA: st[sp - 1] = state.delta(arg, st[sp - 1], t, false); break;
+				case RATE: st[sp - 1] = state.delta(arg, st[sp - 1], t, true); break;
+				case EMA: st[sp - 1] = state.ema(arg, st[sp - 1]); break;
+				default: st[sp - 1] = state.rolling(arg, st[sp - 1], code[pc]); break;
+			}
+		}
+		return st[0];
+	}
+	
+	@Override
+	public String toString() {
+		return text;
+	}
+	
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message+" at position "+(pos + 1)+" of expression \""+text+"\"");
+	}
+	
+	private void emit(int op, int arg) {
+		if (nCode + 2 > code.length) {
+			code = Arrays.copyOf(code, code.length * 2);
+		}
+		code[nCode++] = op;
+		code[nCode++] = arg;
+		if (op == COLUMN || op == CONST) {
+			maxDepth = Math.max(maxDepth, ++depth);
+		} else if (op == ADD || op == SUB || op == MUL || op == DIV || op == MIN || op == MAX) {
+			depth--;
+		}
+	}
+	
+	private int constant(float v) {
+		if (nConsts == consts.length) {
+			consts = Arrays.copyOf(consts, nConsts * 2);
+		}
+		consts[nConsts] = v;
+		return nConsts++;
+	}
+	
+	/** @return A new state slot. */
+	private int slot(int op, int window, float alpha) {
+		int s = windows.length;
+		ops = Arrays.copyOf(ops, s + 1);
+		ops[s] = op;
+		windows = Arrays.copyOf(windows, s + 1);
+		alphas = Arrays.copyOf(alphas, s + 1);
+		windows[s] = window;
+		alphas[s] = alpha;
+		return s;
+	}
+	
+	private void skipSpaces() {
+		while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+			pos++;
+		}
+	}
+	
+	/** @return Whether the next character is {@code c}, skipping it if so. */
+	private boolean accept(char c) {
+		skipSpaces();
+		if (pos < text.length() && text.charAt(pos) == c) {
+			pos++;
+			return true;
+		}
+		return false;
+	}
+	
+	private void expect(char c) {
+		if (!accept(c)) {
+			throw error(pos < text.length() ? "Expected '"+c+"' instead of '"+text.charAt(pos)+"'" : "Expected '"+c+"'");
+		}
+	}
+	
+	/** {@code expr := term (('+'|'-') term)*} */
+	private void expr() {
+		term();
+		for (;;) {
+			if (accept('+')) {
+				term();
+				emit(ADD, 0);
+			} else if (accept('-')) {
+				term();
+				emit(SUB, 0);
+			} else {
+				return;
+			}
+		}
+	}
+	
+	/** {@code term := unary (('*'|'/') unary)*} */
+	private void term() {
+		unary();
+		for (;;) {
+			if (accept('*')) {
+				unary();
+				emit(MUL, 0);
+			} else if (accept('/')) {
+				unary();
+				emit(DIV, 0);
+			} else {
+				return;
+			}
+		}
+	}
+	
+	/** {@code unary := '-' unary | primary} */
+	private void unary() {
+		if (accept('-')) {
+			unary();
+			emit(NEG, 0);
+		} else {
+			primary();
+		}
+	}
+	
+	/** {@code primary := number | query | function '(' args ')' | '(' expr ')'} */
+	private void primary() {
+		skipSpaces();
+		if (accept('(')) {
+			expr();
+			expect(')');
+			return;
+		}
+		if (pos >= text.length()) {
+			throw error("Expected a value");
+		}
+		char c = text.charAt(pos);
+		if (Character.isDigit(c) || c == '.') {
+			emit(CONST, constant(number()));
+			return;
+		}
+		if (!Character.isLetter(c) && c != '_') {
+			throw error("Unexpected '"+c+"'");
+		}
+		int start = pos;
+		while (pos < text.length() && (Character.isLetterOrDigit(text.charAt(pos)) || text.charAt(pos) == '_' || text.charAt(pos) == '.')) {
+			pos++;
+		}
+		String name = text.substring(start, pos);
+		if (!accept('(')) { // Query
+			int q = queries.indexOf(name);
+			if (q < 0) {
+				q = queries.size();
+				queries.add(name);
+			}
+			emit(COLUMN, q);
+			return;
+		}
+		int op = Arrays.asList(FUNCTIONS).indexOf(name);
+		if (op < 0) {
+			pos = start;
+			throw error("Unknown function '"+name+"'");
+		}
+		expr();
+		if (op == MIN || op == MAX) {
+			expect(',');
+			expr();
+			emit(op, 0);
+		} else if (ARGS[op] == 2) { // Function of previous rows, over n rows
+			expect(',');
+			skipSpaces();
+			int n = Math.round(number());
+			if (n < 1 || n > MAX_WINDOW) {
+				throw error("Number of rows should be between 1 and "+MAX_WINDOW);
+			}
+			emit(op, op == EMA ? slot(op, 0, 2f / (n + 1)) : slot(op, n, 0));
+		} else {
+			emit(op, op == DELTA || op == RATE ? slot(op, 0, 0) : 0);
+		}
+		expect(')');
+	}
+	
+	private float number() {
+		int start = pos;
+		while (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.'
+				|| ((text.charAt(pos) == 'e' || text.charAt(pos) == 'E') && pos > start)
+				|| ((text.charAt(pos) == '-' || text.charAt(pos) == '+') && pos > start && (text.charAt(pos - 1) == 'e' || text.charAt(pos - 1) == 'E')))) {
+			pos++;
+		}
+		try {
+			return Float.parseFloat(text.substring(start, pos));
+		} catch (NumberFormatException e) {
+			pos = start;
+			throw error("Malformed number");
+		}
+	}
+	
+	
+	
+	/**
+	 * State of the functions of previous rows of an expression, for a series of rows (e.g. of a GPU), and the
+	 * evaluation stack.
+	 */
+	public class State {
+		
+		private final float[] stack = new float[Math.max(1, maxDepth)];
+		/** Previous value ({@code delta}, {@code rate}, {@code ema}) of each slot. */
+		private final float[] values = new float[windows.length];
+		/** Sum of the values of each rolling window, as {@code double} not to drift while values come and go. */
+		private final double[] sums = new double[windows.length];
+		/** Previous timestamp ({@code rate}) of each slot. */
+		private final long[] times = new long[windows.length];
+		/** Last values of each rolling window (ring), next index in it, and number of values that are not {@code NaN}. */
+		private final float[][] rings = new float[windows.length][];
+		private final int[] next = new int[windows.length];
+		private final int[] counts = new int[windows.length];
+		/**
+		 * Number of rows added to each rolling window and, for {@code rolling_min} and {@code rolling_max}, the rows
+		 * that can still be its min (resp. max), oldest first: a monotonic deque (ring), its first index and size.
+		 */
+		private final long[] rows = new long[windows.length];
+		private final long[][] deques = new long[windows.length][];
+		private final int[] first = new int[windows.length];
+		private final int[] sizes = new int[windows.length];
+		
+		private State() {
+			Arrays.fill(values, Float.NaN);
+			for (int s = 0; s < windows.length; s++) {
+				if (windows[s] > 0) {
+					rings[s] = new float[windows[s]];
+					Arrays.fill(rings[s], Float.NaN);
+				}
+				if (ops[s] == ROLLING_MIN || ops[s] == ROLLING_MAX) {
+					deques[s] = new long[windows[s]];
+				}
+			}
+		}
+		
+		/** @return The difference of {@code v} with the previous value, per second if {@code perSecond}. */
+		private float delta(int s, float v, long t, boolean perSecond) {
+			float prev = values[s];
+			long tPrev = times[s];
+			values[s] = v;
+			times[s] = t;
+			if (!perSecond) {
+				return v - prev;
+			}
+			return t > tPrev ? (v - prev) * 1000f / (t - tPrev) : Float.NaN;
+		}
+		
+		private float ema(int s, float v) {
+			float e = values[s];
+			if (!Float.isNaN(v)) {
+				e = values[s] = (Float.isNaN(e) ? v : e + alphas[s] * (v - e));
+			}
+			return e;
+		}
+		
+		/** Add {@code v} to a rolling window, and return its average, min or max, in amortized constant time. */
+		private float rolling(int s, float v, int op) {
+			float[] ring = rings[s];
+			long row = rows[s]++;
+			if (op != ROLLING_AVG) {
+				extremes(s, row, v, op == ROLLING_MIN);
+			}
+			int i = next[s];
+			float old = ring[i];
+			ring[i] = v;
+			next[s] = (i + 1 == ring.length ? 0 : i + 1);
+			if (!Float.isNaN(old)) {
+				sums[s] -= old;
+				counts[s]--;
+			}
+			if (!Float.isNaN(v)) {
+				sums[s] += v;
+				counts[s]++;
+			}
+			if (counts[s] == 0) {
+				sums[s] = 0; // No rounding error left over
+				return Float.NaN;
+			}
+			if (op == ROLLING_AVG) {
+				return (float)(sums[s] / counts[s]);
+			}
+			return ring[(int)(deques[s][first[s]] % ring.length)];
+		}
+		
+		/** Update the deque of a rolling window with the value {@code v} of row {@code row}, before it is put in the ring. */
+		private void extremes(int s, long row, float v, boolean min) {
+			long[] dq = deques[s];
+			float[] ring = rings[s];
+			int n = dq.length;
+			while (sizes[s] > 0 && dq[first[s]] <= row - n) { // Out of the window
+				first[s] = (first[s] + 1 == n ? 0 : first[s] + 1);
+				sizes[s]--;
+			}
+			if (Float.isNaN(v)) {
+				return;
+			}
+			// Drop the rows that can no longer be the min (resp. max), as a more recent one is lower (resp. greater)
+			while (sizes[s] > 0) {
+				float vb = ring[(int)(dq[(first[s] + sizes[s] - 1) % n] % n)];
+				if (min ? vb < v : vb > v) {
+					break;
+				}
+				sizes[s]--;
+			}
+			dq[(first[s] + sizes[s]) % n] = row;
+			sizes[s]++;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,352 @@
+package fr.ml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulator of {@code nvidia-smi --query-gpu=... --format=csv,noheader,nounits --loop-ms=...}, to test without GPU.
+ * <p>
+ * Numeric queries are random walks within a range guessed from their name (e.g. {@code utilization.*} within
+ * 0-100%, {@code memory.*} within 0-16GiB), {@code timestamp}, {@code index}, {@code name} and {@code uuid} are
+ * given as {@code nvidia-smi} would. Values can be randomly given as {@code [N/A]}, and lines randomly malformed
+ * (missing values, garbage or empty lines).
+ * <p>
+ * It can be used in process through {@link #stream()}, or as a stand-in executable through {@link #main(String[])}.
+ * <p>
+ * It also simulates the processes using GPUs ({@code nvidia-smi --query-compute-apps=...}, see
+ * {@link #computeApps(List)}): short-lived jobs of a few programs, started and ending at random.
+ */
+public class FakeSmi {
+	
+	private final List<String> queries;
+	private final int gpus;
+	/** Time between two measures of all GPUs, ms. {@code 0} to output a single measure. */
+	private volatile int loopMs;
+	/** Probability of a value being not available, and of a line being malformed. */
+	private double naRate, malformedRate;
+	private final Random r;
+	
+	/** Current values of each GPU. */
+	private final float[][] values;
+	/** Range of each query values. */
+	private final float[] min, max;
+	
+	private final SimpleDateFormat df = new SimpleDateFormat(NVTop.tsFormat);
+	private final StringBuilder sb = new StringBuilder();
+	
+	/** Programs of simulated processes. */
+	static private final String[] PROGRAMS = { "/usr/bin/python3", "/opt/conda/bin/python", "./train", "/usr/local/bin/infer-server", "ffmpeg" };
+	/** Simulated processes, and the next PID. */
+	private final List<Job> jobs = new ArrayList<>();
+	private int nextPid = 1000;
+	
+	/**
+	 * @param queries The queries, as given to {@code --query-gpu}.
+	 * @param gpus The number of GPUs to simulate.
+	 * @param loopMs Time between two measures of all GPUs, ms. {@code 0} to output a single measure.
+	 */
+	public FakeSmi(List<String> queries, int gpus, int loopMs) {
+		this.queries = queries;
+		this.gpus = Math.max(1, gpus);
+		this.loopMs = loopMs;
+		r = new Random(0);
+		int n = queries.size();
+		min = new float[n];
+		max = new float[n];
+		values = new float[this.gpus][n];
+		for (int i = 0; i < n; i++) {
+			String q = queries.get(i);
+			max[i] = 100;
+			if (q.startsWith("memory.")) {
+				max[i] = 16384;
+			} else if (q.startsWith("temperature.")) {
+				min[i] = 30;
+				max[i] = 90;
+			} else if (q.startsWith("power.") || q.endsWith("power.limit")) {
+				min[i] = 50;
+				max[i] = 300;
+			} else if (q.startsWith("clocks.")) {
+				min[i] = 300;
+				max[i] = 2000;
+			}
+			for (int g = 0; g < this.gpus; g++) {
+				values[g][i] = (min[i] + max[i]) / 2;
+			}
+		}
+	}
+	
+	/** @param seed Seed of the random walks, so that several simulated nodes give different measures. Default is {@code 0}. */
+	public FakeSmi seed(long seed) {
+		r.setSeed(seed);
+		return this;
+	}
+	
+	/**
+	 * Change the time between two measures of all GPUs, from the next one.
+	 * @param loopMs The new time, ms.
+	 * @return Whether it was changed, i.e. unless a single measure is output.
+	 */
+	public boolean period(int loopMs) {
+		if (this.loopMs <= 0 || loopMs <= 0) {
+			return false;
+		}
+		this.loopMs = loopMs;
+		return true;
+	}
+	
+	/** @return The measures of {@link #stream()}, as a source whose period can change (see {@link #period(int)}). */
+	public SmiSource source() {
+		return new SmiSource(stream(), queries) {
+			@Override
+			public boolean period(int periodMs) {
+				return FakeSmi.this.period(periodMs);
+			}
+		};
+	}
+	
+	/** @param rate Probability of a value being given as {@code [N/A]}. */
+	public FakeSmi notAvailable(double rate) {
+		this.naRate = rate;
+		return this;
+	}
+	
+	/** @param rate Probability of a line being malformed. */
+	public FakeSmi malformed(double rate) {
+		this.malformedRate = rate;
+		return this;
+	}
+	
+	/** Append the lines of all GPUs at time {@code t} to {@link #sb}. */
+	private void lines(long t) {
+		String ts = df.format(new Date(t));
+		for (int g = 0; g < gpus; g++) {
+			int nFields = queries.size();
+			boolean malformed = (malformedRate > 0 && r.nextDouble() < malformedRate);
+			if (malformed) {
+				switch (r.nextInt(3)) {
+					case 0: // Empty line
+						sb.append('\n');
+						continue;
+					case 1: // Missing values
+						nFields = r.nextInt(nFields);
+						break;
+					default: // Garbage value, handled below
+				}
+			}
+			for (int i = 0; i < nFields; i++) {
+				if (i > 0) {
+					sb.append(", ");
+				}
+				String q = queries.get(i);
+				if ("timestamp".equals(q)) {
+					sb.append(ts);
+				} else if ("index".equals(q)) {
+					sb.append(g);
+				} else if ("name".equals(q)) {
+					sb.append("Fake GPU");
+				} else if ("uuid".equals(q)) {
+					sb.append("GPU-00000000-0000-0000-0000-00000000000").append(g);
+				} else if (malformed && i == nFields - 1) {
+					sb.append("#garbage#");
+				} else if (naRate > 0 && r.nextDouble() < naRate) {
+					sb.append("[N/A]");
+				} else {
+					float v = values[g][i] + (max[i] - min[i]) * (r.nextFloat() - .5f) / 20;
+					v = Math.max(min[i], Math.min(max[i], v));
+					values[g][i] = v;
+					sb.append(Math.round(v));
+				}
+			}
+			sb.append('\n');
+		}
+	}
+	
+	/**
+	 * Simulate the processes using GPUs now: each process ends with a probability of 10%, and processes are started
+	 * so that each GPU runs 1 to 4 of them.
+	 * @param fields The fields, as given to {@code --query-compute-apps} ({@code pid}, {@code process_name},
+	 * 		{@code used_memory}, {@code gpu_uuid}; others are {@code [N/A]}).
+	 * @return The lines of {@code nvidia-smi --query-compute-apps=<fields> --format=csv,noheader,nounits}.
+	 */
+	public String computeApps(List<String> fields) {
+		jobs.removeIf(j -> r.nextInt(10) == 0);
+		for (int g = 0; g < gpus; g++) {
+			int gpu = g;
+			for (int n = (int)jobs.stream().filter(j -> j.gpu == gpu).count(), target = 1 + r.nextInt(4); n < target; n++) {
+				jobs.add(new Job(nextPid++, gpu, PROGRAMS[r.nextInt(PROGRAMS.length)], 256 + r.nextInt(8192)));
+			}
+		}
+		StringBuilder lines = new StringBuilder();
+		for (Job j : jobs) {
+			j.memory = Math.max(64, Math.min(16384, j.memory + 256 * (r.nextFloat() - .5f)));
+			for (int i = 0; i < fields.size(); i++) {
+				if (i > 0) {
+					lines.append(", ");
+				}
+				switch (fields.get(i)) {
+					case "pid": lines.append(j.pid); break;
+					case "process_name": case "name": lines.append(j.program); break;
+					case "used_memory": case "used_gpu_memory": lines.append(Math.round(j.memory)); break;
+					case "gpu_uuid": lines.append("GPU-00000000-0000-0000-0000-00000000000").append(j.gpu); break;
+					default: lines.append("[N/A]");
+				}
+			}
+			lines.append('\n');
+		}
+		return lines.toString();
+	}
+	
+	/**
+	 * @return An endless stream of {@code nvidia-smi} output, a measure of all GPUs being given every {@code loopMs}
+	 * 		(reading blocks until then). Only one measure is given if {@code loopMs} is {@code 0}.
+	 */
+	public InputStream stream() {
+		return new InputStream() {
+			private byte[] buf = new byte[0];
+			private int pos;
+			private long next = System.currentTimeMillis();
+			private boolean ended;
+			
+			/** @return Whether there is something to read. */
+			private boolean fill() {
+				if (pos < buf.length) {
+					return true;
+				}
+				if (ended) {
+					return false;
+				}
+				// Wait for the next measure
+				long wait;
+				while ((wait = next - System.currentTimeMillis()) > 0) {
+					LockSupport.parkNanos(wait * 1_000_000);
+				}
+				sb.setLength(0);
+				lines(next);
+				buf = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+				pos = 0;
+				if (loopMs <= 0) {
+					ended = true;
+				}
+				next += loopMs;
+				return true;
+			}
+			
+			@Override
+			public int read() {
+				return fill() ? buf[pos++] & 0xFF : -1;
+			}
+			
+			@Override
+			public int read(byte[] b, int off, int len) {
+				if (len == 0) {
+					return 0;
+				}
+				if (!fill()) {
+					return -1;
+				}
+				int n = Math.min(len, buf.length - pos);
+				System.arraycopy(buf, pos, b, off, n);
+				pos += n;
+				return n;
+			}
+			
+			@Override
+			public int available() {
+				return buf.length - pos;
+			}
+		};
+	}
+	
+	/**
+	 * Stand-in for {@code nvidia-smi}: understands {@code --query-gpu=<queries>} or {@code --query-compute-apps=<fields>},
+	 * {@code --format=csv[,noheader][,nounits]} and {@code --loop-ms=<ms>}, plus {@code --gpus=<n>} (default 1),
+	 * {@code --na=<probability>} and {@code --malformed=<probability>} (default 0).
+	 */
+	public static void main(String[] args) throws IOException {
+		List<String> queries = new ArrayList<>(), apps = new ArrayList<>();
+		int gpus = 1, loopMs = 0;
+		double na = 0, malformed = 0;
+		boolean header = true;
+		try {
+			for (String a : args) {
+				int eq = a.indexOf('=');
+				String opt = (eq < 0 ? a : a.substring(0, eq));
+				String val = (eq < 0 ? "" : a.substring(eq + 1));
+				switch (opt) {
+					case "--query-gpu": queries.addAll(Arrays.asList(val.split(","))); break;
+					case "--query-compute-apps": apps.addAll(Arrays.asList(val.split(","))); break;
+					case "--format": header = !Arrays.asList(val.split(",")).contains("noheader"); break;
+					case "--loop-ms": loopMs = Integer.parseInt(val); break;
+					case "--gpus": gpus = Integer.parseInt(val); break;
+					case "--na": na = Double.parseDouble(val); break;
+					case "--malformed": malformed = Double.parseDouble(val); break;
+					default:
+						System.err.println("Unknown option "+a);
+						System.exit(2);
+				}
+			}
+		} catch (NumberFormatException e) {
+			System.err.println("Malformed option: "+e.getMessage());
+			System.exit(2);
+		}
+		if (queries.isEmpty() && apps.isEmpty()) {
+			System.err.println("Usage: FakeSmi --query-gpu=<queries>|--query-compute-apps=<fields> --format=csv,noheader,nounits [--loop-ms=<ms>] [--gpus=<n>] [--na=<probability>] [--malformed=<probability>]");
+			System.exit(2);
+		}
+		
+		OutputStream out = System.out;
+		if (!apps.isEmpty()) { // Processes
+			if (header) {
+				out.write((String.join(", ", apps)+"\n").getBytes(StandardCharsets.ISO_8859_1));
+			}
+			FakeSmi sim = new FakeSmi(queries, gpus, loopMs);
+			do {
+				out.write(sim.computeApps(apps).getBytes(StandardCharsets.ISO_8859_1));
+				out.flush();
+				LockSupport.parkNanos(loopMs * 1_000_000L);
+			} while (loopMs > 0);
+			return;
+		}
+		if (header) {
+			out.write((String.join(", ", queries)+"\n").getBytes(StandardCharsets.ISO_8859_1));
+		}
+		InputStream in = new FakeSmi(queries, gpus, loopMs).notAvailable(na).malformed(malformed).stream();
+		byte[] buf = new byte[8192];
+		for (int n; (n = in.read(buf)) >= 0; ) {
+			out.write(buf, 0, n);
+			if (in.available() == 0) {
+				out.flush();
+			}
+		}
+		out.flush();
+	}
+	
+	
+	
+	/** A simulated process. */
+	static private class Job {
+		
+		private final int pid, gpu;
+		private final String program;
+		/** GPU memory used, MiB. */
+		private float memory;
+		
+		private Job(int pid, int gpu, String program, float memory) {
+			this.pid = pid;
+			this.gpu = gpu;
+			this.program = program;
+			this.memory = memory;
+		}
+		
+	}
+	
+}
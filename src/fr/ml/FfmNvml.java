@@ -0,0 +1,301 @@
+package fr.ml;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Optional;
+
+/**
+ * Binding of {@code libnvidia-ml} through the Java foreign function API ({@code java.lang.foreign}, Java 22+).
+ * <p>
+ * The API is looked up by reflection so that the rest of the application still runs on older Java versions, but
+ * calls are plain {@link MethodHandle#invokeExact} of downcall handles: pointers and handles are given as
+ * {@code long} addresses (LP64), values are written by NVML to a native buffer and read back through handles bound
+ * to it. Reading a value therefore allocates nothing, and costs about a native call.
+ * <p>
+ * Not thread-safe: values go through a single buffer. Java 22+ warns about the native access unless run with
+ * {@code --enable-native-access=ALL-UNNAMED}.
+ * <p>
+ * Downcalls only throw when the binding itself is wrong (e.g. {@link java.lang.invoke.WrongMethodTypeException} for
+ * a mismatched signature, {@link IllegalCallerException} if native access is denied): that is thrown as is, not
+ * turned into an NVML error. Every function is called once when loading, so that it fails then.
+ */
+class FfmNvml implements Nvml {
+	
+	/** Size of the native buffer, enough for the largest value ({@code nvmlMemory_t}). */
+	static private final long BUFFER = 64;
+	
+	private final MethodHandle nvmlInit, nvmlShutdown, getCount, getHandle, getUtilization, getMemory, getTemperature,
+			getPower, getPowerLimit, getEnforcedLimit, getFanSpeed, getClock, getMaxClock, getPState;
+	/** Native buffer address, and reading an {@code int} or a {@code long} at an offset of it. */
+	private final long buf;
+	private final MethodHandle intAt, longAt;
+	
+	/** The {@code java.lang.foreign} objects and methods needed to bind functions. */
+	private final Object linker, lookup, javaInt, javaLong;
+	private final Class<?> layoutC, optionC;
+	private final Method find, descriptorOf, downcall;
+	
+	/**
+	 * Load NVML.
+	 * @param library The library name (e.g. {@code libnvidia-ml.so.1}) or path.
+	 * @throws IOException If {@code java.lang.foreign} is not available, or the library or one of its functions
+	 * 		cannot be found.
+	 */
+	FfmNvml(String library) throws IOException {
+		try {
+			Class<?> linkerC = Class.forName("java.lang.foreign.Linker");
+			Class<?> lookupC = Class.forName("java.lang.foreign.SymbolLookup");
+			Class<?> arenaC = Class.forName("java.lang.foreign.Arena");
+			Class<?> segmentC = Class.forName("java.lang.foreign.MemorySegment");
+			Class<?> descriptorC = Class.forName("java.lang.foreign.FunctionDescriptor");
+			Class<?> valueC = Class.forName("java.lang.foreign.ValueLayout");
+			Class<?> ofIntC = Class.forName("java.lang.foreign.ValueLayout$OfInt");
+			Class<?> ofLongC = Class.forName("java.lang.foreign.ValueLayout$OfLong");
+			layoutC = Class.forName("java.lang.foreign.MemoryLayout");
+			optionC = Class.forName("java.lang.foreign.Linker$Option");
+			linker = linkerC.getMethod("nativeLinker").invoke(null);
+			Object arena = arenaC.getMethod("global").invoke(null);
+			lookup = lookupC.getMethod("libraryLookup", String.class, arenaC).invoke(null, library, arena);
+			javaInt = valueC.getField("JAVA_INT").get(null);
+			javaLong = valueC.getField("JAVA_LONG").get(null);
+			find = lookupC.getMethod("find", String.class);
+			descriptorOf = descriptorC.getMethod("of", layoutC, layoutC.arrayType());
+			downcall = linkerC.getMethod("downcallHandle", segmentC, descriptorC, optionC.arrayType());
+			
+			Object segment = arenaC.getMethod("allocate", long.class, long.class).invoke(arena, BUFFER, 8L);
+			buf = (long)segmentC.getMethod("address").invoke(segment);
+			MethodHandles.Lookup pub = MethodHandles.publicLookup();
+			intAt = MethodHandles.insertArguments(pub.findVirtual(segmentC, "get", MethodType.methodType(int.class, ofIntC, long.class))
+					.bindTo(segment), 0, javaInt).asType(MethodType.methodType(int.class, long.class));
+			longAt = MethodHandles.insertArguments(pub.findVirtual(segmentC, "get", MethodType.methodType(long.class, ofLongC, long.class))
+					.bindTo(segment), 0, javaLong).asType(MethodType.methodType(long.class, long.class));
+			
+			nvmlInit = function("nvmlInit_v2");
+			nvmlShutdown = function("nvmlShutdown");
+			getCount = function("nvmlDeviceGetCount_v2", javaLong);
+			getHandle = function("nvmlDeviceGetHandleByIndex_v2", javaInt, javaLong);
+			getUtilization = function("nvmlDeviceGetUtilizationRates", javaLong, javaLong);
+			getMemory = function("nvmlDeviceGetMemoryInfo", javaLong, javaLong);
+			getTemperature = function("nvmlDeviceGetTemperature", javaLong, javaInt, javaLong);
+			getPower = function("nvmlDeviceGetPowerUsage", javaLong, javaLong);
+			getPowerLimit = function("nvmlDeviceGetPowerManagementLimit", javaLong, javaLong);
+			getEnforcedLimit = function("nvmlDeviceGetEnforcedPowerLimit", javaLong, javaLong);
+			getFanSpeed = function("nvmlDeviceGetFanSpeed", javaLong, javaLong);
+			getClock = function("nvmlDeviceGetClockInfo", javaLong, javaInt, javaLong);
+			getMaxClock = function("nvmlDeviceGetMaxClockInfo", javaLong, javaInt, javaLong);
+			getPState = function("nvmlDeviceGetPerformanceState", javaLong, javaLong);
+		} catch (ClassNotFoundException e) {
+			throw new IOException("NVML binding needs Java 22 or later (java.lang.foreign)");
+		} catch (InvocationTargetException e) { // E.g. library not found
+			throw new IOException("Cannot load "+library+": "+e.getCause().getMessage(), e.getCause());
+		} catch (ReflectiveOperationException e) {
+			throw new IOException("Cannot bind "+library+": "+e, e);
+		}
+		try {
+			smoke();
+		} catch (RuntimeException e) {
+			throw new IOException("Cannot call "+library+": "+e, e);
+		}
+	}
+	
+	/** Call every function once (on the first GPU), so that a wrong binding fails when loading rather than on each measure. */
+	private void smoke() {
+		if (init() != SUCCESS) { // E.g. no driver: reported by the source
+			return;
+		}
+		try {
+			int[] ints = new int[3];
+			long[] longs = new long[3];
+			if (deviceGetCount(ints) != SUCCESS || ints[0] == 0 || deviceGetHandleByIndex(0, longs) != SUCCESS) {
+				return;
+			}
+			long device = longs[0];
+			deviceGetUtilizationRates(device, ints);
+			deviceGetMemoryInfo(device, longs);
+			deviceGetTemperature(device, TEMPERATURE_GPU, ints);
+			deviceGetPowerUsage(device, ints);
+			deviceGetPowerManagementLimit(device, ints);
+			deviceGetEnforcedPowerLimit(device, ints);
+			deviceGetFanSpeed(device, ints);
+			deviceGetClockInfo(device, CLOCK_SM, ints);
+			deviceGetMaxClockInfo(device, CLOCK_SM, ints);
+			deviceGetPerformanceState(device, ints);
+		} finally {
+			shutdown();
+		}
+	}
+	
+	/** @return {@code e} to throw: downcalls only throw unchecked exceptions, of a wrong binding. */
+	static private RuntimeException unchecked(Throwable e) {
+		if (e instanceof Error) {
+			throw (Error)e;
+		}
+		return (e instanceof RuntimeException ? (RuntimeException)e : new IllegalStateException(e));
+	}
+	
+	/**
+	 * @param args The layouts of the function arguments, returning an {@code int}.
+	 * @return The downcall handle of function {@code name}.
+	 */
+	private MethodHandle function(String name, Object ... args) throws IOException, ReflectiveOperationException {
+		Optional<?> symbol = (Optional<?>)find.invoke(lookup, name);
+		if (!symbol.isPresent()) {
+			throw new IOException("Missing NVML function "+name);
+		}
+		Object layouts = Array.newInstance(layoutC, args.length);
+		for (int i = 0; i < args.length; i++) {
+			Array.set(layouts, i, args[i]);
+		}
+		Object descriptor = descriptorOf.invoke(null, javaInt, layouts);
+		return (MethodHandle)downcall.invoke(linker, symbol.get(), descriptor, Array.newInstance(optionC, 0));
+	}
+	
+	private int intAt(long offset) throws Throwable {
+		return (int)intAt.invokeExact(offset);
+	}
+	
+	/** Call a function of a device writing an {@code int}, and read it to {@code out[0]}. */
+	private int deviceInt(MethodHandle function, long device, int[] out) {
+		try {
+			int rc = (int)function.invokeExact(device, buf);
+			if (rc == SUCCESS) {
+				out[0] = intAt(0);
+			}
+			return rc;
+		} catch (Throwable e) {
+			throw unchecked(e);
+		}
+	}
+	
+	/** Call a function of a device and an argument (e.g. clock type) writing an {@code int}, and read it to {@code out[0]}. */
+	private int deviceInt(MethodHandle function, long device, int arg, int[] out) {
+		try {
+			int rc = (int)function.invokeExact(device, arg, buf);
+			if (rc == SUCCESS) {
+				out[0] = intAt(0);
+			}
+			return rc;
+		} catch (Throwable e) {
+			throw unchecked(e);
+		}
+	}
+	
+	@Override
+	public int init() {
+		try {
+			return (int)nvmlInit.invokeExact();
+		} catch (Throwable e) {
+			throw unchecked(e);
+		}
+	}
+	
+	@Override
+	public int shutdown() {
+		try {
+			return (int)nvmlShutdown.invokeExact();
+		} catch (Throwable e) {
+			throw unchecked(e);
+		}
+	}
+	
+	@Override
+	public int deviceGetCount(int[] count) {
+		try {
+			int rc = (int)getCount.invokeExact(buf);
+			if (rc == SUCCESS) {
+				count[0] = intAt(0);
+			}
+			return rc;
+		} catch (Throwable e) {
+			throw unchecked(e);
+		}
+	}
+	
+	@Override
+	public int deviceGetHandleByIndex(int index, long[] device) {
+		try {
+			int rc = (int)getHandle.invokeExact(index, buf);
+			if (rc == SUCCESS) {
+				device[0] = (long)longAt.invokeExact(0L);
+			}
+			return rc;
+		} catch (Throwable e) {
+			throw unchecked(e);
+		}
+	}
+	
+	@Override
+	public int deviceGetUtilizationRates(long device, int[] utilization) {
+		try {
+			int rc = (int)getUtilization.invokeExact(device, buf);
+			if (rc == SUCCESS) { // nvmlUtilization_t { unsigned int gpu, memory; }
+				utilization[0] = intAt(0);
+				utilization[1] = intAt(4);
+			}
+			return rc;
+		} catch (Throwable e) {
+			throw unchecked(e);
+		}
+	}
+	
+	@Override
+	public int deviceGetMemoryInfo(long device, long[] memory) {
+		try {
+			int rc = (int)getMemory.invokeExact(device, buf);
+			if (rc == SUCCESS) { // nvmlMemory_t { unsigned long long total, free, used; }
+				for (int i = 0; i < 3; i++) {
+					memory[i] = (long)longAt.invokeExact(8L * i);
+				}
+			}
+			return rc;
+		} catch (Throwable e) {
+			throw unchecked(e);
+		}
+	}
+	
+	@Override
+	public int deviceGetTemperature(long device, int sensor, int[] temperature) {
+		return deviceInt(getTemperature, device, sensor, temperature);
+	}
+	
+	@Override
+	public int deviceGetPowerUsage(long device, int[] power) {
+		return deviceInt(getPower, device, power);
+	}
+	
+	@Override
+	public int deviceGetPowerManagementLimit(long device, int[] limit) {
+		return deviceInt(getPowerLimit, device, limit);
+	}
+	
+	@Override
+	public int deviceGetEnforcedPowerLimit(long device, int[] limit) {
+		return deviceInt(getEnforcedLimit, device, limit);
+	}
+	
+	@Override
+	public int deviceGetFanSpeed(long device, int[] speed) {
+		return deviceInt(getFanSpeed, device, speed);
+	}
+	
+	@Override
+	public int deviceGetClockInfo(long device, int type, int[] clock) {
+		return deviceInt(getClock, device, type, clock);
+	}
+	
+	@Override
+	public int deviceGetMaxClockInfo(long device, int type, int[] clock) {
+		return deviceInt(getMaxClock, device, type, clock);
+	}
+	
+	@Override
+	public int deviceGetPerformanceState(long device, int[] pState) {
+		return deviceInt(getPState, device, pState);
+	}
+	
+}
@@ -0,0 +1,316 @@
+package fr.ml;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures rows of queries polled at different rates: queries are grouped by sampling period, each group being read
+ * by its own source (e.g. an {@code nvidia-smi} process) in its own thread, and rows of all groups are merged, as
+ * they arrive, to rows of all queries. Values of the other groups are the last ones they read for the GPU
+ * (sample-and-hold, {@code NaN} until read), so that rows stay the same for the graphs, history and metrics.
+ * <p>
+ * An adaptive group samples at its period while its values are quiet, and at its minimum period as soon as one of
+ * them changes by at least its threshold between two rows of a GPU. It backs off when quiet again, doubling its period
+ * after each {@link #QUIET_PERIODS} periods without change, up to its period. Sources are polled at the current
+ * period when they can change it (see {@link SampleSource#period(int)}). Those that cannot (e.g. an {@code nvidia-smi}
+ * process) are only restarted at the minimum period on activity, and at the period once quiet again, rows being dropped
+ * to the current period in between. Restarting costs a gap in the rows while the new source starts, at the beginning of
+ * each burst of activity. If a restart fails, the running source is kept (its rows dropped to the current period), and
+ * restarting is retried later, backing off.
+ * <p>
+ * Rows timestamps never decrease, and increase for each GPU: a row older than the last one (or of the same
+ * millisecond for its GPU) is given the next timestamp.
+ */
+public class GroupedSource implements SampleSource {
+	
+	/** Number of its periods without change before an adaptive group doubles its period. */
+	static public final int QUIET_PERIODS = 10;
+	/** Maximum delay between two attempts to restart a source, ms. */
+	static private final int MAX_RETRY = 60_000;
+	
+	private final List<String> queries;
+	private final List<Group> groups = new ArrayList<>();
+	/** Last values of each GPU (by index), and timestamp of its last row. */
+	private float[][] held = new float[0][];
+	private long[] last = new long[0];
+	/** Timestamp of the last row. */
+	private long lastT;
+	/** The thread reading rows, woken up by groups when they read one. */
+	private volatile Thread reader;
+	private volatile boolean closed;
+	
+	/** @param queries The queries of rows, in the order of their values. */
+	public GroupedSource(List<String> queries) {
+		this.queries = queries;
+	}
+	
+	/**
+	 * Add a group of queries, and start reading them.
+	 * @param groupQueries Its queries, among those of rows. {@code timestamp} and {@code index} are added first.
+	 * @param periodMs Its sampling period, ms.
+	 * @param minMs Its minimum period, ms, if adaptive. {@code periodMs} (or more) if not.
+	 * @param deltas The change of each of its queries making it sample at its minimum period.
+	 * @param opener Start the source of the group, from its queries and period. Also restarts it when the period changes,
+	 * 		if it cannot change it.
+	 * @throws IOException If the source cannot be started.
+	 */
+	public GroupedSource add(List<String> groupQueries, int periodMs, int minMs, float[] deltas, Opener opener) throws IOException {
+		List<String> qs = new ArrayList<>(Arrays.asList("timestamp", "index"));
+		qs.addAll(groupQueries);
+		Group g = new Group(qs, periodMs, Math.min(minMs, periodMs), opener);
+		for (int i = 0; i < qs.size(); i++) {
+			g.columns[i] = queries.indexOf(qs.get(i));
+			g.deltas[i] = (i < 2 ? Float.POSITIVE_INFINITY : deltas[i-2]);
+		}
+		g.source = opener.open(qs, g.maxMs); // Adaptive: start quiet
+		groups.add(g);
+		Thread th = new Thread(() -> poll(g), "Sampling every "+periodMs+" ms");
+		th.setDaemon(true);
+		th.start();
+		return this;
+	}
+	
+	/** Read rows of a group until its source ends. */
+	private void poll(Group g) {
+		try {
+			try {
+				for (;;) {
+					Sample s;
+					while ((s = g.queue.claim()) == null && !closed) { // Rows are late: wait for them
+						LockSupport.parkNanos(1_000_000);
+					}
+					if (s == null || closed || !g.source.next(s)) { // Its source may have been restarted
+						break;
+					}
+					if (g.keep(s)) {
+						g.queue.publish();
+						LockSupport.unpark(reader);
+					}
+				}
+			} finally {
+				g.source.close();
+			}
+		} catch (IOException e) {
+			if (!closed) {
+				System.err.println("Cannot read measures sampled every "+g.maxMs+" ms: "+e.getMessage());
+			}
+		} finally {
+			g.ended = true;
+			LockSupport.unpark(reader);
+		}
+	}
+	
+	@Override
+	public boolean next(Sample s) throws IOException {
+		reader = Thread.currentThread();
+		for (;;) {
+			Group from = null;
+			Sample head = null;
+			boolean running = false;
+			for (Group g : groups) {
+				running |= !g.ended; // Before peeking, not to miss its last row
+				Sample gs = g.queue.peek();
+				if (gs != null && (head == null || gs.t < head.t)) {
+					from = g;
+					head = gs;
+				}
+			}
+			if (head != null) {
+				merge(from, head, s);
+				from.queue.release();
+				return true;
+			}
+			if (!running || closed) {
+				return false;
+			}
+			LockSupport.parkNanos(this, 100_000_000L);
+		}
+	}
+	
+	/** Merge a row of group {@code g} to the last values of its GPU, in {@code s}. */
+	private void merge(Group g, Sample gs, Sample s) {
+		int gpu = (int)gs.values[1];
+		if (gpu >= held.length) {
+			held = Arrays.copyOf(held, gpu + 1);
+			last = Arrays.copyOf(last, gpu + 1);
+		}
+		float[] row = held[gpu];
+		if (row == null) {
+			row = held[gpu] = new float[queries.size()];
+			Arrays.fill(row, Float.NaN);
+		}
+		for (int i = 0; i < g.columns.length; i++) {
+			if (g.columns[i] >= 0) {
+				row[g.columns[i]] = gs.values[i];
+			}
+		}
+		long t = Math.max(gs.t, lastT);
+		if (t <= last[gpu]) {
+			t = last[gpu] + 1;
+		}
+		last[gpu] = lastT = t;
+		s.t = t;
+		System.arraycopy(row, 0, s.values, 0, Math.min(row.length, s.values.length));
+	}
+	
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		IOException ex = null;
+		for (Group g : groups) {
+			try {
+				g.source.close();
+			} catch (IOException e) {
+				ex = e;
+			}
+		}
+		if (ex != null) {
+			throw ex;
+		}
+	}
+	
+	
+	
+	/** Start the source of a group. */
+	@FunctionalInterface
+	public interface Opener {
+		
+		/**
+		 * @param queries The queries of the group.
+		 * @param loopMs The time between two rows of all GPUs, ms.
+		 */
+		SampleSource open(List<String> queries, int loopMs) throws IOException;
+		
+	}
+	
+	
+	
+	/**
+	 * Queries read by their own source, and the rows it read that were not merged yet.
+	 */
+	static private class Group {
+		
+		private final SampleQueue queue;
+		/** Column of each query in merged rows ({@code -1} if none), and the change making the group active. */
+		private final int[] columns;
+		private final float[] deltas;
+		/** Sampling period, its minimum and current values, and the period of the running source, ms. */
+		private final int maxMs, minMs;
+		private int periodMs, sourceMs;
+		/** The queries, and how to restart the source at another period. */
+		private final List<String> queries;
+		private final Opener opener;
+		/** Replaced by the polling thread when restarted. */
+		private volatile SampleSource source;
+		/** Delay before retrying to restart the source ({@code 0} if it did not fail), and timestamp of the retry. */
+		private int retryMs;
+		private long retryAt;
+		/** Last row read, and timestamp of the last row kept, of each GPU (by index). */
+		private float[][] prev = new float[0][];
+		private long[] kept = new long[0];
+		/** Timestamp of the last change, or of the last period change. */
+		private long quietSince;
+		private volatile boolean ended;
+		
+		private Group(List<String> queries, int maxMs, int minMs, Opener opener) {
+			this.queries = queries;
+			this.opener = opener;
+			queue = new SampleQueue(1024, queries.size());
+			columns = new int[queries.size()];
+			deltas = new float[queries.size()];
+			this.maxMs = periodMs = sourceMs = maxMs;
+			this.minMs = minMs;
+		}
+		
+		/**
+		 * Update the sampling period from a row read.
+		 * @return Whether the row is kept, rather than dropped because quiet at the current period.
+		 */
+		private boolean keep(Sample s) {
+			float index = s.values[1];
+			if (!(index >= 0)) { // Malformed
+				return false;
+			}
+			int gpu = (int)index;
+			if (gpu >= prev.length) {
+				prev = Arrays.copyOf(prev, gpu + 1);
+				kept = Arrays.copyOf(kept, gpu + 1);
+			}
+			float[] p = prev[gpu];
+			boolean first = (p == null), active = false;
+			if (first) {
+				p = prev[gpu] = new float[s.values.length];
+			} else {
+				for (int i = 2; i < p.length && !active; i++) {
+					active = (Math.abs(s.values[i] - p[i]) >= deltas[i]); // false with NaN
+				}
+			}
+			System.arraycopy(s.values, 0, p, 0, p.length);
+			if (minMs >= maxMs) {
+				return true;
+			}
+			
+			if (active || first) {
+				quietSince = s.t;
+				if (active && periodMs != minMs) {
+					period(minMs, s.t);
+				}
+			} else if (s.t - quietSince >= (long)QUIET_PERIODS * periodMs && periodMs < maxMs) {
+				quietSince = s.t;
+				period(Math.min(maxMs, 2 * periodMs), s.t);
+			}
+			if (retryMs > 0 && s.t >= retryAt) {
+				restart(periodMs, s.t);
+			}
+			if (sourceMs >= periodMs || first || active || s.t - kept[gpu] >= periodMs - minMs / 2) {
+				kept[gpu] = s.t;
+				return true;
+			}
+			return false;
+		}
+		
+		/**
+		 * Poll the source every {@code ms}. If it cannot change its period, restart it at the minimum period and at the
+		 * period only, so that backing off does not restart it at each step.
+		 */
+		private void period(int ms, long t) {
+			periodMs = ms;
+			if (source.period(ms)) {
+				sourceMs = ms;
+				retryMs = 0;
+			} else if (ms == minMs || ms == maxMs) {
+				restart(ms, t);
+			}
+		}
+		
+		/** Restart the source at {@code ms}, or retry later, backing off, if it cannot be. */
+		private void restart(int ms, long t) {
+			if (ms == sourceMs) {
+				retryMs = 0;
+				return;
+			}
+			SampleSource old = source;
+			int oldMs = sourceMs;
+			try {
+				source = opener.open(queries, ms);
+			} catch (IOException e) { // Keep the current one, dropping its rows to the period
+				retryMs = (retryMs == 0 ? maxMs : Math.min(MAX_RETRY, 2 * retryMs));
+				retryAt = t + retryMs;
+				System.err.println("Cannot restart measures sampled every "+sourceMs+" ms at "+ms+" ms, retrying in "+retryMs+" ms: "+e.getMessage());
+				return;
+			}
+			sourceMs = ms;
+			retryMs = 0;
+			try {
+				old.close();
+			} catch (IOException e) {
+				System.err.println("Cannot stop measures sampled every "+oldMs+" ms: "+e.getMessage());
+			}
+		}
+		
+	}
+	
+}
@@ -0,0 +1,69 @@
+package fr.ml;
+
+import java.util.Arrays;
+
+/**
+ * Counts of values in fixed-width bins between a min and a max, plus values below and above. Histograms of the same
+ * bins are merged by adding their counts.
+ */
+class Histogram {
+	
+	final float min, max;
+	/** Values below {@link #min}, in each bin, then above {@link #max} (at {@code bins() + 1}). */
+	private final long[] counts;
+	private long count;
+	
+	Histogram(float min, float max, int bins) {
+		this.min = min;
+		this.max = max;
+		counts = new long[Math.max(1, bins) + 2];
+	}
+	
+	/** @return The number of bins between min and max. */
+	int bins() {
+		return counts.length - 2;
+	}
+	
+	/** Count a value. {@code NaN} are ignored. */
+	void add(float v) {
+		if (v != v) {
+			return;
+		}
+		int bins = counts.length - 2;
+		int i;
+		if (v < min) {
+			i = 0;
+		} else if (v >= max) {
+			i = bins + 1;
+		} else {
+			i = 1 + Math.min(bins - 1, (int)((v - min) / (max - min) * bins));
+		}
+		counts[i]++;
+		count++;
+	}
+	
+	/** @return The number of values in bin {@code i}: {@code 0} below min, {@code 1} to {@code bins()}, then above max. */
+	long get(int i) {
+		return counts[i];
+	}
+	
+	/** @return The number of values counted. */
+	long count() {
+		return count;
+	}
+	
+	/** Count the values of {@code other}, of the same bins. */
+	void merge(Histogram other) {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+	}
+	
+	/** Forget all values. */
+	void clear() {
+		Arrays.fill(counts, 0);
+		count = 0;
+	}
+	
+}
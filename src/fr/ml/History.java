@@ -0,0 +1,287 @@
+package fr.ml;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Measures history kept on disk across restarts, in two tiers of recordings (see {@link RecordingWriter}):
+ * raw measures in {@code <dir>/raw}, one file per hour, and the min/max of each minute (see
+ * {@link RollupTier.Bucket}) in {@code <dir>/1m}, one file per day. Each tier has its own retention, files older
+ * than it are deleted.
+ * <p>
+ * Files are named after the time of their first measure (UTC, so that names sort in time order), so {@link #read(long, long, long, Consumer)} only opens
+ * the files covering the requested time range, and starts reading them through their blocks index: reading the
+ * last hours does not depend on how many weeks are kept.
+ * <p>
+ * A directory is meant to be used by a single process at a time.
+ */
+public class History implements Closeable {
+	
+	/** Duration of the buckets of the rolled-up tier, ms. */
+	static public final int BUCKET = 60_000;
+	
+	static private final String RAW = "raw", ROLLUP = "1m";
+	/** Files name given to {@link RecordingWriter}: a timestamp is inserted before the extension. */
+	static private final String FILE = "nvtop.nvt";
+	/** Time between two deletions of files older than retention, ms. */
+	static private final long PRUNE_PERIOD = 3_600_000;
+	
+	private final Path dir;
+	private final List<String> columns;
+	/** Column of the GPU index, {@code -1} if absent. */
+	private final int gpuCol;
+	/** Retention of raw and rolled-up measures, ms. */
+	private final long rawRetention, retention;
+	private final RecordingWriter raw, rolled;
+	
+	/** Minute being rolled up, per GPU. */
+	private final Map<Integer,RollupTier.Bucket> buckets = new HashMap<>();
+	/** Row written to the rolled-up tier, or given to readers (reused). */
+	private final Sample row;
+	/** When files older than retention are to be deleted next. */
+	private long nextPrune = Long.MIN_VALUE;
+	/** Whether {@link #close()} was called. */
+	private boolean closed;
+	
+	/**
+	 * @param dir The history directory, created if needed.
+	 * @param columns The queries, in the order of rows values: {@code "timestamp"}, {@code "index"}, then measures.
+	 * @param rawRetention How long raw measures are kept, ms.
+	 * @param retention How long rolled-up measures are kept, ms.
+	 * @throws IOException When the directory cannot be created.
+	 */
+	public History(Path dir, List<String> columns, long rawRetention, long retention) throws IOException {
+		this.dir = dir;
+		this.columns = new ArrayList<>(columns);
+		this.gpuCol = columns.indexOf("index");
+		this.rawRetention = rawRetention;
+		this.retention = retention;
+		Files.createDirectories(dir.resolve(RAW));
+		Files.createDirectories(dir.resolve(ROLLUP));
+		raw = new RecordingWriter(dir.resolve(RAW).resolve(FILE), columns, 0, 3_600_000);
+		rolled = new RecordingWriter(dir.resolve(ROLLUP).resolve(FILE), columns, 0, 86_400_000);
+		row = new Sample(columns.size());
+	}
+	
+	/**
+	 * Keep a row of measures, more recent than all previous ones of its GPU. Ignored once closed (e.g. while
+	 * the JVM shuts down).
+	 * @throws IOException When writing fails.
+	 */
+	synchronized public void append(Sample s) throws IOException {
+		if (closed) {
+			return;
+		}
+		raw.append(s);
+		int gpu = (gpuCol < 0 || Float.isNaN(s.values[gpuCol]) ? 0 : (int)s.values[gpuCol]);
+		RollupTier.Bucket b = buckets.get(gpu);
+		if (b == null) {
+			b = new RollupTier.Bucket(columns.size(), BUCKET);
+			buckets.put(gpu, b);
+		}
+		long closed = b.add(s.t, s.values);
+		if (closed != Long.MIN_VALUE) {
+			appendRolled(b, closed);
+		}
+		if (s.t >= nextPrune) {
+			prune(s.t);
+			nextPrune = s.t + PRUNE_PERIOD;
+		}
+	}
+	
+	/** Write the min/max rows of the closed bucket {@code b}, started at {@code start}. */
+	private void appendRolled(RollupTier.Bucket b, long start) throws IOException {
+		row.t = start;
+		System.arraycopy(b.first, 0, row.values, 0, row.values.length);
+		rolled.append(row);
+		row.t = b.middle(start);
+		System.arraycopy(b.second, 0, row.values, 0, row.values.length);
+		rolled.append(row);
+	}
+	
+	/** Write the minutes being rolled up and pending rows, and close the history. */
+	@Override
+	synchronized public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			for (RollupTier.Bucket b : buckets.values()) {
+				long closed = b.close();
+				if (closed != Long.MIN_VALUE) {
+					appendRolled(b, closed);
+				}
+			}
+			rolled.close();
+		} finally {
+			raw.close();
+		}
+	}
+	
+	/** Delete files whose measures are all older than retention. */
+	private void prune(long now) {
+		prune(dir.resolve(RAW), now - rawRetention);
+		prune(dir.resolve(ROLLUP), now - retention);
+	}
+	
+	private void prune(Path tier, long before) {
+		try {
+			List<TierFile> files = files(tier);
+			String date = date(before);
+			for (int i = 0; i + 1 < files.size(); i++) { // A file ends when the next one starts
+				if (files.get(i + 1).date.compareTo(date) >= 0) {
+					break;
+				}
+				Files.deleteIfExists(files.get(i).path);
+			}
+		} catch (IOException e) {
+			System.err.println("Cannot delete old history in "+tier+": "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * Read the measures kept in {@code [from; to)}: min/max of each minute until {@code rawFrom} (or until raw
+	 * measures are available), then raw measures. Only the files covering that time range are read.
+	 * @param rows Called with each row (reused), in time order, ordered as the queries given to the constructor.
+	 * 		Values of queries that were not recorded are {@code NaN}.
+	 * @return The number of rows read.
+	 */
+	synchronized public int read(long from, long rawFrom, long to, Consumer<Sample> rows) {
+		try {
+			List<TierFile> rawFiles = files(dir.resolve(RAW));
+			rawFrom = (rawFiles.isEmpty() ? to : Math.max(rawFrom, rawFiles.get(0).start()));
+			rawFrom = Math.max(from, Math.min(rawFrom, to));
+			long[] last = { Long.MIN_VALUE };
+			return read(files(dir.resolve(ROLLUP)), from, rawFrom, last, rows)
+					+ read(rawFiles, rawFrom, to, last, rows);
+		} catch (IOException e) {
+			System.err.println("Cannot read history in "+dir+": "+e.getMessage());
+			return 0;
+		}
+	}
+	
+	/**
+	 * Read the rows of a tier in {@code [from; to)}, after {@code last[0]} (updated to the last row read), so that
+	 * files overlapping the previous one (e.g. the minute being rolled up when the previous process stopped) do
+	 * not give rows back in time.
+	 */
+	private int read(List<TierFile> files, long from, long to, long[] last, Consumer<Sample> rows) {
+		int n = 0;
+		String toDate = date(to), fromDate = date(from - 1000); // Names have a 1s precision
+		for (int i = 0; i < files.size(); i++) {
+			Path p = files.get(i).path;
+			if (files.get(i).date.compareTo(toDate) > 0) { // Starts after 'to'
+				break;
+			}
+			if (i + 1 < files.size() && files.get(i + 1).date.compareTo(fromDate) < 0) { // Ends before 'from'
+				continue;
+			}
+			try (RecordingReader r = new RecordingReader(p)) {
+				List<String> cols = r.columns();
+				int[] map = new int[cols.size()];
+				for (int c = 0; c < map.length; c++) {
+					map[c] = columns.indexOf(cols.get(c));
+				}
+				Sample s = new Sample(map.length);
+				r.seek(last[0] == Long.MIN_VALUE ? from : Math.max(from, last[0] + 1));
+				while (r.next(s) && s.t < to) {
+					Arrays.fill(row.values, Float.NaN);
+					for (int c = 1; c < map.length; c++) { // Column 0 is the timestamp
+						if (map[c] >= 0) {
+							row.values[map[c]] = s.values[c];
+						}
+					}
+					row.t = last[0] = s.t;
+					rows.accept(row);
+					n++;
+				}
+			} catch (IOException e) {
+				System.err.println("Cannot read history "+p+": "+e.getMessage());
+			}
+		}
+		return n;
+	}
+	
+	/**
+	 * @return The recordings of a tier, in time order. Only their names are read, as the time of their first
+	 * 		measure is formatted in them so that it sorts in time order.
+	 */
+	static private List<TierFile> files(Path tier) throws IOException {
+		try (Stream<Path> s = Files.list(tier)) {
+			return s.map(TierFile::of)
+					.filter(Objects::nonNull)
+					.sorted(Comparator.comparing((TierFile f) -> f.date).thenComparingInt(f -> f.rank))
+					.collect(Collectors.toList());
+		}
+	}
+	
+	/** @return {@code t} as formatted in files names. */
+	static private String date(long t) {
+		return RecordingWriter.fileDate().format(new Date(t));
+	}
+	
+	
+	
+	/**
+	 * A recording of a tier, named by {@link RecordingWriter} after the time of its first measure.
+	 */
+	static private class TierFile {
+		
+		private final Path path;
+		/** The time of its first measure, as formatted in its name. */
+		private final String date;
+		/** Number appended to the name of files started in the same second. */
+		private final int rank;
+		
+		private TierFile(Path path, String date, int rank) {
+			this.path = path;
+			this.date = date;
+			this.rank = rank;
+		}
+		
+		/** @return The recording at {@code path}, {@code null} if it is not a history file. */
+		static private TierFile of(Path path) {
+			String name = path.getFileName().toString();
+			String base = FILE.substring(0, FILE.lastIndexOf('.'))+"-";
+			int s = base.length(), e = s + RecordingWriter.FILE_DATE.length(), ext = name.length() - 4;
+			if (!name.startsWith(base) || !name.endsWith(".nvt") || ext < e) {
+				return null;
+			}
+			int rank = 0;
+			if (ext > e) { // "-<rank>"
+				try {
+					rank = Integer.parseInt(name.substring(e + 1, ext));
+				} catch (NumberFormatException ex) {
+					return null;
+				}
+			}
+			return new TierFile(path, name.substring(s, e), rank);
+		}
+		
+		/** @return The time of its first measure, {@code Long.MIN_VALUE} if its name is malformed. */
+		private long start() {
+			try {
+				return RecordingWriter.fileDate().parse(date).getTime();
+			} catch (ParseException e) {
+				return Long.MIN_VALUE;
+			}
+		}
+		
+	}
+	
+}
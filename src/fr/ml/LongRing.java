@@ -0,0 +1,104 @@
+package fr.ml;
+
+import java.util.Arrays;
+
+/**
+ * Growable ring buffer of {@code long}, usable as a deque without boxing.
+ */
+class LongRing {
+	
+	private long[] data;
+	private int first, size;
+	
+	LongRing() {
+		this(16);
+	}
+	
+	LongRing(int capacity) {
+		data = new long[Math.max(2, capacity)];
+	}
+	
+	int size() {
+		return size;
+	}
+	
+	boolean isEmpty() {
+		return size == 0;
+	}
+	
+	long get(int i) {
+		return data[(first + i) % data.length];
+	}
+	
+	void set(int i, long v) {
+		data[(first + i) % data.length] = v;
+	}
+	
+	long first() {
+		return data[first];
+	}
+	
+	long last() {
+		return get(size - 1);
+	}
+	
+	private void grow() {
+		if (size < data.length) {
+			return;
+		}
+		long[] d = new long[data.length * 2];
+		for (int i = 0; i < size; i++) {
+			d[i] = get(i);
+		}
+		data = d;
+		first = 0;
+	}
+	
+	void addLast(long v) {
+		grow();
+		data[(first + size++) % data.length] = v;
+	}
+	
+	void addFirst(long v) {
+		grow();
+		first = (first + data.length - 1) % data.length;
+		data[first] = v;
+		size++;
+	}
+	
+	long removeFirst() {
+		long v = data[first];
+		first = (first + 1) % data.length;
+		size--;
+		return v;
+	}
+	
+	long removeLast() {
+		return get(--size);
+	}
+	
+	void clear() {
+		first = size = 0;
+	}
+	
+	/** Sort values in increasing order and remove duplicates. Meant for small rings. */
+	void sortDistinct() {
+		if (first + size > data.length) { // Wrapped: make it contiguous
+			long[] d = new long[data.length];
+			for (int i = 0; i < size; i++) {
+				d[i] = get(i);
+			}
+			data = d;
+			first = 0;
+		}
+		Arrays.sort(data, first, first + size);
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			if (n == 0 || data[first + i] != data[first + n - 1]) {
+				data[first + n++] = data[first + i];
+			}
+		}
+		size = n;
+	}
+	
+}
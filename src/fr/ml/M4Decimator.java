@@ -0,0 +1,218 @@
+package fr.ml;
+
+/**
+ * M4 decimation of a {@link TimeSeriesStore} for display: for each pixel column and each series, only the first,
+ * last, min and max samples are retained. Polylines drawn through the retained samples cover exactly the same pixels
+ * as through all samples, as the discarded ones only draw vertical segments within their column.
+ * <p>
+ * The first missing value ({@code NaN}) following a valid one is retained too, so that gaps are kept.
+ * Retained samples are the union over all series, so all series share the same x coordinates.
+ * <p>
+ * Pixel columns are anchored on absolute time (see {@link #col(long)}), so a sample stays in the same column
+ * as the graph scrolls. This allows decimation to be incremental: only the most recent column is updated
+ * when samples are added, and only the oldest one is recomputed when samples are evicted. Everything is
+ * recomputed when the width or duration changes.
+ */
+class M4Decimator {
+	
+	private TimeSeriesStore store;
+	/** Width of the graph, in pixels. */
+	private int width;
+	/** Duration represented by the width, ms. */
+	private int duration;
+	
+	/** Sequence number of the oldest and next sample to process. */
+	private long head, next;
+	/** Retained samples in closed columns (i.e. all but the most recent one), in increasing order. */
+	private final LongRing kept = new LongRing(256);
+	/** Column of sample {@code next - 1}. */
+	private long openCol;
+	/** Samples being processed for the most recent column. */
+	private ColumnScan open;
+	/** Used to recompute the oldest column after eviction. */
+	private ColumnScan scratch;
+	/** Retained samples of the most recent column, in increasing order. */
+	private final LongRing openKept = new LongRing();
+	
+	/** @return The pixel column of time {@code t}. */
+	long col(long t) {
+		return Math.floorDiv(t * width, duration);
+	}
+	
+	/** @return The number of retained samples. */
+	int size() {
+		return kept.size() + openKept.size();
+	}
+	
+	/** @return The sequence number of the {@code i}-th retained sample. */
+	long get(int i) {
+		int nk = kept.size();
+		return i < nk ? kept.get(i) : openKept.get(i - nk);
+	}
+	
+	/** Forget everything: next {@link #update} will process all samples. */
+	void invalidate() {
+		store = null;
+	}
+	
+	private void reset(long from) {
+		kept.clear();
+		openKept.clear();
+		open.reset();
+		head = next = from;
+		openCol = Long.MIN_VALUE;
+	}
+	
+	/**
+	 * Update retained samples with the samples added to and evicted from {@code store} since last call.
+	 * @param store The samples.
+	 * @param width The graph width, in pixels.
+	 * @param duration The duration represented by {@code width}, ms.
+	 */
+	void update(TimeSeriesStore store, int width, int duration) {
+		if (store != this.store || width != this.width || duration != this.duration) {
+			this.store = store;
+			this.width = Math.max(1, width);
+			this.duration = Math.max(1, duration);
+			open = new ColumnScan(store);
+			scratch = new ColumnScan(store);
+			reset(store.head());
+		}
+		
+		long head = store.head();
+		if (head != this.head) { // Samples were evicted
+			if (head >= next) { // All processed ones
+				reset(head);
+			} else {
+				long c0 = col(store.t(head));
+				if (c0 == openCol) {
+					reset(head);
+				} else { // The oldest column needs to be recomputed
+					while (!kept.isEmpty() && (kept.first() < head || col(store.t(kept.first())) == c0)) {
+						kept.removeFirst();
+					}
+					scratch.reset();
+					for (long seq = head; col(store.t(seq)) == c0; seq++) {
+						scratch.process(seq);
+					}
+					scratch.flush();
+					for (int i = scratch.pts.size() - 1; i >= 0; i--) {
+						kept.addFirst(scratch.pts.get(i));
+					}
+					this.head = head;
+				}
+			}
+		}
+		
+		// Process new samples
+		for (long tail = store.tail(); next < tail; next++) {
+			long c = col(store.t(next));
+			if (c != openCol) {
+				open.flush();
+				for (int i = 0; i < open.pts.size(); i++) {
+					kept.addLast(open.pts.get(i));
+				}
+				open.pts.clear();
+				openCol = c;
+			}
+			open.process(next);
+		}
+		
+		// Retained samples of the open column are what would be retained if it were closed now
+		openKept.clear();
+		for (int i = 0; i < open.pts.size(); i++) {
+			openKept.addLast(open.pts.get(i));
+		}
+		open.addRuns(openKept);
+		openKept.sortDistinct();
+	}
+	
+	
+	
+	/**
+	 * Runs of valid values of each series in a pixel column.
+	 */
+	static private class ColumnScan {
+		
+		private final TimeSeriesStore store;
+		/** Retained samples of closed runs. */
+		private final LongRing pts = new LongRing();
+		/** For each series, first/min/max/last sample of the current run, {@code -1} if no run is open. */
+		private final long[] first, min, max, last;
+		/** Whether the previous sample of each series was valid (i.e. not {@code NaN}). */
+		private final boolean[] prevValid;
+		
+		private ColumnScan(TimeSeriesStore store) {
+			this.store = store;
+			int nSeries = store.nSeries();
+			first = new long[nSeries];
+			min = new long[nSeries];
+			max = new long[nSeries];
+			last = new long[nSeries];
+			prevValid = new boolean[nSeries];
+			reset();
+		}
+		
+		private void reset() {
+			pts.clear();
+			for (int i = 0; i < first.length; i++) {
+				first[i] = -1;
+				prevValid[i] = false;
+			}
+		}
+		
+		private void process(long seq) {
+			for (int is = 0; is < first.length; is++) {
+				float v = store.v(is, seq);
+				if (Float.isNaN(v)) {
+					if (prevValid[is]) { // End of a run: keep the gap
+						endRun(is, pts);
+						pts.addLast(seq);
+						prevValid[is] = false;
+					}
+					continue;
+				}
+				if (first[is] < 0) {
+					first[is] = min[is] = max[is] = seq;
+				} else {
+					if (v < store.v(is, min[is])) min[is] = seq;
+					if (v > store.v(is, max[is])) max[is] = seq;
+				}
+				last[is] = seq;
+				prevValid[is] = true;
+			}
+		}
+		
+		private void endRun(int is, LongRing to) {
+			if (first[is] >= 0) {
+				to.addLast(first[is]);
+				to.addLast(min[is]);
+				to.addLast(max[is]);
+				to.addLast(last[is]);
+				first[is] = -1;
+			}
+		}
+		
+		/** Add the current runs' samples to {@code to}, without closing them. */
+		private void addRuns(LongRing to) {
+			for (int is = 0; is < first.length; is++) {
+				if (first[is] >= 0) {
+					to.addLast(first[is]);
+					to.addLast(min[is]);
+					to.addLast(max[is]);
+					to.addLast(last[is]);
+				}
+			}
+		}
+		
+		/** Close the column: end all runs and sort the retained samples. */
+		private void flush() {
+			for (int is = 0; is < first.length; is++) {
+				endRun(is, pts);
+			}
+			pts.sortDistinct();
+		}
+		
+	}
+	
+}
@@ -0,0 +1,35 @@
+package fr.ml;
+
+/**
+ * A panel graphing measures of series (see {@link PanelTimeGraph} and {@link PanelDistribution}), fed by
+ * {@link NVMeasure}.
+ */
+interface MeasuresGraph {
+	
+	/**
+	 * Add a measure of each series.
+	 * @throws IllegalArgumentException If the number of values is not the number of series, or measures cannot
+	 * 		be added at {@code t}.
+	 */
+	void addValues(long t, float ... vals) throws IllegalArgumentException;
+	
+	/**
+	 * Take a snapshot of the measures to paint, if they changed since the last one. Meant to be called off the EDT,
+	 * before {@code repaint()}.
+	 * @return Whether a new snapshot was taken.
+	 */
+	boolean snapshot();
+	
+	/**
+	 * @param auto Whether painting takes a snapshot when needed, or only paints those taken by {@link #snapshot()}.
+	 */
+	MeasuresGraph autoSnapshot(boolean auto);
+	
+	/**
+	 * Show that the alert of a series fired or cleared (see {@link Alert}). Graphs that cannot show it ignore it.
+	 * @param firing Whether it fired, or cleared.
+	 */
+	default void alert(int iSerie, boolean firing) {
+	}
+	
+}
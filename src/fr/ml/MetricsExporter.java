@@ -0,0 +1,271 @@
+package fr.ml;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the latest measures of each GPU over HTTP, in Prometheus text exposition format, at {@code /metrics}:
+ * a gauge per query (e.g. {@code nvtop_utilization_gpu{gpu="0"} 42}), plus the time of the last measures
+ * ({@code nvtop_sample_time_seconds}). Queries whose names map to the same metric name (e.g. {@code clocks.sm} and
+ * {@code clocks_sm}) get a numbered suffix ({@code nvtop_clocks_sm_2}), their help naming the query.
+ * <p>
+ * The whole page is rendered by the thread giving measures (see {@link #update(Sample)}), into one of two reused
+ * buffers, then swapped with the one served: rendering does not allocate once they are large enough. A scrape only
+ * copies the last page, never formats, and never waits for measures being added (only for a swap).
+ */
+public class MetricsExporter implements Closeable {
+	
+	static private final String PREFIX = "nvtop_", TIME = "nvtop_sample_time_seconds";
+	static private final byte[] NAN = "NaN".getBytes(StandardCharsets.US_ASCII);
+	
+	private final HttpServer server;
+	/** Column of the GPU index, {@code -1} if absent (then all measures are GPU 0's). */
+	private final int gpuCol;
+	/** Columns of exported queries, and their metric name and type header (ASCII). */
+	private final int[] cols;
+	private final byte[][] names, headers;
+	
+	/** Exported GPUs, in increasing order, and the time and values of their last measures (by column). */
+	private int[] gpus = new int[0];
+	private long[] times = new long[0];
+	private float[][] values = new float[0][];
+	
+	/** Where the page is rendered, and the last rendered page served, both reused: swapped once rendered. */
+	private byte[] buf = new byte[4096], page = new byte[4096];
+	private int len, pageLen;
+	/** Guards {@link #page} swaps, and scrapes copying it. */
+	private final Object pageLock = new Object();
+	
+	/**
+	 * Start serving measures.
+	 * @param queries The queries, in the order of measures values. {@code "timestamp"} and {@code "index"} are not exported.
+	 * @param address Where to listen.
+	 * @throws IOException When the server cannot be started (e.g. port already used).
+	 */
+	public MetricsExporter(List<String> queries, InetSocketAddress address) throws IOException {
+		gpuCol = queries.indexOf("index");
+		List<Integer> c = new ArrayList<>();
+		for (int i = 0; i < queries.size(); i++) {
+			if (!"timestamp".equals(queries.get(i)) && i != gpuCol) {
+				c.add(i);
+			}
+		}
+		cols = new int[c.size()];
+		names = new byte[cols.length][];
+		headers = new byte[cols.length][];
+		Set<String> used = new HashSet<>(Arrays.asList(TIME));
+		for (int i = 0; i < cols.length; i++) {
+			cols[i] = c.get(i);
+			String base = metricName(queries.get(cols[i])), name = base;
+			for (int n = 2; !used.add(name); n++) { // Same name as another query: number it
+				name = base+"_"+n;
+			}
+			names[i] = name.getBytes(StandardCharsets.US_ASCII);
+			headers[i] = ("# HELP "+name+" nvidia-smi query "+queries.get(cols[i])+"\n# TYPE "+name+" gauge\n").getBytes(StandardCharsets.US_ASCII);
+		}
+		
+		server = HttpServer.create(address, 0);
+		server.createContext("/metrics", this::scrape);
+		server.start(); // Scrapes are handled by the server thread
+	}
+	
+	/** @return The Prometheus metric name of a query, e.g. {@code nvtop_utilization_gpu} for {@code utilization.gpu}. */
+	static String metricName(String query) {
+		StringBuilder sb = new StringBuilder(PREFIX);
+		for (int i = 0; i < query.length(); i++) {
+			char ch = query.charAt(i);
+			sb.append((ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9') || ch == '_' ? ch : '_');
+		}
+		return sb.toString();
+	}
+	
+	/** @return The address the server listens to (e.g. to know the port when started on port {@code 0}). */
+	public InetSocketAddress address() {
+		return server.getAddress();
+	}
+	
+	/**
+	 * Set the last measures of a GPU, and render the page served from now on. Meant to be called by a single thread.
+	 */
+	public void update(Sample s) {
+		int gpu = (gpuCol < 0 || Float.isNaN(s.values[gpuCol]) ? 0 : (int)s.values[gpuCol]);
+		int ig = Arrays.binarySearch(gpus, gpu);
+		if (ig < 0) { // New GPU
+			ig = -ig - 1;
+			gpus = insert(gpus, ig, gpu);
+			times = Arrays.copyOf(times, gpus.length);
+			System.arraycopy(times, ig, times, ig + 1, gpus.length - ig - 1);
+			float[][] v = new float[gpus.length][];
+			System.arraycopy(values, 0, v, 0, ig);
+			System.arraycopy(values, ig, v, ig + 1, values.length - ig);
+			v[ig] = new float[s.values.length];
+			values = v;
+		}
+		times[ig] = s.t;
+		System.arraycopy(s.values, 0, values[ig], 0, s.values.length);
+		render();
+	}
+	
+	static private int[] insert(int[] a, int i, int v) {
+		int[] r = new int[a.length + 1];
+		System.arraycopy(a, 0, r, 0, i);
+		r[i] = v;
+		System.arraycopy(a, i, r, i + 1, a.length - i);
+		return r;
+	}
+	
+	/** Render all metrics to {@link #buf}, and swap it with {@link #page}. */
+	private void render() {
+		len = 0;
+		for (int ic = 0; ic < cols.length; ic++) {
+			append(headers[ic]);
+			for (int ig = 0; ig < gpus.length; ig++) {
+				appendGpuMetric(names[ic], gpus[ig]);
+				appendValue(values[ig][cols[ic]]);
+			}
+		}
+		append("# HELP "+TIME+" Time of the last measures.\n# TYPE "+TIME+" gauge\n");
+		for (int ig = 0; ig < gpus.length; ig++) {
+			append(TIME);
+			appendGpuMetric(null, gpus[ig]);
+			appendLong(times[ig] / 1000);
+			append((byte)'.');
+			appendDigits(Math.floorMod(times[ig], 1000), 3);
+			append((byte)'\n');
+		}
+		synchronized (pageLock) {
+			byte[] b = page;
+			page = buf;
+			pageLen = len;
+			buf = b;
+		}
+	}
+	
+	/** Append {@code name{gpu="<gpu>"} }. */
+	private void appendGpuMetric(byte[] name, int gpu) {
+		if (name != null) {
+			append(name);
+		}
+		append("{gpu=\"");
+		appendLong(gpu);
+		append("\"} ");
+	}
+	
+	/** Append {@code v} and a line end: integers as such, other values with up to 3 decimals (as nvidia-smi gives at most 2). */
+	private void appendValue(float v) {
+		if (Float.isNaN(v)) {
+			append(NAN);
+		} else if (v == (long)v && Math.abs(v) < 1e15) {
+			appendLong((long)v);
+		} else if (Math.abs(v) >= 1e-3 && Math.abs(v) < 1e12) {
+			long m = Math.round(Math.abs((double)v) * 1000);
+			if (v < 0) {
+				append((byte)'-');
+			}
+			appendLong(m / 1000);
+			int frac = (int)(m % 1000), nDigits = 3;
+			for (; nDigits > 0 && frac % 10 == 0; nDigits--) { // No trailing zeros
+				frac /= 10;
+			}
+			if (nDigits > 0) {
+				append((byte)'.');
+				appendDigits(frac, nDigits);
+			}
+		} else { // Rare: infinite, very large or very small
+			append(v == Float.POSITIVE_INFINITY ? "+Inf" : v == Float.NEGATIVE_INFINITY ? "-Inf" : Float.toString(v));
+		}
+		append((byte)'\n');
+	}
+	
+	private void appendLong(long v) {
+		if (v < 0) {
+			append((byte)'-');
+			v = -v;
+		}
+		int n = 1;
+		for (long p = 10; p <= v && n < 19; p *= 10) {
+			n++;
+		}
+		appendDigits(v, n);
+	}
+	
+	/** Append the {@code n} last digits of {@code v >= 0}, with leading zeros. */
+	private void appendDigits(long v, int n) {
+		ensure(n);
+		for (int i = len + n - 1; i >= len; i--) {
+			buf[i] = (byte)('0' + v % 10);
+			v /= 10;
+		}
+		len += n;
+	}
+	
+	private void append(byte b) {
+		ensure(1);
+		buf[len++] = b;
+	}
+	
+	private void append(byte[] b) {
+		ensure(b.length);
+		System.arraycopy(b, 0, buf, len, b.length);
+		len += b.length;
+	}
+	
+	/** Append an ASCII string. */
+	private void append(String s) {
+		ensure(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			buf[len++] = (byte)s.charAt(i);
+		}
+	}
+	
+	private void ensure(int n) {
+		if (len + n > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+		}
+	}
+	
+	/** Serve the last rendered page. */
+	private void scrape(HttpExchange ex) throws IOException {
+		try {
+			String method = ex.getRequestMethod();
+			if (!"/metrics".equals(ex.getRequestURI().getPath())) {
+				ex.sendResponseHeaders(404, -1);
+			} else if (!"GET".equals(method) && !"HEAD".equals(method)) {
+				ex.sendResponseHeaders(405, -1);
+			} else {
+				byte[] p;
+				synchronized (pageLock) { // The next page may be rendered while this one is written
+					p = Arrays.copyOf(page, pageLen);
+				}
+				ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				boolean body = ("GET".equals(method) && p.length > 0);
+				ex.sendResponseHeaders(200, body ? p.length : -1);
+				if (body) {
+					try (OutputStream os = ex.getResponseBody()) {
+						os.write(p);
+					}
+				}
+			}
+		} finally {
+			ex.close();
+		}
+	}
+	
+	/** Stop serving measures. */
+	@Override
+	public void close() {
+		server.stop(0);
+	}
+	
+}
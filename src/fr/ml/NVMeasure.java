@@ -1,15 +1,30 @@
 package fr.ml;
 
 import java.awt.Color;
+import java.awt.Component;
 import java.awt.Font;
 import java.awt.GridLayout;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -30,11 +45,83 @@ public class NVMeasure extends JPanel {
 	
 	/** List of graphs associated with queries (key:query). */
 	private List<GraphQueryLink> graphsQ;
+	/** The {@code processes} graphs, and what polls their processes, {@code null} until {@link #startProcesses()}. */
+	private final List<ProcessGraph> processGraphs = new ArrayList<>();
+	private ProcessPoller processes;
+	/** Whether processes are polled, by these graphs or those replacing them. */
+	private boolean pollProcesses;
+	
+	/** Maximum number of repaints per second, when measures are added by {@link #start(SampleQueue)}. */
+	private int fps;
+	
+	/** Column of the GPU index in measures rows, {@code -1} if absent (then all measures are GPU 0's). */
+	private int gpuCol = -1;
+	
+	/** Graphed duration (ms), and whether older measures are rolled up (see {@link PanelTimeGraph#rollup(boolean)}). */
+	private long duration;
+	private boolean rollup;
+	/** Where measures added by {@link #start(SampleQueue)} are kept, {@code null} if they are not. */
+	private History history;
+	
+	/** The configuration and GPUs the graphs were created with. */
+	private final Properties conf;
+	private final List<Integer> gpus;
+	/** The graphs replaced by this one while it is created, {@code null} once created. */
+	private NVMeasure previous;
+	/** Taking over the measures of replaced graphs, done by {@link #handOver(NVMeasure, SampleQueue)}. */
+	private final List<Runnable> carries = new ArrayList<>();
+	/**
+	 * Links kept from the replaced graphs, still adding their measures until {@link #handOver(NVMeasure, SampleQueue)}:
+	 * the columns of {@link #rowQueries} are only given to them then.
+	 */
+	private final List<GraphQueryLink> kept = new ArrayList<>();
+	/** The queries of measures rows, as set by {@link #setQueries(List)}, {@code null} until then. */
+	private List<String> rowQueries;
+	/** What is done when alerts of series fire, shared with replaced graphs if {@code alert.*} properties did not change. */
+	private final AlertActions actions;
+	/** Thread adding measures, and where it takes them from, {@code null} until {@link #start(SampleQueue)}. */
+	private ScheduledExecutorService exec;
+	private SampleQueue queue;
+	/** Number of rows that could not be added for unexpected reasons, reported every 1000. */
+	private int failures;
 	
 	public NVMeasure(Properties conf) {
+		this(conf, Arrays.asList(0));
+	}
+	
+	public NVMeasure(Properties conf, List<Integer> gpus) {
+		this(conf, gpus, null);
+	}
+	
+	/**
+	 * @param conf The configuration.
+	 * @param gpus The indexes of available GPUs, used to resolve {@code graph.<n>.<pos>.gpu} properties.
+	 * @param clock The clock giving the time displayed on the right of graphs, {@code null} for the current time.
+	 */
+	public NVMeasure(Properties conf, List<Integer> gpus, Supplier<Long> clock) {
+		this(conf, gpus, clock, null);
+	}
+	
+	/**
+	 * Create graphs replacing others after a configuration change: graphs whose configuration did not change are
+	 * taken from {@code previous}, others take over the measures of its series of the same queries and GPUs (see
+	 * {@link #handOver(NVMeasure, SampleQueue)}).
+	 * @param conf The configuration.
+	 * @param gpus The indexes of available GPUs, used to resolve {@code graph.<n>.<pos>.gpu} properties.
+	 * @param clock The clock giving the time displayed on the right of graphs, {@code null} for the current time.
+	 * @param previous The graphs to replace, {@code null} if none.
+	 */
+	public NVMeasure(Properties conf, List<Integer> gpus, Supplier<Long> clock, NVMeasure previous) {
 		super();
 		
+		this.conf = conf;
+		this.gpus = gpus;
+		this.previous = previous;
+		actions = (previous != null && sameProperties(conf, previous.conf, k -> k.startsWith("alert.")) ? previous.actions : new AlertActions(conf));
 		graphsQ = new ArrayList<>();
+		Pattern graphPrefix = Pattern.compile("graph\\.[0-9]+\\.");
+		boolean sameCommon = (previous != null && gpus.equals(previous.gpus) && sameProperties(conf, previous.conf,
+				k -> k.startsWith("graph.") && !graphPrefix.matcher(k).lookingAt() && !k.equals("graph.grid") && !k.equals("graph.fps")));
 		
 		// Search for number of graphs
 		int imax = -1, imin = Integer.MAX_VALUE;
@@ -50,25 +137,13 @@ public class NVMeasure extends JPanel {
 			imax = Math.max(imax, i);
 		}
 		
-		int nGraphs = imax - imin + 1; // How many graphs
-		String layout = conf.getProperty("graph.grid", nGraphs+","+1);
-		int rows = nGraphs, cols = 1;
-		try {
-			String[] rowsCols = layout.split(",");
-			rows = Integer.parseInt(rowsCols[0]);
-			if (rowsCols.length < 2) {
-				cols = Math.max(1, nGraphs / rows);
-			} else {
-				cols = Integer.parseInt(rowsCols[1]);
-			}
-		} catch (NumberFormatException e) {
-			System.err.println("Malformed \"graph.grid\" format '"+layout+"': should be <rows>,<cols> (e.g. \"2,1\"): "+e.getMessage());
-			rows = nGraphs;
-			cols = 1;
-		}
-		setLayout(new GridLayout(rows, cols));
-		
 		int duration = parseInt(conf, "graph.duration", 60);
+		int refresh = parseInt(conf, "graph.refresh", 1000);
+		fps = Math.max(1, Math.min(1000, parseInt(conf, "graph.fps", 30))); // At least 1 ms between updates
+		boolean scrolling = Boolean.parseBoolean(conf.getProperty("graph.render.scroll", "false"));
+		boolean rollup = Boolean.parseBoolean(conf.getProperty("graph.rollup", "true"));
+		this.duration = duration * 1000L;
+		this.rollup = rollup;
 		int majorY = parseInt(conf, "graph.ticks.majors", 5);
 		int minorY = parseInt(conf, "graph.ticks.minors", 0);
 		int timeTicks = parseInt(conf, "graph.ticks.time", 10) * 1000; // From s to ms
@@ -82,51 +157,417 @@ public class NVMeasure extends JPanel {
 		for (int ig = imin; ig <= imax; ig++) {
 			String graphi = "graph."+ig+".";
 			
-			// Check which series are configured
-			List<String> series = new ArrayList<>(2); // Can't use Arrays.asList() as it's a read-only list that doesn't support removal
-			series.add("left");
-			series.add("right");
-			for (Iterator<String> it = series.iterator(); it.hasNext(); ) {
-				if (!conf.containsKey(graphi+it.next()+".query")) {
-					it.remove();
+			if (sameCommon && sameProperties(conf, previous.conf, k -> k.startsWith(graphi))) { // Unchanged: keep its panels
+				for (GraphQueryLink gql : previous.graphsQ) {
+					if (gql.prefix.equals(graphi)) {
+						add((Component)gql.graph);
+						graphsQ.add(gql);
+						kept.add(gql);
+					}
+				}
+				for (ProcessGraph pg : previous.processGraphs) {
+					if (pg.prefix.equals(graphi)) {
+						add(pg.graph);
+						processGraphs.add(pg);
+					}
 				}
+				continue;
 			}
 			
-			// 'series' now contains only the "left" or "right" that are defined in the configuration
-			int nSeries = series.size();
-			
-			// Get series query and title
-			String[] queries = new String[nSeries];
-			String[] titles = new String[nSeries];
-			for (int i = 0; i < nSeries; i++) {
-				String lr = graphi+series.get(i);
-				queries[i] = conf.getProperty(lr+".query");
-				titles[i] = conf.getProperty(lr+".title", queries[i].replace('.', ' '));
+			if ("processes".equals(conf.getProperty(graphi+"type", "time").trim())) {
+				addProcesses(conf, clock, graphi, conf.getProperty(graphi+"title", "Graph #"+ig),
+						duration, scrolling, rollup, majorY, minorY, timeTicks, bckColor, defBckColor, defTickColor);
+				continue;
 			}
 			
-			PanelTimeGraph graph = new PanelTimeGraph(conf.getProperty(graphi+"title", "Graph #"+ig), duration, titles);
-			add(graph);
-			
-			// General configuration
-			graph.setBackground(bckColor);
-			graph.yTicks(majorY, minorY);
-			graph.timeTicks(timeTicks);
-			graph.background(parseColor(conf, graphi+"background", defBckColor));
-			graph.ticksColor(parseColor(conf, graphi+"ticks.color", defTickColor));
+			// Check which series are configured
+			List<String> series = seriesPositions(conf, graphi);
 			
-			// Create the link between the graph and its queries
-			graphsQ.add(new GraphQueryLink(graph, queries));
+			// GPUs of each series, and all GPUs graphed: the graph is duplicated for each of them
+			List<List<Integer>> seriesGpus = new ArrayList<>(series.size());
+			SortedSet<Integer> graphGpus = new TreeSet<>();
+			for (String lr : series) {
+				List<Integer> g = parseGpus(conf, graphi+lr+".gpu", gpus);
+				seriesGpus.add(g);
+				graphGpus.addAll(g);
+			}
+			if (graphGpus.isEmpty()) { // No series: still show the (empty) graph
+				graphGpus.add(gpus.isEmpty() ? 0 : gpus.get(0));
+			}
 			
-			// Configure graph attributes
-			for (int i = 0; i < nSeries; i++) {
-				String k = graphi+series.get(i)+".";
-				int _is = i;
-				apply(conf, k+"min"  , Float::valueOf     , val -> graph.min(_is, val));
-				apply(conf, k+"max"  , Float::valueOf     , val -> graph.max(_is, val));
-				apply(conf, k+"unit" , Function.identity(), val -> graph.unit(_is, val));
-				apply(conf, k+"color", Color::decode      , val -> graph.color(_is, val));
+			String title = conf.getProperty(graphi+"title", "Graph #"+ig);
+			if (Boolean.parseBoolean(conf.getProperty(graphi+"gpus.merge", "false"))) { // A single graph, with series of all GPUs
+				List<String> gpuSeries = new ArrayList<>();
+				List<Integer> gpuOf = new ArrayList<>();
+				for (int i = 0; i < series.size(); i++) {
+					for (int gpu : seriesGpus.get(i)) {
+						gpuSeries.add(series.get(i));
+						gpuOf.add(gpu);
+					}
+				}
+				addGraph(conf, clock, graphi, title, gpuSeries, gpuOf,
+						duration, refresh, scrolling, rollup, majorY, minorY, timeTicks, bckColor, defBckColor, defTickColor);
+				continue;
+			}
+			for (int gpu : graphGpus) {
+				// Series graphed for that GPU
+				List<String> gpuSeries = new ArrayList<>(series.size());
+				List<Integer> gpuOf = new ArrayList<>(series.size());
+				for (int i = 0; i < series.size(); i++) {
+					if (seriesGpus.get(i).contains(gpu)) {
+						gpuSeries.add(series.get(i));
+						gpuOf.add(gpu);
+					}
+				}
+				addGraph(conf, clock, graphi, graphGpus.size() > 1 ? title+" - GPU "+gpu : title, gpuSeries, gpuOf,
+						duration, refresh, scrolling, rollup, majorY, minorY, timeTicks, bckColor, defBckColor, defTickColor);
+			}
+		}
+		
+		int nGraphs = getComponentCount(); // How many graphs
+		String layout = conf.getProperty("graph.grid", nGraphs+","+1);
+		int rows = nGraphs, cols = 1;
+		try {
+			String[] rowsCols = layout.split(",");
+			rows = Integer.parseInt(rowsCols[0]);
+			if (rowsCols.length < 2) {
+				cols = Math.max(1, nGraphs / rows);
+			} else {
+				cols = Integer.parseInt(rowsCols[1]);
+			}
+		} catch (NumberFormatException e) {
+			System.err.println("Malformed \"graph.grid\" format '"+layout+"': should be <rows>,<cols> (e.g. \"2,1\"): "+e.getMessage());
+			rows = nGraphs;
+			cols = 1;
+		}
+		setLayout(new GridLayout(rows, cols)); // N.B. more graphs than rows*cols (e.g. one per GPU) will add columns
+		this.previous = null;
+	}
+	
+	/** @return Whether {@code a} and {@code b} have the same properties of keys accepted by {@code keys}. */
+	static private boolean sameProperties(Properties a, Properties b, Predicate<String> keys) {
+		Set<String> all = new HashSet<>(a.stringPropertyNames());
+		all.addAll(b.stringPropertyNames());
+		for (String k : all) {
+			if (keys.test(k) && !Objects.equals(a.getProperty(k), b.getProperty(k))) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Plan {@code graph} taking over the measures of the {@link #previous} graph having the most series of the same
+	 * queries and GPUs, preferably of the same graph properties prefix.
+	 */
+	private void planCarryOver(PanelTimeGraph graph, GraphQueryLink link) {
+		if (previous == null) {
+			return;
+		}
+		GraphQueryLink from = null;
+		int[] fromSeries = null;
+		int best = 0;
+		for (GraphQueryLink old : previous.graphsQ) {
+			if (!(old.graph instanceof PanelTimeGraph)) {
+				continue;
+			}
+			int[] map = new int[link.queries.length];
+			int n = 0;
+			for (int i = 0; i < map.length; i++) {
+				map[i] = -1;
+				for (int j = 0; j < old.queries.length && map[i] < 0; j++) {
+					if (old.queries[j].equals(link.queries[i]) && old.gpus[j] == link.gpus[i]) {
+						map[i] = j;
+						n++;
+					}
+				}
+			}
+			if (n > best || (n == best && n > 0 && old.prefix.equals(link.prefix) && !from.prefix.equals(link.prefix))) {
+				from = old;
+				fromSeries = map;
+				best = n;
+			}
+		}
+		if (from != null) {
+			PanelTimeGraph fromGraph = (PanelTimeGraph)from.graph;
+			int[] map = fromSeries;
+			carries.add(() -> graph.carryOver(fromGraph, map));
+		}
+	}
+	
+	/**
+	 * @param graphi The graph properties prefix, {@code "graph.<n>."}.
+	 * @return The positions of the series configured for the graph ({@code <pos>} of {@code graph.<n>.<pos>.query}
+	 * 		or {@code graph.<n>.<pos>.expr} properties):
+	 * 		{@code left}, {@code right}, then the others in alphabetical order.
+	 */
+	static private List<String> seriesPositions(Properties conf, String graphi) {
+		SortedSet<String> others = new TreeSet<>();
+		for (Object o : conf.keySet()) {
+			String k = (String)o;
+			String suffix = (k.endsWith(".query") ? ".query" : k.endsWith(".expr") ? ".expr" : null);
+			if (k.startsWith(graphi) && suffix != null) {
+				String pos = k.substring(graphi.length(), k.length() - suffix.length());
+				if (!pos.isEmpty() && pos.indexOf('.') < 0) {
+					others.add(pos);
+				}
+			}
+		}
+		List<String> series = new ArrayList<>(others.size());
+		for (String lr : new String[] { "left", "right" }) {
+			if (others.remove(lr)) {
+				series.add(lr);
+			}
+		}
+		series.addAll(others);
+		return series;
+	}
+	
+	/**
+	 * @param k The series properties prefix, {@code "graph.<n>.<pos>"}.
+	 * @return The series query, or its expression if it has no query (see {@link Expression}).
+	 */
+	static private String seriesQuery(Properties conf, String k) {
+		return conf.getProperty(k+".query", conf.getProperty(k+".expr", "").trim());
+	}
+	
+	/**
+	 * @param k The series properties prefix, {@code "graph.<n>.<pos>"}.
+	 * @return The series expression, {@code null} if it has a query, or if the expression is malformed (the series
+	 * 		is then missing).
+	 */
+	static private Expression seriesExpression(Properties conf, String k) {
+		String expr = conf.getProperty(k+".expr");
+		if (expr == null || conf.getProperty(k+".query") != null) {
+			return null;
+		}
+		try {
+			return new Expression(expr.trim());
+		} catch (IllegalArgumentException e) {
+			System.err.println(k+".expr: "+e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * @param k The series properties prefix, {@code "graph.<n>.<pos>"}.
+	 * @return The series alert rule, {@code null} if none, or if it is malformed.
+	 */
+	static private Alert seriesAlert(Properties conf, String k) {
+		String rule = conf.getProperty(k+".alert");
+		if (rule == null || rule.isBlank()) {
+			return null;
+		}
+		try {
+			return new Alert(rule);
+		} catch (IllegalArgumentException e) {
+			System.err.println(k+".alert: "+e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Create a graph.
+	 * @param graphi The graph properties prefix, {@code "graph.<n>."}.
+	 * @param series The positions of the series to graph (e.g. {@code "left"}), one per graphed series.
+	 * @param gpus The GPU of each graphed series. Series of a position graphed for several GPUs are titled and colored after them.
+	 */
+	private void addGraph(Properties conf, Supplier<Long> clock, String graphi, String title, List<String> series, List<Integer> gpus,
+			int duration, int refresh, boolean scrolling, boolean rollup, int majorY, int minorY, int timeTicks, Color bckColor, Color defBckColor, Color defTickColor) {
+		int nSeries = series.size();
+		
+		// Get series query (or expression, one per position) and title
+		String[] queries = new String[nSeries];
+		Expression[] exprs = new Expression[nSeries];
+		Map<String,Expression> posExprs = new HashMap<>();
+		Alert[] alerts = new Alert[nSeries];
+		Map<String,Alert> posAlerts = new HashMap<>();
+		String[] titles = new String[nSeries], names = new String[nSeries];
+		int[] seriesGpus = new int[nSeries];
+		for (int i = 0; i < nSeries; i++) {
+			String lr = graphi+series.get(i);
+			queries[i] = seriesQuery(conf, lr);
+			if (!posExprs.containsKey(lr)) {
+				posExprs.put(lr, seriesExpression(conf, lr));
+			}
+			exprs[i] = posExprs.get(lr);
+			if (!posAlerts.containsKey(lr)) {
+				posAlerts.put(lr, seriesAlert(conf, lr));
+			}
+			alerts[i] = posAlerts.get(lr);
+			titles[i] = conf.getProperty(lr+".title", queries[i].replace('.', ' '));
+			seriesGpus[i] = gpus.get(i);
+			if (Collections.frequency(series, series.get(i)) > 1) {
+				titles[i] += " GPU "+seriesGpus[i];
+			}
+			names[i] = title+": "+titles[i];
+		}
+		
+		if ("distribution".equals(conf.getProperty(graphi+"type", "time").trim())) {
+			addDistribution(conf, clock, graphi, title, series, seriesGpus, queries, exprs, alerts, names, duration, majorY, bckColor, defBckColor, defTickColor);
+			return;
+		}
+		
+		PanelTimeGraph graph = new PanelTimeGraph(clock, title, duration, titles);
+		add(graph);
+		
+		// General configuration
+		graph.setBackground(bckColor);
+		graph.yTicks(majorY, minorY);
+		graph.timeTicks(timeTicks);
+		graph.refresh(refresh);
+		graph.rollup(rollup);
+		graph.scrolling(scrolling);
+		graph.background(parseColor(conf, graphi+"background", defBckColor));
+		graph.ticksColor(parseColor(conf, graphi+"ticks.color", defTickColor));
+		
+		// Create the link between the graph and its queries
+		GraphQueryLink link = new GraphQueryLink(graphi, graph, seriesGpus, queries, exprs, alerts, names, actions);
+		graphsQ.add(link);
+		planCarryOver(graph, link);
+		
+		// Configure graph attributes
+		for (int i = 0; i < nSeries; i++) {
+			String k = graphi+series.get(i)+".";
+			int _is = i;
+			int nGpus = Collections.frequency(series, series.get(i));
+			int iGpu = Collections.frequency(series.subList(0, i), series.get(i));
+			apply(conf, k+"min"  , Float::valueOf     , val -> graph.min(_is, val));
+			apply(conf, k+"max"  , Float::valueOf     , val -> graph.max(_is, val));
+			apply(conf, k+"unit" , Function.identity(), val -> graph.unit(_is, val));
+			apply(conf, k+"color", Color::decode      , val -> graph.color(_is, shade(val, iGpu, nGpus)));
+		}
+	}
+	
+	/**
+	 * Create a {@code processes} graph: the GPU memory used by the {@code graph.<n>.top} processes using the most
+	 * (see {@link ProcessGraph}), polled by {@link #startProcesses()}.
+	 */
+	private void addProcesses(Properties conf, Supplier<Long> clock, String graphi, String title, int duration,
+			boolean scrolling, boolean rollup, int majorY, int minorY, int timeTicks, Color bckColor, Color defBckColor, Color defTickColor) {
+		String[] names = new String[Math.max(1, parseInt(conf, graphi+"top", 5))];
+		Arrays.fill(names, "");
+		PanelTimeGraph graph = new PanelTimeGraph(clock, title, duration, names);
+		add(graph);
+		graph.setBackground(bckColor);
+		graph.yTicks(majorY, minorY);
+		graph.timeTicks(timeTicks);
+		graph.refresh(Math.max(100, parseInt(conf, "processes.refresh", 2000)));
+		graph.rollup(rollup);
+		graph.scrolling(scrolling);
+		graph.background(parseColor(conf, graphi+"background", defBckColor));
+		graph.ticksColor(parseColor(conf, graphi+"ticks.color", defTickColor));
+		for (int i = 0; i < names.length; i++) {
+			graph.unit(i, "MiB");
+			graph.min(i, 0);
+		}
+		processGraphs.add(new ProcessGraph(graphi, graph, names.length));
+	}
+	
+	/**
+	 * Create a distribution graph (see {@link PanelDistribution}): series of the same position (i.e. of several GPUs)
+	 * are counted in the same distribution.
+	 * @param series The positions of the series to graph (e.g. {@code "left"}), one per graphed series.
+	 * @param seriesGpus The GPU of each graphed series.
+	 * @param queries The query of each graphed series.
+	 * @param exprs The expression of each graphed series, {@code null} for those of a query.
+	 * @param alerts The alert rule of each graphed series, {@code null} for those without, and the names they are reported with.
+	 */
+	private void addDistribution(Properties conf, Supplier<Long> clock, String graphi, String title, List<String> series, int[] seriesGpus,
+			String[] queries, Expression[] exprs, Alert[] alerts, String[] alertNames, int duration, int majorY, Color bckColor, Color defBckColor, Color defTickColor) {
+		List<String> positions = new ArrayList<>(new LinkedHashSet<>(series));
+		String[] names = new String[positions.size()];
+		for (int d = 0; d < names.length; d++) {
+			String k = graphi+positions.get(d);
+			names[d] = conf.getProperty(k+".title", seriesQuery(conf, k).replace('.', ' '));
+			int nGpus = Collections.frequency(series, positions.get(d));
+			if (nGpus > 1) {
+				names[d] += " ("+nGpus+" GPUs)";
+			}
+		}
+		int[] dist = new int[series.size()];
+		for (int i = 0; i < dist.length; i++) {
+			dist[i] = positions.indexOf(series.get(i));
+		}
+		
+		PanelDistribution graph = new PanelDistribution(clock, title, duration, names, dist);
+		add(graph);
+		graph.setBackground(bckColor);
+		graph.yTicks(majorY);
+		graph.background(parseColor(conf, graphi+"background", defBckColor));
+		graph.ticksColor(parseColor(conf, graphi+"ticks.color", defTickColor));
+		graphsQ.add(new GraphQueryLink(graphi, graph, seriesGpus, queries, exprs, alerts, alertNames, actions));
+		
+		for (int d = 0; d < names.length; d++) {
+			String k = graphi+positions.get(d)+".";
+			int _d = d;
+			float min = parseFloat(conf, k+"min", 0);
+			float max = parseFloat(conf, k+"max", 100);
+			int bins = parseInt(conf, k+"bins", 20);
+			apply(conf, k+"unit" , Function.identity(), val -> graph.unit(_d, val));
+			apply(conf, k+"color", Color::decode      , val -> graph.color(_d, val));
+			try {
+				graph.range(d, min, max, bins);
+			} catch (IllegalArgumentException e) {
+				System.err.println(k+"min/max: "+e.getMessage()+", using 0 to 100");
+			}
+		}
+	}
+	
+	static private float parseFloat(Properties conf, String key, float defVal) {
+		try {
+			return Float.parseFloat(conf.getProperty(key, ""+defVal));
+		} catch (NumberFormatException e) {
+			System.err.println(key+": "+e.getMessage()+", setting to default "+defVal);
+			return defVal;
+		}
+	}
+	
+	/**
+	 * @return A variation of {@code c} for the {@code i}-th of {@code n} series sharing that color, with hues
+	 * 		spread around its hue.
+	 */
+	static private Color shade(Color c, int i, int n) {
+		if (n <= 1) {
+			return c;
+		}
+		float[] hsb = Color.RGBtoHSB(c.getRed(), c.getGreen(), c.getBlue(), null);
+		float hue = hsb[0] + ((float)i / (n - 1) - 0.5f) / 3; // +/- 60 degrees
+		return Color.getHSBColor(hue - (float)Math.floor(hue), Math.max(hsb[1], 0.5f), Math.max(hsb[2], 0.5f));
+	}
+	
+	/**
+	 * Parse a GPU list property: {@code all}, or comma-separated GPU indexes or ranges of indexes
+	 * (e.g. {@code 0..3,6}).
+	 * @param key The property key.
+	 * @param gpus The available GPUs indexes.
+	 * @return The GPUs, sorted. GPU {@code 0} if the property is not defined or cannot be parsed.
+	 */
+	static List<Integer> parseGpus(Properties conf, String key, List<Integer> gpus) {
+		String spec = conf.getProperty(key, "0").trim();
+		if ("all".equalsIgnoreCase(spec)) {
+			return gpus;
+		}
+		SortedSet<Integer> set = new TreeSet<>();
+		try {
+			for (String s : spec.split(",")) {
+				s = s.trim();
+				int range = s.indexOf("..");
+				if (range < 0) {
+					set.add(Integer.valueOf(s));
+				} else {
+					int from = Integer.parseInt(s.substring(0, range).trim());
+					int to = Integer.parseInt(s.substring(range + 2).trim());
+					for (int i = from; i <= to; i++) {
+						set.add(i);
+					}
+				}
 			}
+		} catch (NumberFormatException e) {
+			System.err.println("Malformed \""+key+"\" GPU list '"+spec+"': should be \"all\" or indexes/ranges (e.g. \"0..3,6\"), setting to GPU 0: "+e.getMessage());
+			return Arrays.asList(0);
 		}
+		return new ArrayList<>(set);
 	}
 	
 	static private Color parseColor(Properties conf, String key, Color defColor) {
@@ -161,34 +602,428 @@ public class NVMeasure extends JPanel {
 		}
 	}
 	
+	/**
+	 * Set the queries order in measures rows given to {@link #pushMeasures(long, float[])}.
+	 * @param queries The queries, in the order their values appear in rows. GPU index is given by the {@code "index"} query.
+	 */
+	public void setQueries(List<String> queries) {
+		gpuCol = queries.indexOf("index");
+		rowQueries = queries;
+		for (GraphQueryLink gql : graphsQ) {
+			if (!kept.contains(gql)) { // Kept ones are given their columns by the hand over
+				gql.setColumns(queries);
+			}
+		}
+	}
+	
 	public void pushMeasures(long t, Map<String,Float> measures) {
+		int gpu = measures.getOrDefault("index", 0f).intValue();
 		// Push data first ...
 		for (GraphQueryLink gql : graphsQ) {
-			gql.push(t, measures);
+			gql.push(t, gpu, measures);
 		}
 		// ... then repaint all graphs at once (they are contained in this panel)
 		repaint();
 	}
 	
+	/**
+	 * Push a row of measures, ordered as set by {@link #setQueries(List)}, and repaint.
+	 * @param t The measures timestamp.
+	 * @param row The measures values.
+	 */
+	public void pushMeasures(long t, float[] row) {
+		// Push data first ...
+		addMeasures(t, row);
+		// ... then repaint all graphs at once (they are contained in this panel)
+		repaint();
+	}
+	
+	/**
+	 * Add a row of measures, ordered as set by {@link #setQueries(List)}, to the graphs of its GPU,
+	 * without repainting. Call {@code repaint()} once a batch of rows (e.g. one per GPU) has been added.
+	 * @param t The measures timestamp.
+	 * @param row The measures values.
+	 */
+	public void addMeasures(long t, float[] row) {
+		int gpu = (gpuCol < 0 || Float.isNaN(row[gpuCol]) ? 0 : (int)row[gpuCol]);
+		for (GraphQueryLink gql : graphsQ) {
+			gql.push(t, gpu, row);
+		}
+	}
+	
+	/**
+	 * Keep measures added by {@link #start(SampleQueue)} in {@code history}. Before that, graphs are back-filled
+	 * with the measures it kept over the graphed duration.
+	 * @param history The history, with the queries given to {@link #setQueries(List)}.
+	 */
+	public void setHistory(History history) {
+		this.history = history;
+	}
+	
+	/**
+	 * Start a thread adding rows of measures from {@code queue} (see {@link #addMeasures(long, float[])}) and
+	 * repainting, at most {@code graph.fps} times per second whatever the measures rate.<br>
+	 * Graphs then paint snapshots taken by that thread, so that painting never waits for measures being added.
+	 * @param queue The measures rows, published by a single thread.
+	 */
+	public void start(SampleQueue queue) {
+		start(queue, history != null);
+	}
+	
+	/** @param backfill Whether graphs are first back-filled from {@link #history}. */
+	private void start(SampleQueue queue, boolean backfill) {
+		for (GraphQueryLink gql : graphsQ) {
+			gql.graph.autoSnapshot(false);
+		}
+		this.queue = queue;
+		exec = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread th = new Thread(r, "Graphs update");
+			th.setDaemon(true);
+			return th;
+		});
+		if (backfill) { // Before the first update
+			exec.execute(this::backfill);
+		}
+		exec.scheduleAtFixedRate(() -> {
+			try {
+				update(queue);
+			} catch (RuntimeException e) { // Would cancel the updates: report it, and go on with the next rows
+				System.err.println("Cannot update graphs: "+e);
+			}
+		}, 0, 1_000_000 / fps, TimeUnit.MICROSECONDS);
+	}
+	
+	/**
+	 * Start polling the processes using GPUs for the {@code processes} graphs, if any (see {@link ProcessPoller}).
+	 * Graphs replacing these ones then poll them too (see {@link #handOver(NVMeasure, SampleQueue)}).
+	 */
+	public void startProcesses() {
+		pollProcesses = true;
+		if (!processGraphs.isEmpty()) {
+			processes = new ProcessPoller(conf, (table, t) -> {
+				for (ProcessGraph pg : processGraphs) {
+					pg.push(t, table);
+				}
+			}).start();
+		}
+	}
+	
+	/**
+	 * Hand the measures over to {@code next}, created to replace these graphs (see
+	 * {@link #NVMeasure(Properties, List, Supplier, NVMeasure)}): once the rows of the queue given to
+	 * {@link #start(SampleQueue)} are added, {@code next} takes over the measures of the graphs it replaces, then
+	 * adds the rows of {@code queue} (see {@link #start(SampleQueue)}, without back-filling from history).
+	 * @param queue The measures rows, e.g. the same queue if queries did not change.
+	 */
+	public void handOver(NVMeasure next, SampleQueue queue) {
+		Runnable handOver = () -> {
+			if (this.queue != null) {
+				update(this.queue);
+			}
+			if (next.rowQueries != null) { // Rows are now those of the next queue
+				for (GraphQueryLink gql : next.kept) {
+					gql.setColumns(next.rowQueries);
+				}
+			}
+			next.kept.clear();
+			if (history != null && history != next.history) { // Replaced, e.g. as queries changed
+				try {
+					history.close();
+				} catch (IOException e) {
+					System.err.println("Cannot close history: "+e.getMessage());
+				}
+			}
+			for (Runnable carry : next.carries) {
+				carry.run();
+			}
+			next.carries.clear();
+			for (GraphQueryLink gql : next.graphsQ) { // Including those kept
+				gql.actions = next.actions;
+			}
+			if (actions != next.actions) {
+				actions.close();
+			}
+			if (processes != null) { // Before graphs kept are given processes by the next one
+				processes.close();
+			}
+			if (pollProcesses) {
+				next.startProcesses();
+			}
+			next.start(queue, false);
+		};
+		if (exec == null) {
+			handOver.run();
+			return;
+		}
+		exec.execute(handOver);
+		exec.shutdown(); // After the hand over
+	}
+	
+	/** Add the measures kept in {@link #history} over the graphed duration: raw ones only where graphs display them. */
+	private void backfill() {
+		long now = System.currentTimeMillis();
+		long rawFrom = now - (rollup ? Math.min(duration, PanelTimeGraph.MINUTE_ROLLUP_AGE) : duration);
+		history.read(now - duration, rawFrom, now, s -> {
+			try {
+				addMeasures(s.t, s.values);
+			} catch (IllegalArgumentException e) {
+				System.err.println("Cannot add history measures: "+e.getMessage());
+			}
+		});
+	}
+	
+	/** Add all rows of measures available in {@code queue}, then repaint graphs whose snapshot changed. */
+	private void update(SampleQueue queue) {
+		for (Sample s; (s = queue.peek()) != null; queue.release()) {
+			try {
+				addMeasures(s.t, s.values);
+			} catch (IllegalArgumentException e) { // E.g. timestamp going backwards: skip it
+				System.err.println("Cannot add measures: "+e.getMessage());
+			} catch (RuntimeException e) { // Unexpected (e.g. an odd row): skip it, not to fail again on it
+				if (failures++ % 1000 == 0) {
+					System.err.println("Cannot add measures, "+failures+" rows skipped: "+e);
+				}
+			}
+			if (history != null) {
+				try {
+					history.append(s);
+				} catch (IOException e) {
+					System.err.println("Cannot keep measures history, stopping it: "+e.getMessage());
+					history = null;
+				}
+			}
+		}
+		boolean changed = false;
+		for (GraphQueryLink gql : graphsQ) {
+			changed |= gql.graph.snapshot();
+		}
+		if (changed) {
+			repaint(); // Graphs are contained in this panel
+		}
+	}
+	
 	
 	
+	/**
+	 * Link between a graph and the queries of its series, possibly of different GPUs.<br>
+	 * Values of a GPU come in a row of their own: values of the graph GPUs are gathered, and added to the graph
+	 * when all are known, or when a new value comes for one already known (e.g. a GPU did not report anything).<br>
+	 * Series of an expression are computed from the row of their GPU, with a state of their own, and so are alerts
+	 * of series evaluated on their values.
+	 */
 	static private class GraphQueryLink {
 		
-		private PanelTimeGraph graph;
+		/** The graph properties prefix, {@code "graph.<n>."}. */
+		private final String prefix;
+		private MeasuresGraph graph;
+		/** The GPU index of each series. */
+		private int[] gpus;
 		private String[] queries;
+		/** Column of each query in measures rows, {@code -1} if absent. */
+		private int[] cols;
+		/** Expression of each series ({@code null} for a query), and its state. */
+		private Expression[] exprs;
+		private Expression.State[] states;
+		/** Alert rule of each series ({@code null} if none), its state, and the name it is reported with. */
+		private Alert[] alerts;
+		private Alert.State[] alertStates;
+		private String[] names;
+		/** What is done when alerts fire, that of the graphs the link currently belongs to. */
+		private AlertActions actions;
+		/** Values pushed to the graph (reused), {@code NaN} until known. */
+		private float[] vals;
+		/** Whether each value of {@link #vals} is known. */
+		private boolean[] known;
+		/** Number of known values, and timestamp of the first one. */
+		private int nKnown;
+		private long tKnown;
 		
-		private GraphQueryLink(PanelTimeGraph graph, String ... queries) {
+		private GraphQueryLink(String prefix, MeasuresGraph graph, int[] gpus, String[] queries, Expression[] exprs,
+				Alert[] alerts, String[] names, AlertActions actions) {
+			this.prefix = prefix;
 			this.graph = graph;
+			this.gpus = gpus;
 			this.queries = queries;
+			this.exprs = exprs;
+			this.alerts = alerts;
+			this.names = names;
+			this.actions = actions;
+			states = new Expression.State[exprs.length];
+			alertStates = new Alert.State[alerts.length];
+			for (int i = 0; i < exprs.length; i++) {
+				states[i] = (exprs[i] == null ? null : exprs[i].newState());
+				alertStates[i] = (alerts[i] == null ? null : alerts[i].newState());
+			}
+			cols = new int[queries.length];
+			vals = new float[queries.length];
+			known = new boolean[queries.length];
+			Arrays.fill(vals, Float.NaN);
+		}
+		
+		private void setColumns(List<String> rowQueries) {
+			for (int i = 0; i < queries.length; i++) {
+				cols[i] = (exprs[i] == null ? rowQueries.indexOf(queries[i]) : -1);
+				if (exprs[i] != null) {
+					exprs[i].setColumns(rowQueries);
+				}
+			}
+		}
+		
+		/** @return Whether the graph has series of GPU {@code gpu}. Adds known values first if some of them are of that GPU. */
+		private boolean accept(int gpu) {
+			boolean accept = false;
+			for (int i = 0; i < gpus.length; i++) {
+				if (gpus[i] == gpu) {
+					if (known[i]) {
+						flush();
+						return true;
+					}
+					accept = true;
+				}
+			}
+			return accept;
 		}
 		
-		private void push(long t, Map<String,Float> values) {
-			int nSeries = queries.length;
-			float[] vals = new float[nSeries];
-			for (int i = 0; i < nSeries; i++) {
-				vals[i] = values.getOrDefault(queries[i], Float.NaN);
+		private void set(long t, int i, float v) {
+			if (nKnown++ == 0) {
+				tKnown = t;
+			}
+			vals[i] = v;
+			known[i] = true;
+			if (alerts[i] != null) {
+				int change = alerts[i].update(t, v, alertStates[i]);
+				if (change != Alert.UNCHANGED) {
+					graph.alert(i, change == Alert.FIRED);
+					actions.alert(t, names[i], alerts[i], v, change == Alert.FIRED);
+				}
+			}
+		}
+		
+		/** Add known values to the graph (unknown ones as missing values). */
+		private void flush() {
+			if (nKnown == 0) {
+				return;
+			}
+			try {
+				graph.addValues(tKnown, vals);
+			} finally {
+				Arrays.fill(vals, Float.NaN);
+				Arrays.fill(known, false);
+				nKnown = 0;
+			}
+		}
+		
+		private void push(long t, int gpu, Map<String,Float> values) {
+			if (!accept(gpu)) {
+				return;
+			}
+			for (int i = 0; i < gpus.length; i++) {
+				if (gpus[i] == gpu) {
+					set(t, i, values.getOrDefault(queries[i], Float.NaN));
+				}
+			}
+			if (nKnown == gpus.length) {
+				flush();
+			}
+		}
+		
+		private void push(long t, int gpu, float[] row) {
+			if (!accept(gpu)) {
+				return;
+			}
+			for (int i = 0; i < gpus.length; i++) {
+				if (gpus[i] == gpu) {
+					int c = cols[i];
+					set(t, i, exprs[i] != null ? exprs[i].eval(t, row, states[i]) : c < 0 || c >= row.length ? Float.NaN : row[c]);
+				}
+			}
+			if (nKnown == gpus.length) {
+				flush();
+			}
+		}
+		
+	}
+	
+	
+	
+	/**
+	 * A {@code processes} graph: the GPU memory used by the processes using the most, a series per process.<br>
+	 * A process keeps its series while it is in the top ones, whatever its rank. Series of processes leaving the top
+	 * ones (or exiting) are given to those entering them, renamed after them, their line being broken there (the first
+	 * measure of the new process is not graphed). Series given to no process are cleared until they are.
+	 */
+	static private class ProcessGraph {
+		
+		/** The graph properties prefix, {@code "graph.<n>."}. */
+		private final String prefix;
+		private final PanelTimeGraph graph;
+		/** PID of the process of each series, {@code -1} if none, and whether it is still in the top ones (reused). */
+		private final int[] owners;
+		private final boolean[] kept;
+		/** Slots of the top processes, and whether each has a series (reused). */
+		private final int[] top;
+		private final boolean[] graphed;
+		/** Values graphed at the last measure, and at the current one (reused). */
+		private float[] last, vals;
+		
+		/** @param n The number of series, i.e. of top processes. */
+		private ProcessGraph(String prefix, PanelTimeGraph graph, int n) {
+			this.prefix = prefix;
+			this.graph = graph;
+			owners = new int[n];
+			Arrays.fill(owners, -1);
+			kept = new boolean[n];
+			top = new int[n];
+			graphed = new boolean[n];
+			last = new float[n];
+			vals = new float[n];
+			Arrays.fill(last, Float.NaN);
+		}
+		
+		/** Add the memory used by the top processes of {@code table} at {@code t}. */
+		private void push(long t, ProcessTable table) {
+			int n = table.top(top);
+			Arrays.fill(graphed, false);
+			for (int s = 0; s < owners.length; s++) {
+				kept[s] = false;
+				vals[s] = Float.NaN;
+				for (int k = 0; k < n && !kept[s]; k++) {
+					if (!graphed[k] && table.pid(top[k]) == owners[s]) {
+						graphed[k] = kept[s] = true;
+						vals[s] = table.memory(top[k]);
+					}
+				}
+			}
+			for (int k = 0, s = 0; k < n; k++) { // Give series of processes out of the top ones to new ones
+				if (graphed[k]) {
+					continue;
+				}
+				while (kept[s]) {
+					s++;
+				}
+				int pid = table.pid(top[k]);
+				String name = table.name(top[k]);
+				owners[s] = pid;
+				kept[s] = true;
+				// Break the line of a series given by another process, other series go on
+				vals[s] = (Float.isNaN(last[s]) ? table.memory(top[k]) : Float.NaN);
+				graph.name(s, name.substring(name.lastIndexOf('/') + 1)+" ("+pid+")");
+			}
+			for (int s = 0; s < owners.length; s++) { // Series given to no process
+				if (!kept[s] && owners[s] >= 0) {
+					owners[s] = -1;
+					graph.name(s, "");
+				}
+			}
+			try {
+				graph.addValues(t, vals);
+			} catch (IllegalArgumentException e) {
+				System.err.println("Cannot add processes: "+e.getMessage());
 			}
-			graph.addValues(t, vals);
+			float[] tmp = last;
+			last = vals;
+			vals = tmp;
+			graph.repaint();
 		}
 		
 	}
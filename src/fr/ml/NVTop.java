@@ -1,24 +1,36 @@
 package fr.ml;
 
 import java.awt.BorderLayout;
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
+import java.awt.Component;
+import java.awt.GraphicsEnvironment;
 import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import javax.swing.JFrame;
+import javax.swing.JLabel;
 import javax.swing.JOptionPane;
+import javax.swing.JTabbedPane;
+import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 
 public class NVTop {
 	
@@ -64,8 +76,171 @@ public class NVTop {
 	
 	static final String tsFormat = "yyyy/MM/dd HH:mm:ss.SSS";
 	
+	/**
+	 * List the GPUs through {@code nvidia-smi} (or the simulator, see {@link #source(Properties, List, int)}).
+	 * @return The GPUs indexes. Only GPU {@code 0} if they cannot be listed.
+	 */
+	static List<Integer> listGpus(Properties prop) {
+		List<Integer> gpus = new ArrayList<>();
+		try (SampleSource source = source(prop, Arrays.asList("timestamp", "index"), 0)) {
+			Sample s = new Sample(2);
+			while (source.next(s)) {
+				if (!Float.isNaN(s.values[1])) {
+					gpus.add((int)s.values[1]);
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Cannot list GPUs: "+e.getMessage());
+		}
+		if (gpus.isEmpty()) {
+			gpus.add(0);
+		}
+		return gpus;
+	}
+	
+	/**
+	 * Create the source of measures: {@code nvidia-smi}, the command configured by {@code source.command}, the
+	 * in-process simulator if {@code source.simulator} is {@code true}, or NVML if {@code source.nvml} is {@code true}
+	 * (falling back to the command if it cannot be loaded).
+	 * <p>
+	 * Queries sampled at another period ({@code source.refresh.<query>}), or adaptive sampling ({@code source.adaptive}),
+	 * have a source per period, merged by a {@link GroupedSource}.
+	 * @param queries The queries, in the order of their values.
+	 * @param loopMs The time between two measures, ms. {@code 0} for a single measure.
+	 * @throws IOException When the command cannot be started.
+	 */
+	static SampleSource source(Properties prop, List<String> queries, int loopMs) throws IOException {
+		boolean adaptive = Boolean.parseBoolean(prop.getProperty("source.adaptive", "false"));
+		Map<Integer,List<String>> periods = new LinkedHashMap<>(); // Queries of each period, in their order
+		for (String q : queries.subList(2, queries.size())) {
+			periods.computeIfAbsent(Math.max(1, NVMeasure.parseInt(prop, "source.refresh."+q, loopMs)), p -> new ArrayList<>()).add(q);
+		}
+		if (loopMs <= 0 || (!adaptive && periods.keySet().stream().allMatch(p -> p == loopMs))) {
+			return open(prop, queries, loopMs);
+		}
+		
+		int minMs = (adaptive ? Math.max(1, NVMeasure.parseInt(prop, "source.adaptive.min", Math.max(10, loopMs / 10))) : Integer.MAX_VALUE);
+		double delta = parseDouble(prop, "source.adaptive.delta", 5);
+		GroupedSource grouped = new GroupedSource(queries);
+		try {
+			for (Map.Entry<Integer,List<String>> e : periods.entrySet()) {
+				List<String> group = e.getValue();
+				float[] deltas = new float[group.size()];
+				for (int i = 0; i < deltas.length; i++) {
+					deltas[i] = (float)parseDouble(prop, "source.adaptive.delta."+group.get(i), delta);
+				}
+				grouped.add(group, e.getKey(), minMs, deltas, (qs, ms) -> open(prop, qs, ms));
+			}
+		} catch (IOException e) {
+			grouped.close();
+			throw e;
+		}
+		return grouped;
+	}
+	
+	/** Create the source of measures of all {@code queries}, see {@link #source(Properties, List, int)}. */
+	static private SampleSource open(Properties prop, List<String> queries, int loopMs) throws IOException {
+		if (Boolean.parseBoolean(prop.getProperty("source.simulator", "false"))) {
+			FakeSmi sim = new FakeSmi(queries, NVMeasure.parseInt(prop, "source.simulator.gpus", 1), loopMs)
+					.notAvailable(parseDouble(prop, "source.simulator.na", 0))
+					.malformed(parseDouble(prop, "source.simulator.malformed", 0));
+			return sim.source();
+		}
+		if (Boolean.parseBoolean(prop.getProperty("source.nvml", "false"))) {
+			try {
+				return new NvmlSource(new FfmNvml(prop.getProperty("source.nvml.library", "libnvidia-ml.so.1")), queries, loopMs);
+			} catch (IOException e) {
+				System.err.println("Cannot read measures through NVML, running a command instead: "+e.getMessage());
+			}
+		}
+		
+		return command(prop.getProperty("source.command", "nvidia-smi"), queries, loopMs);
+	}
+	
+	/**
+	 * Start {@code nvidia-smi} or a command taking the same arguments.
+	 * @param command The command, its arguments separated by spaces.
+	 */
+	static private SampleSource command(String command, List<String> queries, int loopMs) throws IOException {
+		List<String> cmd = new ArrayList<>(Arrays.asList(command.trim().split("\\s+")));
+		cmd.add("--query-gpu="+String.join(",", queries));
+		cmd.add("--format=csv,noheader,nounits");
+		if (loopMs > 0) {
+			cmd.add("--loop-ms="+loopMs);
+		}
+		return new SmiSource(new ProcessBuilder(cmd).start(), queries);
+	}
+	
+	static private double parseDouble(Properties conf, String key, double defVal) {
+		try {
+			return Double.parseDouble(conf.getProperty(key, ""+defVal));
+		} catch (NumberFormatException e) {
+			System.err.println(key+": "+e.getMessage()+", setting to default "+defVal);
+			return defVal;
+		}
+	}
+	
+	/** Whether there is no GUI: errors are then reported on {@code System.err}. */
+	static private boolean headless;
+	
+	/** Report an error, in a dialog unless {@link #headless}. */
+	static private void error(Component parent, String message, String title) {
+		if (headless) {
+			System.err.println(title+": "+message);
+		} else {
+			JOptionPane.showMessageDialog(parent, message, title, JOptionPane.ERROR_MESSAGE);
+		}
+	}
+	
+	/**
+	 * Usage: {@code NVTop [<configuration file>] [-record <file>] [-replay <file|dir> [-speed <x|max>] [-from <yyyy/MM/dd HH:mm:ss>]]
+	 * [-serve [<host>:]<port>] [-connect <host>:<port>[,<host>:<port>...]] [-fleet <file>]}.<br>
+	 * With {@code -record}, measures are recorded to {@code <file>} (see {@link RecordingWriter}) without GUI.<br>
+	 * With {@code -replay}, recorded measures are graphed instead of live ones (see {@link Replay}).<br>
+	 * With {@code -serve}, measures are streamed to viewers (see {@link StreamServer}) without GUI.<br>
+	 * With {@code -connect}, measures streamed by collectors are graphed instead of local ones (see {@link StreamClient}).<br>
+	 * With {@code -fleet}, aggregates of the measures of the nodes listed in {@code <file>} are graphed (see {@link FleetAggregator}).
+	 */
 	public static void main(String[] args) {
-		String confFile = (args.length > 0 ? args[0] : defaultConf);
+		String confFile = defaultConf;
+		String record = null;
+		String replay = null;
+		String serve = null;
+		String connect = null;
+		String fleet = null;
+		double speed = 1;
+		long from = Long.MIN_VALUE;
+		for (int i = 0; i < args.length; i++) {
+			if ("-record".equals(args[i]) && i + 1 < args.length) {
+				record = args[++i];
+			} else if ("-replay".equals(args[i]) && i + 1 < args.length) {
+				replay = args[++i];
+			} else if ("-serve".equals(args[i]) && i + 1 < args.length) {
+				serve = args[++i];
+			} else if ("-connect".equals(args[i]) && i + 1 < args.length) {
+				connect = args[++i];
+			} else if ("-fleet".equals(args[i]) && i + 1 < args.length) {
+				fleet = args[++i];
+			} else if ("-speed".equals(args[i]) && i + 1 < args.length) {
+				String sp = args[++i];
+				try {
+					speed = ("max".equalsIgnoreCase(sp) ? 0 : Double.parseDouble(sp));
+				} catch (NumberFormatException e) {
+					System.err.println("Malformed replay speed '"+sp+"': should be a number or \"max\", replaying in real time");
+				}
+			} else if ("-from".equals(args[i]) && i + 1 < args.length) {
+				String date = args[++i];
+				try {
+					from = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").parse(date).getTime();
+				} catch (ParseException e) {
+					System.err.println("Malformed replay start '"+date+"': should be \"yyyy/MM/dd HH:mm:ss\", replaying from start");
+				}
+			} else {
+				confFile = args[i];
+			}
+		}
+		headless = (record != null || serve != null || GraphicsEnvironment.isHeadless());
+		
 		Properties prop = new Properties();
 		if (!Files.exists(Paths.get(confFile))) {
 			System.err.println("Cannot find configuration file "+confFile+", creating default configuration in it");
@@ -86,96 +261,570 @@ public class NVTop {
 				prop.put("graph.1.right.unit", "MiB");
 				prop.store(fw, "");
 			} catch (IOException e) {
-				JOptionPane.showMessageDialog(null, "Cannot create configuration: "+e.getMessage(), "Creating configuration file", JOptionPane.ERROR_MESSAGE);
+				error(null, "Cannot create configuration: "+e.getMessage(), "Creating configuration file");
 			}
 		} else {
 			try (FileInputStream is = new FileInputStream(confFile)) {
 				prop.load(is);
 			} catch (Exception e) {
-				JOptionPane.showMessageDialog(null, "Cannot read configuration "+confFile+":\n"+e.getMessage(), "Reading configuration file", JOptionPane.ERROR_MESSAGE);
+				error(null, "Cannot read configuration "+confFile+":\n"+e.getMessage(), "Reading configuration file");
 				return;
 			}
 		}
 		
-		JFrame f = new JFrame();
+		if (replay != null) {
+			replay(prop, Paths.get(replay), speed, from);
+			return;
+		}
+		if (connect != null) {
+			connect(prop, connect);
+			return;
+		}
 		
-		NVMeasure measurePanel = new NVMeasure(prop);
-		f.getContentPane().add(measurePanel, BorderLayout.CENTER);
+		List<String> queries = queries(prop);
+		int loopMs = Math.max(1, NVMeasure.parseInt(prop, "graph.refresh", 1000));
 		
-		// TODO: North panel to control quick graphs configuration (duration, others?)
-		// TODO: Configuration panel to adjust other parameters (colors, ticks, scales, ...)
+		if (fleet != null) {
+			fleet(prop, queries, loopMs, Paths.get(fleet));
+			return;
+		}
+		if (record != null) {
+			record(prop, queries, loopMs, Paths.get(record));
+			return;
+		}
+		if (serve != null) {
+			serve(prop, queries, loopMs, serve);
+			return;
+		}
 		
-		f.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-		f.setSize(800, 600);
+		Dashboard live = new Dashboard();
+		live.prop = prop;
+		live.queries = queries;
+		live.loopMs = loopMs;
+		live.gpus = listGpus(prop);
+		live.panel = new NVMeasure(prop, live.gpus);
+		live.frame = frame(live.panel);
+		
+		try {
+			live.source = source(prop, queries, loopMs);
+			live.frame.setVisible(true); // Process started => show JFrame and start parsing
+			
+			// Measures are parsed by a dedicated thread, and added to graphs by another one
+			live.queue = new SampleQueue(1024, queries.size());
+			live.panel.setQueries(queries);
+			live.history = history(prop, queries);
+			live.panel.setHistory(live.history);
+			live.panel.start(live.queue);
+			live.panel.startProcesses();
+			live.exporter.set(exporter(prop, queries));
+			live.startReader();
+		} catch (IOException e) { // Cannot start process => dispose JFrame and exit
+			live.frame.dispose();
+			error(null, "Cannot start process: "+e.getMessage(), "Starting nvidia-smi");
+			return;
+		}
 		
+		if (Boolean.parseBoolean(prop.getProperty("config.reload", "true"))) {
+			try {
+				new ConfigWatcher(Paths.get(confFile), prop, live::reload).start();
+			} catch (IOException e) {
+				System.err.println("Cannot watch configuration "+confFile+" for changes: "+e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * @return The unique queries of graphs (see {@link #exprQueries(Properties, String)}), with the timestamp as first
+	 * 		value and the GPU index as second.
+	 */
+	static private List<String> queries(Properties prop) {
 		// List unique SMI queries
 		List<String> queries = prop.keySet().stream() // Keys ...
-			.filter(k -> ((String)k).endsWith(".query")) // ... representing queries ...
-			.map(k -> prop.getProperty((String)k)) // ... values of those keys ...
+			.filter(k -> ((String)k).endsWith(".query") || ((String)k).endsWith(".expr")) // ... representing queries or expressions ...
+			.flatMap(k -> exprQueries(prop, (String)k)) // ... values of those keys (queries of expressions) ...
 			.distinct() // ... that are unique ...
 			.collect(Collectors.toList());
-		// Add timestamp as first value (remove it first in case it was there)
+		// Add timestamp as first value and GPU index as second (remove them first in case they were there)
 		queries.remove("timestamp");
 		queries.add(0, "timestamp");
+		queries.remove("index");
+		queries.add(1, "index");
+		return queries;
+	}
+	
+	static private JFrame frame(Component measurePanel) {
+		JFrame f = new JFrame();
 		
-		StringBuilder sb = new StringBuilder();
-		for (String q : queries) {
-			if (sb.length() > 0) sb.append(',');
-			sb.append(q);
+		f.getContentPane().add(measurePanel, BorderLayout.CENTER);
+		
+		// TODO: North panel to control quick graphs configuration (duration, others?)
+		// TODO: Configuration panel to adjust other parameters (colors, ticks, scales, ...)
+		
+		f.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		f.setSize(800, 600);
+		return f;
+	}
+	
+	/**
+	 * Open the measures history configured by {@code history.dir}, closed when the JVM is shut down.
+	 * @return The history, {@code null} if not configured or it cannot be opened.
+	 */
+	static private History history(Properties prop, List<String> queries) {
+		String dir = prop.getProperty("history.dir", "").trim();
+		if (dir.isEmpty()) {
+			return null;
+		}
+		long rawRetention = NVMeasure.parseInt(prop, "history.raw.retention", 24) * 3_600_000L; // Hours
+		long retention = NVMeasure.parseInt(prop, "history.retention", 30) * 86_400_000L; // Days
+		History history;
+		try {
+			history = new History(Paths.get(dir), queries, rawRetention, retention);
+		} catch (IOException e) {
+			error(null, "Cannot keep measures history in "+dir+": "+e.getMessage(), "Opening history");
+			return null;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> { // Write pending measures and index
+			try {
+				history.close();
+			} catch (IOException e) {
+				System.err.println("Cannot close history: "+e.getMessage());
+			}
+		}, "History close"));
+		return history;
+	}
+	
+	/**
+	 * Graph recorded measures.
+	 * @param path The recording, or directory of recordings.
+	 * @param speed The replay speed, {@code 0} for as fast as possible.
+	 * @param from Time to start the replay from.
+	 */
+	static private void replay(Properties prop, Path path, double speed, long from) {
+		Replay replay;
+		try {
+			replay = new Replay(path, speed, from);
+		} catch (IOException e) {
+			error(null, "Cannot replay "+path+": "+e.getMessage(), "Replaying recording");
+			return;
 		}
 		
-		ProcessBuilder nvsmi = new ProcessBuilder("nvidia-smi", "--query-gpu="+sb.toString(), "--format=csv,noheader,nounits", "--loop-ms="+prop.getProperty("graph.refresh", "1000"));
-		sb = null; // Free
+		NVMeasure measurePanel = new NVMeasure(prop, replay.gpus(), replay); // Graphs show the replayed time
+		JFrame f = frame(measurePanel);
+		f.setTitle(path.getFileName().toString());
+		f.setVisible(true);
+		
+		SampleQueue queue = new SampleQueue(1 << 16, replay.columns().size()); // Large enough to replay fast
+		measurePanel.setQueries(replay.columns());
+		measurePanel.start(queue);
+		new Thread(() -> read(replay, queue, () -> null), "Replay").start();
+	}
+	
+	/**
+	 * Record measures to files, until {@code nvidia-smi} ends or the JVM is shut down.
+	 * @param file The recording files path (see {@link RecordingWriter}).
+	 */
+	static private void record(Properties prop, List<String> queries, int loopMs, Path file) {
+		long rollSize = NVMeasure.parseInt(prop, "record.rollover.size", 100) * 1024L * 1024L; // MiB
+		long rollTime = NVMeasure.parseInt(prop, "record.rollover.time", 60) * 60_000L; // Minutes
+		RecordingWriter writer = new RecordingWriter(file, queries, rollSize, rollTime);
 		
+		SampleSource source;
 		try {
-			Process nvtop = nvsmi.start();
-			SimpleDateFormat df = new SimpleDateFormat(tsFormat);
-			f.setVisible(true); // Process started => show JFrame and start parsing
-			
-			BufferedReader rd = new BufferedReader(new InputStreamReader(new BufferedInputStream(nvtop.getInputStream())));
-			String line;
-			int nQueries = queries.size();
-			Map<String,Float> measures = new HashMap<>(nQueries - 1); // No timestamp
-			while ((line = rd.readLine()) != null) {
-				String[] values = line.trim().split(", ");
-				if (values.length != nQueries) {
-					JOptionPane.showMessageDialog(f, "Retrieved values number ( "+values.length+") inconsistent with expected ("+nQueries+")", "Data retrieval", JOptionPane.ERROR_MESSAGE);
-					break;
+			source = source(prop, queries, loopMs);
+		} catch (IOException e) {
+			error(null, "Cannot start process: "+e.getMessage(), "Starting nvidia-smi");
+			return;
+		}
+		
+		// Write pending measures and index when killed
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				System.err.println("Cannot close recording: "+e.getMessage());
+			}
+		}, "Recording close"));
+		
+		SampleQueue queue = new SampleQueue(1 << 14, queries.size()); // Drained every 100ms
+		MetricsExporter exporter = exporter(prop, queries);
+		Thread reader = new Thread(() -> read(source, queue, () -> exporter), "nvidia-smi reader");
+		reader.start();
+		try {
+			while (reader.isAlive() || queue.size() > 0) {
+				for (Sample s; (s = queue.peek()) != null; queue.release()) {
+					writer.append(s);
 				}
-				
-				// Read timestamp
-				long ts;
-				try {
-					ts = df.parse(values[0]).getTime();
-				} catch (ParseException e) {
-					System.err.println(e.getMessage());
-					ts = System.currentTimeMillis();
-				}
-				
-				for (int i = 1; i < nQueries; i++) { // Skip timestamp
-					Float v;
-					if ("N/A".equalsIgnoreCase(values[i])) { // Special "N/A" case
-						v = Float.NaN;
+				LockSupport.parkNanos(100_000_000L); // Rows are written by blocks anyway
+			}
+			writer.close();
+		} catch (IOException e) {
+			System.err.println("Cannot record measures: "+e.getMessage());
+		} finally {
+			if (exporter != null) {
+				exporter.close();
+			}
+		}
+	}
+	
+	/**
+	 * Stream measures to viewers, until {@code nvidia-smi} ends.
+	 * @param address Where to listen to viewers: {@code [<host>:]<port>}.
+	 */
+	static private void serve(Properties prop, List<String> queries, int loopMs, String address) {
+		InetSocketAddress addr = address(address, true);
+		if (addr == null) {
+			return;
+		}
+		List<Integer> gpus = listGpus(prop);
+		SampleSource source;
+		try {
+			source = source(prop, queries, loopMs);
+		} catch (IOException e) {
+			error(null, "Cannot start process: "+e.getMessage(), "Starting nvidia-smi");
+			return;
+		}
+		
+		int backlog = NVMeasure.parseInt(prop, "stream.backlog", 60) * 1000 / loopMs * gpus.size(); // Seconds of rows
+		try (StreamServer server = new StreamServer(queries, gpus, addr, backlog)) {
+			SampleQueue queue = new SampleQueue(1 << 14, queries.size()); // Drained every 10ms
+			MetricsExporter exporter = exporter(prop, queries);
+			Thread reader = new Thread(() -> read(source, queue, () -> exporter), "nvidia-smi reader");
+			reader.start();
+			try {
+				server.serve(queue, reader::isAlive);
+			} finally {
+				if (exporter != null) {
+					exporter.close();
+				}
+			}
+		} catch (IOException e) {
+			error(null, "Cannot stream measures on "+address+": "+e.getMessage(), "Streaming measures");
+		}
+	}
+	
+	/**
+	 * Graph measures streamed by collectors: the graphs of each collector are shown once connected, in a tab per
+	 * collector if there are several.
+	 * @param collectors The collectors: {@code <host>:<port>[,<host>:<port>...]}.
+	 */
+	static private void connect(Properties prop, String collectors) {
+		List<String> names = new ArrayList<>();
+		StreamClient client;
+		try {
+			JTabbedPane tabs = new JTabbedPane();
+			JFrame f = frame(new JLabel("Connecting to "+collectors+"...", SwingConstants.CENTER));
+			client = new StreamClient((collector, columns, gpus) -> {
+				SampleQueue queue = new SampleQueue(1 << 14, columns.size()); // Rows received until graphs are shown
+				SwingUtilities.invokeLater(() -> {
+					NVMeasure measurePanel = new NVMeasure(prop, gpus);
+					measurePanel.setQueries(columns);
+					measurePanel.start(queue);
+					if (names.size() == 1) {
+						f.getContentPane().removeAll();
+						f.getContentPane().add(measurePanel, BorderLayout.CENTER);
 					} else {
-						try {
-							v = Float.valueOf(values[i]);
-						} catch (NumberFormatException e) { // Invalid query (doesn't give a Float)
-							System.err.println("Cannot parse query "+queries.get(i)+"="+values[i]+": "+e.getMessage());
-							v = Float.NaN;
+						int i = 0; // Tabs in the order of collectors
+						while (i < tabs.getTabCount() && names.indexOf(tabs.getTitleAt(i)) < names.indexOf(collector)) {
+							i++;
+						}
+						tabs.insertTab(collector, null, measurePanel, null, i);
+						if (tabs.getParent() == null) {
+							f.getContentPane().removeAll();
+							f.getContentPane().add(tabs, BorderLayout.CENTER);
 						}
 					}
-					measures.put(queries.get(i), v);
+					f.getContentPane().revalidate();
+					f.repaint();
+				});
+				return queue;
+			});
+			for (String c : collectors.split(",")) {
+				InetSocketAddress addr = address(c.trim(), false);
+				if (addr == null) {
+					return;
 				}
-				
-//				System.out.println(ts - System.currentTimeMillis()+": "+measures);
-				
-				measurePanel.pushMeasures(ts, measures);
+				client.add(addr.getHostString(), addr.getPort());
+				names.add(addr.getHostString()+":"+addr.getPort());
+			}
+			f.setTitle(collectors);
+			f.setVisible(true);
+		} catch (IOException e) {
+			error(null, "Cannot connect to "+collectors+": "+e.getMessage(), "Connecting to collectors");
+			return;
+		}
+		client.start();
+	}
+	
+	/**
+	 * Graph aggregates of the measures of many nodes (see {@link FleetAggregator}).
+	 * @param queries The configured queries: those of the form {@code <aggregate>(<query>)} are graphed.
+	 * @param file The nodes, one per line: {@code <host>:<port>} for a collector (see {@link #serve(Properties, List, int, String)}),
+	 * 		{@code exec <command>} for a local command taking the same arguments as {@code nvidia-smi},
+	 * 		{@code replay <file|dir>} for a recording replayed in real time, or {@code sim <gpus>} for a simulated node.
+	 */
+	static private void fleet(Properties prop, List<String> queries, int loopMs, Path file) {
+		List<String> nodes;
+		try {
+			nodes = Files.readAllLines(file);
+		} catch (IOException e) {
+			error(null, "Cannot read fleet "+file+": "+e.getMessage(), "Reading fleet");
+			return;
+		}
+		FleetAggregator fleet = new FleetAggregator(queries, NVMeasure.parseInt(prop, "fleet.stale", 5) * 1000L);
+		List<String> nodeQueries = fleet.queries();
+		StreamClient client = null;
+		int seed = 0;
+		for (String node : nodes) {
+			node = node.trim();
+			if (node.isEmpty() || node.startsWith("#")) {
+				continue;
+			}
+			String[] kindArg = node.split("\\s+", 2);
+			try {
+				if (kindArg.length == 1) { // <host>:<port>
+					InetSocketAddress addr = address(node, false);
+					if (addr == null) {
+						continue;
+					}
+					if (client == null) {
+						client = new StreamClient(fleet.listener());
+					}
+					client.add(addr.getHostString(), addr.getPort());
+				} else if ("exec".equals(kindArg[0])) {
+					fleet.add(node, command(kindArg[1], nodeQueries, loopMs), nodeQueries);
+				} else if ("replay".equals(kindArg[0])) {
+					Replay replay = new Replay(Paths.get(kindArg[1]), 1, Long.MIN_VALUE);
+					fleet.add(node, replay, replay.columns());
+				} else if ("sim".equals(kindArg[0])) {
+					FakeSmi sim = new FakeSmi(nodeQueries, Integer.parseInt(kindArg[1]), loopMs).seed(seed++);
+					fleet.add(node+" #"+seed, new SmiSource(sim.stream(), nodeQueries), nodeQueries);
+				} else {
+					System.err.println("Unknown fleet node '"+node+"': should be <host>:<port>, exec <command>, replay <file|dir> or sim <gpus>");
+				}
+			} catch (IOException | NumberFormatException e) {
+				System.err.println("Cannot add fleet node '"+node+"': "+e.getMessage());
+			}
+		}
+		if (client != null) {
+			client.start();
+		}
+		
+		NVMeasure measurePanel = new NVMeasure(prop, Arrays.asList(0));
+		JFrame f = frame(measurePanel);
+		f.setTitle(file.getFileName().toString());
+		f.setVisible(true);
+		
+		SampleQueue queue = new SampleQueue(1024, fleet.columns().size());
+		measurePanel.setQueries(fleet.columns());
+		measurePanel.start(queue);
+		fleet.start(queue, loopMs);
+	}
+	
+	/**
+	 * @param key A {@code .query} or {@code .expr} property.
+	 * @return The query, or the queries used by the expression (none if malformed, reported when creating graphs).
+	 */
+	static private Stream<String> exprQueries(Properties prop, String key) {
+		String value = prop.getProperty(key);
+		if (!key.endsWith(".expr")) {
+			return Stream.of(value);
+		}
+		try {
+			return new Expression(value.trim()).queries().stream();
+		} catch (IllegalArgumentException e) {
+			return Stream.empty();
+		}
+	}
+	
+	/**
+	 * Parse {@code [<host>:]<port>}.
+	 * @param listen Whether it is an address to listen to: the host is then optional (all addresses), and resolved.
+	 * 		Otherwise it is resolved on each connection.
+	 * @return The address, {@code null} if malformed (reported).
+	 */
+	static private InetSocketAddress address(String address, boolean listen) {
+		int colon = address.lastIndexOf(':');
+		String host = (colon < 0 ? "" : address.substring(0, colon));
+		try {
+			int port = Integer.parseInt(address.substring(colon + 1));
+			if (host.isEmpty()) {
+				if (!listen) {
+					throw new IllegalArgumentException("missing host");
+				}
+				return new InetSocketAddress(port);
+			}
+			return (listen ? new InetSocketAddress(host, port) : InetSocketAddress.createUnresolved(host, port));
+		} catch (IllegalArgumentException e) { // Including NumberFormatException
+			error(null, "Malformed address '"+address+"': "+e.getMessage(), "Parsing address");
+			return null;
+		}
+	}
+	
+	/**
+	 * Start serving the last measures to Prometheus if {@code metrics.port} is set (see {@link MetricsExporter}).
+	 * @return The exporter, {@code null} if not configured or it cannot be started.
+	 */
+	static private MetricsExporter exporter(Properties prop, List<String> queries) {
+		int port = NVMeasure.parseInt(prop, "metrics.port", 0);
+		if (port <= 0) {
+			return null;
+		}
+		String address = prop.getProperty("metrics.address", "").trim();
+		try {
+			return new MetricsExporter(queries, address.isEmpty() ? new InetSocketAddress(port) : new InetSocketAddress(address, port));
+		} catch (IOException e) {
+			error(null, "Cannot serve metrics on port "+port+": "+e.getMessage(), "Starting metrics export");
+			return null;
+		}
+	}
+	
+	/**
+	 * Read measures until the source ends, publishing them in {@code queue}.
+	 * @param exporter Where the last measures are served from, giving {@code null} if not.
+	 */
+	static private void read(SampleSource source, SampleQueue queue, Supplier<MetricsExporter> exporter) {
+		try (source) {
+			for (;;) {
+				Sample sample;
+				while ((sample = queue.claim()) == null) { // Graphs are late: wait for them
+					LockSupport.parkNanos(1_000_000);
+				}
+				if (!source.next(sample)) {
+					break;
+				}
+				MetricsExporter exp = exporter.get();
+				if (exp != null) {
+					exp.update(sample);
+				}
+				queue.publish();
 			}
 			// Oops, process ended... Do not close window
-		} catch (IOException e) { // Cannot start process => dispose JFrame and exit
-			f.dispose();
-			JOptionPane.showMessageDialog(null, "Cannot start process: "+e.getMessage(), "Starting nvidia-smi", JOptionPane.ERROR_MESSAGE);
+		} catch (IOException e) {
+			System.err.println("Cannot read measures: "+e.getMessage());
+		}
+	}
+	
+	
+	
+	/**
+	 * The live graphs of local measures, and what feeds them, reconfigured when the configuration file changes.
+	 */
+	static private class Dashboard {
+		
+		private Properties prop;
+		/** The queries of the source, and the time between two measures (ms). */
+		private List<String> queries;
+		private int loopMs;
+		private List<Integer> gpus;
+		private JFrame frame;
+		private NVMeasure panel;
+		private SampleSource source;
+		private SampleQueue queue;
+		private History history;
+		/** The metrics export of the running reader, replaced with it, or alone when only {@code metrics.*} change. */
+		private AtomicReference<MetricsExporter> exporter = new AtomicReference<>();
+		
+		private void startReader() {
+			SampleSource source = this.source;
+			SampleQueue queue = this.queue;
+			AtomicReference<MetricsExporter> exporter = this.exporter;
+			new Thread(() -> read(source, queue, exporter::get), "nvidia-smi reader").start();
+		}
+		
+		/** Stop serving metrics, before serving them again (maybe on the same port). */
+		private void closeExporter() {
+			MetricsExporter exp = exporter.get();
+			if (exp != null) {
+				exp.close();
+			}
+		}
+		
+		/**
+		 * Apply a new configuration: graphs are replaced, only those whose configuration changed being created
+		 * again (see {@link NVMeasure#NVMeasure(Properties, List, Supplier, NVMeasure)}). The source is only
+		 * restarted (with the history and metrics export) when its queries, refresh period or configuration
+		 * ({@code source.*}) changed, the new one being started before the previous one is stopped. Otherwise, the
+		 * history and metrics export are only replaced when their own configuration ({@code history.*},
+		 * {@code metrics.*}) changed.
+		 */
+		synchronized private void reload(Properties newProp) {
+			List<String> newQueries = queries(newProp);
+			int newLoopMs = Math.max(1, NVMeasure.parseInt(newProp, "graph.refresh", 1000));
+			boolean restart = !newQueries.equals(queries) || newLoopMs != loopMs || !properties(newProp, "source.").equals(properties(prop, "source."));
+			boolean newHist = !properties(newProp, "history.").equals(properties(prop, "history."));
+			boolean newMetrics = !properties(newProp, "metrics.").equals(properties(prop, "metrics."));
+			System.err.println("Configuration changed, "+(restart ? "restarting measures source"
+					: "keeping measures source"+(newHist ? ", reopening history" : "")+(newMetrics ? ", restarting metrics export" : "")));
+			
+			NVMeasure[] next = new NVMeasure[1];
+			try {
+				SwingUtilities.invokeAndWait(() -> next[0] = new NVMeasure(newProp, gpus, null, panel));
+			} catch (InvocationTargetException e) { // E.g. malformed color
+				error(frame, "Cannot apply configuration, keeping the current one: "+e.getCause(), "Reloading configuration");
+				return;
+			} catch (InterruptedException e) {
+				return;
+			}
+			
+			SampleQueue newQueue = queue;
+			History newHistory = history;
+			if (restart) {
+				SampleSource newSource;
+				try {
+					newSource = source(newProp, newQueries, newLoopMs);
+				} catch (IOException e) {
+					error(frame, "Cannot start process, keeping the current one: "+e.getMessage(), "Starting nvidia-smi");
+					return;
+				}
+				try {
+					source.close(); // Its reader ends
+				} catch (IOException e) {
+					System.err.println("Cannot stop measures source: "+e.getMessage());
+				}
+				closeExporter(); // Before serving the new queries on the same port
+				source = newSource;
+				newQueue = new SampleQueue(1024, newQueries.size());
+				newHistory = (newQueries.equals(queries) && !newHist ? history : history(newProp, newQueries)); // The previous one is closed by the hand over
+				exporter = new AtomicReference<>(exporter(newProp, newQueries));
+				queue = newQueue;
+				startReader();
+			} else {
+				if (newHist) {
+					newHistory = history(newProp, queries); // The previous one is closed by the hand over
+				}
+				if (newMetrics) { // Served from the next measure read
+					closeExporter();
+					exporter.set(exporter(newProp, queries));
+				}
+			}
+			next[0].setQueries(newQueries);
+			next[0].setHistory(newHistory);
+			panel.handOver(next[0], newQueue);
+			NVMeasure previous = panel;
+			SwingUtilities.invokeLater(() -> {
+				frame.getContentPane().remove(previous);
+				frame.getContentPane().add(next[0], BorderLayout.CENTER);
+				frame.revalidate();
+				frame.repaint();
+			});
+			panel = next[0];
+			prop = newProp;
+			queries = newQueries;
+			loopMs = newLoopMs;
+			history = newHistory;
+		}
+		
+		/** @return The properties of {@code prop} starting with {@code prefix}. */
+		static private Properties properties(Properties prop, String prefix) {
+			Properties p = new Properties();
+			for (String k : prop.stringPropertyNames()) {
+				if (k.startsWith(prefix)) {
+					p.setProperty(k, prop.getProperty(k));
+				}
+			}
+			return p;
 		}
+		
 	}
 	
 }
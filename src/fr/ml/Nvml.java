@@ -0,0 +1,59 @@
+package fr.ml;
+
+/**
+ * The NVML ({@code libnvidia-ml}) functions read by {@link NvmlSource}, one method per C function (without its
+ * {@code nvml} prefix and version suffix). Values are written to the given arrays, which must be large enough.
+ * <p>
+ * Implementations are the native binding ({@link FfmNvml}), or mocks to test without GPU.
+ * Methods return NVML return codes, {@link #SUCCESS} if the value was read.
+ */
+public interface Nvml {
+	
+	/** Return codes: success, the value not being supported by the GPU, and an unknown error. */
+	int SUCCESS = 0, ERROR_NOT_SUPPORTED = 3, ERROR_UNKNOWN = 999;
+	/** {@code nvmlTemperatureSensors_t} of the GPU die. */
+	int TEMPERATURE_GPU = 0;
+	/** {@code nvmlClockType_t} values. */
+	int CLOCK_GRAPHICS = 0, CLOCK_SM = 1, CLOCK_MEM = 2, CLOCK_VIDEO = 3;
+	
+	int init();
+	
+	int shutdown();
+	
+	/** @param count The number of GPUs. */
+	int deviceGetCount(int[] count);
+	
+	/** @param device The GPU handle, to give to other functions. */
+	int deviceGetHandleByIndex(int index, long[] device);
+	
+	/** @param utilization GPU and memory utilization, %. */
+	int deviceGetUtilizationRates(long device, int[] utilization);
+	
+	/** @param memory Total, free and used memory, bytes. */
+	int deviceGetMemoryInfo(long device, long[] memory);
+	
+	/** @param temperature The temperature of {@code sensor}, &deg;C. */
+	int deviceGetTemperature(long device, int sensor, int[] temperature);
+	
+	/** @param power Power draw, mW. */
+	int deviceGetPowerUsage(long device, int[] power);
+	
+	/** @param limit Power management limit, mW. */
+	int deviceGetPowerManagementLimit(long device, int[] limit);
+	
+	/** @param limit Power limit enforced (the lowest of all limits), mW. */
+	int deviceGetEnforcedPowerLimit(long device, int[] limit);
+	
+	/** @param speed Fan speed, %. */
+	int deviceGetFanSpeed(long device, int[] speed);
+	
+	/** @param clock Current clock of {@code type}, MHz. */
+	int deviceGetClockInfo(long device, int type, int[] clock);
+	
+	/** @param clock Maximum clock of {@code type}, MHz. */
+	int deviceGetMaxClockInfo(long device, int type, int[] clock);
+	
+	/** @param pState Performance state, from {@code 0} (maximum) to {@code 15} (minimum). */
+	int deviceGetPerformanceState(long device, int[] pState);
+	
+}
@@ -0,0 +1,276 @@
+package fr.ml;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures rows read from NVML, without going through {@code nvidia-smi} output: values are read to rows as numbers,
+ * in the units {@code nvidia-smi} gives them (e.g. MiB, W).
+ * <p>
+ * Each NVML function is called once per GPU row, whatever the number of queries it gives (e.g.
+ * {@code memory.used} and {@code memory.total}), and rows of all GPUs are read every {@code loopMs} without drift:
+ * polling every few milliseconds only costs the NVML calls.
+ * <p>
+ * Queries that NVML does not give (see {@link #supported(String)}) are missing values ({@code NaN}), so are
+ * values not supported by a GPU. Both, and NVML errors, are reported on {@code System.err}, once per query.
+ */
+public class NvmlSource implements SampleSource {
+	
+	/** NVML functions. */
+	static private final int UTILIZATION = 0, MEMORY = 1, TEMPERATURE = 2, POWER = 3, POWER_LIMIT = 4, ENFORCED_LIMIT = 5,
+			FAN = 6, CLOCK = 7, MAX_CLOCK = 8, PSTATE = 9;
+	/** Pseudo-functions of queries not read through NVML. */
+	static private final int TIMESTAMP = -1, INDEX = -2, UNSUPPORTED = -3;
+	
+	/** Supported queries, as {@code nvidia-smi} names them. */
+	static private final Map<String,Query> QUERIES = new HashMap<>();
+	static {
+		query(UTILIZATION, 0, 0, 1, "utilization.gpu");
+		query(UTILIZATION, 0, 1, 1, "utilization.memory");
+		query(MEMORY, 0, 0, 1 << 20, "memory.total");
+		query(MEMORY, 0, 1, 1 << 20, "memory.free");
+		query(MEMORY, 0, 2, 1 << 20, "memory.used");
+		query(TEMPERATURE, Nvml.TEMPERATURE_GPU, 0, 1, "temperature.gpu");
+		query(POWER, 0, 0, 1000, "power.draw");
+		query(POWER_LIMIT, 0, 0, 1000, "power.limit");
+		query(ENFORCED_LIMIT, 0, 0, 1000, "enforced.power.limit");
+		query(FAN, 0, 0, 1, "fan.speed");
+		query(CLOCK, Nvml.CLOCK_GRAPHICS, 0, 1, "clocks.current.graphics", "clocks.gr");
+		query(CLOCK, Nvml.CLOCK_SM, 0, 1, "clocks.current.sm", "clocks.sm");
+		query(CLOCK, Nvml.CLOCK_MEM, 0, 1, "clocks.current.memory", "clocks.mem");
+		query(CLOCK, Nvml.CLOCK_VIDEO, 0, 1, "clocks.current.video", "clocks.video");
+		query(MAX_CLOCK, Nvml.CLOCK_GRAPHICS, 0, 1, "clocks.max.graphics", "clocks.max.gr");
+		query(MAX_CLOCK, Nvml.CLOCK_SM, 0, 1, "clocks.max.sm");
+		query(MAX_CLOCK, Nvml.CLOCK_MEM, 0, 1, "clocks.max.memory", "clocks.max.mem");
+		query(PSTATE, 0, 0, 1, "pstate");
+	}
+	
+	static private void query(int function, int arg, int out, float divisor, String ... names) {
+		for (String name : names) {
+			QUERIES.put(name, new Query(function, arg, out, divisor));
+		}
+	}
+	
+	/** @return Whether {@code query} is read through NVML (or is {@code timestamp} or {@code index}). */
+	static public boolean supported(String query) {
+		return QUERIES.containsKey(query) || "timestamp".equals(query) || "index".equals(query);
+	}
+	
+	private final Nvml nvml;
+	private final List<String> queries;
+	/** Time between two rows of all GPUs, ns. {@code 0} for a single row of all GPUs. */
+	private long loopNs;
+	/** GPUs handles. */
+	private final long[] devices;
+	/** Query of each value, and the call giving it ({@code -1} if none). */
+	private final Query[] reads;
+	private final int[] callOf;
+	/** The distinct (function, argument) calls needed for a row, and their return code and values (reused). */
+	private final int[] functions, args;
+	private final int[] rcs;
+	private final long[][] outs;
+	private final int[] ints = new int[2];
+	/** Invalid queries are only reported once. */
+	private final boolean[] warned;
+	
+	/** GPU of the next row, time of the current rows of all GPUs (ms and ns), and of the next ones (ns). */
+	private int gpu;
+	private long t, round, next;
+	private boolean started;
+	private volatile boolean closed;
+	
+	/**
+	 * Initialize NVML and list the GPUs.
+	 * @param nvml The NVML binding (e.g. {@link FfmNvml}, or a mock).
+	 * @param queries The queries, in the order of their values.
+	 * @param loopMs The time between two rows of all GPUs, ms. {@code 0} for a single row of all GPUs.
+	 * @throws IOException If NVML cannot be initialized or GPUs cannot be listed.
+	 */
+	public NvmlSource(Nvml nvml, List<String> queries, int loopMs) throws IOException {
+		this.nvml = nvml;
+		this.queries = queries;
+		loopNs = loopMs * 1_000_000L;
+		check(nvml.init(), "initialize");
+		int[] count = new int[1];
+		check(nvml.deviceGetCount(count), "count GPUs");
+		devices = new long[count[0]];
+		long[] device = new long[1];
+		for (int i = 0; i < devices.length; i++) {
+			check(nvml.deviceGetHandleByIndex(i, device), "get GPU "+i);
+			devices[i] = device[0];
+		}
+		
+		int n = queries.size();
+		reads = new Query[n];
+		callOf = new int[n];
+		warned = new boolean[n];
+		List<Long> calls = new ArrayList<>(); // (function, argument)
+		for (int i = 0; i < n; i++) {
+			String q = queries.get(i);
+			Query read = ("timestamp".equals(q) ? new Query(TIMESTAMP, 0, 0, 1) : "index".equals(q) ? new Query(INDEX, 0, 0, 1)
+					: QUERIES.getOrDefault(q, new Query(UNSUPPORTED, 0, 0, 1)));
+			if (read.function == UNSUPPORTED) {
+				System.err.println("Query "+q+" is not read through NVML, graphing it as missing values");
+				warned[i] = true;
+			}
+			callOf[i] = -1;
+			if (read.function >= 0) {
+				long call = ((long)read.function << 32) | read.arg;
+				if (!calls.contains(call)) {
+					calls.add(call);
+				}
+				callOf[i] = calls.indexOf(call);
+			}
+			reads[i] = read;
+		}
+		functions = new int[calls.size()];
+		args = new int[calls.size()];
+		for (int c = 0; c < functions.length; c++) {
+			functions[c] = (int)(calls.get(c) >>> 32);
+			args[c] = (int)(long)calls.get(c);
+		}
+		rcs = new int[functions.length];
+		outs = new long[functions.length][3];
+	}
+	
+	private void check(int rc, String what) throws IOException {
+		if (rc != Nvml.SUCCESS) {
+			nvml.shutdown();
+			throw new IOException("Cannot "+what+" through NVML (error "+rc+")");
+		}
+	}
+	
+	/** @return The number of GPUs. */
+	public int gpus() {
+		return devices.length;
+	}
+	
+	@Override
+	public boolean next(Sample s) throws IOException {
+		if (closed) {
+			return false;
+		}
+		if (gpu == devices.length || !started) { // Rows of all GPUs
+			if (started && loopNs <= 0) {
+				return false;
+			}
+			long now = System.nanoTime();
+			if (!started) {
+				next = now;
+			}
+			for (long wait; (wait = next - now) > 0 && !closed; now = System.nanoTime()) {
+				LockSupport.parkNanos(wait);
+			}
+			round = (now - next > loopNs ? now : next); // Catch up, but not with a burst after a pause
+			next = round + loopNs;
+			started = true;
+			gpu = 0;
+			t = System.currentTimeMillis();
+		}
+		if (devices.length == 0) {
+			return false;
+		}
+		read(gpu++, s);
+		s.t = t;
+		return true;
+	}
+	
+	/** The next rows are read {@code periodMs} after the current ones (or now), without waiting for the previous period. */
+	@Override
+	public boolean period(int periodMs) {
+		if (loopNs <= 0 || periodMs <= 0) {
+			return false;
+		}
+		loopNs = periodMs * 1_000_000L;
+		next = round + loopNs;
+		return true;
+	}
+	
+	/**
+	 * Read the measures of a GPU now.
+	 * @param gpu The GPU index.
+	 * @param s Where to read the measures, with as many values as queries. Its timestamp is left unchanged.
+	 */
+	public void read(int gpu, Sample s) {
+		long device = devices[gpu];
+		for (int c = 0; c < functions.length; c++) {
+			rcs[c] = call(functions[c], args[c], device, outs[c]);
+		}
+		float[] values = s.values;
+		for (int i = 0; i < reads.length; i++) {
+			Query read = reads[i];
+			switch (read.function) {
+				case INDEX: values[i] = gpu; break;
+				case TIMESTAMP: case UNSUPPORTED: values[i] = Float.NaN; break;
+				default: {
+					int rc = rcs[callOf[i]];
+					if (rc == Nvml.SUCCESS) {
+						values[i] = outs[callOf[i]][read.out] / read.divisor;
+						break;
+					}
+					values[i] = Float.NaN;
+					if (rc != Nvml.ERROR_NOT_SUPPORTED && !warned[i]) { // Not supported by a GPU is "N/A", silently
+						System.err.println("Cannot read query "+queries.get(i)+" through NVML (error "+rc+"), graphing it as missing values");
+						warned[i] = true;
+					}
+				}
+			}
+		}
+	}
+	
+	/** Call an NVML function of {@code device}, with argument {@code arg} if it takes one, its values read to {@code out}. */
+	private int call(int function, int arg, long device, long[] out) {
+		int rc;
+		switch (function) {
+			case UTILIZATION:
+				rc = nvml.deviceGetUtilizationRates(device, ints);
+				out[0] = Integer.toUnsignedLong(ints[0]);
+				out[1] = Integer.toUnsignedLong(ints[1]);
+				return rc;
+			case MEMORY: return nvml.deviceGetMemoryInfo(device, out);
+			case TEMPERATURE: rc = nvml.deviceGetTemperature(device, arg, ints); break;
+			case POWER: rc = nvml.deviceGetPowerUsage(device, ints); break;
+			case POWER_LIMIT: rc = nvml.deviceGetPowerManagementLimit(device, ints); break;
+			case ENFORCED_LIMIT: rc = nvml.deviceGetEnforcedPowerLimit(device, ints); break;
+			case FAN: rc = nvml.deviceGetFanSpeed(device, ints); break;
+			case CLOCK: rc = nvml.deviceGetClockInfo(device, arg, ints); break;
+			case MAX_CLOCK: rc = nvml.deviceGetMaxClockInfo(device, arg, ints); break;
+			default: rc = nvml.deviceGetPerformanceState(device, ints); break;
+		}
+		out[0] = Integer.toUnsignedLong(ints[0]);
+		return rc;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			nvml.shutdown();
+		}
+	}
+	
+	
+	
+	/**
+	 * How a query is read: the NVML function called, with an argument (e.g. clock type), the index of its value
+	 * among those given and what to divide it by to get {@code nvidia-smi} units.
+	 */
+	static private class Query {
+		
+		private final int function, arg, out;
+		private final float divisor;
+		
+		private Query(int function, int arg, int out, float divisor) {
+			this.function = function;
+			this.arg = arg;
+			this.out = out;
+			this.divisor = divisor;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,375 @@
+package fr.ml;
+
+import java.awt.BasicStroke;
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Stroke;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.function.Supplier;
+
+import javax.swing.JPanel;
+
+/**
+ * Distribution of series values over the last {@code duration}: a histogram of the fraction of measures in each
+ * bin, the cumulative fraction (e.g. how much of the time a GPU was under 50%), and the p50/p95/p99 lines.
+ * <p>
+ * Several series can be counted in the same distribution (e.g. the same query of several GPUs). Measures are not
+ * kept: each distribution counts them in a {@link QuantileSketch} and a {@link Histogram} per sub-window (a twelfth
+ * of the duration), in constant time. Snapshots merge the sub-windows within the duration, which slides by
+ * sub-windows.
+ */
+public class PanelDistribution extends JPanel implements MeasuresGraph {
+	
+	private static final long serialVersionUID = 1L;
+	
+	/** Number of sub-windows the duration is divided into. */
+	static private final int WINDOWS = 12;
+	/** Relative error of quantiles. */
+	static private final double ACCURACY = 0.01;
+	/** Quantiles painted, and their names. */
+	static private final double[] QUANTILES = { 0.50, 0.95, 0.99 };
+	static private final String[] QUANTILE_NAMES = { "p50", "p95", "p99" };
+	
+	static private final Stroke dashedStroke = new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL, 0.0f, new float[]{2.5f, 5.0f}, 0.0f);
+	/** Empty space around the graph area, to draw axis and text. */
+	static private final int marginX = 80, marginY = 50;
+	/** Default distributions colors, cycled through. */
+	static private final Color[] palette = { Color.BLUE, Color.RED, new Color(0, 160, 0), Color.ORANGE };
+	
+	private String title;
+	/** Graph background and ticks colors. */
+	private Color bckColor = Color.WHITE, ticksColor = Color.LIGHT_GRAY;
+	/** Number of major ticks on the Y axis. */
+	private int nTicksY = 5;
+	
+	/** Distributions names, units and colors. */
+	private final String[] names, units;
+	private final Color[] colors;
+	/** Distribution of each series. */
+	private final int[] dist;
+	
+	/** Duration of a sub-window, ms. */
+	private final int window;
+	/** Sketch and histogram of each distribution (first index) and sub-window (second index, a ring). */
+	private final QuantileSketch[][] sketches;
+	private final Histogram[][] histograms;
+	/** Sub-window number ({@code t / window}) counted in each slot of the ring, {@code Long.MIN_VALUE} if none. */
+	private final long[] windows = new long[WINDOWS];
+	
+	/** Distributions to paint. */
+	private volatile Snapshot snapshot;
+	/** Whether measures were added since {@link #snapshot} was taken. */
+	private volatile boolean dirty = true;
+	/** Whether painting takes a snapshot when needed (see {@link #autoSnapshot(boolean)}). */
+	private boolean autoSnapshot = true;
+	/** Texts bounds and colors kept from one frame to the next. Only used when painting. */
+	private final RenderCache cache = new RenderCache();
+	
+	/** Clock to give current time. */
+	private final Supplier<Long> clock;
+	
+	/**
+	 * @param clock The clock giving the current time, {@code null} for the system clock.
+	 * @param names The name of each distribution.
+	 * @param dist The distribution (index in {@code names}) of each series.
+	 */
+	public PanelDistribution(Supplier<Long> clock, String title, int duration_s, String[] names, int[] dist) {
+		super(new BorderLayout());
+		this.clock = (clock == null ? System::currentTimeMillis : clock);
+		this.title = title;
+		this.names = names.clone();
+		this.dist = dist.clone();
+		window = Math.max(1, duration_s * 1000 / WINDOWS);
+		units = new String[names.length];
+		colors = new Color[names.length];
+		sketches = new QuantileSketch[names.length][WINDOWS];
+		histograms = new Histogram[names.length][WINDOWS];
+		for (int d = 0; d < names.length; d++) {
+			units[d] = "";
+			colors[d] = palette[d % palette.length];
+			for (int w = 0; w < WINDOWS; w++) {
+				sketches[d][w] = new QuantileSketch(ACCURACY);
+			}
+		}
+		Arrays.fill(windows, Long.MIN_VALUE);
+		for (int d = 0; d < names.length; d++) {
+			range(d, 0, 100, 20);
+		}
+		setBackground(Color.LIGHT_GRAY);
+	}
+	
+	public PanelDistribution background(Color bckColor) {
+		this.bckColor = bckColor;
+		return this;
+	}
+	
+	public PanelDistribution ticksColor(Color c) {
+		this.ticksColor = c;
+		return this;
+	}
+	
+	public PanelDistribution yTicks(int nMajor) {
+		this.nTicksY = nMajor;
+		return this;
+	}
+	
+	public PanelDistribution unit(int iDist, String unit) {
+		units[iDist] = unit;
+		dirty = true;
+		return this;
+	}
+	
+	public PanelDistribution color(int iDist, Color c) {
+		colors[iDist] = c;
+		return this;
+	}
+	
+	/**
+	 * Set the histogram bins of a distribution, forgetting its measures. Quantiles are not bound to that range.
+	 * @param bins The number of bins between {@code min} and {@code max}.
+	 */
+	synchronized public PanelDistribution range(int iDist, float min, float max, int bins) {
+		if (!(max > min)) {
+			throw new IllegalArgumentException("Histogram max ("+max+") should be greater than min ("+min+")");
+		}
+		for (int w = 0; w < WINDOWS; w++) {
+			histograms[iDist][w] = new Histogram(min, max, bins);
+			sketches[iDist][w].clear();
+		}
+		dirty = true;
+		return this;
+	}
+	
+	@Override
+	public PanelDistribution autoSnapshot(boolean auto) {
+		this.autoSnapshot = auto;
+		return this;
+	}
+	
+	/** Count a measure of each series in the distributions, in constant time. */
+	@Override
+	synchronized public void addValues(long t, float ... vals) throws IllegalArgumentException {
+		if (vals.length != dist.length) {
+			throw new IllegalArgumentException("Number of given data ("+vals.length+") inconsistent with expected number ("+dist.length+")");
+		}
+		long w = Math.floorDiv(t, window);
+		int slot = Math.floorMod(w, WINDOWS);
+		if (windows[slot] != w) {
+			if (windows[slot] > w) { // Older than the ring
+				return;
+			}
+			for (int d = 0; d < names.length; d++) { // Start the sub-window over
+				sketches[d][slot].clear();
+				histograms[d][slot].clear();
+			}
+			windows[slot] = w;
+		}
+		for (int i = 0; i < vals.length; i++) {
+			sketches[dist[i]][slot].add(vals[i]);
+			histograms[dist[i]][slot].add(vals[i]);
+		}
+		dirty = true;
+	}
+	
+	/**
+	 * Merge the sub-windows of the duration into a new snapshot, if measures were added or the duration slid since
+	 * the last one. Meant to be called off the EDT, before {@code repaint()}.
+	 * @return Whether a new snapshot was taken.
+	 */
+	@Override
+	synchronized public boolean snapshot() {
+		long last = Math.floorDiv(clock.get(), window);
+		Snapshot s = snapshot;
+		if (!dirty && s != null && s.window == last) {
+			return false;
+		}
+		dirty = false;
+		snapshot = new Snapshot(last);
+		return true;
+	}
+	
+	@Override
+	public void paintComponent(Graphics g1) {
+		super.paintComponent(g1);
+		Graphics2D g = (Graphics2D)g1;
+		g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+		
+		int w = getWidth();
+		int h = getHeight();
+		int offX = marginX, offY = marginY;
+		int pw = w - 2*offX, ph = h - 2*offY;
+		
+		if (autoSnapshot) {
+			snapshot();
+		}
+		Snapshot s = snapshot;
+		Color txtColor = PanelTimeGraph.textColor(getBackground());
+		
+		// Title, and quantiles of each distribution under it
+		int yLegend = offY - 4;
+		for (int d = names.length - 1; d >= 0; d--) {
+			if (s != null) {
+				g.setColor(colors[d]);
+				g.drawString(s.legends[d], offX, yLegend);
+			}
+			yLegend -= cache.bounds(g, "0").height + 4;
+		}
+		if (title != null && !title.isBlank()) {
+			Font olf = g.getFont();
+			if (PanelTimeGraph.titleFont != null) {
+				g.setFont(PanelTimeGraph.titleFont);
+			}
+			g.setColor(txtColor);
+			Dimension d = cache.bounds(g, title);
+			g.drawString(title, (w - d.width) / 2, yLegend - 2);
+			g.setFont(olf);
+		}
+		if (pw <= 0 || ph <= 0) {
+			return;
+		}
+		
+		// Graph area and Y ticks
+		g.setColor(bckColor);
+		g.fillRect(offX, offY, pw, ph);
+		g.setColor(cache.alpha(ticksColor, 128));
+		for (int i = 1; i < nTicksY; i++) {
+			int y = offY + Math.round((float)i * ph / nTicksY);
+			g.drawLine(offX + 1, y, w - offX, y);
+		}
+		g.setColor(txtColor);
+		g.drawRect(offX, offY, pw, ph);
+		if (s == null) {
+			return;
+		}
+		
+		// Histogram scale: the highest bin fraction, rounded up to the next 5%
+		double top = 0;
+		for (int d = 0; d < names.length; d++) {
+			for (int i = 1; i <= s.histograms[d].bins(); i++) {
+				top = Math.max(top, s.fraction(d, i));
+			}
+		}
+		top = Math.max(0.05, Math.ceil(top * 20) / 20);
+		
+		Histogram x = s.histograms[0]; // X axis of the first distribution
+		for (int d = 0; d < names.length; d++) {
+			Histogram hd = s.histograms[d];
+			int bins = hd.bins();
+			// Bins, as fractions of measures
+			for (int i = 1; i <= bins; i++) {
+				int x0 = xOf(x, (hd.min * (bins - i + 1) + hd.max * (i - 1)) / bins, offX, pw);
+				int x1 = xOf(x, (hd.min * (bins - i) + hd.max * i) / bins, offX, pw);
+				int bh = (int)Math.round(s.fraction(d, i) / top * ph);
+				if (bh > 0 && x1 > x0) {
+					g.setColor(cache.alpha(colors[d], names.length > 1 ? 48 : 96));
+					g.fillRect(x0, offY + ph - bh, x1 - x0, bh);
+					g.setColor(cache.alpha(colors[d], 160));
+					g.drawRect(x0, offY + ph - bh, x1 - x0, bh);
+				}
+			}
+			// Cumulative fraction, from 0% at the bottom to 100% at the top
+			g.setColor(colors[d]);
+			double cumul = s.fraction(d, 0);
+			int px = xOf(x, hd.min, offX, pw), py = offY + ph - (int)Math.round(cumul * ph);
+			for (int i = 1; i <= bins; i++) {
+				cumul += s.fraction(d, i);
+				int nx = xOf(x, (hd.min * (bins - i) + hd.max * i) / bins, offX, pw);
+				int ny = offY + ph - (int)Math.round(cumul * ph);
+				g.drawLine(px, py, nx, ny);
+				px = nx;
+				py = ny;
+			}
+			// Quantiles lines
+			Stroke ols = g.getStroke();
+			g.setStroke(dashedStroke);
+			for (int q = 0; q < QUANTILES.length; q++) {
+				float v = s.quantiles[d][q];
+				if (Float.isNaN(v)) {
+					continue;
+				}
+				int qx = xOf(x, Math.max(x.min, Math.min(x.max, v)), offX, pw); // Beyond the axis: on its end
+				g.drawLine(qx, offY + 1, qx, offY + ph - 1);
+				Dimension dim = cache.bounds(g, QUANTILE_NAMES[q]);
+				g.drawString(QUANTILE_NAMES[q], qx - dim.width / 2, offY + ph + dim.height + 4 + d * (dim.height + 4));
+			}
+			g.setStroke(ols);
+		}
+		
+		// Axes labels: histogram fraction on the left, cumulative fraction on the right, values at the bottom
+		g.setColor(txtColor);
+		String s0 = cache.label(0, 0, "%"), sTop = cache.label(1, (float)(top * 100), "%"), s100 = cache.label(2, 100, "%");
+		g.drawString(s0, offX - cache.bounds(g, s0).width - 4, offY + ph);
+		g.drawString(sTop, offX - cache.bounds(g, sTop).width - 4, offY + cache.bounds(g, sTop).height);
+		g.drawString(s0, w - offX + 4, offY + ph);
+		g.drawString(s100, w - offX + 4, offY + cache.bounds(g, s100).height);
+		String sMin = cache.label(3, x.min, units[0]), sMax = cache.label(4, x.max, units[0]);
+		int dy = cache.bounds(g, sMin).height + 4;
+		g.drawString(sMin, offX - cache.bounds(g, sMin).width / 2, offY + ph + dy * (names.length + 1));
+		g.drawString(sMax, w - offX - cache.bounds(g, sMax).width / 2, offY + ph + dy * (names.length + 1));
+	}
+	
+	/** @return The x coordinate of value {@code v} on the X axis of histogram {@code x}. */
+	static private int xOf(Histogram x, float v, int offX, int pw) {
+		return offX + Math.round((v - x.min) / (x.max - x.min) * pw);
+	}
+	
+	
+	
+	/**
+	 * The distributions over the duration, as painted. Immutable, so painting reads it without locking while
+	 * measures are added.
+	 */
+	private final class Snapshot {
+		
+		/** The last sub-window merged. */
+		final long window;
+		/** Merged histogram and quantiles of each distribution. */
+		final Histogram[] histograms;
+		final float[][] quantiles;
+		/** Quantiles texts of each distribution. */
+		final String[] legends;
+		
+		/** Merge the sub-windows of the duration, up to sub-window {@code last}. */
+		private Snapshot(long last) {
+			window = last;
+			int n = names.length;
+			histograms = new Histogram[n];
+			quantiles = new float[n][QUANTILES.length];
+			legends = new String[n];
+			QuantileSketch merged = new QuantileSketch(ACCURACY);
+			for (int d = 0; d < n; d++) {
+				Histogram h0 = PanelDistribution.this.histograms[d][0];
+				histograms[d] = new Histogram(h0.min, h0.max, h0.bins());
+				merged.clear();
+				for (int w = 0; w < WINDOWS; w++) {
+					if (windows[w] > last - WINDOWS && windows[w] <= last) {
+						histograms[d].merge(PanelDistribution.this.histograms[d][w]);
+						merged.merge(sketches[d][w]);
+					}
+				}
+				StringBuilder sb = new StringBuilder(names[d]).append(':');
+				for (int q = 0; q < QUANTILES.length; q++) {
+					quantiles[d][q] = merged.quantile(QUANTILES[q]);
+					sb.append("  ").append(QUANTILE_NAMES[q]).append(' ');
+					float v = quantiles[d][q];
+					sb.append(Float.isNaN(v) ? "-" : String.format(Locale.ROOT, Math.abs(v) < 100 ? "%.1f" : "%.0f", v)).append(units[d]);
+				}
+				legends[d] = sb.append("  (").append(merged.count()).append(" measures)").toString();
+			}
+		}
+		
+		/** @return The fraction of measures of distribution {@code d} in bin {@code i} (see {@link Histogram#get(int)}). */
+		double fraction(int d, int i) {
+			long n = histograms[d].count();
+			return n == 0 ? 0 : (double)histograms[d].get(i) / n;
+		}
+		
+	}
+	
+}
@@ -1,5 +1,6 @@
 package fr.ml;
 
+import java.awt.AlphaComposite;
 import java.awt.BasicStroke;
 import java.awt.BorderLayout;
 import java.awt.Color;
@@ -7,22 +8,21 @@ import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.Stroke;
-import java.awt.font.TextLayout;
-import java.awt.geom.AffineTransform;
-import java.text.DateFormat;
+import java.awt.image.BufferedImage;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
+import java.util.List;
 import java.util.function.Supplier;
 
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 
 // TODO: Use baseline to adjust Y when drawing strings
 
-public class PanelTimeGraph extends JPanel {
+public class PanelTimeGraph extends JPanel implements MeasuresGraph {
 	
 	private static final long serialVersionUID = 1L;
 	
@@ -36,12 +36,26 @@ public class PanelTimeGraph extends JPanel {
 	
 	static private Stroke dashedStroke = new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL, 0.0f, new float[]{2.5f, 5.0f}, 0.0f);
 	static private Stroke plainStroke = new BasicStroke(1);
+	/** Color of time ticks lines. */
+	static private final Color tickLineColor = new Color(192, 192, 192, 255);
+	/** Outline of graphs while an alert fires. */
+	static private final Color alertColor = Color.RED;
+	static private final Stroke alertStroke = new BasicStroke(3);
 	
-	static Dimension strDim(Graphics2D g, String str) {
-		TextLayout tl = new TextLayout(str, g.getFont(), g.getFontRenderContext());
-		Rectangle r = tl.getBounds().getBounds();
-		return new Dimension(r.width, r.height);
-	}
+	/** Empty space around the graph area, to draw axis and text. */
+	static private final int marginX = 80, marginY = 50;
+	
+	/**
+	 * Measures resolutions (see {@link #rollup(boolean)}): bucket duration (ms, {@code 0} for raw measures) and time window
+	 * (ms) of each. Resolutions whose buckets are not longer than the time between two measures are skipped.
+	 */
+	static private final int[][] rollupTiers = { { 0, 300_000 }, { 1_000, 3_600_000 }, { 60_000, Integer.MAX_VALUE } };
+	/** With {@link #rollup(boolean)}, measures older than that (ms) are only displayed as min/max of each minute. */
+	static public final int MINUTE_ROLLUP_AGE = rollupTiers[1][1];
+	
+	/** Default series colors, cycled through. */
+	static private final Color[] palette = { Color.BLUE, Color.RED, new Color(0, 160, 0), Color.ORANGE, Color.MAGENTA,
+			new Color(0, 160, 160), new Color(128, 64, 0), Color.GRAY };
 	
 	
 	private String title;
@@ -60,10 +74,18 @@ public class PanelTimeGraph extends JPanel {
 	private String[] units;
 	/** Manual min/max. {@code Float.NaN} if unset. */
 	private float[] max, min;
-	/** Current min/max for each series. */
-	private float[] curMin, curMmax;
 	/** Series colors. */
-	private Color[] colors = new Color[] { Color.BLUE, Color.RED }; // Par défaut
+	private Color[] colors;
+	/** Whether the alert of each series fires, and the number of those firing. */
+	private boolean[] alerting;
+	private volatile int nAlerting;
+	
+	/** Y axis of each series: series with the same unit share an axis, on the left for even ones, right for odd ones. */
+	private int[] axis;
+	/** First series of each axis, giving its unit and labels color. */
+	private int[] axisFirst;
+	/** Min/max of each axis, for painting. */
+	private float[] frameMin = new float[0], frameMax = new float[0];
 	
 	/** Number of scale marks to divide the Y axis into. */
 	private int nTicksMajorY = 5, nTicksMinorY = 10;
@@ -71,12 +93,46 @@ public class PanelTimeGraph extends JPanel {
 	/** Show a mark along the X axis every {@code tMarksX} ms. */
 	private int tTicksX = 1000; // Every second
 	
-	/** Series values (Y axis). */
-	private float[][] values;
-	/** Timestamps (X axis). */
-	private long[] ts;
+	/** Expected time between two measures, ms. Used to size {@link #tiers}. */
+	private int refresh = 1000;
+	
+	/** Whether older measures are rolled up (see {@link #rollup(boolean)}). */
+	private boolean rollup = true;
+	/** Timestamps and series values: raw measures first, then rolled up in longer and longer buckets. */
+	private RollupTier[] tiers = new RollupTier[0];
 	
-	private int inext;
+	/** Decimated measures to paint. */
+	private volatile Snapshot snapshot;
+	/** Whether measures were added, modified or forgotten since {@link #snapshot} was taken. */
+	private volatile boolean dirty = true;
+	/** Number of modifications of already stored measures (which need everything to be redrawn). */
+	private long edits;
+	/** Whether painting takes a snapshot when needed (see {@link #autoSnapshot(boolean)}). */
+	private boolean autoSnapshot = true;
+	/** Texts, fonts and colors kept from one frame to the next. Only used when painting. */
+	private final RenderCache cache = new RenderCache();
+	/** Whether configuration changed since {@link #cache} was cleared. */
+	private volatile boolean cacheStale;
+	/** X coordinates of the snapshot measures, for painting. */
+	private int[] frameX = new int[0];
+	
+	/** Paint using cached layers, only drawing new measures (see {@link #scrolling(boolean)}). */
+	private boolean scrolling = false;
+	/** Titles, background, frame and Y ticks. */
+	private BufferedImage staticLayer;
+	/** Whether configuration changed since {@link #staticLayer} was drawn. */
+	private boolean layersStale = true;
+	/** What {@link #staticLayer} was drawn with. */
+	private Color layersBackground;
+	private Font layersFont, layersTitleFont;
+	/** Time ticks and series lines, on a transparent background. */
+	private BufferedImage plotLayer;
+	/** Pixel column of the right of {@link #plotLayer}, and sequence number of the last point drawn in it. */
+	private long plotCol, plotSeq;
+	/** Min/max each axis was drawn with in {@link #plotLayer}. */
+	private float[] plotMin, plotMax;
+	/** {@link Snapshot#edits} of the snapshot drawn in {@link #plotLayer}. */
+	private long plotEdits;
 	
 	/** Clock to give current time. */
 	private Supplier<Long> clock;
@@ -84,10 +140,6 @@ public class PanelTimeGraph extends JPanel {
 	public PanelTimeGraph(Supplier<Long> clock, String title, int duration_s, String ... series) throws IllegalArgumentException {
 		super(new BorderLayout());
 		
-		if (series.length > 2) {
-			throw new IllegalArgumentException("Cannot graph more than 2 values (at the moment...): "+series);
-		}
-		
 		if (clock == null) {
 			clock = System::currentTimeMillis;
 		}
@@ -99,24 +151,21 @@ public class PanelTimeGraph extends JPanel {
 		this.series = Arrays.stream(series)
 				.filter(s -> s != null)
 				.toArray(n -> new String[n]); // Removes nulls from the series
-		int nSeries = series.length;
+		int nSeries = this.series.length;
 		units = new String[nSeries];
-		curMin = new float[nSeries];
-		curMmax = new float[nSeries];
+		colors = new Color[nSeries];
 		
 		min = new float[nSeries];
 		max = new float[nSeries];
+		alerting = new boolean[nSeries];
 		for (int i = 0; i < nSeries; i++) {
 			min[i] = max[i] = Float.NaN;
-			curMin[i] = Float.MAX_VALUE;
-			curMmax[i] = -Float.MAX_VALUE;
 			units[i] = "";
+			colors[i] = palette[i % palette.length];
 		}
+		groupAxes();
 		
-		ts = new long[60]; // One minute if one measure per second
-		values = new float[nSeries][ts.length];
-		
-		inext = 0;
+		configureTiers();
 		
 		setBackground(Color.LIGHT_GRAY);
 	}
@@ -127,30 +176,170 @@ public class PanelTimeGraph extends JPanel {
 	
 	public PanelTimeGraph title(String title) {
 		this.title = title;
+		layersStale = cacheStale = true;
 		return this;
 	}
 	
 	public PanelTimeGraph background(Color bckColor) {
 		this.bckColor = bckColor;
+		layersStale = cacheStale = true;
 		return this;
 	}
 	
 	public PanelTimeGraph ticksColor(Color c) {
 		this.ticksColor = c;
+		layersStale = cacheStale = true;
 		return this;
 	}
 	
 	public PanelTimeGraph yTicks(int nMajor, int nMinor) {
 		this.nTicksMajorY = nMajor;
 		this.nTicksMinorY = nMinor;
+		layersStale = cacheStale = true;
 		return this;
 	}
 	
 	public PanelTimeGraph timeTicks(int tTicks) {
 		this.tTicksX = tTicks;
+		layersStale = cacheStale = true;
+		return this;
+	}
+	
+	/**
+	 * Set the expected time between two measures, to size the measures storage accordingly.
+	 * Measures coming faster than that will shorten the displayed history, as the oldest ones
+	 * are dropped when the storage is full.
+	 * @param refresh_ms The time between two measures, in ms.
+	 */
+	synchronized public PanelTimeGraph refresh(int refresh_ms) {
+		if (refresh_ms > 0 && refresh_ms != refresh) {
+			this.refresh = refresh_ms;
+			configureTiers();
+		}
+		return this;
+	}
+	
+	/**
+	 * Roll up older measures, so that memory and painting cost stay bounded whatever the graphed duration: raw
+	 * measures are kept for the last 5 minutes, min/max of each second for the last hour, and min/max of each minute
+	 * beyond. The most detailed resolution available is painted at each time. This is the default.
+	 * @param rollup {@code false} to keep all raw measures.
+	 */
+	synchronized public PanelTimeGraph rollup(boolean rollup) {
+		if (rollup != this.rollup) {
+			this.rollup = rollup;
+			configureTiers();
+		}
+		return this;
+	}
+	
+	/** (Re)create {@link #tiers} after a configuration change, keeping the measures of the resolutions still used. */
+	private void configureTiers() {
+		List<RollupTier> res = new ArrayList<>();
+		int[][] spec = (rollup ? rollupTiers : new int[][] { { 0, Integer.MAX_VALUE } });
+		for (int[] bw : spec) {
+			int window = Math.min(bw[1], duration);
+			if (!res.isEmpty() && bw[0] <= refresh) { // Not coarser than measures: extend the previous resolution instead
+				res.set(res.size() - 1, tier(res.get(res.size() - 1).bucket, window));
+			} else {
+				res.add(tier(bw[0], window));
+			}
+			if (window >= duration) {
+				break;
+			}
+		}
+		tiers = res.toArray(new RollupTier[res.size()]);
+		edits++;
+		dirty = true;
+	}
+	
+	/** @return A resolution, with the measures of the current one with the same bucket duration if any. */
+	private RollupTier tier(int bucket, int window) {
+		for (RollupTier rt : tiers) {
+			if (rt.bucket == bucket) {
+				return new RollupTier(rt, window, refresh);
+			}
+		}
+		return new RollupTier(series.length, bucket, window, refresh);
+	}
+	
+	/**
+	 * Take over the measures of series of another graph (e.g. the one this graph replaces after a configuration
+	 * change), replacing those of this graph: at the resolutions both graphs have, and rolled up from the raw
+	 * measures of {@code from} at the others.
+	 * @param from The graph, whose measures are left unchanged.
+	 * @param fromSeries The series of {@code from} giving each series of this graph, {@code -1} for none.
+	 */
+	synchronized public void carryOver(PanelTimeGraph from, int[] fromSeries) {
+		synchronized (from) {
+			TimeSeriesStore raw = from.tiers[0].store;
+			float[] row = new float[series.length];
+			for (int i = 0; i < tiers.length; i++) {
+				RollupTier rt = tiers[i];
+				RollupTier same = null;
+				for (RollupTier f : from.tiers) {
+					if (f.bucket == rt.bucket) {
+						same = f;
+					}
+				}
+				if (same != null) {
+					tiers[i] = new RollupTier(same, fromSeries, rt.window, refresh);
+					continue;
+				}
+				tiers[i] = rt = new RollupTier(series.length, rt.bucket, rt.window, refresh);
+				for (long seq = raw.head(); seq < raw.tail(); seq++) {
+					for (int is = 0; is < row.length; is++) {
+						row[is] = (fromSeries[is] < 0 ? Float.NaN : raw.v(fromSeries[is], seq));
+					}
+					rt.add(raw.t(seq), row);
+				}
+			}
+		}
+		edits++;
+		dirty = true;
+	}
+	
+	/**
+	 * Paint using cached layers: titles, frame and Y ticks are only drawn on resize or configuration change,
+	 * and the graph area is kept in an image shifted left as time passes, so that only new measures are drawn.
+	 * Lines going out of the graph area are clipped in that mode.
+	 * @param scrolling {@code true} to enable that mode.
+	 */
+	public PanelTimeGraph scrolling(boolean scrolling) {
+		this.scrolling = scrolling;
+		staticLayer = plotLayer = null;
+		return this;
+	}
+	
+	/**
+	 * Whether painting takes a snapshot of the measures when they changed since the last one. This is the default,
+	 * and painting then waits for measures being added by other threads.<br>
+	 * When {@code false}, snapshots are only taken by {@link #snapshot()} (e.g. from a repaint scheduler), and painting
+	 * never waits.
+	 */
+	public PanelTimeGraph autoSnapshot(boolean auto) {
+		this.autoSnapshot = auto;
 		return this;
 	}
 	
+	/**
+	 * Outline the graph while the alert of a series fires (see {@link Alert}).
+	 * @param firing Whether it fired, or cleared.
+	 */
+	@Override
+	synchronized public void alert(int iSerie, boolean firing) {
+		if (alerting[iSerie] != firing) {
+			alerting[iSerie] = firing;
+			nAlerting += (firing ? 1 : -1);
+			repaint();
+		}
+	}
+	
+	/** @return Whether the alert of a series fires. */
+	synchronized public boolean alerting(int iSerie) {
+		return alerting[iSerie];
+	}
+	
 	private int iSerie(String serie) throws IllegalArgumentException {
 		for (int i = 0; i < series.length; i++) {
 			if (series[i].equals(serie)) {
@@ -186,7 +375,9 @@ public class PanelTimeGraph extends JPanel {
 	}
 	
 	public PanelTimeGraph unit(int iSerie, String unite) {
-		this.units[iSerie] = unite;
+		this.units[iSerie] = (unite == null ? "" : unite);
+		groupAxes();
+		layersStale = cacheStale = true;
 		return this;
 	}
 	public PanelTimeGraph unit(String serie, String unite) {
@@ -196,6 +387,7 @@ public class PanelTimeGraph extends JPanel {
 	public PanelTimeGraph color(int iSerie, Color coul) {
 		if (coul != null) {
 			this.colors[iSerie] = coul;
+			layersStale = cacheStale = true;
 		}
 		return this;
 	}
@@ -203,100 +395,142 @@ public class PanelTimeGraph extends JPanel {
 		return color(iSerie(serie), coul);
 	}
 	
+	/**
+	 * Rename a series, e.g. when it graphs another process (see {@code processes} graphs). Can be called from any
+	 * thread: the series is renamed by the event dispatch thread, which paints names.
+	 */
+	public PanelTimeGraph name(int iSerie, String name) {
+		String n = (name == null ? "" : name);
+		if (!SwingUtilities.isEventDispatchThread()) {
+			SwingUtilities.invokeLater(() -> name(iSerie, n));
+			return this;
+		}
+		series[iSerie] = n;
+		layersStale = cacheStale = true;
+		repaint();
+		return this;
+	}
+	
+	/** Assign series to Y axes by unit. */
+	private void groupAxes() {
+		int nSeries = series.length;
+		axis = new int[nSeries];
+		int[] first = new int[nSeries];
+		int nAxes = 0;
+		for (int is = 0; is < nSeries; is++) {
+			int a = 0;
+			while (a < nAxes && !units[first[a]].equals(units[is])) {
+				a++;
+			}
+			if (a == nAxes) {
+				first[nAxes++] = is;
+			}
+			axis[is] = a;
+		}
+		axisFirst = Arrays.copyOf(first, nAxes);
+		frameMin = new float[nAxes];
+		frameMax = new float[nAxes];
+		plotMin = new float[nAxes];
+		plotMax = new float[nAxes];
+	}
+	
 	/**
 	 * Call this method every second or so to handle forgetting old data.
 	 * @return The number of forgotten data (and so an indication that calling {@code repaint()}
 	 * 		would be a good idea if {@code > 0}).
 	 */
 	synchronized public int forget() {
-		long t0 = clock.get();
-		int i = 0;
-		while (i < inext && (int)(t0 - ts[i]) > duration) {
-			i++;
-		}
-		if (i > 0) {
-			inext -= i;
-			System.arraycopy(ts, i, ts, 0, inext); // FIXME: Make it a better FIFO: (istart;iend) instead of ugly memmove
-			for (int j = 0; j < values.length; j++) {
-				System.arraycopy(values[j], i, values[j], 0, inext);
-				// Recalcul des minCou/maxCou sur les données non supprimées
-				curMin[j] = Float.MAX_VALUE;
-				curMmax[j] = -Float.MAX_VALUE;
-				for (int k = 0; k < inext; k++) {
-					float v = values[j][k];
-					if (!Float.isNaN(v)) {
-						if (v < curMin[j]) curMin[j] = v;
-						if (v > curMmax[j]) curMmax[j] = v;
-					}
-				}
-			}
+		long now = clock.get();
+		int n = 0;
+		for (RollupTier rt : tiers) {
+			n += rt.forget(now);
+		}
+		if (n > 0) {
+			dirty = true;
 		}
-		return i;
+		return n;
 	}
 	
 	synchronized public void addValues(long t, float ... vals) throws IllegalArgumentException {
 		int nVal = vals.length;
+		TimeSeriesStore store = tiers[0].store;
 		// Check number of data consistency
-		if (nVal != values.length) {
-			throw new IllegalArgumentException("Number of given data ("+nVal+") inconsistent with expected number ("+values.length+")");
+		if (nVal != store.nSeries()) {
+			throw new IllegalArgumentException("Number of given data ("+nVal+") inconsistent with expected number ("+store.nSeries()+")");
 		}
 		// Check timestamp is increasing
-		if (inext > 0 && ts[inext-1] >= t) {
-			throw new IllegalArgumentException("Given timestamp ("+t+") is before last one by "+(ts[inext-1] - t)+" ms");
+		long tLast = store.lastT();
+		if (store.size() > 0 && tLast >= t) {
+			throw new IllegalArgumentException("Given timestamp ("+t+") is before last one by "+(tLast - t)+" ms");
 		}
 		forget(); // Before adding data, if it can free up some space...
-		ts[inext] = t;
-		for (int i = 0; i < nVal; i++) {
-			float v = vals[i];
-			values[i][inext] = v;
-			if (!Float.isNaN(v)) {
-				if (v > curMmax[i]) curMmax[i] = v;
-				if (v < curMin[i]) curMin[i] = v;
-			}
-		}
-		if (++inext >= values[0].length) {
-			for (int i = 0; i < nVal; i++) {
-				values[i] = Arrays.copyOf(values[i], values[i].length + 60); // Add one minute (if sampling is at 1 Hz)
-			}
-			ts = Arrays.copyOf(ts, values[0].length);
+		for (RollupTier rt : tiers) {
+			rt.add(t, vals);
 		}
+		dirty = true;
 	}
 	
+	/**
+	 * Set a value of the measure at {@code t}, or add a measure if there is none at {@code t}.<br>
+	 * Only raw measures are modified: measures already rolled up (see {@link #rollup(boolean)}) are not.
+	 */
 	synchronized public void setValue(long t, int index, float v) throws IllegalArgumentException {
-		if (index < 0 || index >= values.length) {
-			throw new IllegalArgumentException("Data index ("+index+") inconsistent with actual number of series ("+values.length+")");
+		TimeSeriesStore store = tiers[0].store;
+		if (index < 0 || index >= store.nSeries()) {
+			throw new IllegalArgumentException("Data index ("+index+") inconsistent with actual number of series ("+store.nSeries()+")");
 		}
 		
 		// Look for the corresponding timestamp
-		for (int i = inext - 1; i >= 0; i--) {
-			if (ts[i] == t) {
-				values[index][i] = v;
-				if (!Float.isNaN(v)) { // FIXME: create method
-					if (v > curMmax[index]) curMmax[index] = v;
-					if (v < curMin[index]) curMin[index] = v;
-				}
-				return;
-			}
+		long seq = store.find(t);
+		if (seq >= 0) {
+			store.set(seq, index, v);
+			tiers[0].m4.invalidate();
+			edits++;
+			dirty = true;
+			return;
 		}
 		
 		// Timestamp not found => add value
-		ts[inext] = t;
-		if (inext++ >= values[0].length) { // FIXME: create method
-			for (int i = 0; i < values.length; i++) {
-				values[i] = Arrays.copyOf(values[i], values[i].length + 60); // Add one minute (if sampling is at 1 Hz)
-			}
-			ts = Arrays.copyOf(ts, values[0].length);
-		}
-		
-		throw new IllegalArgumentException("Data index ("+index+") inconsistent with actual number of series ("+values.length+")");
+		float[] vals = new float[store.nSeries()];
+		Arrays.fill(vals, Float.NaN);
+		vals[index] = v;
+		addValues(t, vals);
 	}
 	
 	synchronized public void addValues(float ... vals) throws IllegalArgumentException {
 		addValues(clock.get(), vals);
 	}
 	
+	/** @return The number of raw measures. */
 	public int nbMeasures() {
-		return inext;
+		return tiers[0].store.size();
+	}
+	
+	/**
+	 * Take a snapshot of the measures to paint, if they changed since the last one or if the graph was resized.
+	 * Meant to be called off the EDT, before {@code repaint()}.
+	 * @return Whether a new snapshot was taken.
+	 */
+	public boolean snapshot() {
+		return snapshot(getWidth() - 2*marginX);
+	}
+	
+	/**
+	 * Decimate stored measures to the given graph width, and copy what is needed to draw them to a new {@link #snapshot}.
+	 * @param width The graph width, in pixels.
+	 * @return Whether a new snapshot was taken.
+	 */
+	synchronized private boolean snapshot(int width) {
+		Snapshot s = snapshot;
+		if (!dirty && s != null && s.width == width) {
+			return false;
+		}
+		dirty = false;
+		for (RollupTier rt : tiers) {
+			rt.m4.update(rt.store, width, duration);
+		}
+		snapshot = new Snapshot(tiers, width, duration, edits);
+		return true;
 	}
 	
 	static private void drawYTicks(Graphics2D g, Stroke s, int w, int h, int offX, int offY, int nTicks) {
@@ -315,160 +549,436 @@ public class PanelTimeGraph extends JPanel {
 		}
 	}
 	
+	/** Paint the alert outline over the graph, whatever the painting mode. */
+	@Override
+	protected void paintBorder(Graphics g1) {
+		super.paintBorder(g1);
+		if (nAlerting > 0) {
+			Graphics2D g = (Graphics2D)g1;
+			Stroke ols = g.getStroke();
+			g.setColor(alertColor);
+			g.setStroke(alertStroke);
+			g.drawRect(1, 1, getWidth() - 3, getHeight() - 3);
+			g.setStroke(ols);
+		}
+	}
+	
 	@Override
 	public void paintComponent(Graphics g1) {
-		super.paintComponent(g1);
-		
 		Graphics2D g = (Graphics2D)g1;
 		
-		g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
-		
 		int w = getWidth();
 		int h = getHeight();
 		
 		// Empty space to draw axis and text
-		int offX = 80; // So x = 'w - offX' is the current date, x = 'offX' is current date minus duration
-		int offY = 50;
+		int offX = marginX; // So x = 'w - offX' is the current date, x = 'offX' is current date minus duration
+		int offY = marginY;
+		
+		if (cacheStale) {
+			cacheStale = false;
+			cache.clear();
+		}
+		
+		Snapshot s = snapshot;
+		if (autoSnapshot && (dirty || s == null || s.width != w - 2*offX)) {
+			snapshot(w - 2*offX);
+			s = snapshot;
+		}
+		
+		if (scrolling && s != null && s.size > 0) {
+			paintScrolling(g, s, w, h, offX, offY);
+			return;
+		}
+		
+		super.paintComponent(g1);
+		
+		g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
 		
 		Color txtColor = textColor(getBackground());
 		
+		paintTitles(g, w, offX, offY, txtColor);
+		
+		// Nothing to graph
+		if (s == null || s.size == 0) {
+			return;
+		}
+		
+		paintPlotBackground(g, w, h, offX, offY, txtColor);
+		
+		long t = clock.get(); // Rightmost timestamp
+		
+		// Compute x for each retained timestamp according to current date 't'
+		computeX(s, 0, w - offX, t);
+		
+		// Timestamp sticks
+		paintTimeTicks(g, s, w, h, offX, offY, t, Long.MIN_VALUE, true, true, txtColor);
+		
+		// Min/max to graph
+		axesRanges(s, frameMin, frameMax);
+		
+		for (int is = series.length - 1; is >= 0; is--) { // First series on top
+			int a = axis[is];
+			float min = frameMin[a];
+			float max = frameMax[a];
+			if (Float.isNaN(min) || Float.isNaN(max)) continue;
+			
+			float ry = (h - 2*offY) / (max -min);
+			
+			g.setColor(colors[is]);
+			drawSeries(g, s, is, 0, h - offY, min, ry, true);
+			paintValueLine(g, s, is, w, h, offX, offY, min, ry);
+		}
+		paintLabels(g, s, w, h, offX, offY);
+	}
+	
+	/**
+	 * Compute the x coordinates of the snapshot measures, in {@link #frameX}.
+	 * @param from Index of the first measure to compute.
+	 * @param xRight The x coordinate of the right of the graph, at time {@code t}.
+	 * @param t The time displayed on the right of the graph.
+	 */
+	private void computeX(Snapshot s, int from, int xRight, long t) {
+		if (frameX.length < s.n) {
+			frameX = new int[Math.max(s.n, frameX.length * 3 / 2)];
+		}
+		long colT = s.col(t);
+		for (int i = from; i < s.n; i++) {
+			frameX[i] = xRight - (int)(colT - s.col(s.t[i]));
+		}
+	}
+	
+	/**
+	 * Compute the min/max to graph for each axis: the widest range of its series.
+	 * {@code NaN} if none of its series has values nor a manual min/max.
+	 */
+	private void axesRanges(Snapshot s, float[] min, float[] max) {
+		Arrays.fill(min, Float.NaN);
+		Arrays.fill(max, Float.NaN);
+		for (int is = 0; is < series.length; is++) {
+			int a = axis[is];
+			float v = graphMin(s, is);
+			if (!Float.isNaN(v) && !(v >= min[a])) { // Also when min[a] is NaN
+				min[a] = v;
+			}
+			v = graphMax(s, is);
+			if (!Float.isNaN(v) && !(v <= max[a])) {
+				max[a] = v;
+			}
+		}
+	}
+	
+	/** @return The min value to graph for series {@code is}. */
+	private float graphMin(Snapshot s, int is) {
+		float min = this.min[is];
+		return Float.isNaN(min) ? s.min[is] : min;
+	}
+	
+	/** @return The max value to graph for series {@code is}. */
+	private float graphMax(Snapshot s, int is) {
+		float max = this.max[is];
+		return Float.isNaN(max) ? s.max[is] : max;
+	}
+	
+	/**
+	 * Draw the graph title and series names. Names of the first two series are centered on the left and right
+	 * of the graph area; more names are laid out from left to right under the title, in a smaller font if needed.
+	 */
+	private void paintTitles(Graphics2D g, int w, int offX, int offY, Color txtColor) {
+		int nSeries = series.length;
+		int yTitle = offY;
+		Font olf = g.getFont();
+		if (nSeries > 2) { // Names on their own line, under the title
+			int width = 0;
+			for (int i = 0; i < nSeries; i++) {
+				width += cache.bounds(g, series[i]).width + 10;
+			}
+			if (width > w - 2*offX) {
+				int gaps = 10 * nSeries;
+				g.setFont(cache.font(olf, Math.max(6f, olf.getSize2D() * Math.max(0, w - 2*offX - gaps) / (width - gaps))));
+			}
+			yTitle -= cache.bounds(g, "0").height + 6;
+		}
+		
 		if (title != null && !title.isBlank()) {
 			g.setColor(txtColor);
-			Font olf = null;
+			Font olf2 = null;
 			if (titleFont != null) {
-				olf = g.getFont();
+				olf2 = g.getFont();
 				g.setFont(titleFont);
 			}
-			Dimension d = strDim(g, title);
-			g.drawString(title, (w - d.width) / 2, offY - d.height);
-			if (olf != null) {
-				g.setFont(olf);
+			Dimension d = cache.bounds(g, title);
+			g.drawString(title, (w - d.width) / 2, yTitle - d.height);
+			if (olf2 != null) {
+				g.setFont(olf2);
 			}
 		}
 		
 		// Draw series names
-		int nSeries = series.length;
-		for (int i = 0; i < nSeries; i++) {
+		Color olc = g.getColor();
+		for (int i = 0, x = offX; i < nSeries; i++) {
 			if (series[i] == null || series[i].isBlank()) {
 				continue;
 			}
-			Color olc = g.getColor();
-			Dimension d = strDim(g, series[i]);
 			g.setColor(colors[i]);
+			Dimension d = cache.bounds(g, series[i]);
+			if (nSeries > 2) {
+				g.drawString(series[i], x, offY - 4);
+				x += d.width + 10;
+				continue;
+			}
 			g.drawString(series[i], i == 0 ? offX - d.width / 2 : w - offX - d.width / 2, offY - d.height/2);
-			g.setColor(olc);
-		}
-		
-		// Nothing to graph
-		if (inext == 0) {
-			return;
 		}
-		
+		g.setColor(olc);
+		g.setFont(olf);
+	}
+	
+	/** Draw the graph area background, frame and Y ticks. */
+	private void paintPlotBackground(Graphics2D g, int w, int h, int offX, int offY, Color txtColor) {
 		g.setColor(bckColor);
 		g.fillRect(offX, offY, w - 2*offX, h - 2*offY);
 		g.setColor(txtColor);
 		g.drawRect(offX, offY, w - 2*offX, h - 2*offY);
 		
 		if (nTicksMinorY > 0) {
-			g.setColor(new Color(ticksColor.getRed(), ticksColor.getGreen(), ticksColor.getBlue(), 64));
+			g.setColor(cache.alpha(ticksColor, 64));
 			drawYTicks(g, dashedStroke, w, h, offX, offY, nTicksMinorY);
 		}
 		// Major ticks on top (FIXME: do not draw the minors matching a major)
 		if (nTicksMajorY > 0) {
-			g.setColor(new Color(ticksColor.getRed(), ticksColor.getGreen(), ticksColor.getBlue(), 128));
+			g.setColor(cache.alpha(ticksColor, 128));
 			drawYTicks(g, plainStroke, w, h, offX, offY, nTicksMajorY);
 		}
-		
-		float rx = (float)(w - 2*offX) / duration; // Ratio to transform time to pixels
-		
-		long t = clock.get(); // Rightmost timestamp
-		
-		// Timestamp sticks
-		if (tTicksX > 0) {
-			g.setColor(ticksColor);
-			Stroke ols = g.getStroke();
-			g.setStroke(plainStroke);
-			Font olf = g.getFont();
-			AffineTransform at = new AffineTransform();
-			at.scale(0.9, 0.9);
-			at.rotate(-Math.PI / 8);
-			g.setFont(olf.deriveFont(at));
-			Color cTick = new Color(192, 192, 192, 255);
-			DateFormat df = new SimpleDateFormat(timeFormat);
-			long t0 = t - duration; // Left-most timestamp
-			for (long xt = t - (t % tTicksX); xt > t0; xt -= tTicksX) {
-				int x = w - offX - Math.round((t - xt) * rx);
-				g.setColor(cTick);
+	}
+	
+	/**
+	 * Draw the timestamp ticks lines and/or texts.
+	 * @param t The rightmost timestamp.
+	 * @param colFrom Only draw lines for ticks in a pixel column after this one.
+	 * @param lines Whether to draw the ticks lines.
+	 * @param texts Whether to draw the ticks timestamps.
+	 */
+	private void paintTimeTicks(Graphics2D g, Snapshot s, int w, int h, int offX, int offY, long t, long colFrom, boolean lines, boolean texts, Color txtColor) {
+		if (tTicksX <= 0) {
+			return;
+		}
+		g.setColor(ticksColor);
+		Stroke ols = g.getStroke();
+		g.setStroke(plainStroke);
+		Font olf = g.getFont();
+		g.setFont(cache.tickFont(olf));
+		int nTicks = duration / tTicksX + 2;
+		long colT = s.col(t);
+		long t0 = t - duration; // Left-most timestamp
+		for (long xt = t - (t % tTicksX); xt > t0; xt -= tTicksX) {
+			long col = s.col(xt);
+			int x = w - offX - (int)(colT - col);
+			if (lines && col > colFrom) {
+				g.setColor(tickLineColor);
 				g.drawLine(x, h - offY - 1, x, offY + 1);
-				// Print timestamp
+			}
+			if (texts) { // Print timestamp
 				g.setColor(txtColor);
-				String ts = df.format(new Date(xt));
-				Dimension dim = strDim(g, ts);
+				String ts = cache.tickText(xt, tTicksX, timeFormat, nTicks);
+				Dimension dim = cache.bounds(g, ts);
 				g.drawString(ts, x - dim.width/2, h - offY + dim.height + 3);
 			}
-			g.setFont(olf);
-			g.setStroke(ols);
-		}
-		
-		// Compute x for each timestamp according to current date 't'
-		int[] xts = new int[inext];
-		for (int ix = 0; ix < inext; ix++) {
-			xts[ix] = w - offX - Math.round((t - ts[ix]) * rx);
 		}
-		
-		for (int is = nSeries - 1; is >= 0; is--) { // First series on top
-			// Min/max to graph
-			float min = this.min[is];
-			if (Float.isNaN(min)) min = this.curMin[is];
-			if (Float.isNaN(min)) continue;
-			float max = this.max[is];
-			if (Float.isNaN(max)) max = this.curMmax[is];
-			if (Float.isNaN(max)) continue;
-			
-			float ry = (h - 2*offY) / (max -min);
-			
-			int x0 = -1;
-			int y0 = -1;
+		g.setFont(olf);
+		g.setStroke(ols);
+	}
+	
+	/**
+	 * Draw the lines of series {@code is}, from right to left, through the snapshot points from {@code from},
+	 * at the x coordinates given by {@link #computeX}.
+	 * A circle is drawn at the most recent point of each run of valid values.
+	 * @param from Index of the first point to draw.
+	 * @param yBase The y coordinate of value {@code min}.
+	 * @param min The value at the bottom of the graph.
+	 * @param ry Ratio to transform values to pixels.
+	 * @param openCircle Whether to draw the circle of the most recent run when it is not followed by a missing value.
+	 */
+	private void drawSeries(Graphics2D g, Snapshot s, int is, int from, int yBase, float min, float ry, boolean openCircle) {
+		int x0 = -1;
+		int y0 = -1;
+		float[] values = s.values[is];
+		for (int k = s.n - 1; k >= from; k--) { // From right to left
+			float v = values[k];
+			if (Float.isNaN(v)) {
+				x0 = -1; // Empty value => stop lines
+				openCircle = true;
+				continue;
+			}
 			
-			g.setColor(colors[is]);
-			for (int ix = 0; ix < inext; ix++) {
-				int k = inext - ix - 1; // From right to left
-				float v = values[is][k];
-				if (Float.isNaN(v)) {
-					x0 = -1; // Empty value => stop lines
-					continue;
-				}
-				
-				int x = xts[k];
-				int y = h - offY - Math.round(v * ry);
-				if (x0 < 0) { // First point (or after an empty value) => circle
+			int x = frameX[k];
+			int y = yBase - Math.round((v - min) * ry);
+			if (x0 < 0) { // First point (or after an empty value) => circle
+				if (openCircle) {
 					g.fillOval(x-2, y-2, 5, 5);
-				} else {
-					g.drawLine(x0, y0, x, y);
 				}
-				x0 = x;
-				y0 = y;
+				openCircle = true;
+			} else {
+				g.drawLine(x0, y0, x, y);
 			}
-			// Recall current value accross the whole width
-			g.setColor(new Color(colors[is].getRed(), colors[is].getGreen(), colors[is].getBlue(), 32)); // Transparent
-			int y = h - offY - Math.round(values[is][inext - 1] * ry);
-			g.drawLine(offX, y, w - offX, y); // TODO: Up to last valid value : if last value is missing (NaN), w - offX - <last good>
+			x0 = x;
+			y0 = y;
+		}
+	}
+	
+	/** Draw the current value line of series {@code is}. */
+	private void paintValueLine(Graphics2D g, Snapshot snap, int is, int w, int h, int offX, int offY, float min, float ry) {
+		// Recall current value accross the whole width
+		g.setColor(cache.alpha(colors[is], 32)); // Transparent
+		float last = snap.last[is];
+		int y = h - offY - Math.round((last - min) * ry);
+		g.drawLine(offX, y, w - offX, y); // TODO: Up to last valid value : if last value is missing (NaN), w - offX - <last good>
+	}
+	
+	/** Draw the min/max labels of each axis (from {@link #frameMin}/{@link #frameMax}), and the current value of each series. */
+	private void paintLabels(Graphics2D g, Snapshot snap, int w, int h, int offX, int offY) {
+		int dy = cache.bounds(g, "0").height + 7; // Between labels of axes on the same side
+		for (int a = 0; a < axisFirst.length; a++) {
+			float min = frameMin[a];
+			float max = frameMax[a];
+			if (Float.isNaN(min) || Float.isNaN(max)) continue;
+			int is = axisFirst[a];
+			boolean left = (a % 2 == 0); // First axis on the left (aligned on the right), second on the right, and so on
+			int x = (left ? offX : w - offX);
+			int y = (a / 2) * dy;
 			
 			// Draw max
-			String s = String.format("%.0f%s", max, units[is]);
-			int x = (is == 0 ? offX : w - offX);
-			drawStringBack(g, s, null, colors[is], x, is == 0, offY, false); // Max is aligned on top. First series axis is on the left (aligned on the right)
+			String s = cache.label(2*a + 1, max, units[is]);
+			drawStringBack(g, s, cache.bounds(g, s), null, colors[is], x, left, offY + y, false); // Max is aligned on top
 			
 			// Draw min
-			s = String.format("%.0f%s", min, units[is]);
-			drawStringBack(g, s, null, colors[is], x, is == 0, h - offY, true); // Min is aligned on bottom
-			
-			// Display current values in the center right, on top of each other
-			if (inext > 0) {
-				s = String.format("%.0f%s", values[is][inext-1], units[is]);
-				drawStringBack(g, s, colors[is], null, w - offX, false, h/2, is == 0); // No background for current values
+			s = cache.label(2*a, min, units[is]);
+			drawStringBack(g, s, cache.bounds(g, s), null, colors[is], x, left, h - offY - y, true); // Min is aligned on bottom
+		}
+		
+		// Display current values in the center right, on top of each other
+		int nSeries = series.length;
+		int half = (nSeries + 1) / 2;
+		for (int is = half - 1, y = h/2; is >= 0; is--) { // Above the center
+			y -= paintCurrentValue(g, snap, is, w - offX, y, true);
+		}
+		for (int is = half, y = h/2; is < nSeries; is++) { // Below the center
+			y += paintCurrentValue(g, snap, is, w - offX, y, false);
+		}
+	}
+	
+	/** @return The height of the current value label of series {@code is}, {@code 0} if it is not graphed. */
+	private int paintCurrentValue(Graphics2D g, Snapshot snap, int is, int x, int y, boolean alignBottom) {
+		int a = axis[is];
+		if (Float.isNaN(frameMin[a]) || Float.isNaN(frameMax[a]) || Float.isNaN(graphMin(snap, is)) || Float.isNaN(graphMax(snap, is))) {
+			return 0;
+		}
+		String s = cache.label(2*axisFirst.length + is, snap.last[is], units[is]);
+		return drawStringBack(g, s, cache.bounds(g, s), colors[is], null, x, false, y, alignBottom); // No background for current values
+	}
+	
+	/**
+	 * Paint using cached layers: titles, frame and Y ticks are only drawn on resize or configuration change,
+	 * and the graph area is kept in an image that is shifted left as time passes, so that only the newest
+	 * measures are drawn.
+	 */
+	private void paintScrolling(Graphics2D g, Snapshot s, int w, int h, int offX, int offY) {
+		Color txtColor = textColor(getBackground());
+		
+		// Static layer: titles, background, frame, Y ticks
+		if (layersStale || staticLayer == null || staticLayer.getWidth() != w || staticLayer.getHeight() != h
+				|| !getBackground().equals(layersBackground) || !getFont().equals(layersFont) || titleFont != layersTitleFont) {
+			layersStale = false;
+			layersBackground = getBackground();
+			layersFont = getFont();
+			layersTitleFont = titleFont;
+			staticLayer = new BufferedImage(Math.max(1, w), Math.max(1, h), BufferedImage.TYPE_INT_RGB);
+			Graphics2D gs = staticLayer.createGraphics();
+			gs.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+			gs.setFont(layersFont);
+			gs.setColor(layersBackground);
+			gs.fillRect(0, 0, w, h);
+			paintTitles(gs, w, offX, offY, txtColor);
+			paintPlotBackground(gs, w, h, offX, offY, txtColor);
+			gs.dispose();
+			plotLayer = null;
+		}
+		g.drawImage(staticLayer, 0, 0, null);
+		
+		long t = clock.get(); // Rightmost timestamp
+		
+		// Graph area layer: time ticks lines and series lines, drawn over a transparent background
+		int plotW = w - 2*offX;
+		int nSeries = series.length;
+		long colT = s.col(t);
+		boolean full = (plotLayer == null || s.edits != plotEdits || colT < plotCol || colT - plotCol > plotW);
+		axesRanges(s, frameMin, frameMax);
+		for (int a = 0; a < frameMin.length; a++) {
+			full |= (Float.compare(frameMin[a], plotMin[a]) != 0 || Float.compare(frameMax[a], plotMax[a]) != 0);
+		}
+		// Only draw from the last point already drawn
+		int from = s.n - 1;
+		if (full) {
+			from = 0;
+		} else {
+			while (from > 0 && s.seq[from] > plotSeq) {
+				from--;
+			}
+			from = Math.max(0, from);
+		}
+		computeX(s, from, w - offX, t);
+		if (plotLayer == null) {
+			plotLayer = new BufferedImage(Math.max(1, plotW + 1), Math.max(1, h - 2*offY + 1), BufferedImage.TYPE_INT_ARGB_PRE);
+		}
+		Graphics2D gp = plotLayer.createGraphics();
+		if (full) {
+			gp.setComposite(AlphaComposite.Clear);
+			gp.fillRect(0, 0, plotLayer.getWidth(), plotLayer.getHeight());
+		} else {
+			// Shift what was drawn by the time elapsed since then, and clear what appears on the right
+			int shift = (int)(colT - plotCol);
+			if (shift > 0) {
+				gp.setComposite(AlphaComposite.Src);
+				gp.copyArea(shift, 0, plotLayer.getWidth() - shift, plotLayer.getHeight(), -shift, 0);
+				gp.setComposite(AlphaComposite.Clear);
+				gp.fillRect(plotLayer.getWidth() - shift, 0, shift, plotLayer.getHeight());
 			}
 		}
+		gp.setComposite(AlphaComposite.SrcOver);
+		gp.translate(-offX, -offY);
+		paintTimeTicks(gp, s, w, h, offX, offY, t, full ? Long.MIN_VALUE : plotCol, true, false, txtColor);
+		System.arraycopy(frameMin, 0, plotMin, 0, frameMin.length);
+		System.arraycopy(frameMax, 0, plotMax, 0, frameMax.length);
+		for (int is = nSeries - 1; is >= 0; is--) { // First series on top
+			float min = frameMin[axis[is]];
+			float max = frameMax[axis[is]];
+			if (Float.isNaN(min) || Float.isNaN(max)) continue;
+			gp.setColor(colors[is]);
+			drawSeries(gp, s, is, from, h - offY, min, (h - 2*offY) / (max - min), false);
+		}
+		gp.dispose();
+		plotEdits = s.edits;
+		plotCol = colT;
+		int n = s.n;
+		plotSeq = (n > 0 ? s.seq[n-1] : Long.MIN_VALUE);
+		g.drawImage(plotLayer, offX, offY, null);
+		
+		// Dynamic overlay: time ticks texts, circles of the most recent values, labels
+		g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+		paintTimeTicks(g, s, w, h, offX, offY, t, Long.MIN_VALUE, false, true, txtColor);
+		for (int is = nSeries - 1; is >= 0; is--) {
+			float min = frameMin[axis[is]];
+			float max = frameMax[axis[is]];
+			if (Float.isNaN(min) || Float.isNaN(max)) continue;
+			float ry = (h - 2*offY) / (max - min);
+			float v = (n > 0 ? s.values[is][n-1] : Float.NaN);
+			if (!Float.isNaN(v)) {
+				g.setColor(colors[is]);
+				int x = frameX[n-1];
+				int y = h - offY - Math.round((v - min) * ry);
+				g.fillOval(x-2, y-2, 5, 5);
+			}
+			paintValueLine(g, s, is, w, h, offX, offY, min, ry);
+		}
+		paintLabels(g, s, w, h, offX, offY);
 	}
 	
 	static public float perceivedLuminance(Color c) {
@@ -478,35 +988,139 @@ public class PanelTimeGraph extends JPanel {
 		return perceivedLuminance(bk) >= 128 ? Color.BLACK : Color.WHITE;
 	}
 	
-	static public Dimension drawStringBack(Graphics2D g, String s, Color back, Color text, int x, boolean alignRight, int y, boolean alignBottom) {
+	/**
+	 * Draw {@code s} in a box, 3 pixels around it.
+	 * @param d The bounds of {@code s} drawn with the current font of {@code g} (e.g. cached by {@link RenderCache}). Not modified.
+	 * @param back The box background, {@code null} for none.
+	 * @param text The box color (and the text color if there is no background), {@code null} for black.
+	 * @return The height of the drawn box.
+	 */
+	static public int drawStringBack(Graphics2D g, String s, Dimension d, Color back, Color text, int x, boolean alignRight, int y, boolean alignBottom) {
 		Color olc = g.getColor();
 		
-		Dimension d = strDim(g, s);
 		// 3 pixels around
-		d.width += 6;
-		d.height += 6;
+		int width = d.width + 6;
+		int height = d.height + 6;
 		
 		if (alignRight) {
-			x -= d.width;
+			x -= width;
 		}
 		if (alignBottom) {
-			y -= d.height;
+			y -= height;
 		}
 		
 		if (back != null) {
 			g.setColor(back);
-			g.fillRect(x, y, d.width, d.height);
+			g.fillRect(x, y, width, height);
 		}
 		g.setColor(text == null ? Color.BLACK : text);
-		g.drawRect(x, y, d.width, d.height);
+		g.drawRect(x, y, width, height);
 		if (back != null) {
 			g.setColor(textColor(back));
 		}
-		g.drawString(s, x+3, y-3 + d.height);
+		g.drawString(s, x+3, y-3 + height);
 		
 		g.setColor(olc);
 		
-		return d;
+		return height;
+	}
+	
+	
+	
+	/**
+	 * Decimated measures and series statistics, as painted. Immutable, so painting reads it without locking
+	 * while measures are added.
+	 */
+	static private final class Snapshot {
+		
+		/** Graph width (pixels) and duration (ms) measures were decimated for. */
+		final int width, duration;
+		/** Number of stored measures. */
+		final int size;
+		/** Number of decimated measures. */
+		final int n;
+		/**
+		 * Sequence numbers (see {@link TimeSeriesStore}) and timestamps of decimated measures. Rolled up measures,
+		 * which come first, have sequence number {@code Long.MIN_VALUE}.
+		 */
+		final long[] seq, t;
+		/** Values of decimated measures, per series. */
+		final float[][] values;
+		/** Min, max and last value of each series. */
+		final float[] min, max, last;
+		/** Value of {@link PanelTimeGraph#edits} when taken. */
+		final long edits;
+		
+		/**
+		 * Take the decimated measures of each resolution up to the oldest of the more detailed ones, so that the most
+		 * detailed resolution available is used at each time.
+		 */
+		private Snapshot(RollupTier[] tiers, int width, int duration, long edits) {
+			this.width = Math.max(1, width);
+			this.duration = Math.max(1, duration);
+			this.edits = edits;
+			int nTiers = tiers.length;
+			int nSeries = tiers[0].store.nSeries();
+			
+			// Decimated measures used in each resolution
+			int[] counts = new int[nTiers];
+			int size = 0, n = 0;
+			long bound = Long.MAX_VALUE;
+			for (int k = 0; k < nTiers; k++) {
+				RollupTier rt = tiers[k];
+				int c = rt.m4.size();
+				while (c > 0 && rt.store.t(rt.m4.get(c - 1)) >= bound) {
+					c--;
+				}
+				counts[k] = c;
+				n += c;
+				size += rt.store.size();
+				bound = Math.min(bound, rt.firstT());
+			}
+			this.size = size;
+			this.n = n;
+			
+			seq = new long[n];
+			t = new long[n];
+			values = new float[nSeries][n];
+			int i = 0;
+			for (int k = nTiers - 1; k >= 0; k--) { // Oldest first
+				TimeSeriesStore store = tiers[k].store;
+				M4Decimator m4 = tiers[k].m4;
+				for (int j = 0; j < counts[k]; j++, i++) {
+					long sq = m4.get(j);
+					seq[i] = (k == 0 ? sq : Long.MIN_VALUE);
+					t[i] = store.t(sq);
+					for (int is = 0; is < nSeries; is++) {
+						values[is][i] = store.v(is, sq);
+					}
+				}
+			}
+			
+			min = new float[nSeries];
+			max = new float[nSeries];
+			last = new float[nSeries];
+			for (int is = 0; is < nSeries; is++) {
+				min[is] = max[is] = Float.NaN;
+				for (RollupTier rt : tiers) {
+					float v = rt.store.min(is);
+					if (!(v >= min[is])) { // Also when min is NaN
+						min[is] = (Float.isNaN(v) ? min[is] : v);
+					}
+					v = rt.store.max(is);
+					if (!(v <= max[is])) {
+						max[is] = (Float.isNaN(v) ? max[is] : v);
+					}
+				}
+				last[is] = tiers[0].store.last(is);
+			}
+		}
+		
+		/** @return The pixel column of time {@code t} (see {@link M4Decimator#col(long)}). */
+		long col(long t) {
+			return Math.floorDiv(t * width, duration);
+		}
+		
 	}
 	
-}
\ No newline at end of file
+}
@@ -0,0 +1,124 @@
+package fr.ml;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Poll the processes using GPUs every {@code processes.refresh}, into a {@link ProcessTable}, in a thread of its own.
+ * <p>
+ * Processes are listed by running {@code nvidia-smi --query-compute-apps=pid,process_name,used_memory
+ * --format=csv,noheader,nounits} once per period (or the command configured by {@code source.command}, or the
+ * simulator if {@code source.simulator} is {@code true}): each run gives a complete snapshot, so that exited
+ * processes are known. Lines that cannot be parsed are skipped, with a warning.
+ */
+class ProcessPoller implements Closeable {
+	
+	/** The fields queried. */
+	static final List<String> FIELDS = Arrays.asList("pid", "process_name", "used_memory");
+	
+	private final ProcessTable table = new ProcessTable();
+	/** Given the table and the snapshot time after each snapshot, from the polling thread. */
+	private final ObjLongConsumer<ProcessTable> consumer;
+	private final int periodMs;
+	/** The command and its arguments, {@code null} to simulate processes. */
+	private final List<String> command;
+	private final FakeSmi sim;
+	private final Thread thread;
+	private volatile boolean closed;
+	/** Errors running the command, and lines that cannot be parsed, are only reported once. */
+	private boolean warnedRun, warnedParse;
+	
+	ProcessPoller(Properties conf, ObjLongConsumer<ProcessTable> consumer) {
+		this.consumer = consumer;
+		periodMs = Math.max(100, NVMeasure.parseInt(conf, "processes.refresh", 2000));
+		if (Boolean.parseBoolean(conf.getProperty("source.simulator", "false"))) {
+			command = null;
+			sim = new FakeSmi(Arrays.asList(), NVMeasure.parseInt(conf, "source.simulator.gpus", 1), 0);
+		} else {
+			command = new ArrayList<>(Arrays.asList(conf.getProperty("source.command", "nvidia-smi").trim().split("\\s+")));
+			command.add("--query-compute-apps="+String.join(",", FIELDS));
+			command.add("--format=csv,noheader,nounits");
+			sim = null;
+		}
+		thread = new Thread(this::poll, "Processes reader");
+		thread.setDaemon(true);
+	}
+	
+	ProcessPoller start() {
+		thread.start();
+		return this;
+	}
+	
+	private void poll() {
+		float[] values = new float[FIELDS.size()];
+		for (long next = System.currentTimeMillis(); !closed; ) {
+			long t = System.currentTimeMillis();
+			try {
+				snapshot(values);
+				consumer.accept(table, t);
+			} catch (IOException e) {
+				if (!warnedRun) {
+					System.err.println("Cannot list GPU processes: "+e.getMessage());
+					warnedRun = true;
+				}
+			}
+			next += periodMs;
+			long now = System.currentTimeMillis();
+			if (next < now) { // Late: do not catch up
+				next = now + periodMs;
+			}
+			for (long wait; (wait = next - System.currentTimeMillis()) > 0 && !closed; ) {
+				LockSupport.parkNanos(wait * 1_000_000);
+			}
+		}
+	}
+	
+	/** Read a snapshot of the processes into {@link #table}. */
+	private void snapshot(float[] values) throws IOException {
+		Process process = (command == null ? null : new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start());
+		try (InputStream in = (process == null ? new ByteArrayInputStream(sim.computeApps(FIELDS).getBytes(StandardCharsets.ISO_8859_1)) : process.getInputStream())) {
+			SmiParser parser = new SmiParser(in);
+			table.begin();
+			for (int n; (n = parser.next(values)) >= 0; ) {
+				int last = n - 1; // Names may hold commas: they are all fields between the PID and the memory
+				float memory = (n < 3 ? Float.NaN : SmiParser.parseFloat(parser.buffer(), parser.fieldStart(last), parser.fieldEnd(last)));
+				if (n < 3 || parser.invalid(0) || Float.isNaN(values[0])) {
+					if (!warnedParse) {
+						System.err.println("Cannot parse GPU process "+(n > 0 ? parser.field(0) : "")+", skipped");
+						warnedParse = true;
+					}
+					continue;
+				}
+				String name = new String(parser.buffer(), parser.fieldStart(1), parser.fieldEnd(last - 1) - parser.fieldStart(1), StandardCharsets.ISO_8859_1);
+				table.put((int)values[0], name, memory);
+			}
+			table.end();
+		} finally {
+			if (process != null) {
+				process.destroy();
+			}
+		}
+	}
+	
+	/** Stop polling, waiting for the current snapshot to be given. */
+	@Override
+	public void close() {
+		closed = true;
+		LockSupport.unpark(thread);
+		try {
+			thread.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+}
@@ -0,0 +1,238 @@
+package fr.ml;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The processes using GPUs, as listed by {@code nvidia-smi --query-compute-apps=pid,process_name,used_memory}: the
+ * GPU memory used by each process (summed over GPUs), updated from snapshots of all processes.
+ * <p>
+ * Processes are kept in slots of primitive arrays, found by PID through an open-addressing table of {@code int}s.
+ * Names are interned, so that many processes of the same program share it. Processes missing from a snapshot have
+ * exited: their slot and PID are evicted and reused, and names no longer used are forgotten, so that memory stays
+ * bounded by the number of processes running at the same time, whatever the number of short-lived ones.
+ */
+public class ProcessTable {
+	
+	/** Open-addressing table of slot + 1 by PID hash ({@code 0} if empty), its length being a power of 2. */
+	private int[] table = new int[16];
+	/** Slots: PID, name, memory used (MiB), and snapshot when last seen. Free slots are chained by {@link #pids}. */
+	private int[] pids = new int[8];
+	private int[] names = new int[8];
+	private float[] memory = new float[8];
+	private long[] seen = new long[8];
+	/** Number of processes, number of slots ever used, and first free slot ({@code -1} if none). */
+	private int size, used, free = -1;
+	/** Interned names, by id, how many processes use each, and the id of each name. */
+	private String[] nameOf = new String[8];
+	private int[] nameRefs = new int[8];
+	private final Map<String,Integer> nameIds = new HashMap<>();
+	private int freeName = -1, usedNames;
+	/** Number of the current snapshot. */
+	private long snapshot;
+	
+	/** Start a new snapshot of processes: those not {@link #put(int, String, float)} until {@link #end()} have exited. */
+	public void begin() {
+		snapshot++;
+	}
+	
+	/**
+	 * Add a process to the snapshot, or update it.
+	 * @param name Its name, only interned if the process is new or its name changed.
+	 * @param usedMiB The GPU memory it uses, MiB, added to its other GPUs memory in the same snapshot. {@code NaN} if
+	 * 		not available (e.g. in containers, with MIG, or on Windows WDDM).
+	 */
+	public void put(int pid, String name, float usedMiB) {
+		int s = slot(pid);
+		if (s < 0) {
+			s = add(pid);
+			names[s] = intern(name);
+		} else if (!nameOf[names[s]].equals(name)) { // PID reused
+			release(names[s]);
+			names[s] = intern(name);
+		}
+		memory[s] = (seen[s] != snapshot || Float.isNaN(memory[s]) ? usedMiB : Float.isNaN(usedMiB) ? memory[s] : memory[s] + usedMiB);
+		seen[s] = snapshot;
+	}
+	
+	/** End the snapshot: evict processes that exited. */
+	public void end() {
+		for (int s = 0; s < used; s++) {
+			if (seen[s] >= 0 && seen[s] != snapshot) {
+				remove(s);
+			}
+		}
+	}
+	
+	/** @return The slot of a process, {@code -1} if it is not running. */
+	public int slot(int pid) {
+		int mask = table.length - 1;
+		for (int h = hash(pid) & mask; table[h] != 0; h = (h + 1) & mask) {
+			if (pids[table[h] - 1] == pid) {
+				return table[h] - 1;
+			}
+		}
+		return -1;
+	}
+	
+	/** @return The number of running processes. */
+	public int size() {
+		return size;
+	}
+	
+	/** @return The number of slots allocated, which only grows with the number of processes running at the same time. */
+	public int capacity() {
+		return pids.length;
+	}
+	
+	/** @return The number of interned names. */
+	public int names() {
+		return nameIds.size();
+	}
+	
+	public int pid(int slot) {
+		return pids[slot];
+	}
+	
+	public String name(int slot) {
+		return nameOf[names[slot]];
+	}
+	
+	/** @return The GPU memory used by the process of {@code slot}, MiB, {@code NaN} if not available. */
+	public float memory(int slot) {
+		return memory[slot];
+	}
+	
+	/**
+	 * List the processes using the most GPU memory, without allocation. Processes whose memory is not available
+	 * are ranked as using none.
+	 * @param top Where to write their slots, the most memory first, as many as it can hold.
+	 * @return The number of processes written.
+	 */
+	public int top(int[] top) {
+		int n = 0;
+		for (int s = 0; s < used; s++) {
+			if (seen[s] < 0) {
+				continue;
+			}
+			float m = rank(s);
+			int i = Math.min(n, top.length - 1);
+			if (i < 0 || (n == top.length && !(m > rank(top[i])))) {
+				continue;
+			}
+			for (; i > 0 && m > rank(top[i-1]); i--) { // Insertion
+				top[i] = top[i-1];
+			}
+			top[i] = s;
+			n = Math.min(n + 1, top.length);
+		}
+		return n;
+	}
+	
+	/** @return The memory the process of {@code slot} is ranked with, {@code 0} if not available. */
+	private float rank(int slot) {
+		float m = memory[slot];
+		return (Float.isNaN(m) ? 0 : m);
+	}
+	
+	static private int hash(int pid) {
+		return pid * 0x9E3779B9 >>> 7;
+	}
+	
+	private int add(int pid) {
+		int s = free;
+		if (s >= 0) {
+			free = pids[s];
+		} else {
+			if (used == pids.length) {
+				int n = 2 * used;
+				pids = Arrays.copyOf(pids, n);
+				names = Arrays.copyOf(names, n);
+				memory = Arrays.copyOf(memory, n);
+				seen = Arrays.copyOf(seen, n);
+			}
+			s = used++;
+		}
+		pids[s] = pid;
+		seen[s] = 0;
+		if (++size > table.length / 2) {
+			rehash(2 * table.length);
+		} else {
+			insert(s);
+		}
+		return s;
+	}
+	
+	private void insert(int s) {
+		int mask = table.length - 1;
+		int h = hash(pids[s]) & mask;
+		while (table[h] != 0) {
+			h = (h + 1) & mask;
+		}
+		table[h] = s + 1;
+	}
+	
+	private void rehash(int length) {
+		table = new int[length];
+		for (int s = 0; s < used; s++) {
+			if (seen[s] >= 0) {
+				insert(s);
+			}
+		}
+	}
+	
+	/** Remove the process of slot {@code s}, shifting back the next entries of its cluster (no tombstones). */
+	private void remove(int s) {
+		int mask = table.length - 1;
+		int h = hash(pids[s]) & mask;
+		while (table[h] != s + 1) {
+			h = (h + 1) & mask;
+		}
+		table[h] = 0;
+		for (int i = (h + 1) & mask; table[i] != 0; i = (i + 1) & mask) {
+			int home = hash(pids[table[i] - 1]) & mask;
+			if (((i - home) & mask) >= ((i - h) & mask)) { // Its home is not between the hole and it: move it to the hole
+				table[h] = table[i];
+				table[i] = 0;
+				h = i;
+			}
+		}
+		release(names[s]);
+		seen[s] = -1;
+		pids[s] = free;
+		free = s;
+		size--;
+	}
+	
+	private int intern(String name) {
+		Integer id = nameIds.get(name);
+		if (id == null) {
+			if (freeName >= 0) {
+				id = freeName;
+				freeName = nameRefs[id];
+			} else {
+				if (usedNames == nameOf.length) {
+					nameOf = Arrays.copyOf(nameOf, 2 * usedNames);
+					nameRefs = Arrays.copyOf(nameRefs, 2 * usedNames);
+				}
+				id = usedNames++;
+			}
+			nameOf[id] = name;
+			nameRefs[id] = 0;
+			nameIds.put(name, id);
+		}
+		nameRefs[id]++;
+		return id;
+	}
+	
+	private void release(int id) {
+		if (--nameRefs[id] == 0) {
+			nameIds.remove(nameOf[id]);
+			nameOf[id] = null;
+			nameRefs[id] = freeName;
+			freeName = id;
+		}
+	}
+	
+}
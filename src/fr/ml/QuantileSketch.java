@@ -0,0 +1,162 @@
+package fr.ml;
+
+import java.util.Arrays;
+
+/**
+ * Streaming quantiles of a series of values, with a bounded relative error (DDSketch): values are counted in
+ * buckets whose bounds grow geometrically, {@code ]gamma^(i-1); gamma^i]}, so that any quantile is given within
+ * {@code accuracy} of its actual value, without keeping values.
+ * <p>
+ * Adding a value takes constant time, and memory only depends on the range of values (about 1,400 buckets from
+ * {@code 1e-6} to {@code 1e6} at 1% accuracy). Sketches of the same accuracy are merged by adding their buckets, so the
+ * quantiles of several series (e.g. GPUs) or time windows are those of all their values.
+ */
+class QuantileSketch {
+	
+	/** Magnitude under which values are counted as {@code 0}. */
+	static private final double MIN_MAGNITUDE = 1e-6;
+	
+	private final double accuracy, logGamma;
+	/** Counts of positive values, and of negative ones by magnitude. */
+	private final Store positive = new Store(), negative = new Store();
+	private long zeros, count;
+	
+	/**
+	 * @param accuracy The relative error of quantiles (e.g. {@code 0.01} for 1%).
+	 */
+	QuantileSketch(double accuracy) {
+		this.accuracy = accuracy;
+		logGamma = Math.log((1 + accuracy) / (1 - accuracy));
+	}
+	
+	/** Count a value. {@code NaN} are ignored. */
+	void add(float v) {
+		if (v > MIN_MAGNITUDE) {
+			positive.add(index(v), 1);
+		} else if (v < -MIN_MAGNITUDE) {
+			negative.add(index(-v), 1);
+		} else if (v == v) { // Not NaN
+			zeros++;
+		} else {
+			return;
+		}
+		count++;
+	}
+	
+	/** @return The bucket of magnitude {@code v}. */
+	private int index(double v) {
+		return (int)Math.ceil(Math.log(v) / logGamma);
+	}
+	
+	/** @return The value representing bucket {@code i}, within {@link #accuracy} of all values of the bucket. */
+	private double value(int i) {
+		return Math.exp(i * logGamma) * (1 - accuracy);
+	}
+	
+	/** @return The number of values counted. */
+	long count() {
+		return count;
+	}
+	
+	/**
+	 * @param q The quantile, between {@code 0} and {@code 1} (e.g. {@code 0.95} for the 95th percentile).
+	 * @return The value of quantile {@code q}, {@code NaN} if no value was counted.
+	 */
+	float quantile(double q) {
+		if (count == 0) {
+			return Float.NaN;
+		}
+		long rank = (long)(Math.max(0, Math.min(1, q)) * (count - 1));
+		long n = 0;
+		for (int i = negative.max; i >= negative.min; i--) { // Lowest values first
+			n += negative.get(i);
+			if (n > rank) {
+				return (float)-value(i);
+			}
+		}
+		n += zeros;
+		if (n > rank) {
+			return 0;
+		}
+		for (int i = positive.min; i <= positive.max; i++) {
+			n += positive.get(i);
+			if (n > rank) {
+				return (float)value(i);
+			}
+		}
+		return (float)value(positive.max); // Not reached
+	}
+	
+	/** Count the values of {@code other}, of the same accuracy. */
+	void merge(QuantileSketch other) {
+		positive.merge(other.positive);
+		negative.merge(other.negative);
+		zeros += other.zeros;
+		count += other.count;
+	}
+	
+	/** Forget all values. */
+	void clear() {
+		positive.clear();
+		negative.clear();
+		zeros = count = 0;
+	}
+	
+	
+	
+	/**
+	 * Counts by bucket index, in an array growing to the range of indexes used.
+	 */
+	static private class Store {
+		
+		private long[] counts = new long[0];
+		/** Bucket index of {@code counts[0]}. */
+		private int offset;
+		/** Range of non-empty buckets ({@code min > max} if empty). */
+		private int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+		
+		private long get(int i) {
+			return counts[i - offset];
+		}
+		
+		private void add(int i, long n) {
+			if (i < offset || i >= offset + counts.length) {
+				grow(Math.min(i, min), Math.max(i, max));
+			}
+			counts[i - offset] += n;
+			min = Math.min(min, i);
+			max = Math.max(max, i);
+		}
+		
+		/** Make room for buckets {@code from} to {@code to}, with some margin to grow less often. */
+		private void grow(int from, int to) {
+			int margin = Math.max(32, (to - from) / 2);
+			long[] c = new long[to - from + 1 + 2 * margin];
+			int off = from - margin;
+			if (min <= max) {
+				System.arraycopy(counts, min - offset, c, min - off, max - min + 1);
+			}
+			counts = c;
+			offset = off;
+		}
+		
+		private void merge(Store other) {
+			for (int i = other.min; i <= other.max; i++) {
+				long n = other.get(i);
+				if (n != 0) {
+					add(i, n);
+				}
+			}
+		}
+		
+		private void clear() {
+			if (min <= max) {
+				Arrays.fill(counts, min - offset, max - offset + 1, 0);
+			}
+			min = Integer.MAX_VALUE;
+			max = Integer.MIN_VALUE;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,283 @@
+package fr.ml;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads measures rows recorded by {@link RecordingWriter}, in timestamp order (rows of all GPUs merged).
+ * <p>
+ * The file is memory-mapped, and blocks are only decoded when reached. Blocks time ranges are read from the
+ * index at the end of the file (or from blocks headers if the recording was not closed properly), so that
+ * {@link #seek(long)} only decodes the blocks containing the given time.
+ */
+public class RecordingReader implements Closeable {
+	
+	private final FileChannel channel;
+	/** The whole file, {@code null} if too large to be mapped at once (blocks are then mapped one by one). */
+	private final ByteBuffer map;
+	private final List<String> columns;
+	
+	/** Blocks of each GPU, in time order: time of first and last rows, file offset. */
+	private final Map<Integer,long[][]> blocks = new TreeMap<>();
+	/** Position in each GPU blocks. */
+	private final List<Cursor> cursors = new ArrayList<>();
+	
+	/**
+	 * Open a recording, positioned on its first row.
+	 * @throws IOException When the file cannot be read, or is not a recording.
+	 */
+	public RecordingReader(Path file) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			map = (size <= Integer.MAX_VALUE ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : null);
+			
+			// Header
+			ByteBuffer h = region(0, (int)Math.min(size, 1 << 20));
+			if (h.limit() < 8 || h.getInt(0) != RecordingWriter.MAGIC) {
+				throw new IOException(file+" is not a recording");
+			}
+			if (h.getShort(4) != RecordingWriter.VERSION) {
+				throw new IOException(file+" is a recording of unsupported version "+h.getShort(4));
+			}
+			int nColumns = h.getShort(6);
+			List<String> cols = new ArrayList<>(nColumns);
+			int pos = 8;
+			for (int c = 0; c < nColumns; c++) {
+				byte[] b = new byte[h.getShort(pos)];
+				h.get(pos + 2, b);
+				cols.add(new String(b, StandardCharsets.UTF_8));
+				pos += 2 + b.length;
+			}
+			columns = Collections.unmodifiableList(cols);
+			
+			// Blocks index
+			List<long[]> index = readIndex(size);
+			if (index == null) {
+				index = scanBlocks(pos, size);
+			}
+			Map<Integer,List<long[]>> perGpu = new TreeMap<>();
+			for (long[] e : index) {
+				perGpu.computeIfAbsent((int)e[3], g -> new ArrayList<>()).add(e);
+			}
+			for (Map.Entry<Integer,List<long[]>> e : perGpu.entrySet()) {
+				long[][] b = e.getValue().toArray(new long[0][]);
+				Arrays.sort(b, (b1, b2) -> Long.compare(b1[0], b2[0]));
+				blocks.put(e.getKey(), b);
+				cursors.add(new Cursor(b, nColumns));
+			}
+			seek(Long.MIN_VALUE);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+	
+	/** @return {@code length} bytes of the file from {@code offset}, at index 0 of the returned buffer. */
+	private ByteBuffer region(long offset, int length) throws IOException {
+		if (map != null) {
+			return map.duplicate().position((int)offset).limit((int)offset + length).slice();
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+	}
+	
+	/** @return The index written at the end of the file, {@code null} if there is none. */
+	private List<long[]> readIndex(long size) throws IOException {
+		if (size < RecordingWriter.FOOTER) {
+			return null;
+		}
+		ByteBuffer f = region(size - RecordingWriter.FOOTER, RecordingWriter.FOOTER);
+		long offset = f.getLong(0);
+		if (f.getInt(8) != RecordingWriter.END_MAGIC || offset < 0 || offset + 8 > size) {
+			return null;
+		}
+		ByteBuffer b = region(offset, (int)(size - offset));
+		int n = b.getInt(4);
+		if (b.getInt(0) != RecordingWriter.INDEX_MAGIC || 8 + (long)n * RecordingWriter.INDEX_ENTRY + RecordingWriter.FOOTER > b.limit()) {
+			return null;
+		}
+		List<long[]> index = new ArrayList<>(n);
+		for (int i = 0, pos = 8; i < n; i++, pos += RecordingWriter.INDEX_ENTRY) {
+			index.add(new long[] { b.getLong(pos), b.getLong(pos + 8), b.getLong(pos + 16), b.getInt(pos + 24) });
+		}
+		return index;
+	}
+	
+	/** @return The index built from blocks headers, up to the last complete block. */
+	private List<long[]> scanBlocks(long pos, long size) throws IOException {
+		List<long[]> index = new ArrayList<>();
+		while (pos + RecordingWriter.BLOCK_HEADER <= size) {
+			ByteBuffer h = region(pos, RecordingWriter.BLOCK_HEADER);
+			int length = h.getInt(28);
+			if (h.getInt(0) != RecordingWriter.BLOCK_MAGIC || length < 0 || pos + RecordingWriter.BLOCK_HEADER + length > size) {
+				break; // Index, or block being written when the recording stopped
+			}
+			index.add(new long[] { h.getLong(12), h.getLong(20), pos, h.getInt(4) });
+			pos += RecordingWriter.BLOCK_HEADER + length;
+		}
+		return index;
+	}
+	
+	/** @return The recorded queries, in the order of rows values ({@code "timestamp"} first). */
+	public List<String> columns() {
+		return columns;
+	}
+	
+	/** @return The recorded GPUs indexes. */
+	public List<Integer> gpus() {
+		return new ArrayList<>(blocks.keySet());
+	}
+	
+	/** @return The timestamp of the first row, {@code Long.MAX_VALUE} if there is none. */
+	public long startTime() {
+		long t = Long.MAX_VALUE;
+		for (long[][] b : blocks.values()) {
+			t = Math.min(t, b[0][0]);
+		}
+		return t;
+	}
+	
+	/** @return The timestamp of the last row, {@code Long.MIN_VALUE} if there is none. */
+	public long endTime() {
+		long t = Long.MIN_VALUE;
+		for (long[][] b : blocks.values()) {
+			t = Math.max(t, b[b.length-1][1]);
+		}
+		return t;
+	}
+	
+	/**
+	 * Position on the first row at or after {@code t}: only the blocks containing {@code t} are decoded.
+	 * @throws IOException When reading the file fails.
+	 */
+	public void seek(long t) throws IOException {
+		for (Cursor c : cursors) {
+			c.seek(t);
+		}
+	}
+	
+	/**
+	 * Read the next row.
+	 * @param s Where to read the row, with as many values as {@link #columns()}.
+	 * @return {@code false} at the end of the recording.
+	 * @throws IOException When reading the file fails.
+	 */
+	public boolean next(Sample s) throws IOException {
+		Cursor next = null;
+		for (Cursor c : cursors) {
+			if (c.i < c.n && (next == null || c.t[c.i] < next.t[next.i])) {
+				next = c;
+			}
+		}
+		if (next == null) {
+			return false;
+		}
+		int i = next.i;
+		s.t = next.t[i];
+		s.values[0] = Float.NaN; // Timestamp
+		for (int c = 1; c < next.values.length; c++) {
+			s.values[c] = next.values[c][i];
+		}
+		next.i++;
+		if (next.i == next.n) {
+			next.load(next.block + 1);
+		}
+		return true;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+	
+	
+	
+	/**
+	 * Rows of a GPU: its blocks, and the decoded current one.
+	 */
+	private class Cursor {
+		
+		/** Blocks: time of first and last rows, file offset. */
+		private final long[][] blocks;
+		/** Current block index in {@link #blocks}. */
+		private int block;
+		/** Decoded rows of the current block. */
+		private long[] t = new long[0];
+		private final float[][] values;
+		/** Number of rows in the current block, and position of the next row. */
+		private int n, i;
+		/** Leading and trailing zeros of the previous XOR, used while decoding. */
+		private final int[] window = new int[2];
+		
+		private Cursor(long[][] blocks, int nColumns) {
+			this.blocks = blocks;
+			values = new float[nColumns][0];
+		}
+		
+		private void seek(long time) throws IOException {
+			// First block ending at or after 'time'
+			int lo = 0, hi = blocks.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (blocks[mid][1] < time) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			load(lo);
+			while (i < n && t[i] < time) {
+				i++;
+			}
+		}
+		
+		/** Decode block {@code b}. */
+		private void load(int b) throws IOException {
+			block = b;
+			i = n = 0;
+			if (b >= blocks.length) {
+				return;
+			}
+			long offset = blocks[b][2];
+			ByteBuffer h = region(offset, RecordingWriter.BLOCK_HEADER);
+			int rows = h.getInt(8);
+			if (t.length < rows) {
+				t = new long[rows];
+				for (int c = 1; c < values.length; c++) {
+					values[c] = new float[rows];
+				}
+			}
+			t[0] = h.getLong(12);
+			BitInput in = new BitInput(region(offset + RecordingWriter.BLOCK_HEADER, h.getInt(28)), 0);
+			long delta = 0;
+			for (int r = 1; r < rows; r++) {
+				delta += in.readDeltaOfDelta();
+				t[r] = t[r-1] + delta;
+			}
+			for (int c = 1; c < values.length; c++) {
+				float[] v = values[c];
+				int prev = (int)in.read(32);
+				v[0] = Float.intBitsToFloat(prev);
+				window[0] = -1;
+				for (int r = 1; r < rows; r++) {
+					prev ^= in.readXor(window);
+					v[r] = Float.intBitsToFloat(prev);
+				}
+			}
+			n = rows;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,293 @@
+package fr.ml;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Records measures rows to compact binary files, rolling over to a new file by size or time.
+ * <p>
+ * Rows are grouped per GPU into blocks of up to {@link #BLOCK_ROWS} rows (or {@link #BLOCK_DURATION} ms),
+ * stored by column: timestamps as delta-of-delta, then each query values XOR-ed with the previous value
+ * (Gorilla encoding). Regular timestamps and unchanged values only take one bit.
+ * <p>
+ * File layout (big endian):
+ * <pre>
+ * Header: int MAGIC, short VERSION, short nColumns, then each column name as short length + UTF-8 bytes
+ *         (column 0 is the timestamp, column 1 the GPU index)
+ * Blocks: int BLOCK_MAGIC, int gpu, int nRows, long tFirst, long tLast, int length, then length bytes of
+ *         bits: nRows-1 timestamps delta-of-delta, then for each column but the timestamp, nRows values
+ * Index:  int INDEX_MAGIC, int nBlocks, then for each block long tFirst, long tLast, long offset, int gpu
+ * Footer: long index offset, int END_MAGIC
+ * </pre>
+ * The index is written when the file is closed. A file without it (e.g. after a crash) can still be read
+ * by scanning blocks headers.
+ */
+public class RecordingWriter implements Closeable {
+	
+	static final int MAGIC = 0x4E565452; // "NVTR"
+	static final short VERSION = 1;
+	static final int BLOCK_MAGIC = 0x424C4B30; // "BLK0"
+	static final int INDEX_MAGIC = 0x494E4458; // "INDX"
+	static final int END_MAGIC = 0x454E4421; // "END!"
+	/** Size of a block header, bytes. */
+	static final int BLOCK_HEADER = 4 + 4 + 4 + 8 + 8 + 4;
+	/** Size of an index entry, bytes. */
+	static final int INDEX_ENTRY = 8 + 8 + 8 + 4;
+	/** Size of the footer, bytes. */
+	static final int FOOTER = 8 + 4;
+	
+	/** Maximum number of rows in a block. */
+	static public final int BLOCK_ROWS = 4096;
+	/** Maximum duration of a block, ms. Bounds what is lost if the process is killed. */
+	static public final int BLOCK_DURATION = 60_000;
+	
+	/**
+	 * Format of the timestamp inserted in files names, in UTC (see {@link #fileDate()}) so that names sort in time
+	 * order whatever daylight saving time or timezone changes.
+	 */
+	static final String FILE_DATE = "yyyyMMdd-HHmmss";
+	
+	/** Files path, a timestamp is inserted before its extension. */
+	private final Path path;
+	private final List<String> columns;
+	/** Column of the GPU index. */
+	private final int gpuCol;
+	/** Roll over to a new file when reaching that size (bytes) or duration (ms). {@code 0} to disable. */
+	private final long rollSize, rollTime;
+	
+	/** Current file, {@code null} until a row is appended. */
+	private FileChannel channel;
+	/** Whether {@link #close()} was called. */
+	private boolean closed;
+	/** Timestamp of the first row in the current file. */
+	private long fileStart;
+	/** Index of blocks written to the current file. */
+	private final List<long[]> index = new ArrayList<>();
+	
+	/** Blocks being filled, per GPU. */
+	private final Map<Integer,Block> blocks = new HashMap<>();
+	private final BitOutput bits = new BitOutput();
+	private ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+	
+	/**
+	 * @param path The files path. A timestamp (UTC) is inserted before its extension, e.g. {@code gpu.nvt} is
+	 * 		recorded to {@code gpu-20210906-153125.nvt}.
+	 * @param columns The queries, in the order of rows values: {@code "timestamp"}, {@code "index"}, then measures.
+	 * @param rollSize Roll over to a new file when it reaches that size, bytes. {@code 0} to disable.
+	 * @param rollTime Roll over to a new file when it spans that duration, ms. {@code 0} to disable.
+	 */
+	public RecordingWriter(Path path, List<String> columns, long rollSize, long rollTime) {
+		this.path = path;
+		this.columns = new ArrayList<>(columns);
+		this.gpuCol = columns.indexOf("index");
+		this.rollSize = rollSize;
+		this.rollTime = rollTime;
+	}
+	
+	/**
+	 * Append a row of measures.
+	 * @throws IOException When writing the file fails, or the recording was closed.
+	 */
+	synchronized public void append(Sample s) throws IOException {
+		if (closed) {
+			throw new IOException("Recording closed");
+		}
+		if (channel == null) {
+			open(s.t);
+		} else if (rollTime > 0 && s.t - fileStart >= rollTime) {
+			roll(s.t);
+		}
+		int gpu = (gpuCol < 0 || Float.isNaN(s.values[gpuCol]) ? 0 : (int)s.values[gpuCol]);
+		Block b = blocks.get(gpu);
+		if (b == null) {
+			b = new Block(gpu, columns.size());
+			blocks.put(gpu, b);
+		} else if (b.n > 0 && (b.n == BLOCK_ROWS || s.t - b.t[0] >= BLOCK_DURATION)) {
+			writeBlock(b);
+		}
+		b.add(s);
+		if (rollSize > 0 && channel.position() >= rollSize) {
+			roll(s.t);
+		}
+	}
+	
+	/** Write all pending rows and close the recording. */
+	@Override
+	synchronized public void close() throws IOException {
+		closed = true;
+		closeFile();
+	}
+	
+	/** Write all pending blocks, the index, and close the current file. */
+	private void closeFile() throws IOException {
+		if (channel == null) {
+			return;
+		}
+		for (Block b : blocks.values()) {
+			if (b.n > 0) {
+				writeBlock(b);
+			}
+		}
+		
+		// Index and footer
+		long indexOffset = channel.position();
+		ensure(4 + 4 + index.size() * INDEX_ENTRY + FOOTER);
+		out.putInt(INDEX_MAGIC);
+		out.putInt(index.size());
+		for (long[] e : index) {
+			out.putLong(e[0]);
+			out.putLong(e[1]);
+			out.putLong(e[2]);
+			out.putInt((int)e[3]);
+		}
+		out.putLong(indexOffset);
+		out.putInt(END_MAGIC);
+		flush();
+		channel.close();
+		channel = null;
+		index.clear();
+	}
+	
+	/** @return The format of the timestamp inserted in files names, {@link #FILE_DATE} in UTC. */
+	static SimpleDateFormat fileDate() {
+		SimpleDateFormat df = new SimpleDateFormat(FILE_DATE);
+		df.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return df;
+	}
+	
+	private void roll(long t) throws IOException {
+		closeFile();
+		open(t);
+	}
+	
+	private void open(long t) throws IOException {
+		String name = path.getFileName().toString();
+		int ext = name.lastIndexOf('.');
+		String base = (ext > 0 ? name.substring(0, ext) : name);
+		String suffix = (ext > 0 ? name.substring(ext) : "");
+		String date = fileDate().format(new Date(t));
+		for (int i = 0; channel == null; i++) {
+			Path p = path.resolveSibling(base+"-"+date+(i > 0 ? "-"+i : "")+suffix);
+			try {
+				channel = FileChannel.open(p, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			} catch (FileAlreadyExistsException e) {
+				// Try next name
+			}
+		}
+		fileStart = t;
+		
+		// Header
+		out.clear();
+		out.putInt(MAGIC);
+		out.putShort(VERSION);
+		out.putShort((short)columns.size());
+		for (String c : columns) {
+			byte[] b = c.getBytes(StandardCharsets.UTF_8);
+			ensure(2 + b.length);
+			out.putShort((short)b.length);
+			out.put(b);
+		}
+		flush();
+	}
+	
+	/** Encode block {@code b} to the current file, and empty it. */
+	private void writeBlock(Block b) throws IOException {
+		bits.clear();
+		b.encode(bits);
+		ensure(BLOCK_HEADER + bits.length());
+		long offset = channel.position();
+		out.putInt(BLOCK_MAGIC);
+		out.putInt(b.gpu);
+		out.putInt(b.n);
+		out.putLong(b.t[0]);
+		out.putLong(b.t[b.n-1]);
+		out.putInt(bits.length());
+		bits.copyTo(out);
+		flush();
+		index.add(new long[] { b.t[0], b.t[b.n-1], offset, b.gpu });
+		b.n = 0;
+	}
+	
+	/** Make sure {@link #out} has room for {@code n} more bytes. */
+	private void ensure(int n) {
+		if (out.remaining() < n) {
+			ByteBuffer b = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + n));
+			out.flip();
+			b.put(out);
+			out = b;
+		}
+	}
+	
+	/** Write {@link #out} to the file. */
+	private void flush() throws IOException {
+		out.flip();
+		while (out.hasRemaining()) {
+			channel.write(out);
+		}
+		out.clear();
+	}
+	
+	
+	
+	/**
+	 * Rows of a GPU, not written yet.
+	 */
+	static private class Block {
+		
+		private final int gpu;
+		private final long[] t = new long[BLOCK_ROWS];
+		/** Values per column (column 0, the timestamp, is unused). */
+		private final float[][] values;
+		private int n;
+		/** Leading and trailing zeros of the previous XOR, used while encoding. */
+		private final int[] window = new int[2];
+		
+		private Block(int gpu, int nColumns) {
+			this.gpu = gpu;
+			values = new float[nColumns][BLOCK_ROWS];
+		}
+		
+		private void add(Sample s) {
+			t[n] = s.t;
+			for (int c = 1; c < values.length; c++) {
+				values[c][n] = s.values[c];
+			}
+			n++;
+		}
+		
+		private void encode(BitOutput bits) {
+			long delta = 0;
+			for (int i = 1; i < n; i++) {
+				long d = t[i] - t[i-1];
+				bits.writeDeltaOfDelta(d - delta);
+				delta = d;
+			}
+			for (int c = 1; c < values.length; c++) {
+				float[] v = values[c];
+				int prev = Float.floatToIntBits(v[0]);
+				bits.write(prev, 32);
+				window[0] = -1;
+				for (int i = 1; i < n; i++) {
+					int cur = Float.floatToIntBits(v[i]);
+					bits.writeXor(cur ^ prev, window);
+					prev = cur;
+				}
+			}
+		}
+		
+	}
+	
+}
@@ -0,0 +1,186 @@
+package fr.ml;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.font.FontRenderContext;
+import java.awt.font.TextLayout;
+import java.awt.geom.AffineTransform;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Resources used to paint a graph, kept from one frame to the next so that a frame where nothing changed
+ * allocates close to nothing: text bounds, time ticks texts, values labels, derived fonts and colors.
+ * <p>
+ * Everything is keyed by what it is computed from (string, font, value, color...), so cached values never
+ * need to be invalidated for correctness; {@link #clear()} only frees memory, e.g. on configuration change.
+ * Like painting, it is meant to be used from a single thread.
+ */
+class RenderCache {
+	
+	/** Maximum number of text bounds kept per font. */
+	static private final int MAX_BOUNDS = 1024;
+	
+	/** Text bounds, by font then string. */
+	private final Map<Font,Map<String,Dimension>> bounds = new HashMap<>();
+	/** What {@link #bounds} were computed with. */
+	private FontRenderContext frc;
+	/** Last used font, and its text bounds. */
+	private Font lastFont;
+	private Map<String,Dimension> lastBounds;
+	
+	/** Time ticks texts: tick number (timestamp / ticks interval) and text, at index {@code tick % tickKeys.length}. */
+	private long[] tickKeys = new long[0];
+	private String[] tickTexts = new String[0];
+	/** Ticks interval and format {@link #tickTexts} were made with. */
+	private int tickInterval;
+	private String tickPattern;
+	private DateFormat tickFormat;
+	/** Reused by {@link #tickText(long, int, String, int)}. */
+	private final Date date = new Date();
+	
+	/** Rotated font of time ticks texts, and the font it is derived from. */
+	private Font tickFont, tickBase;
+	/** Font derived by {@link #font(Font, float)}. */
+	private Font sizedFont, sizedBase;
+	
+	/** Colors derived by {@link #alpha(Color, int)}: ARGB they are derived from, in insertion order. */
+	private int[] alphaKeys = new int[16];
+	private Color[] alphaColors = new Color[16];
+	private int nAlpha;
+	
+	/** Values labels: value and unit they were made with, by slot. */
+	private float[] labelValues = new float[0];
+	private String[] labelUnits = new String[0];
+	private String[] labels = new String[0];
+	
+	/** Forget everything. */
+	void clear() {
+		bounds.clear();
+		lastFont = null;
+		lastBounds = null;
+		tickPattern = null;
+		tickFont = sizedFont = null;
+		nAlpha = 0;
+		Arrays.fill(labels, null);
+	}
+	
+	/**
+	 * @return The bounds of {@code str} drawn with the current font of {@code g}. Shared: must not be modified.
+	 */
+	Dimension bounds(Graphics2D g, String str) {
+		FontRenderContext c = g.getFontRenderContext();
+		if (!c.equals(frc)) { // E.g. anti-aliasing changed
+			bounds.clear();
+			lastFont = null;
+			frc = c;
+		}
+		Font f = g.getFont();
+		if (f != lastFont) {
+			lastBounds = bounds.computeIfAbsent(f, k -> new HashMap<>());
+			lastFont = f;
+		}
+		Dimension d = lastBounds.get(str);
+		if (d == null) {
+			if (lastBounds.size() >= MAX_BOUNDS) { // Many different values labels: start over
+				lastBounds.clear();
+			}
+			Rectangle r = new TextLayout(str, f, c).getBounds().getBounds();
+			d = new Dimension(r.width, r.height);
+			lastBounds.put(str, d);
+		}
+		return d;
+	}
+	
+	/**
+	 * @param t The tick timestamp, a multiple of {@code interval}.
+	 * @param interval The ticks interval, ms.
+	 * @param pattern The {@link SimpleDateFormat} pattern.
+	 * @param nTicks How many ticks can be displayed at once.
+	 * @return The text of a time tick.
+	 */
+	String tickText(long t, int interval, String pattern, int nTicks) {
+		if (interval != tickInterval || !pattern.equals(tickPattern) || tickKeys.length < nTicks) {
+			tickInterval = interval;
+			if (!pattern.equals(tickPattern)) {
+				tickFormat = new SimpleDateFormat(pattern);
+				tickPattern = pattern;
+			}
+			int n = Math.max(nTicks, tickKeys.length);
+			tickKeys = new long[n];
+			tickTexts = new String[n];
+		}
+		long k = Math.floorDiv(t, interval);
+		int i = (int)Math.floorMod(k, (long)tickKeys.length);
+		if (tickTexts[i] == null || tickKeys[i] != k) {
+			date.setTime(t);
+			tickTexts[i] = tickFormat.format(date);
+			tickKeys[i] = k;
+		}
+		return tickTexts[i];
+	}
+	
+	/** @return {@code base} scaled by 0.9 and rotated by -22.5&deg;, for time ticks texts. */
+	Font tickFont(Font base) {
+		if (tickFont == null || !base.equals(tickBase)) {
+			AffineTransform at = new AffineTransform();
+			at.scale(0.9, 0.9);
+			at.rotate(-Math.PI / 8);
+			tickFont = base.deriveFont(at);
+			tickBase = base;
+		}
+		return tickFont;
+	}
+	
+	/** @return {@code base} with the given size. */
+	Font font(Font base, float size) {
+		if (sizedFont == null || !base.equals(sizedBase) || sizedFont.getSize2D() != size) {
+			sizedFont = base.deriveFont(size);
+			sizedBase = base;
+		}
+		return sizedFont;
+	}
+	
+	/** @return {@code c} with the given alpha (0 to 255). */
+	Color alpha(Color c, int alpha) {
+		int key = (c.getRGB() & 0xFFFFFF) | (alpha << 24);
+		for (int i = 0; i < nAlpha; i++) {
+			if (alphaKeys[i] == key) {
+				return alphaColors[i];
+			}
+		}
+		if (nAlpha == alphaKeys.length) { // Colors keep changing: start over
+			nAlpha = 0;
+		}
+		alphaKeys[nAlpha] = key;
+		return alphaColors[nAlpha++] = new Color(c.getRed(), c.getGreen(), c.getBlue(), alpha);
+	}
+	
+	/**
+	 * @param slot The label slot (e.g. an axis max), which keeps its last text.
+	 * @return The {@code "%.0f%s"} text of {@code v} and {@code unit}.
+	 */
+	String label(int slot, float v, String unit) {
+		if (slot >= labels.length) {
+			int n = Math.max(slot + 1, labels.length * 2);
+			labelValues = Arrays.copyOf(labelValues, n);
+			labelUnits = Arrays.copyOf(labelUnits, n);
+			labels = Arrays.copyOf(labels, n);
+		}
+		String s = labels[slot];
+		if (s == null || Float.compare(v, labelValues[slot]) != 0 || !unit.equals(labelUnits[slot])) {
+			s = labels[slot] = String.format("%.0f%s", v, unit);
+			labelValues[slot] = v;
+			labelUnits[slot] = unit;
+		}
+		return s;
+	}
+	
+}
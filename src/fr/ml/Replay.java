@@ -0,0 +1,180 @@
+package fr.ml;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Replays recordings (see {@link RecordingWriter}) as measures rows: in real time, N times faster, or as fast
+ * as possible, as a {@link SampleSource}. It is also the clock of the replayed time, to give to graphs.
+ */
+public class Replay implements SampleSource, Supplier<Long> {
+	
+	/** Recordings to replay, in time order. */
+	private final List<Path> files;
+	/** Replay speed (e.g. {@code 2} for twice faster than real time), {@code 0} for as fast as possible. */
+	private final double speed;
+	/** Time to start the replay from. */
+	private final long from;
+	private final List<String> columns;
+	private final List<Integer> gpus;
+	
+	/** Replayed time of the first row, and when it was replayed ({@code System.nanoTime()}). */
+	private volatile long recStart = Long.MIN_VALUE, wallStart;
+	/** Timestamp of the last replayed row. */
+	private volatile long last = Long.MIN_VALUE;
+	
+	/** Index in {@link #files} of the next recording to replay. */
+	private int file;
+	/** Recording being replayed, {@code null} if none. */
+	private RecordingReader reader;
+	
+	/**
+	 * @param path A recording, or a directory of recordings ({@code *.nvt} files, replayed in name order).
+	 * @param speed Replay speed (e.g. {@code 2} for twice faster than real time), {@code 0} for as fast as possible.
+	 * @param from Time to start the replay from, {@code Long.MIN_VALUE} to replay everything.
+	 * @throws IOException When recordings cannot be read.
+	 */
+	public Replay(Path path, double speed, long from) throws IOException {
+		this.speed = speed;
+		this.from = from;
+		if (Files.isDirectory(path)) {
+			try (Stream<Path> s = Files.list(path)) {
+				files = s.filter(p -> p.getFileName().toString().endsWith(".nvt")).sorted().collect(Collectors.toList());
+			}
+		} else {
+			files = List.of(path);
+		}
+		
+		// Queries of the first recording to replay, and all GPUs
+		List<String> cols = null;
+		SortedSet<Integer> g = new TreeSet<>();
+		for (Path p : files) {
+			try (RecordingReader r = new RecordingReader(p)) {
+				if (r.endTime() < from) {
+					continue;
+				}
+				if (cols == null) {
+					cols = r.columns();
+				}
+				g.addAll(r.gpus());
+			}
+		}
+		if (cols == null) {
+			throw new IOException("No recording to replay in "+path+(from != Long.MIN_VALUE ? " after "+from : ""));
+		}
+		columns = cols;
+		gpus = new ArrayList<>(g);
+	}
+	
+	/** @return The recorded queries, in the order of rows values. */
+	public List<String> columns() {
+		return columns;
+	}
+	
+	/** @return The recorded GPUs indexes. */
+	public List<Integer> gpus() {
+		return gpus;
+	}
+	
+	/** @return The replayed time. */
+	@Override
+	public Long get() {
+		long r = recStart;
+		if (speed <= 0 || r == Long.MIN_VALUE) {
+			long l = last;
+			return l == Long.MIN_VALUE ? System.currentTimeMillis() : l;
+		}
+		return r + (long)((System.nanoTime() - wallStart) / 1e6 * speed);
+	}
+	
+	/**
+	 * Read the next row, waiting until it is due.
+	 * @param s Where to read the row, with as many values as {@link #columns()}.
+	 */
+	@Override
+	public boolean next(Sample s) {
+		for (;;) {
+			if (reader == null && !open()) {
+				return false;
+			}
+			try {
+				if (reader.next(s)) {
+					pace(s.t);
+					last = s.t;
+					return true;
+				}
+			} catch (IOException e) {
+				System.err.println("Cannot replay "+files.get(file-1)+": "+e.getMessage());
+			}
+			closeReader();
+		}
+	}
+	
+	/** Open the next recording to replay. @return {@code false} if there is none. */
+	private boolean open() {
+		while (file < files.size()) {
+			Path p = files.get(file++);
+			try {
+				RecordingReader r = new RecordingReader(p);
+				if (r.endTime() < from) {
+					r.close();
+					continue;
+				}
+				if (!r.columns().equals(columns)) {
+					System.err.println("Queries recorded in "+p+" differ from "+columns+", skipping it");
+					r.close();
+					continue;
+				}
+				r.seek(from);
+				reader = r;
+				return true;
+			} catch (IOException e) {
+				System.err.println("Cannot replay "+p+": "+e.getMessage());
+			}
+		}
+		return false;
+	}
+	
+	private void closeReader() {
+		try {
+			reader.close();
+		} catch (IOException e) {
+			System.err.println("Cannot close "+files.get(file-1)+": "+e.getMessage());
+		}
+		reader = null;
+	}
+	
+	@Override
+	public void close() {
+		if (reader != null) {
+			closeReader();
+		}
+		file = files.size();
+	}
+	
+	/** Wait until a row recorded at {@code t} is due. */
+	private void pace(long t) {
+		if (speed <= 0) {
+			return;
+		}
+		if (recStart == Long.MIN_VALUE) {
+			wallStart = System.nanoTime();
+			recStart = t;
+			return;
+		}
+		long due = wallStart + (long)((t - recStart) * 1e6 / speed);
+		for (long now; (now = System.nanoTime()) < due; ) {
+			LockSupport.parkNanos(due - now);
+		}
+	}
+	
+}
@@ -0,0 +1,185 @@
+package fr.ml;
+
+import java.util.Arrays;
+
+/**
+ * A resolution of the measures of a graph, over a time window: either raw measures, or measures rolled up
+ * into fixed-duration buckets.
+ * <p>
+ * A bucket keeps the min and max of each series, stored as two samples (at the bucket start and middle) in the
+ * order they occurred: a line through them covers the same pixels as through the raw measures, as long as a bucket
+ * is narrower than a pixel column. Buckets are filled incrementally as measures are added, and stored once closed
+ * (i.e. when a measure of a following bucket comes).
+ * <p>
+ * Each tier is decimated by its own {@link M4Decimator}, so only new or evicted samples are processed on paint.
+ */
+class RollupTier {
+	
+	/** Bucket duration, ms. {@code 0} for raw measures. */
+	final int bucket;
+	/** Time window kept, ms. */
+	final int window;
+	/** Samples: raw measures, or two per closed bucket. */
+	final TimeSeriesStore store;
+	/** Reduces samples to what can be seen at the graph width. */
+	final M4Decimator m4 = new M4Decimator();
+	
+	/** Bucket being filled, {@code null} for raw measures. */
+	private final Bucket open;
+	
+	/**
+	 * @param bucket Bucket duration, ms. {@code 0} for raw measures.
+	 * @param window Time window kept, ms.
+	 * @param refresh Expected time between two measures, ms.
+	 */
+	RollupTier(int nSeries, int bucket, int window, int refresh) {
+		this(new TimeSeriesStore(nSeries, capacity(bucket, window, refresh)), bucket, window);
+	}
+	
+	/** Create a tier with another store capacity, keeping the most recent samples of {@code from}. */
+	RollupTier(RollupTier from, int window, int refresh) {
+		this(from, null, window, refresh);
+	}
+	
+	/**
+	 * Create a tier with another store capacity, keeping the most recent samples of series of {@code from}.
+	 * @param fromSeries The series of {@code from} giving each series of the new tier ({@code -1} for none),
+	 * 		{@code null} for the same series.
+	 */
+	RollupTier(RollupTier from, int[] fromSeries, int window, int refresh) {
+		this(new TimeSeriesStore(from.store, capacity(from.bucket, window, refresh), fromSeries), from.bucket, window);
+	}
+	
+	private RollupTier(TimeSeriesStore store, int bucket, int window) {
+		this.store = store;
+		this.bucket = bucket;
+		this.window = window;
+		open = (bucket <= 0 ? null : new Bucket(store.nSeries(), bucket));
+	}
+	
+	static private int capacity(int bucket, int window, int refresh) {
+		return bucket <= 0 ? TimeSeriesStore.capacity(window, refresh) : 2 * TimeSeriesStore.capacity(window, bucket);
+	}
+	
+	/**
+	 * Add a measure, more recent than all previous ones.
+	 * @return Whether samples were stored.
+	 */
+	boolean add(long t, float[] vals) {
+		if (open == null) {
+			store.add(t, vals);
+			return true;
+		}
+		long closed = open.add(t, vals);
+		if (closed == Long.MIN_VALUE) {
+			return false;
+		}
+		store.add(closed, open.first);
+		store.add(open.middle(closed), open.second);
+		return true;
+	}
+	
+	/**
+	 * Forget samples older than the window.
+	 * @param now The current time.
+	 * @return The number of forgotten samples.
+	 */
+	int forget(long now) {
+		return store.evictBefore(now - window);
+	}
+	
+	/** @return The timestamp of the oldest stored sample, {@code Long.MAX_VALUE} if none. */
+	long firstT() {
+		return store.size() == 0 ? Long.MAX_VALUE : store.t(store.head());
+	}
+	
+	
+	
+	/**
+	 * Min and max of each series over a fixed-duration bucket of time, in the order they occurred. Measures are
+	 * added in time order, and a bucket is closed when a measure of a following bucket comes.
+	 */
+	static class Bucket {
+		
+		/** Bucket duration, ms. */
+		final int duration;
+		/** Values of the last closed bucket (reused): first and second extreme of each series, {@code NaN} if no value. */
+		final float[] first, second;
+		
+		/** Start of the open bucket, {@code Long.MIN_VALUE} if none. */
+		private long start = Long.MIN_VALUE;
+		/** Number of measures added to the open bucket. */
+		private int count;
+		/** Min/max of each series in the open bucket ({@code NaN} if no value), and the measure index they come from. */
+		private final float[] min, max;
+		private final int[] minAt, maxAt;
+		
+		Bucket(int nSeries, int duration) {
+			this.duration = duration;
+			first = new float[nSeries];
+			second = new float[nSeries];
+			min = new float[nSeries];
+			max = new float[nSeries];
+			minAt = new int[nSeries];
+			maxAt = new int[nSeries];
+		}
+		
+		/**
+		 * Add a measure, more recent than all previous ones.
+		 * @return The start of the bucket it closed (its values are then in {@link #first} and {@link #second}),
+		 * 		{@code Long.MIN_VALUE} if none.
+		 */
+		long add(long t, float[] vals) {
+			long closed = Long.MIN_VALUE;
+			long b = t - Math.floorMod(t, duration);
+			if (b != start) {
+				closed = close();
+				start = b;
+				count = 0;
+				Arrays.fill(min, Float.NaN);
+				Arrays.fill(max, Float.NaN);
+			}
+			for (int is = 0; is < min.length; is++) {
+				float v = vals[is];
+				if (Float.isNaN(v)) {
+					continue;
+				}
+				if (!(v >= min[is])) { // Also when no value yet
+					min[is] = v;
+					minAt[is] = count;
+				}
+				if (!(v <= max[is])) {
+					max[is] = v;
+					maxAt[is] = count;
+				}
+			}
+			count++;
+			return closed;
+		}
+		
+		/**
+		 * Close the open bucket, e.g. when no more measures will come.
+		 * @return Its start (its values are then in {@link #first} and {@link #second}), {@code Long.MIN_VALUE} if none.
+		 */
+		long close() {
+			long s = start;
+			if (s == Long.MIN_VALUE) {
+				return s;
+			}
+			for (int is = 0; is < min.length; is++) {
+				boolean minFirst = (minAt[is] <= maxAt[is]);
+				first[is] = (minFirst ? min[is] : max[is]);
+				second[is] = (minFirst ? max[is] : min[is]);
+			}
+			start = Long.MIN_VALUE;
+			return s;
+		}
+		
+		/** @return When the second extreme of the bucket starting at {@code start} is stored. */
+		long middle(long start) {
+			return start + Math.max(1, duration / 2);
+		}
+		
+	}
+	
+}
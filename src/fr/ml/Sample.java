@@ -0,0 +1,18 @@
+package fr.ml;
+
+/**
+ * A row of measures taken at the same time, as given by {@code nvidia-smi} for a GPU.
+ * Instances are meant to be reused (see {@link SampleQueue}).
+ */
+public class Sample {
+	
+	/** Timestamp of the measures, ms. */
+	public long t;
+	/** Measures values, ordered as queries. */
+	public final float[] values;
+	
+	public Sample(int nValues) {
+		values = new float[nValues];
+	}
+	
+}
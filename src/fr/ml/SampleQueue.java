@@ -0,0 +1,86 @@
+package fr.ml;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue of {@link Sample}, for exactly one producer thread and one consumer thread.
+ * <p>
+ * Samples are pre-allocated and reused: the producer fills the sample given by {@link #claim()} then
+ * {@link #publish()}es it, the consumer reads the sample given by {@link #peek()} then {@link #release()}s it.
+ * Neither locks nor allocates.
+ */
+public class SampleQueue {
+	
+	private final Sample[] samples;
+	private final int mask;
+	
+	/** Number of samples released by the consumer. Only written by the consumer. */
+	private final AtomicLong head = new AtomicLong();
+	/** Number of samples published by the producer. Only written by the producer. */
+	private final AtomicLong tail = new AtomicLong();
+	/** Last {@link #head} seen by the producer, and last {@link #tail} seen by the consumer. */
+	private long headCache, tailCache;
+	
+	/**
+	 * @param capacity The maximum number of samples in the queue, rounded up to a power of 2.
+	 * @param nValues The number of values of each sample.
+	 */
+	public SampleQueue(int capacity, int nValues) {
+		int cap = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		samples = new Sample[cap];
+		for (int i = 0; i < cap; i++) {
+			samples[i] = new Sample(nValues);
+		}
+		mask = cap - 1;
+	}
+	
+	public int capacity() {
+		return samples.length;
+	}
+	
+	/** @return The number of published samples not released yet. */
+	public int size() {
+		return (int)(tail.get() - head.get());
+	}
+	
+	/**
+	 * Producer: get the next sample to fill.
+	 * @return The sample, or {@code null} if the queue is full.
+	 */
+	public Sample claim() {
+		long t = tail.getPlain();
+		if (t - headCache >= samples.length) {
+			headCache = head.getAcquire();
+			if (t - headCache >= samples.length) {
+				return null;
+			}
+		}
+		return samples[(int)t & mask];
+	}
+	
+	/** Producer: make the sample given by {@link #claim()} available to the consumer. */
+	public void publish() {
+		tail.setRelease(tail.getPlain() + 1);
+	}
+	
+	/**
+	 * Consumer: get the oldest published sample.
+	 * @return The sample, or {@code null} if the queue is empty.
+	 */
+	public Sample peek() {
+		long h = head.getPlain();
+		if (h >= tailCache) {
+			tailCache = tail.getAcquire();
+			if (h >= tailCache) {
+				return null;
+			}
+		}
+		return samples[(int)h & mask];
+	}
+	
+	/** Consumer: give the sample given by {@link #peek()} back to the producer. */
+	public void release() {
+		head.setRelease(head.getPlain() + 1);
+	}
+	
+}
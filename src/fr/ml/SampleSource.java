@@ -0,0 +1,28 @@
+package fr.ml;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A source of measures rows, e.g. {@code nvidia-smi} output.
+ */
+public interface SampleSource extends Closeable {
+	
+	/**
+	 * Read the next row of measures, waiting for it if needed.
+	 * @param s Where to read the row, with as many values as queries.
+	 * @return {@code false} when there are no more rows.
+	 * @throws IOException When reading fails.
+	 */
+	boolean next(Sample s) throws IOException;
+	
+	/**
+	 * Change the time between two rows of all GPUs, if the source can (e.g. not a process started with it).
+	 * @param periodMs The new period, ms.
+	 * @return Whether the period was changed.
+	 */
+	default boolean period(int periodMs) {
+		return false;
+	}
+	
+}
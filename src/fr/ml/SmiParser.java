@@ -0,0 +1,261 @@
+package fr.ml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streaming parser of {@code nvidia-smi --format=csv,noheader,nounits} output.
+ * <p>
+ * Bytes are read from the stream into a reused buffer, and fields are parsed in place into a {@code float[]}
+ * indexed by field position, so that parsing a line does not allocate anything once the buffer is large enough.
+ * Non-numeric fields (e.g. {@code N/A}, {@code [Not Supported]}) are parsed as {@code NaN}, without exceptions.
+ */
+public class SmiParser {
+	
+	static private final double[] POW10 = new double[23]; // Exactly representable powers of 10
+	static {
+		POW10[0] = 1;
+		for (int i = 1; i < POW10.length; i++) {
+			POW10[i] = POW10[i-1] * 10;
+		}
+	}
+	
+	private final InputStream in;
+	
+	/** Read buffer. Unparsed data is in {@code [pos; lim)}. */
+	private byte[] buf = new byte[8192];
+	private int pos, lim;
+	
+	/** Fields of the current line: start (inclusive) and end (exclusive) in {@link #buf}. */
+	private int[] fStart = new int[16], fEnd = new int[16];
+	/** Whether each field of the current line was neither a number nor a "not available" marker. */
+	private boolean[] fInvalid = new boolean[16];
+	private int nFields;
+	
+	public SmiParser(InputStream in) {
+		this.in = in;
+	}
+	
+	/**
+	 * Read and parse the next non-empty line.
+	 * @param values Where to parse fields values, by position. Fields beyond its length are not parsed.
+	 * @return The number of fields in the line, or {@code -1} at the end of the stream.
+	 * @throws IOException When reading from the stream fails.
+	 */
+	public int next(float[] values) throws IOException {
+		for (;;) {
+			int eol = nextLine();
+			if (eol < 0) {
+				nFields = 0;
+				return -1;
+			}
+			boolean empty = !split(pos, eol);
+			pos = eol + 1;
+			if (!empty) {
+				break;
+			}
+		}
+		
+		int n = Math.min(nFields, values.length);
+		for (int i = 0; i < n; i++) {
+			float v = parseFloat(buf, fStart[i], fEnd[i]);
+			values[i] = v;
+			fInvalid[i] = Float.isNaN(v) && !notAvailable(fStart[i], fEnd[i]);
+		}
+		for (int i = n; i < nFields; i++) {
+			fInvalid[i] = false;
+		}
+		return nFields;
+	}
+	
+	/**
+	 * Look for the end of the next line, reading more data if needed.
+	 * @return The position of the line end in {@link #buf}, {@code -1} at the end of the stream.
+	 */
+	private int nextLine() throws IOException {
+		int scan = pos;
+		for (;;) {
+			for (int i = scan; i < lim; i++) {
+				if (buf[i] == '\n') {
+					return i;
+				}
+			}
+			// No line end: make room and read more
+			if (pos > 0) {
+				System.arraycopy(buf, pos, buf, 0, lim - pos);
+				lim -= pos;
+				pos = 0;
+			}
+			if (lim == buf.length) { // Line longer than buffer
+				byte[] b = new byte[buf.length * 2];
+				System.arraycopy(buf, 0, b, 0, lim);
+				buf = b;
+			}
+			scan = lim;
+			int n = in.read(buf, lim, buf.length - lim);
+			if (n < 0) {
+				if (lim > pos) { // Last line without line end
+					buf[lim] = '\n'; // There is room as 'n < 0' means we asked for something
+					return lim++;
+				}
+				return -1;
+			}
+			lim += n;
+		}
+	}
+	
+	/**
+	 * Split line {@code [from; to)} into comma separated fields, trimmed.
+	 * @return {@code false} if the line is empty.
+	 */
+	private boolean split(int from, int to) {
+		while (to > from && buf[to-1] <= ' ') to--; // Also trims '\r'
+		while (from < to && buf[from] <= ' ') from++;
+		if (from == to) {
+			return false;
+		}
+		nFields = 0;
+		int s = from;
+		for (int i = from; i <= to; i++) {
+			if (i == to || buf[i] == ',') {
+				int e = i;
+				while (s < e && buf[s] == ' ') s++;
+				while (e > s && buf[e-1] == ' ') e--;
+				addField(s, e);
+				s = i + 1;
+			}
+		}
+		return true;
+	}
+	
+	private void addField(int s, int e) {
+		if (nFields == fStart.length) {
+			int n = nFields * 2;
+			fStart = Arrays.copyOf(fStart, n);
+			fEnd = Arrays.copyOf(fEnd, n);
+			fInvalid = Arrays.copyOf(fInvalid, n);
+		}
+		fStart[nFields] = s;
+		fEnd[nFields] = e;
+		nFields++;
+	}
+	
+	/** @return Whether {@code [s; e)} is "N/A" or "[N/A]" (case-insensitive). */
+	private boolean notAvailable(int s, int e) {
+		if (e - s == 5 && buf[s] == '[' && buf[e-1] == ']') {
+			s++;
+			e--;
+		}
+		return e - s == 3 && (buf[s] | 0x20) == 'n' && buf[s+1] == '/' && (buf[s+2] | 0x20) == 'a';
+	}
+	
+	/** @return The number of fields of the last parsed line. */
+	public int fields() {
+		return nFields;
+	}
+	
+	/** @return The buffer holding the last parsed line. Only valid until next call to {@link #next(float[])}. */
+	public byte[] buffer() {
+		return buf;
+	}
+	
+	/** @return Where field {@code i} of the last parsed line starts in {@link #buffer()}. */
+	public int fieldStart(int i) {
+		return fStart[i];
+	}
+	
+	/** @return Where field {@code i} of the last parsed line ends (exclusive) in {@link #buffer()}. */
+	public int fieldEnd(int i) {
+		return fEnd[i];
+	}
+	
+	/** @return Field {@code i} of the last parsed line, as a (newly allocated) {@code String}. */
+	public String field(int i) {
+		return new String(buf, fStart[i], fEnd[i] - fStart[i], StandardCharsets.ISO_8859_1);
+	}
+	
+	/** @return Whether field {@code i} of the last parsed line was neither a number nor a "N/A" marker. */
+	public boolean invalid(int i) {
+		return fInvalid[i];
+	}
+	
+	/** @return Whether more data can be read without blocking, i.e. whether another line is probably pending. */
+	public boolean pending() throws IOException {
+		return pos < lim || in.available() > 0;
+	}
+	
+	/**
+	 * Parse a decimal number (e.g. {@code -12.5}, {@code 3e-2}) from ASCII bytes, without allocating.
+	 * @return The parsed value, {@code NaN} if {@code [s; e)} is not a number.
+	 */
+	static public float parseFloat(byte[] b, int s, int e) {
+		int i = s;
+		boolean neg = false;
+		if (i < e && (b[i] == '-' || b[i] == '+')) {
+			neg = (b[i++] == '-');
+		}
+		long mant = 0;
+		int nDigits = 0, exp10 = 0;
+		boolean dot = false, digits = false;
+		for (; i < e; i++) {
+			int c = b[i];
+			if (c >= '0' && c <= '9') {
+				digits = true;
+				if (mant == 0 && c == '0') { // Leading zeros do not count as significant digits
+					if (dot) exp10--;
+					continue;
+				}
+				if (nDigits < 18) {
+					mant = mant * 10 + (c - '0');
+					nDigits++;
+					if (dot) exp10--;
+				} else if (!dot) {
+					exp10++; // Too many digits: ignore the least significant ones
+				}
+			} else if (c == '.' && !dot) {
+				dot = true;
+			} else {
+				break;
+			}
+		}
+		if (!digits) {
+			return Float.NaN;
+		}
+		if (i < e && (b[i] == 'e' || b[i] == 'E')) {
+			i++;
+			boolean eNeg = false;
+			if (i < e && (b[i] == '-' || b[i] == '+')) {
+				eNeg = (b[i++] == '-');
+			}
+			if (i == e) {
+				return Float.NaN;
+			}
+			int x = 0;
+			for (; i < e; i++) {
+				int c = b[i];
+				if (c < '0' || c > '9') {
+					return Float.NaN;
+				}
+				x = Math.min(x * 10 + (c - '0'), 1000);
+			}
+			exp10 += (eNeg ? -x : x);
+		}
+		if (i != e) { // Trailing garbage
+			return Float.NaN;
+		}
+		double d;
+		if (mant == 0) {
+			d = 0;
+		} else if (nDigits < 16 && exp10 >= 0 && exp10 < POW10.length) {
+			d = mant * POW10[exp10];
+		} else if (nDigits < 16 && exp10 < 0 && -exp10 < POW10.length) {
+			d = mant / POW10[-exp10];
+		} else { // Rare: let the JDK do it
+			return Float.parseFloat(new String(b, s, e - s, StandardCharsets.ISO_8859_1));
+		}
+		return (float)(neg ? -d : d);
+	}
+	
+}
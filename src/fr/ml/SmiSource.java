@@ -0,0 +1,101 @@
+package fr.ml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.List;
+
+/**
+ * Measures rows parsed from {@code nvidia-smi --query-gpu=... --format=csv,noheader,nounits} output
+ * (or anything following that format, like {@link FakeSmi}).
+ * <p>
+ * Lines with an unexpected number of values are skipped. Values that are neither numbers nor "N/A" are read
+ * as missing values ({@code NaN}). Both are reported on {@code System.err}, once per query for the latter.
+ * Rows whose timestamp cannot be parsed are given the current time, and reported like skipped lines.
+ */
+public class SmiSource implements SampleSource {
+	
+	private final InputStream in;
+	/** The process whose output is parsed, {@code null} if none. */
+	private final Process process;
+	private final List<String> queries;
+	private final SmiParser parser;
+	private final TimestampParser tsParser = new TimestampParser();
+	/** Invalid queries are only reported once. */
+	private final boolean[] warned;
+	/** Number of skipped lines, and when to report them next. */
+	private long skipped, report = 1;
+	/** Number of rows whose timestamp could not be parsed, and when to report them next. */
+	private long badTimes, reportTimes = 1;
+	
+	/**
+	 * Parse the output of a process.
+	 * @param queries The queries, in the order of their values.
+	 */
+	public SmiSource(Process process, List<String> queries) {
+		this(process, process.getInputStream(), queries);
+	}
+	
+	/**
+	 * Parse a stream.
+	 * @param queries The queries, in the order of their values.
+	 */
+	public SmiSource(InputStream in, List<String> queries) {
+		this(null, in, queries);
+	}
+	
+	private SmiSource(Process process, InputStream in, List<String> queries) {
+		this.process = process;
+		this.in = in;
+		this.queries = queries;
+		parser = new SmiParser(in);
+		warned = new boolean[queries.size()];
+	}
+	
+	@Override
+	public boolean next(Sample s) throws IOException {
+		int nQueries = queries.size();
+		for (;;) {
+			int nValues = parser.next(s.values);
+			if (nValues < 0) {
+				return false;
+			}
+			if (nValues == nQueries) {
+				break;
+			}
+			// Skip the line. Report the first one, then every power of 10
+			if (++skipped == report) {
+				report *= 10;
+				System.err.println("Retrieved values number ("+nValues+") inconsistent with expected ("+nQueries+"), skipped "+skipped+" line(s)");
+			}
+		}
+		
+		// Read timestamp
+		try {
+			s.t = tsParser.parse(parser.buffer(), parser.fieldStart(0), parser.fieldEnd(0));
+		} catch (ParseException e) { // Report the first one, then every power of 10
+			if (++badTimes == reportTimes) {
+				reportTimes *= 10;
+				System.err.println(e.getMessage()+", using the current time for "+badTimes+" row(s)");
+			}
+			s.t = System.currentTimeMillis();
+		}
+		
+		for (int i = 1; i < nQueries; i++) { // Skip timestamp
+			if (parser.invalid(i) && !warned[i]) { // Invalid query (doesn't give a float), "N/A" are NaN silently
+				System.err.println("Cannot parse query "+queries.get(i)+"="+parser.field(i)+", graphing it as missing values");
+				warned[i] = true;
+			}
+		}
+		return true;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (process != null) {
+			process.destroy();
+		}
+		in.close();
+	}
+	
+}
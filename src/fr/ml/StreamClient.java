@@ -0,0 +1,289 @@
+package fr.ml;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Viewer side of measures streaming: receives measures rows from collectors ({@link StreamServer}), all with
+ * a single thread using non-blocking channels (see {@link StreamCodec} for the protocol).
+ * <p>
+ * Rows of each collector are published to the queue given by the {@link Listener} at its first connection, ordered
+ * as the columns it had then. Dropped connections are retried with an increasing delay, and resume after the last
+ * row received. When a collector queue is full, its connection is not read until there is room again.
+ */
+public class StreamClient implements Closeable {
+	
+	/** Delays before reconnecting, ms. */
+	static private final long MIN_RETRY = 1_000, MAX_RETRY = 30_000;
+	
+	/**
+	 * Receives the rows of collectors.
+	 */
+	public interface Listener {
+		
+		/**
+		 * Called (on the client thread) on the first connection to a collector.
+		 * @param collector The collector {@code host:port}, as given to {@link StreamClient#add(String, int)}.
+		 * @param columns The queries of the collector, in the order of rows values.
+		 * @param gpus The GPUs indexes of the collector.
+		 * @return Where to publish the collector rows, with {@code columns.size()} values.
+		 */
+		SampleQueue connected(String collector, List<String> columns, List<Integer> gpus);
+		
+	}
+	
+	private final Listener listener;
+	private final Selector selector;
+	private final List<Collector> collectors = new ArrayList<>();
+	private volatile boolean closed;
+	
+	public StreamClient(Listener listener) throws IOException {
+		this.listener = listener;
+		selector = Selector.open();
+	}
+	
+	/** Add a collector to connect to. Must be called before {@link #start()}. */
+	public void add(String host, int port) {
+		collectors.add(new Collector(host, port));
+	}
+	
+	/** Start the thread connecting to collectors and receiving their rows. */
+	public void start() {
+		Thread th = new Thread(this::run, "Stream client");
+		th.setDaemon(true);
+		th.start();
+	}
+	
+	private void run() {
+		try {
+			while (!closed) {
+				long now = System.currentTimeMillis();
+				for (Collector c : collectors) {
+					if (c.channel == null && now >= c.retryAt) {
+						c.connect();
+					} else if (c.blocked) {
+						c.decode();
+					}
+				}
+				selector.select(10);
+				for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+					SelectionKey k = it.next();
+					it.remove();
+					Collector c = (Collector)k.attachment();
+					if (k.isValid() && k.isConnectable()) {
+						c.finishConnect();
+					}
+					if (k.isValid() && k.isReadable()) {
+						c.read();
+					}
+				}
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			if (!closed) {
+				System.err.println("Stream client stopped: "+e.getMessage());
+			}
+		}
+	}
+	
+	/** Stop receiving rows, and close connections. */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		selector.close();
+		for (Collector c : collectors) {
+			if (c.channel != null) {
+				c.channel.close();
+			}
+		}
+	}
+	
+	
+	
+	/**
+	 * A collector, and its connection.
+	 */
+	private class Collector {
+		
+		private final String host;
+		private final int port;
+		/** Current connection, {@code null} if none. */
+		private SocketChannel channel;
+		private SelectionKey key;
+		/** When to try connecting again, and the delay to wait after the next failure (ms). */
+		private long retryAt;
+		private long retry = MIN_RETRY;
+		
+		/** Received data not decoded yet, in write mode. */
+		private ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+		private StreamCodec codec;
+		/** Whether a row is waiting for room in {@link #queue}. */
+		private boolean blocked;
+		
+		/** The collector run, and the sequence number of the last received row ({@code -1} if none). */
+		private long instance, lastSeq = -1;
+		/** Sequence number of the next row of the current connection. */
+		private long seq;
+		/** Where rows are published, {@code null} until the first connection. */
+		private SampleQueue queue;
+		/** Columns rows are published with, and the published column of each collector column ({@code -1} if none). */
+		private List<String> columns;
+		private int[] map;
+		/** Row being decoded, in collector columns (reused). */
+		private Sample row;
+		
+		private Collector(String host, int port) {
+			this.host = host;
+			this.port = port;
+		}
+		
+		private void connect() {
+			try {
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+				if (channel.connect(new InetSocketAddress(host, port))) {
+					finishConnect();
+				}
+			} catch (IOException | RuntimeException e) { // E.g. UnresolvedAddressException
+				drop("Cannot connect to "+this+": "+e);
+			}
+		}
+		
+		private void finishConnect() {
+			try {
+				if (!channel.finishConnect()) {
+					return;
+				}
+				ByteBuffer hello = ByteBuffer.allocate(64);
+				StreamCodec.putViewerHello(hello, instance, lastSeq);
+				hello.flip();
+				while (hello.hasRemaining()) { // Few bytes on a new connection: sent at once
+					channel.write(hello);
+				}
+				in.clear();
+				codec = null;
+				key.interestOps(SelectionKey.OP_READ);
+			} catch (IOException e) {
+				drop("Cannot connect to "+this+": "+e.getMessage());
+			}
+		}
+		
+		private void read() {
+			try {
+				if (!in.hasRemaining()) { // Frame larger than buffer
+					in = ByteBuffer.allocate(in.capacity() * 2).put(in.flip());
+				}
+				if (channel.read(in) < 0) {
+					drop("Connection to "+this+" closed");
+					return;
+				}
+				decode();
+			} catch (IOException e) {
+				drop("Connection to "+this+" lost: "+e.getMessage());
+			}
+		}
+		
+		/** Decode received frames, until a row cannot be published. */
+		private void decode() {
+			try {
+				in.flip();
+				blocked = false;
+				while (StreamCodec.hasFrame(in)) {
+					int end = in.position() + StreamCodec.LENGTH + (in.getShort(in.position()) & 0xFFFF);
+					int start = in.position();
+					in.position(start + StreamCodec.LENGTH);
+					byte type = in.get();
+					if (type == StreamCodec.COLLECTOR_HELLO) {
+						hello();
+					} else if (type == StreamCodec.SAMPLE && codec != null) {
+						Sample s = queue.claim();
+						if (s == null) { // Graphs are late: stop reading until there is room
+							in.position(start);
+							blocked = true;
+							break;
+						}
+						codec.decode(in, row);
+						Arrays.fill(s.values, Float.NaN);
+						for (int c = 0; c < map.length; c++) {
+							if (map[c] >= 0) {
+								s.values[map[c]] = row.values[c];
+							}
+						}
+						s.t = row.t;
+						queue.publish();
+						lastSeq = seq++;
+					} else {
+						throw new IOException("Unexpected frame '"+(char)type+"'");
+					}
+					in.position(end);
+				}
+				in.compact();
+				key.interestOps(blocked ? 0 : SelectionKey.OP_READ);
+			} catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+				drop("Connection to "+this+" failed: "+e);
+			}
+		}
+		
+		/** Read a collector hello frame (after its type). */
+		private void hello() throws IOException {
+			if (in.getInt() != StreamCodec.MAGIC || in.getShort() != StreamCodec.VERSION) {
+				throw new IOException("Not a collector of version "+StreamCodec.VERSION);
+			}
+			long inst = in.getLong();
+			seq = in.getLong();
+			List<Integer> gpus = StreamCodec.getGpus(in);
+			List<String> cols = StreamCodec.getColumns(in);
+			if (queue == null) {
+				columns = cols;
+				queue = listener.connected(toString(), cols, gpus);
+			} else if (inst != instance) {
+				System.err.println("Collector "+this+" restarted: rows since "+lastSeq+" are lost");
+			} else if (seq > lastSeq + 1) {
+				System.err.println("Collector "+this+" no longer had "+(seq - lastSeq - 1)+" rows");
+			}
+			instance = inst;
+			map = new int[cols.size()];
+			for (int c = 0; c < map.length; c++) {
+				map[c] = columns.indexOf(cols.get(c));
+			}
+			row = new Sample(cols.size());
+			codec = new StreamCodec(cols.size());
+			retry = MIN_RETRY;
+		}
+		
+		/** Close the connection, and try again later. */
+		private void drop(String message) {
+			System.err.println(message+", retrying in "+retry / 1000+"s");
+			try {
+				if (channel != null) {
+					channel.close();
+				}
+			} catch (IOException e) {
+				// Closing anyway
+			}
+			channel = null;
+			blocked = false;
+			retryAt = System.currentTimeMillis() + retry;
+			retry = Math.min(retry * 2, MAX_RETRY);
+		}
+		
+		@Override
+		public String toString() {
+			return host+":"+port;
+		}
+		
+	}
+	
+}
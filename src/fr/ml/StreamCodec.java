@@ -0,0 +1,235 @@
+package fr.ml;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Framing of measures streamed from a collector ({@link StreamServer}) to viewers ({@link StreamClient}).
+ * <p>
+ * Every frame is an unsigned short length, then that many bytes: a type byte and its content (big endian).
+ * <pre>
+ * VIEWER_HELLO:    int MAGIC, short VERSION, long collector instance (0 if unknown), long sequence number of the
+ *                  last received sample (-1 if none)
+ * COLLECTOR_HELLO: int MAGIC, short VERSION, long instance, long sequence number of the next sample frame, short nGpus,
+ *                  nGpus int GPU indexes, short nColumns, then each column name as short length + UTF-8 bytes
+ * SAMPLE:          varint GPU index, zigzag varint timestamp delta from the previous sample of that GPU, bitmask
+ *                  (ceil(nColumns/8) bytes, column 0 in the lowest bit) of values whose bits changed since that
+ *                  sample, then the changed values as float bits
+ * </pre>
+ * Delta state starts over with each connection (timestamps from 0, values all {@code NaN}): the first sample of a
+ * GPU is complete, then a sample whose values did not change only takes a few bytes.
+ * <p>
+ * Instances keep the delta state of one direction of one connection, and are not thread-safe.
+ */
+class StreamCodec {
+	
+	static final int MAGIC = 0x4E565453; // "NVTS"
+	static final short VERSION = 1;
+	static final byte VIEWER_HELLO = 'V', COLLECTOR_HELLO = 'C', SAMPLE = 'S';
+	/** Size of the frame length prefix, bytes. */
+	static final int LENGTH = 2;
+	
+	private final int nColumns;
+	/** Last timestamp and values bits of each GPU. */
+	private final Map<Integer,GpuState> gpus = new HashMap<>();
+	
+	StreamCodec(int nColumns) {
+		this.nColumns = nColumns;
+	}
+	
+	/** @return The maximum size of a sample frame, length prefix included. */
+	int maxSampleFrame() {
+		return LENGTH + 1 + 5 + 10 + (nColumns + 7) / 8 + 4 * nColumns;
+	}
+	
+	/**
+	 * Encode a sample frame to {@code out}, which must have at least {@link #maxSampleFrame()} bytes remaining.
+	 * @param gpu The GPU index of the sample.
+	 */
+	void encode(int gpu, long t, float[] values, ByteBuffer out) {
+		GpuState g = state(gpu);
+		int start = out.position();
+		out.position(start + LENGTH);
+		out.put(SAMPLE);
+		putVarLong(out, gpu & 0xFFFFFFFFL);
+		putVarLong(out, zigzag(t - g.t));
+		g.t = t;
+		int mask = out.position();
+		int maskLength = (nColumns + 7) / 8;
+		for (int i = 0; i < maskLength; i++) {
+			out.put((byte)0);
+		}
+		for (int c = 0; c < nColumns; c++) {
+			int b = Float.floatToRawIntBits(values[c]);
+			if (b != g.bits[c]) {
+				out.put(mask + c / 8, (byte)(out.get(mask + c / 8) | (1 << (c % 8))));
+				out.putInt(b);
+				g.bits[c] = b;
+			}
+		}
+		out.putShort(start, (short)(out.position() - start - LENGTH));
+	}
+	
+	/**
+	 * Decode the content of a sample frame (after its type byte).
+	 * @param in The frame content, positioned after the type byte.
+	 * @param s Where to decode the sample. Its values are ordered as the collector columns.
+	 * @return The GPU index of the sample.
+	 * @throws BufferUnderflowException If the frame is truncated.
+	 */
+	int decode(ByteBuffer in, Sample s) {
+		int gpu = (int)getVarLong(in);
+		GpuState g = state(gpu);
+		g.t += unzigzag(getVarLong(in));
+		int mask = in.position();
+		in.position(mask + (nColumns + 7) / 8);
+		for (int c = 0; c < nColumns; c++) {
+			if ((in.get(mask + c / 8) & (1 << (c % 8))) != 0) {
+				g.bits[c] = in.getInt();
+			}
+			s.values[c] = Float.intBitsToFloat(g.bits[c]);
+		}
+		s.t = g.t;
+		return gpu;
+	}
+	
+	private GpuState state(int gpu) {
+		GpuState g = gpus.get(gpu);
+		if (g == null) {
+			g = new GpuState(nColumns);
+			gpus.put(gpu, g);
+		}
+		return g;
+	}
+	
+	/** @return Whether {@code in} (in read mode) starts with a complete frame. */
+	static boolean hasFrame(ByteBuffer in) {
+		return in.remaining() >= LENGTH && in.remaining() >= LENGTH + (in.getShort(in.position()) & 0xFFFF);
+	}
+	
+	/** Start a frame of the given type: reserve its length, to be set by {@link #endFrame(ByteBuffer, int)}. @return Its start. */
+	static int startFrame(ByteBuffer out, byte type) {
+		int start = out.position();
+		out.position(start + LENGTH);
+		out.put(type);
+		return start;
+	}
+	
+	static void endFrame(ByteBuffer out, int start) {
+		out.putShort(start, (short)(out.position() - start - LENGTH));
+	}
+	
+	/** Write a viewer hello frame. */
+	static void putViewerHello(ByteBuffer out, long instance, long lastSeq) {
+		int start = startFrame(out, VIEWER_HELLO);
+		out.putInt(MAGIC);
+		out.putShort(VERSION);
+		out.putLong(instance);
+		out.putLong(lastSeq);
+		endFrame(out, start);
+	}
+	
+	/** Write a collector hello frame. */
+	static void putCollectorHello(ByteBuffer out, long instance, long nextSeq, List<Integer> gpus, List<String> columns) {
+		int start = startFrame(out, COLLECTOR_HELLO);
+		out.putInt(MAGIC);
+		out.putShort(VERSION);
+		out.putLong(instance);
+		out.putLong(nextSeq);
+		out.putShort((short)gpus.size());
+		for (int g : gpus) {
+			out.putInt(g);
+		}
+		out.putShort((short)columns.size());
+		for (String c : columns) {
+			byte[] b = c.getBytes(StandardCharsets.UTF_8);
+			out.putShort((short)b.length);
+			out.put(b);
+		}
+		endFrame(out, start);
+	}
+	
+	/** @return The size of the collector hello frame. */
+	static int collectorHelloSize(List<Integer> gpus, List<String> columns) {
+		int n = LENGTH + 1 + 4 + 2 + 8 + 8 + 2 + 4 * gpus.size() + 2;
+		for (String c : columns) {
+			n += 2 + c.getBytes(StandardCharsets.UTF_8).length;
+		}
+		return n;
+	}
+	
+	/** @return The GPU indexes of a collector hello frame, read after instance and sequence number. */
+	static List<Integer> getGpus(ByteBuffer in) {
+		int n = in.getShort() & 0xFFFF;
+		List<Integer> gpus = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			gpus.add(in.getInt());
+		}
+		return gpus;
+	}
+	
+	/** @return The column names of a collector hello frame, read after GPU indexes. */
+	static List<String> getColumns(ByteBuffer in) {
+		int n = in.getShort() & 0xFFFF;
+		List<String> columns = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			byte[] b = new byte[in.getShort() & 0xFFFF];
+			in.get(b);
+			columns.add(new String(b, StandardCharsets.UTF_8));
+		}
+		return columns;
+	}
+	
+	static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+	
+	static long unzigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+	
+	/** Write {@code v} as an unsigned LEB128 varint (7 bits per byte). */
+	static void putVarLong(ByteBuffer out, long v) {
+		while ((v & ~0x7FL) != 0) {
+			out.put((byte)((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.put((byte)v);
+	}
+	
+	static long getVarLong(ByteBuffer in) {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.get();
+			v |= (long)(b & 0x7F) << shift;
+			if (b >= 0) {
+				return v;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+	
+	
+	
+	/**
+	 * Last timestamp and values of a GPU, as sent or received.
+	 */
+	static private class GpuState {
+		
+		private long t;
+		private final int[] bits;
+		
+		private GpuState(int nColumns) {
+			bits = new int[nColumns];
+			Arrays.fill(bits, Float.floatToRawIntBits(Float.NaN));
+		}
+		
+	}
+	
+}
@@ -0,0 +1,249 @@
+package fr.ml;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Collector side of measures streaming: serves measures rows to viewers ({@link StreamClient}) over TCP, with
+ * a single thread using non-blocking channels (see {@link StreamCodec} for the protocol).
+ * <p>
+ * The last rows are kept in a ring, by sequence number. Each viewer has its own position in that ring, from
+ * which frames are encoded as its socket accepts them: a slow viewer does not delay others (it skips rows
+ * that left the ring), and a viewer reconnecting after a dropped connection gets the rows it missed, if still
+ * in the ring, without replaying everything.
+ */
+public class StreamServer implements Closeable {
+	
+	/** Size of connections output buffers, bytes. */
+	static private final int OUT_BUFFER = 64 * 1024;
+	
+	private final List<String> columns;
+	private final List<Integer> gpus;
+	/** Column of the GPU index, {@code -1} if absent. */
+	private final int gpuCol;
+	/** Identifies this collector run, so that viewers know whether sequence numbers are still meaningful. */
+	private final long instance = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+	
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private final List<Viewer> viewers = new ArrayList<>();
+	
+	/** Last rows: timestamp and values, at index {@code seq % ring.length}. */
+	private final long[] ringT;
+	private final float[][] ring;
+	/** Sequence number of the next row. */
+	private long nextSeq;
+	
+	/**
+	 * Start listening.
+	 * @param columns The queries, in the order of rows values.
+	 * @param gpus The GPUs indexes, told to viewers.
+	 * @param backlog Number of rows kept for viewers that reconnect or are late.
+	 * @throws IOException When the server cannot be started (e.g. port already used).
+	 */
+	public StreamServer(List<String> columns, List<Integer> gpus, InetSocketAddress address, int backlog) throws IOException {
+		this.columns = new ArrayList<>(columns);
+		this.gpus = new ArrayList<>(gpus);
+		this.gpuCol = columns.indexOf("index");
+		ringT = new long[Math.max(1, backlog)];
+		ring = new float[ringT.length][columns.size()];
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		try {
+			server.bind(address);
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+	
+	/** @return The address the server listens to (e.g. to know the port when started on port {@code 0}). */
+	public InetSocketAddress address() throws IOException {
+		return (InetSocketAddress)server.getLocalAddress();
+	}
+	
+	/**
+	 * Serve rows from {@code queue} until {@code running} is {@code false} and the queue is empty.
+	 * @param queue The rows, published by a single thread.
+	 * @throws IOException When the server fails (errors of viewers connections only close them).
+	 */
+	public void serve(SampleQueue queue, BooleanSupplier running) throws IOException {
+		while (running.getAsBoolean() || queue.size() > 0) {
+			for (Sample s; (s = queue.peek()) != null; queue.release()) {
+				int i = (int)(nextSeq % ringT.length);
+				ringT[i] = s.t;
+				System.arraycopy(s.values, 0, ring[i], 0, ring[i].length);
+				nextSeq++;
+			}
+			for (int i = viewers.size() - 1; i >= 0; i--) { // Backwards, as viewers whose connection fails are removed
+				viewers.get(i).send();
+			}
+			selector.select(10);
+			for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+				SelectionKey k = it.next();
+				it.remove();
+				if (!k.isValid()) {
+					continue;
+				}
+				if (k.isAcceptable()) {
+					accept();
+				} else {
+					Viewer v = (Viewer)k.attachment();
+					if (k.isReadable()) {
+						v.read();
+					}
+					if (k.isValid() && k.isWritable()) {
+						v.send();
+					}
+				}
+			}
+		}
+	}
+	
+	private void accept() throws IOException {
+		SocketChannel ch = server.accept();
+		if (ch == null) {
+			return;
+		}
+		ch.configureBlocking(false);
+		ch.socket().setTcpNoDelay(true);
+		Viewer v = new Viewer(ch);
+		v.key = ch.register(selector, SelectionKey.OP_READ, v);
+		viewers.add(v);
+	}
+	
+	/** Stop serving, and close viewers connections. */
+	@Override
+	public void close() throws IOException {
+		for (Viewer v : new ArrayList<>(viewers)) {
+			v.close();
+		}
+		try {
+			server.close();
+		} finally {
+			selector.close();
+		}
+	}
+	
+	
+	
+	/**
+	 * A viewer connection.
+	 */
+	private class Viewer {
+		
+		private final SocketChannel channel;
+		private SelectionKey key;
+		private final ByteBuffer in = ByteBuffer.allocate(256);
+		/** Frames not sent yet, in write mode. */
+		private final ByteBuffer out;
+		private final StreamCodec codec = new StreamCodec(columns.size());
+		/** Sequence number of the next row to send, {@code -1} until the viewer said hello. */
+		private long seq = -1;
+		
+		private Viewer(SocketChannel channel) {
+			this.channel = channel;
+			out = ByteBuffer.allocate(Math.max(OUT_BUFFER, Math.max(codec.maxSampleFrame(), StreamCodec.collectorHelloSize(gpus, columns))));
+		}
+		
+		/** Read the viewer hello, or notice the connection was closed. */
+		private void read() {
+			try {
+				if (channel.read(in) < 0) {
+					close();
+					return;
+				}
+				in.flip();
+				if (seq < 0 && StreamCodec.hasFrame(in)) {
+					int end = in.position() + StreamCodec.LENGTH + (in.getShort() & 0xFFFF);
+					if (in.get() != StreamCodec.VIEWER_HELLO || in.getInt() != StreamCodec.MAGIC || in.getShort() != StreamCodec.VERSION) {
+						throw new IOException("Not a viewer of version "+StreamCodec.VERSION);
+					}
+					long inst = in.getLong();
+					long last = in.getLong();
+					in.position(end);
+					long oldest = Math.max(0, nextSeq - ringT.length);
+					seq = (inst == instance && last >= 0 ? Math.min(Math.max(last + 1, oldest), nextSeq) : nextSeq); // Resume, or live rows only
+					StreamCodec.putCollectorHello(out, instance, seq, gpus, columns);
+					send();
+				}
+				in.compact();
+				if (!in.hasRemaining()) { // Viewers only send their hello
+					throw new IOException("Unexpected data");
+				}
+			} catch (IOException | BufferUnderflowException e) {
+				System.err.println("Closing viewer "+remote()+": "+e.getMessage());
+				close();
+			}
+		}
+		
+		/** Encode the rows the viewer did not get yet, as long as its socket accepts them. */
+		private void send() {
+			if (!channel.isOpen()) {
+				return;
+			}
+			try {
+				for (;;) {
+					if (seq >= 0) {
+						if (seq < nextSeq - ringT.length) { // Too late: skip rows no longer kept
+							seq = nextSeq - ringT.length;
+						}
+						while (seq < nextSeq && out.remaining() >= codec.maxSampleFrame()) {
+							int i = (int)(seq % ringT.length);
+							float[] v = ring[i];
+							int gpu = (gpuCol < 0 || Float.isNaN(v[gpuCol]) ? 0 : (int)v[gpuCol]);
+							codec.encode(gpu, ringT[i], v, out);
+							seq++;
+						}
+					}
+					if (out.position() == 0) {
+						break;
+					}
+					out.flip();
+					int n = channel.write(out);
+					out.compact();
+					if (n == 0) { // Socket buffer full: wait until writable
+						break;
+					}
+				}
+				key.interestOps(out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+			} catch (IOException e) {
+				System.err.println("Closing viewer "+remote()+": "+e.getMessage());
+				close();
+			}
+		}
+		
+		private String remote() {
+			try {
+				return String.valueOf(channel.getRemoteAddress());
+			} catch (IOException e) {
+				return "?";
+			}
+		}
+		
+		private void close() {
+			viewers.remove(this);
+			try {
+				channel.close();
+			} catch (IOException e) {
+				System.err.println("Cannot close viewer connection: "+e.getMessage());
+			}
+		}
+		
+	}
+	
+}
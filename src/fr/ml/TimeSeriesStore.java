@@ -0,0 +1,267 @@
+package fr.ml;
+
+/**
+ * Fixed-capacity FIFO of timestamped samples: one timestamp column and one {@code float} column per series.
+ * <p>
+ * Samples are addressed by their <em>sequence number</em>, which increases by one for each added sample
+ * and is never reused: the stored samples are those in {@code [head(); tail())}. Storage is a ring buffer,
+ * so adding and evicting samples never moves data around.
+ * <p>
+ * Current minimum and maximum of each series are tracked with monotonic deques, so that both insertion
+ * and eviction cost amortized O(1). {@code NaN} values are ignored by min/max.
+ */
+public class TimeSeriesStore {
+	
+	/** Samples capacity. */
+	private final int capacity;
+	/** Timestamps (X axis). */
+	private final long[] ts;
+	/** Series values (Y axis), one column per series. */
+	private final float[][] values;
+	/** Sequence number of the oldest stored sample. */
+	private long head;
+	/** Sequence number of the next sample to store. */
+	private long tail;
+	
+	/** Current min/max for each series. */
+	private final MonoDeque[] mins, maxs;
+	
+	/**
+	 * Compute a capacity able to hold {@code duration_ms} of samples taken every {@code refresh_ms},
+	 * with some headroom for sampling jitter.
+	 */
+	static public int capacity(int duration_ms, int refresh_ms) {
+		int n = duration_ms / Math.max(1, refresh_ms) + 1;
+		return n + n / 8 + 2;
+	}
+	
+	public TimeSeriesStore(int nSeries, int capacity) {
+		this.capacity = Math.max(1, capacity);
+		ts = new long[this.capacity];
+		values = new float[nSeries][this.capacity];
+		mins = new MonoDeque[nSeries];
+		maxs = new MonoDeque[nSeries];
+		for (int i = 0; i < nSeries; i++) {
+			mins[i] = new MonoDeque(values[i], true);
+			maxs[i] = new MonoDeque(values[i], false);
+		}
+	}
+	
+	/**
+	 * Create a new store with the given capacity, filled with the most recent samples of {@code from}.
+	 */
+	public TimeSeriesStore(TimeSeriesStore from, int capacity) {
+		this(from, capacity, null);
+	}
+	
+	/**
+	 * Create a new store with the given capacity, filled with the most recent samples of series of {@code from}.
+	 * @param fromSeries The series of {@code from} giving each series of the new store ({@code -1} for none, then
+	 * 		{@code NaN}), {@code null} for the same series.
+	 */
+	public TimeSeriesStore(TimeSeriesStore from, int capacity, int[] fromSeries) {
+		this(fromSeries == null ? from.values.length : fromSeries.length, capacity);
+		float[] row = new float[values.length];
+		for (long seq = Math.max(from.head, from.tail - this.capacity); seq < from.tail; seq++) {
+			for (int i = 0; i < row.length; i++) {
+				int is = (fromSeries == null ? i : fromSeries[i]);
+				row[i] = (is < 0 ? Float.NaN : from.v(is, seq));
+			}
+			add(from.t(seq), row);
+		}
+	}
+	
+	public int capacity() {
+		return capacity;
+	}
+	
+	public int nSeries() {
+		return values.length;
+	}
+	
+	public int size() {
+		return (int)(tail - head);
+	}
+	
+	/** @return The sequence number of the oldest stored sample. */
+	public long head() {
+		return head;
+	}
+	
+	/** @return The sequence number the next added sample will get. */
+	public long tail() {
+		return tail;
+	}
+	
+	private int slot(long seq) {
+		return (int)(seq % capacity);
+	}
+	
+	/** @return The timestamp of sample {@code seq}, which must be in {@code [head(); tail())}. */
+	public long t(long seq) {
+		return ts[slot(seq)];
+	}
+	
+	/** @return The value of series {@code iSerie} for sample {@code seq}, which must be in {@code [head(); tail())}. */
+	public float v(int iSerie, long seq) {
+		return values[iSerie][slot(seq)];
+	}
+	
+	/** @return The timestamp of the most recent sample, {@code Long.MIN_VALUE} if empty. */
+	public long lastT() {
+		return tail == head ? Long.MIN_VALUE : t(tail - 1);
+	}
+	
+	/** @return The most recent value of series {@code iSerie}, {@code NaN} if empty. */
+	public float last(int iSerie) {
+		return tail == head ? Float.NaN : v(iSerie, tail - 1);
+	}
+	
+	/** @return The minimum value of series {@code iSerie}, {@code NaN} if it has no value. */
+	public float min(int iSerie) {
+		return mins[iSerie].front();
+	}
+	
+	/** @return The maximum value of series {@code iSerie}, {@code NaN} if it has no value. */
+	public float max(int iSerie) {
+		return maxs[iSerie].front();
+	}
+	
+	/**
+	 * Append a sample. If the store is full, the oldest sample is evicted first.
+	 * @param t The sample timestamp.
+	 * @param vals The series values, at least {@link #nSeries()} of them.
+	 */
+	public void add(long t, float[] vals) {
+		if (size() == capacity) {
+			evict(1);
+		}
+		int k = slot(tail);
+		ts[k] = t;
+		for (int i = 0; i < values.length; i++) {
+			float v = vals[i];
+			values[i][k] = v;
+			if (!Float.isNaN(v)) {
+				mins[i].push(tail, v);
+				maxs[i].push(tail, v);
+			}
+		}
+		tail++;
+	}
+	
+	/**
+	 * Evict all samples with a timestamp strictly older than {@code tmin}.
+	 * @return The number of evicted samples.
+	 */
+	public int evictBefore(long tmin) {
+		int n = 0;
+		while (head + n < tail && t(head + n) < tmin) {
+			n++;
+		}
+		evict(n);
+		return n;
+	}
+	
+	private void evict(int n) {
+		if (n <= 0) {
+			return;
+		}
+		head += n;
+		for (int i = 0; i < values.length; i++) {
+			mins[i].evict(head);
+			maxs[i].evict(head);
+		}
+	}
+	
+	/**
+	 * Find the sample with the given timestamp, starting from the most recent.
+	 * @return Its sequence number, or {@code -1} if not found.
+	 */
+	public long find(long t) {
+		for (long seq = tail - 1; seq >= head; seq--) {
+			if (t(seq) == t) {
+				return seq;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Overwrite a stored value. This is O(n) as min/max have to be recomputed for that series.
+	 */
+	public void set(long seq, int iSerie, float v) {
+		values[iSerie][slot(seq)] = v;
+		mins[iSerie].clear();
+		maxs[iSerie].clear();
+		for (long s = head; s < tail; s++) {
+			float vs = v(iSerie, s);
+			if (!Float.isNaN(vs)) {
+				mins[iSerie].push(s, vs);
+				maxs[iSerie].push(s, vs);
+			}
+		}
+	}
+	
+	public void clear() {
+		head = tail;
+		for (int i = 0; i < values.length; i++) {
+			mins[i].clear();
+			maxs[i].clear();
+		}
+	}
+	
+	
+	
+	/**
+	 * Deque of sequence numbers whose values are monotonic (increasing for a min deque, decreasing for a max one),
+	 * so the front is always the min (resp. max) of the window.
+	 */
+	static private class MonoDeque {
+		
+		/** The series column, indexed by slot. */
+		private final float[] col;
+		private final boolean min;
+		private final long[] seqs;
+		private int first, size;
+		
+		private MonoDeque(float[] col, boolean min) {
+			this.col = col;
+			this.min = min;
+			seqs = new long[col.length];
+		}
+		
+		private float v(long seq) {
+			return col[(int)(seq % col.length)];
+		}
+		
+		private void push(long seq, float v) {
+			// Drop the values that can no longer be the min (resp. max), as a more recent one is lower (resp. greater)
+			while (size > 0) {
+				float vb = v(seqs[(first + size - 1) % seqs.length]);
+				if (min ? vb < v : vb > v) {
+					break;
+				}
+				size--;
+			}
+			seqs[(first + size) % seqs.length] = seq;
+			size++;
+		}
+		
+		private void evict(long head) {
+			while (size > 0 && seqs[first] < head) {
+				first = (first + 1) % seqs.length;
+				size--;
+			}
+		}
+		
+		private float front() {
+			return size == 0 ? Float.NaN : v(seqs[first]);
+		}
+		
+		private void clear() {
+			first = size = 0;
+		}
+		
+	}
+	
+}
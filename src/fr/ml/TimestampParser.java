@@ -0,0 +1,127 @@
+package fr.ml;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+
+/**
+ * Parser of nvidia-smi timestamps, in the fixed {@code "yyyy/MM/dd HH:mm:ss.SSS"} layout ({@link NVTop#tsFormat}),
+ * in the default time zone.
+ * <p>
+ * Digits are read directly, and the epoch of the current day and minute are cached, so that parsing a timestamp
+ * in the same minute as the previous one only costs the seconds and milliseconds arithmetic, without allocating.
+ * Input not following the layout is given to a {@link SimpleDateFormat}.
+ * <p>
+ * Like {@code SimpleDateFormat}, instances are not thread-safe.
+ */
+public class TimestampParser {
+	
+	static private final int LENGTH = 23; // "yyyy/MM/dd HH:mm:ss.SSS"
+	
+	private final ZoneId zone;
+	private final SimpleDateFormat fallback;
+	
+	/** Cached day, as {@code yyyyMMdd}. */
+	private int day = -1;
+	/** Epoch of the cached day at midnight, ms. */
+	private long dayEpoch;
+	/** Whether the cached day has no UTC offset transition (so its minutes are all 60s after the previous one). */
+	private boolean dayRegular;
+	/** Cached minute of the cached day. */
+	private int minute = -1;
+	/** Epoch of the cached minute, ms. */
+	private long minuteEpoch;
+	
+	public TimestampParser() {
+		fallback = new SimpleDateFormat(NVTop.tsFormat);
+		zone = fallback.getTimeZone().toZoneId();
+	}
+	
+	/** @return The value of the {@code n} digits at {@code b[i]}, or {@code -1} if they are not all digits. */
+	static private int digits(byte[] b, int i, int n) {
+		int v = 0;
+		for (int e = i + n; i < e; i++) {
+			int d = b[i] - '0';
+			if (d < 0 || d > 9) {
+				return -1;
+			}
+			v = v * 10 + d;
+		}
+		return v;
+	}
+	
+	/**
+	 * Parse a timestamp from ASCII bytes.
+	 * @return The timestamp epoch, in ms.
+	 * @throws ParseException If {@code [s; e)} is not a timestamp.
+	 */
+	public long parse(byte[] b, int s, int e) throws ParseException {
+		long t = parseFixed(b, s, e);
+		if (t != Long.MIN_VALUE) {
+			return t;
+		}
+		return fallback.parse(new String(b, s, e - s, StandardCharsets.ISO_8859_1)).getTime();
+	}
+	
+	/**
+	 * Parse a timestamp.
+	 * @return The timestamp epoch, in ms.
+	 * @throws ParseException If {@code str} is not a timestamp.
+	 */
+	public long parse(String str) throws ParseException {
+		byte[] b = str.getBytes(StandardCharsets.ISO_8859_1);
+		return parse(b, 0, b.length);
+	}
+	
+	/** @return The timestamp epoch (ms), or {@code Long.MIN_VALUE} if not in the expected layout. */
+	private long parseFixed(byte[] b, int s, int e) {
+		if (e - s != LENGTH || b[s+4] != '/' || b[s+7] != '/' || b[s+10] != ' ' || b[s+13] != ':' || b[s+16] != ':' || b[s+19] != '.') {
+			return Long.MIN_VALUE;
+		}
+		int yyyy = digits(b, s, 4);
+		int MM = digits(b, s+5, 2);
+		int dd = digits(b, s+8, 2);
+		int HH = digits(b, s+11, 2);
+		int mm = digits(b, s+14, 2);
+		int ss = digits(b, s+17, 2);
+		int SSS = digits(b, s+20, 3);
+		if (yyyy < 0 || MM < 0 || dd < 0 || HH < 0 || HH > 23 || mm < 0 || mm > 59 || ss < 0 || ss > 59 || SSS < 0) {
+			return Long.MIN_VALUE;
+		}
+		
+		int d = (yyyy * 100 + MM) * 100 + dd;
+		if (d != day) { // New day
+			try {
+				LocalDate ld = LocalDate.of(yyyy, MM, dd);
+				Instant start = ld.atStartOfDay(zone).toInstant();
+				Instant end = ld.plusDays(1).atStartOfDay(zone).toInstant();
+				ZoneOffsetTransition tr = zone.getRules().nextTransition(start);
+				dayEpoch = start.toEpochMilli();
+				dayRegular = (tr == null || !tr.getInstant().isBefore(end)) && zone.getRules().getOffset(start).equals(zone.getRules().getOffset(end));
+			} catch (DateTimeException ex) { // E.g. February 30th
+				return Long.MIN_VALUE;
+			}
+			day = d;
+			minute = -1;
+		}
+		
+		int m = HH * 60 + mm;
+		if (m != minute) { // New minute
+			if (dayRegular) {
+				minuteEpoch = dayEpoch + m * 60_000L;
+			} else { // UTC offset changes during that day: let java.time handle it (the same way SimpleDateFormat does for overlaps)
+				minuteEpoch = LocalDateTime.of(yyyy, MM, dd, HH, mm).atZone(zone).withLaterOffsetAtOverlap().toInstant().toEpochMilli();
+			}
+			minute = m;
+		}
+		
+		return minuteEpoch + ss * 1000 + SSS;
+	}
+	
+}
@@ -0,0 +1,1189 @@
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import fr.ml.Alert;
+import fr.ml.Expression;
+import fr.ml.FleetAggregator;
+import fr.ml.GroupedSource;
+import fr.ml.History;
+import fr.ml.MetricsExporter;
+import fr.ml.NVMeasure;
+import fr.ml.Nvml;
+import fr.ml.NvmlSource;
+import fr.ml.PanelDistribution;
+import fr.ml.PanelTimeGraph;
+import fr.ml.ProcessTable;
+import fr.ml.RecordingReader;
+import fr.ml.RecordingWriter;
+import fr.ml.Sample;
+import fr.ml.SampleQueue;
+import fr.ml.SampleSource;
+import fr.ml.SmiParser;
+import fr.ml.StreamClient;
+import fr.ml.StreamServer;
+import fr.ml.TimestampParser;
+
+/**
+ * Micro-benchmarks of the sample ingest and render hot paths. Run {@code main()}, it needs neither a GPU nor a display,
+ * measures being synthetic. Give benchmark names (e.g. {@code paint}) as arguments to only run those.
+ * Reported times are averages over measured rounds, after warm-up rounds; allocations are measured on the
+ * benchmark thread.
+ */
+public class BenchNVTop {
+	
+	static private final String tsFormat = "yyyy/MM/dd HH:mm:ss.SSS";
+	
+	/** Where benchmarks results go, so that the JIT cannot skip computing them. */
+	static volatile long blackhole;
+	
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		List<String> run = Arrays.asList(args);
+		if (run.isEmpty() || run.contains("store")) benchStore();
+		if (run.isEmpty() || run.contains("paint")) benchPaint();
+		if (run.isEmpty() || run.contains("series")) benchSeries();
+		if (run.isEmpty() || run.contains("rollup")) benchRollup();
+		if (run.isEmpty() || run.contains("push")) benchPush();
+		if (run.isEmpty() || run.contains("carry")) benchCarryOver();
+		if (run.isEmpty() || run.contains("distribution")) benchDistribution();
+		if (run.isEmpty() || run.contains("expr")) benchExpr();
+		if (run.isEmpty() || run.contains("history")) benchHistory();
+		if (run.isEmpty() || run.contains("metrics")) benchMetrics();
+		if (run.isEmpty() || run.contains("stream")) benchStream();
+		if (run.isEmpty() || run.contains("fleet")) benchFleet();
+		if (run.isEmpty() || run.contains("csv")) benchCsv();
+		if (run.isEmpty() || run.contains("nvml")) benchNvml();
+		if (run.isEmpty() || run.contains("grouped")) benchGrouped();
+		if (run.isEmpty() || run.contains("alert")) benchAlert();
+		if (run.isEmpty() || run.contains("processes")) benchProcesses();
+		if (run.isEmpty() || run.contains("timestamp")) benchTimestamp();
+	}
+	
+	/** Synthetic measures: random walks between 0 and 100, with a missing value from time to time. */
+	static private class Synthetic {
+		final Random r = new Random(0);
+		final float[] v;
+		
+		Synthetic(int n) {
+			v = new float[n];
+			Arrays.fill(v, 50);
+		}
+		
+		float[] next() {
+			for (int i = 0; i < v.length; i++) {
+				float x = (Float.isNaN(v[i]) ? 50 : v[i]) + r.nextFloat() * 10 - 5;
+				v[i] = (r.nextInt(1000) == 0 ? Float.NaN : Math.max(0, Math.min(100, x)));
+			}
+			return v;
+		}
+	}
+	
+	/** Manual clock, advanced by benchmarks. */
+	static private class Clk implements Supplier<Long> {
+		long t = 1_600_000_000_000L;
+		@Override public Long get() { return t; }
+	}
+	
+	/**
+	 * A graph of two series over 60s, with time ticks every 10s (the defaults), full of {@code nPoints} measures
+	 * (60000, 6000, 600: every 1, 10 or 100 ms).
+	 */
+	static private PanelTimeGraph graph(Clk clk, Synthetic syn, int nPoints) {
+		int refresh = 60_000 / nPoints;
+		PanelTimeGraph g = new PanelTimeGraph(clk, "Bench", 60, "a", "b");
+		g.refresh(refresh);
+		g.timeTicks(10_000);
+		for (int i = 0; i < nPoints; i++) {
+			clk.t += refresh;
+			g.addValues(clk.t, syn.next());
+		}
+		return g;
+	}
+	
+	/** Adding a measure to a full graph, so that the oldest is forgotten. */
+	static void benchStore() throws Exception {
+		for (int nPoints : new int[] { 600, 6_000, 60_000 }) {
+			Clk clk = new Clk();
+			Synthetic syn = new Synthetic(2);
+			PanelTimeGraph g = graph(clk, syn, nPoints);
+			int refresh = 60_000 / nPoints;
+			bench("addValues+forget window="+nPoints, 100_000, i -> {
+				clk.t += refresh;
+				g.addValues(clk.t, syn.next());
+				return g.nbMeasures();
+			});
+		}
+	}
+	
+	/** Adding a measure and painting a frame, at several resolutions and number of points. */
+	static void benchPaint() throws Exception {
+		int[][] sizes = { { 640, 360 }, { 1920, 1080 }, { 3840, 2160 } };
+		for (boolean scrolling : new boolean[] { false, true }) {
+			for (int nPoints : new int[] { 600, 60_000 }) {
+				int refresh = 60_000 / nPoints;
+				for (int[] size : sizes) {
+					Clk clk = new Clk();
+					Synthetic syn = new Synthetic(2);
+					PanelTimeGraph g = graph(clk, syn, nPoints);
+					g.scrolling(scrolling);
+					g.setSize(size[0], size[1]);
+					BufferedImage img = new BufferedImage(size[0], size[1], BufferedImage.TYPE_INT_RGB);
+					bench("paint "+(scrolling ? "scroll " : "")+size[0]+"x"+size[1]+" points="+nPoints, 20, i -> {
+						clk.t += refresh;
+						g.addValues(clk.t, syn.next());
+						Graphics2D gr = img.createGraphics();
+						g.paint(gr);
+						gr.dispose();
+						return img.getRGB(size[0] / 2, size[1] / 2);
+					});
+				}
+			}
+			
+			// Frames without new measures (e.g. repaints between two measures): nothing should need allocating
+			Clk clk = new Clk();
+			PanelTimeGraph g = graph(clk, new Synthetic(2), 600);
+			g.scrolling(scrolling);
+			g.setSize(1920, 1080);
+			BufferedImage img = new BufferedImage(1920, 1080, BufferedImage.TYPE_INT_RGB);
+			Graphics2D gr = img.createGraphics();
+			bench("paint "+(scrolling ? "scroll " : "")+"steady 1920x1080 points=600", 20, i -> {
+				g.paint(gr);
+				return img.getRGB(960, 540);
+			});
+			gr.dispose();
+		}
+	}
+	
+	/** Painting 8 series of 600 points: on 8 panels of 1 series, or on a single panel. */
+	static void benchSeries() throws Exception {
+		int nSeries = 8, nPoints = 600, refresh = 60_000 / nPoints;
+		String[] names = new String[nSeries];
+		for (int i = 0; i < nSeries; i++) {
+			names[i] = "GPU "+i;
+		}
+		for (int nPanels : new int[] { nSeries, 1 }) {
+			Clk clk = new Clk();
+			Synthetic syn = new Synthetic(nSeries);
+			PanelTimeGraph[] graphs = new PanelTimeGraph[nPanels];
+			int h = 1080 / nPanels;
+			for (int p = 0; p < nPanels; p++) {
+				graphs[p] = new PanelTimeGraph(clk, "Bench", 60, nPanels == 1 ? names : new String[] { names[p] });
+				graphs[p].refresh(refresh);
+				graphs[p].timeTicks(10_000);
+				graphs[p].setSize(1920, h);
+			}
+			float[] v = new float[1];
+			Runnable add = () -> {
+				clk.t += refresh;
+				float[] row = syn.next();
+				for (int p = 0; p < nPanels; p++) {
+					if (nPanels == 1) {
+						graphs[p].addValues(clk.t, row);
+					} else {
+						v[0] = row[p];
+						graphs[p].addValues(clk.t, v);
+					}
+				}
+			};
+			for (int i = 0; i < nPoints; i++) {
+				add.run();
+			}
+			BufferedImage img = new BufferedImage(1920, h, BufferedImage.TYPE_INT_RGB);
+			bench("paint "+nSeries+" series on "+nPanels+" panel(s)", 20, i -> {
+				add.run();
+				for (PanelTimeGraph g : graphs) {
+					Graphics2D gr = img.createGraphics();
+					g.paint(gr);
+					gr.dispose();
+				}
+				return img.getRGB(960, h / 2);
+			});
+		}
+	}
+	
+	/** A 24h graph of measures every 100 ms: storing all raw measures, or rolling them up. */
+	static void benchRollup() throws Exception {
+		for (boolean rollup : new boolean[] { false, true }) {
+			Clk clk = new Clk();
+			Synthetic syn = new Synthetic(2);
+			PanelTimeGraph g = new PanelTimeGraph(clk, "Bench", 86_400, "a", "b");
+			g.refresh(100);
+			g.rollup(rollup);
+			g.timeTicks(3_600_000);
+			for (int i = 0; i < 864_000; i++) {
+				clk.t += 100;
+				g.addValues(clk.t, syn.next());
+			}
+			g.setSize(1920, 1080);
+			BufferedImage img = new BufferedImage(1920, 1080, BufferedImage.TYPE_INT_RGB);
+			bench("paint 24h 1920x1080 "+(rollup ? "rolled up" : "raw")+" (raw="+g.nbMeasures()+")", 20, i -> {
+				clk.t += 100;
+				g.addValues(clk.t, syn.next());
+				Graphics2D gr = img.createGraphics();
+				g.paint(gr);
+				gr.dispose();
+				return img.getRGB(960, 540);
+			});
+			bench("resize 24h 1920x1080 "+(rollup ? "rolled up" : "raw"), 5, i -> { // Decimating everything again
+				g.setSize(1920 - (i & 1), 1080);
+				Graphics2D gr = img.createGraphics();
+				g.paint(gr);
+				gr.dispose();
+				return img.getRGB(960, 540);
+			});
+		}
+	}
+	
+	/** A graph re-created after a configuration change taking over the 60000 measures of the one it replaces. */
+	static void benchCarryOver() throws Exception {
+		Clk clk = new Clk();
+		PanelTimeGraph from = graph(clk, new Synthetic(2), 60_000);
+		int[] fromSeries = { 1, 0 };
+		bench("carryOver measures=60000", 100, i -> {
+			PanelTimeGraph g = new PanelTimeGraph(clk, "Bench", 60, "b", "a");
+			g.refresh(1);
+			g.carryOver(from, fromSeries);
+			return g.nbMeasures();
+		});
+	}
+	
+	/** Pushing rows of 8 GPUs to 4 graphs per GPU. */
+	static void benchPush() throws Exception {
+		int nGpus = 8;
+		List<String> queries = new ArrayList<>(Arrays.asList("timestamp", "index"));
+		Properties conf = new Properties();
+		conf.put("graph.duration", "60");
+		conf.put("graph.refresh", "10");
+		for (int ig = 1; ig <= 4; ig++) {
+			for (String lr : new String[] { "left", "right" }) {
+				String q = "query."+ig+"."+lr;
+				conf.put("graph."+ig+"."+lr+".query", q);
+				conf.put("graph."+ig+"."+lr+".gpu", "all");
+				queries.add(q);
+			}
+		}
+		List<Integer> gpus = new ArrayList<>();
+		for (int i = 0; i < nGpus; i++) {
+			gpus.add(i);
+		}
+		NVMeasure m = new NVMeasure(conf, gpus);
+		m.setQueries(queries);
+		Synthetic syn = new Synthetic(queries.size());
+		long[] t = { 1_600_000_000_000L };
+		bench("pushMeasures gpus="+nGpus+" graphs="+m.getComponentCount(), 100_000, i -> {
+			float[] row = syn.next();
+			int gpu = i % nGpus;
+			if (gpu == 0) {
+				t[0] += 10;
+			}
+			row[1] = gpu;
+			m.pushMeasures(t[0], row);
+			return gpu;
+		});
+	}
+	
+	/** Keeping rows of 8 GPUs every 10 ms in a history, then reading its last 10 minutes back (as on startup). */
+	/**
+	 * A recording must read back the exact bits of the values written (NaN, infinities, signed zeros, extremes,
+	 * repeated and changing values) and their timestamps (regular, jittered, and with gaps of seconds to hours),
+	 * across blocks full by rows or by duration, of GPUs writing interleaved rows.
+	 */
+	static void checkRecording() throws Exception {
+		List<String> queries = Arrays.asList("timestamp", "index", "random", "constant", "ramp");
+		float[] specials = { Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, -0f, 0f, Float.MIN_VALUE, -Float.MAX_VALUE };
+		int[] gpus = { 0, 1, 7 };
+		Random r = new Random(0);
+		List<Sample> written = new ArrayList<>();
+		long t = 1_600_000_000_000L;
+		for (int step = 0; step < 20_000; step++) {
+			int dt = r.nextInt(10_000);
+			t += (dt == 0 ? 3_600_000 : dt == 1 ? 30_000 : dt < 200 ? 3 : 5 + r.nextInt(5)); // Mostly 7 ms, jittered
+			for (int i = 0; i < gpus.length; i++) {
+				int gpu = gpus[i];
+				if (gpu == 7 && step % 5 == 0) { // Not every GPU in every step
+					continue;
+				}
+				Sample s = new Sample(queries.size());
+				s.t = t + i; // Distinct, so that rows of GPUs are read back in a known order
+				s.values[0] = Float.NaN;
+				s.values[1] = gpu;
+				s.values[2] = (r.nextInt(10) == 0 ? specials[r.nextInt(specials.length)] : (float)r.nextGaussian() * 1000);
+				s.values[3] = 42.5f;
+				s.values[4] = (step / 100 % 2 == 0 ? step : Float.NaN);
+				written.add(s);
+			}
+		}
+		
+		Path dir = Files.createTempDirectory("nvtop-check");
+		try {
+			RecordingWriter writer = new RecordingWriter(dir.resolve("check.nvt"), queries, 0, 0);
+			for (Sample s : written) {
+				writer.append(s);
+			}
+			writer.close();
+			List<Path> files;
+			try (Stream<Path> list = Files.list(dir)) {
+				files = list.collect(Collectors.toList());
+			}
+			if (files.size() != 1) {
+				throw new IllegalStateException("Recording should be a single file, not "+files);
+			}
+			try (RecordingReader reader = new RecordingReader(files.get(0))) {
+				Sample s = new Sample(queries.size());
+				int n = 0;
+				for (; reader.next(s); n++) {
+					Sample w = (n < written.size() ? written.get(n) : null);
+					boolean same = (w != null && s.t == w.t);
+					for (int c = 1; c < queries.size() && same; c++) {
+						same = (Float.floatToRawIntBits(s.values[c]) == Float.floatToRawIntBits(w.values[c]));
+					}
+					if (!same) {
+						throw new IllegalStateException("Recorded row "+n+" read as "+s.t+" "+Arrays.toString(s.values)
+								+", written as "+(w == null ? "none" : w.t+" "+Arrays.toString(w.values)));
+					}
+				}
+				if (n != written.size()) {
+					throw new IllegalStateException("Recording read "+n+" rows, "+written.size()+" written");
+				}
+				Sample w = written.get(written.size() / 2); // Seeking decodes only some blocks
+				reader.seek(w.t);
+				if (!reader.next(s) || s.t != w.t || s.values[1] != w.values[1]) {
+					throw new IllegalStateException("Recording sought at "+w.t+" read "+s.t);
+				}
+			}
+		} finally {
+			delete(dir);
+		}
+	}
+	
+	static void benchHistory() throws Exception {
+		checkRecording();
+		int nGpus = 8;
+		List<String> queries = new ArrayList<>(Arrays.asList("timestamp", "index"));
+		for (int q = 0; q < 8; q++) {
+			queries.add("query."+q);
+		}
+		Path dir = Files.createTempDirectory("nvtop-bench");
+		try {
+			History h = new History(dir, queries, 86_400_000L, 86_400_000L);
+			Synthetic syn = new Synthetic(queries.size());
+			Sample s = new Sample(queries.size());
+			long[] t = { System.currentTimeMillis() - 3_600_000L };
+			bench("history append gpus="+nGpus, 100_000, i -> {
+				int gpu = i % nGpus;
+				if (gpu == 0) {
+					t[0] += 10;
+				}
+				System.arraycopy(syn.next(), 0, s.values, 0, s.values.length);
+				s.t = t[0];
+				s.values[1] = gpu;
+				h.append(s);
+				return gpu;
+			});
+			h.close();
+			bench("history read 10min gpus="+nGpus, 1, i -> h.read(t[0] - 600_000, t[0] - 600_000, t[0] + 1, r -> {}));
+		} finally {
+			delete(dir);
+		}
+	}
+	
+	/** Delete {@code dir} and all it contains. */
+	static private void delete(Path dir) throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			for (Path p : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+				Files.delete(p);
+			}
+		}
+	}
+	
+	/** Rendering the metrics page on each row of 8 GPUs with 8 queries, as the measures reader does. */
+	static void benchMetrics() throws Exception {
+		checkMetrics();
+		int nGpus = 8;
+		List<String> queries = new ArrayList<>(Arrays.asList("timestamp", "index"));
+		for (int q = 0; q < 8; q++) {
+			queries.add("query."+q);
+		}
+		MetricsExporter exporter = new MetricsExporter(queries, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		try {
+			Synthetic syn = new Synthetic(queries.size());
+			Sample s = new Sample(queries.size());
+			bench("metrics update gpus="+nGpus, 100_000, i -> {
+				System.arraycopy(syn.next(), 0, s.values, 0, s.values.length);
+				s.t = 1_600_000_000_000L + i;
+				s.values[1] = i % nGpus;
+				exporter.update(s);
+				return i;
+			});
+		} finally {
+			exporter.close();
+		}
+	}
+	
+	/**
+	 * Queries mapping to the same metric name (and to the time metric) must get metrics of their own, each with a
+	 * single type, and a scrape must give the last measures.
+	 */
+	static void checkMetrics() throws Exception {
+		List<String> queries = Arrays.asList("timestamp", "index", "clocks.sm", "clocks_sm", "sample.time.seconds");
+		MetricsExporter exporter = new MetricsExporter(queries, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		String page;
+		try {
+			Sample s = new Sample(queries.size());
+			for (int i = 0; i < 3; i++) { // Both buffers used
+				s.t = 1_600_000_000_000L + i;
+				s.values[1] = 0;
+				s.values[2] = 1500 + i;
+				s.values[3] = 900;
+				s.values[4] = 7;
+				exporter.update(s);
+			}
+			InetSocketAddress a = exporter.address();
+			try (InputStream in = new URL("http://"+a.getHostString()+":"+a.getPort()+"/metrics").openStream()) {
+				page = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+			}
+		} finally {
+			exporter.close();
+		}
+		List<String> types = Arrays.stream(page.split("\n")).filter(l -> l.startsWith("# TYPE ")).collect(Collectors.toList());
+		List<String> expected = Arrays.asList("nvtop_clocks_sm{gpu=\"0\"} 1502", "nvtop_clocks_sm_2{gpu=\"0\"} 900",
+				"nvtop_sample_time_seconds_2{gpu=\"0\"} 7", "nvtop_sample_time_seconds{gpu=\"0\"} 1600000000.002");
+		if (types.size() != 4 || new HashSet<>(types).size() != 4 || !Arrays.asList(page.split("\n")).containsAll(expected)) {
+			throw new IllegalStateException("Metrics page should have 4 distinct types and "+expected+":\n"+page);
+		}
+	}
+	
+	/**
+	 * Rows streamed through a relay cutting the connection twice in the middle of the stream (and of frames) must
+	 * all be received once, in order, with the timestamps and exact values sent: the viewer resumes after the last row
+	 * it received.
+	 */
+	static void checkStream() throws Exception {
+		int nGpus = 4, nRows = 200_000;
+		List<String> queries = Arrays.asList("timestamp", "index", "a", "b", "c");
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		SampleQueue in = new SampleQueue(1 << 14, queries.size());
+		SampleQueue out = new SampleQueue(1 << 14, queries.size());
+		AtomicInteger received = new AtomicInteger(), connected = new AtomicInteger();
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		PrintStream err = System.err;
+		System.setErr(new PrintStream(log, true)); // Dropped connections
+		try (StreamServer server = new StreamServer(queries, Arrays.asList(0, 1, 2, 3), new InetSocketAddress(loopback, 0), 1 << 16);
+				ServerSocket relay = new ServerSocket(0, 50, loopback);
+				StreamClient client = new StreamClient((c, cols, g) -> {
+					connected.set(1);
+					return out;
+				})) {
+			int port = server.address().getPort();
+			Thread relaying = new Thread(() -> { // Cut the first 2 connections once they sent 256 KiB to the viewer
+				try {
+					for (int cuts = 0; ; cuts++) {
+						try (Socket viewer = relay.accept(); Socket collector = new Socket(loopback, port)) {
+							Thread up = new Thread(() -> {
+								try {
+									viewer.getInputStream().transferTo(collector.getOutputStream());
+								} catch (IOException e) {
+									// Cut
+								}
+							});
+							up.setDaemon(true);
+							up.start();
+							InputStream from = collector.getInputStream();
+							OutputStream to = viewer.getOutputStream();
+							byte[] b = new byte[8192];
+							long sent = 0;
+							for (int n; (n = from.read(b)) > 0 && (cuts >= 2 || sent < 256 * 1024); sent += n) {
+								to.write(b, 0, n);
+							}
+						}
+					}
+				} catch (IOException e) {
+					// Relay closed
+				}
+			});
+			relaying.setDaemon(true);
+			relaying.start();
+			Thread serve = new Thread(() -> {
+				try {
+					server.serve(in, () -> received.get() < nRows);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			});
+			serve.start();
+			client.add(loopback.getHostAddress(), relay.getLocalPort());
+			client.start();
+			while (connected.get() == 0) { // New viewers only get the rows from then on
+				LockSupport.parkNanos(1_000_000);
+			}
+			long deadline = System.nanoTime() + 30_000_000_000L;
+			for (int i = 0; i < nRows || received.get() < nRows; ) {
+				if (System.nanoTime() > deadline) { // E.g. rows lost, so that the sender waits for them
+					throw new IllegalStateException("Only "+received.get()+" streamed rows received out of "+i+" sent");
+				}
+				Sample s;
+				if (i < nRows && i - received.get() < 1 << 15 && (s = in.claim()) != null) { // Sent rows stay in the backlog
+					s.t = 1_600_000_000_000L + i / nGpus;
+					s.values[0] = Float.NaN;
+					s.values[1] = i % nGpus;
+					for (int q = 2; q < s.values.length; q++) {
+						s.values[q] = (i % 97 == q ? Float.NaN : i * 0.25f - q);
+					}
+					in.publish();
+					i++;
+				}
+				for (; (s = out.peek()) != null; out.release()) {
+					int k = received.getAndIncrement();
+					boolean same = (s.t == 1_600_000_000_000L + k / nGpus && s.values[1] == k % nGpus);
+					for (int q = 2; q < s.values.length && same; q++) {
+						same = (Float.floatToRawIntBits(s.values[q]) == Float.floatToRawIntBits(k % 97 == q ? Float.NaN : k * 0.25f - q));
+					}
+					if (!same) {
+						throw new IllegalStateException("Streamed row "+k+" received as "+s.t+" "+Arrays.toString(s.values));
+					}
+				}
+			}
+			serve.join();
+		} finally {
+			System.setErr(err);
+		}
+		String messages = log.toString(StandardCharsets.UTF_8);
+		long drops = messages.lines().filter(l -> l.contains("retrying")).count();
+		if (drops != 2 || messages.contains("no longer had") || messages.contains("restarted")) {
+			throw new IllegalStateException("Stream should have been cut twice and resumed without losing rows:\n"+messages);
+		}
+	}
+	
+	/** Streaming rows of 8 GPUs over loopback, from the collector queue to the viewer queue. */
+	static void benchStream() throws Exception {
+		checkStream();
+		int nGpus = 8, nRows = 2_000_000;
+		List<String> queries = new ArrayList<>(Arrays.asList("timestamp", "index"));
+		for (int q = 0; q < 8; q++) {
+			queries.add("query."+q);
+		}
+		List<Integer> gpus = new ArrayList<>();
+		for (int g = 0; g < nGpus; g++) {
+			gpus.add(g);
+		}
+		SampleQueue in = new SampleQueue(1 << 14, queries.size());
+		SampleQueue out = new SampleQueue(1 << 14, queries.size());
+		AtomicInteger received = new AtomicInteger();
+		try (StreamServer server = new StreamServer(queries, gpus, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1 << 16);
+				StreamClient client = new StreamClient((c, cols, g) -> out)) {
+			Thread serve = new Thread(() -> {
+				try {
+					server.serve(in, () -> received.get() < nRows); // Until all rows are sent
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			});
+			serve.start();
+			client.add("localhost", server.address().getPort());
+			client.start();
+			LockSupport.parkNanos(200_000_000L); // Connected
+			Synthetic syn = new Synthetic(queries.size());
+			long t0 = System.nanoTime();
+			for (int i = 0; i < nRows || received.get() < nRows; ) {
+				Sample s;
+				if (i < nRows && i - received.get() < 1 << 15 && (s = in.claim()) != null) { // Rows beyond the backlog would be skipped
+					if (i % nGpus == 0) { // Most values change every period, as nvidia-smi at 1ms
+						syn.next();
+					}
+					System.arraycopy(syn.v, 0, s.values, 0, s.values.length);
+					s.t = 1_600_000_000_000L + i / nGpus;
+					s.values[1] = i % nGpus;
+					in.publish();
+					i++;
+				}
+				for (; (s = out.peek()) != null; out.release()) {
+					received.incrementAndGet();
+				}
+			}
+			long t1 = System.nanoTime();
+			serve.join();
+			System.out.printf("%-40s %10.1f ns/row%n", "stream gpus="+nGpus, (t1 - t0) / (double)nRows);
+		}
+	}
+	
+	/** Counting measures of 8 GPUs in a distribution panel, and merging its sub-windows for painting. */
+	static void benchDistribution() throws Exception {
+		Clk clk = new Clk();
+		int[] dist = new int[8];
+		PanelDistribution d = new PanelDistribution(clk, "Bench", 3600, new String[] { "a" }, dist);
+		Synthetic syn = new Synthetic(dist.length);
+		bench("distribution add gpus="+dist.length, 100_000, i -> {
+			clk.t += 10;
+			d.addValues(clk.t, syn.next());
+			return i;
+		});
+		bench("distribution snapshot", 1_000, i -> {
+			clk.t += 10;
+			d.addValues(clk.t, syn.next());
+			return d.snapshot() ? 1 : 0;
+		});
+	}
+	
+	/** Evaluating 32 expressions (8 of each kind: ratio, moving average, rate, rolling max) on rows of 8 GPUs. */
+	static void benchExpr() throws Exception {
+		int nGpus = 8;
+		List<String> queries = Arrays.asList("timestamp", "index", "memory.used", "memory.total", "power.draw", "power.limit", "utilization.gpu");
+		String[] texts = { "memory.used / memory.total * 100", "ema(utilization.gpu, 10)", "rate(power.draw)",
+				"rolling_max(power.draw / power.limit, 10)" };
+		Expression[] exprs = new Expression[texts.length * 8];
+		Expression.State[][] states = new Expression.State[exprs.length][nGpus];
+		for (int e = 0; e < exprs.length; e++) {
+			exprs[e] = new Expression(texts[e % texts.length]);
+			exprs[e].setColumns(queries);
+			for (int g = 0; g < nGpus; g++) {
+				states[e][g] = exprs[e].newState();
+			}
+		}
+		checkRolling();
+		Synthetic syn = new Synthetic(queries.size());
+		long[] t = { 1_600_000_000_000L };
+		bench("expr eval exprs="+exprs.length, 100_000, i -> {
+			float[] row = syn.next();
+			int gpu = i % nGpus;
+			if (gpu == 0) {
+				t[0] += 10;
+			}
+			float sum = 0;
+			for (int e = 0; e < exprs.length; e++) {
+				sum += exprs[e].eval(t[0], row, states[e][gpu]);
+			}
+			return (long)sum;
+		});
+		Expression wide = new Expression("rolling_max(utilization.gpu, 100000)");
+		wide.setColumns(queries);
+		Expression.State wideState = wide.newState();
+		bench("expr eval rolling_max(x, 100000)", 100_000, i -> (long)wide.eval(i, syn.next(), wideState));
+	}
+	
+	/**
+	 * Rolling min and max must be those of the last {@code n} values but missing ones, {@code NaN} if all are missing,
+	 * whatever the window (values being often missing, sometimes for longer than the window, often equal).
+	 */
+	static void checkRolling() throws Exception {
+		List<String> queries = Arrays.asList("x");
+		Random r = new Random(0);
+		for (int n : new int[] { 1, 2, 3, 10, 100 }) {
+			Expression min = new Expression("rolling_min(x, "+n+")"), max = new Expression("rolling_max(x, "+n+")");
+			min.setColumns(queries);
+			max.setColumns(queries);
+			Expression.State minState = min.newState(), maxState = max.newState();
+			float[] values = new float[20_000];
+			for (int i = 0; i < values.length; i++) {
+				boolean gap = (i / 500) % 7 == 6; // Missing for 500 rows
+				values[i] = (gap || r.nextInt(5) == 0 ? Float.NaN : r.nextInt(20) - 10);
+				float m = Float.NaN, M = Float.NaN;
+				for (int j = Math.max(0, i - n + 1); j <= i; j++) {
+					if (!Float.isNaN(values[j])) {
+						m = (Float.isNaN(m) ? values[j] : Math.min(m, values[j]));
+						M = (Float.isNaN(M) ? values[j] : Math.max(M, values[j]));
+					}
+				}
+				float[] row = { values[i] };
+				float rm = min.eval(i, row, minState), rM = max.eval(i, row, maxState);
+				if (Float.compare(rm, m) != 0 || Float.compare(rM, M) != 0) {
+					throw new IllegalStateException("rolling over "+n+" rows at row "+i+": min "+rm+" max "+rM+", should be "+m+" and "+M);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * A remote collector publishing many more rows than a queue holds between two ticks must never find its queue
+	 * full, and the tick must aggregate the last row of each of its GPUs.
+	 */
+	static void checkFleet() {
+		List<String> queries = Arrays.asList("timestamp", "index", "utilization.gpu");
+		FleetAggregator fleet = new FleetAggregator(Arrays.asList("max(utilization.gpu)", "count(utilization.gpu)"), 60_000);
+		SampleQueue queue = fleet.listener().connected("collector", queries, Arrays.asList(0, 1, 2, 3));
+		for (int i = 0; i < 10_000; i++) {
+			Sample s = queue.claim();
+			if (s == null) {
+				throw new IllegalStateException("Collector queue full after "+i+" rows");
+			}
+			s.t = i;
+			s.values[0] = Float.NaN;
+			s.values[1] = i % 4;
+			s.values[2] = i / 100f;
+			queue.publish();
+		}
+		Sample out = new Sample(fleet.columns().size());
+		fleet.tick(out);
+		if (out.values[2] != 9_999 / 100f || out.values[3] != 4) {
+			throw new IllegalStateException("Fleet tick should be max 99.99 of 4 GPUs, not "+out.values[2]+" of "+out.values[3]);
+		}
+	}
+	
+	/** Aggregating 200 nodes of 8 GPUs: keeping a GPU row, and computing a tick of 5 aggregates. */
+	static void benchFleet() throws Exception {
+		checkFleet();
+		int nNodes = 200, nGpus = 8;
+		List<String> queries = Arrays.asList("timestamp", "index", "utilization.gpu", "memory.used");
+		FleetAggregator fleet = new FleetAggregator(Arrays.asList("mean(utilization.gpu)", "p95(utilization.gpu)",
+				"max(utilization.gpu)", "p95(memory.used)", "count(memory.used)"), 60_000);
+		FleetAggregator.Node[] nodes = new FleetAggregator.Node[nNodes];
+		for (int n = 0; n < nNodes; n++) {
+			nodes[n] = fleet.node("node"+n, queries);
+		}
+		Synthetic syn = new Synthetic(queries.size());
+		Sample s = new Sample(queries.size());
+		bench("fleet update", 100_000, i -> {
+			System.arraycopy(syn.next(), 0, s.values, 0, s.values.length);
+			s.values[1] = i % nGpus;
+			nodes[i / nGpus % nNodes].update(s);
+			return i;
+		});
+		Sample out = new Sample(fleet.columns().size());
+		bench("fleet tick gpus="+nNodes * nGpus, 1_000, i -> {
+			fleet.tick(out);
+			return (long)out.values[2];
+		});
+	}
+	
+	/** An endless stream repeating {@code data}. */
+	static private InputStream loop(byte[] data) {
+		return new InputStream() {
+			int pos;
+			
+			@Override
+			public int read() {
+				int b = data[pos] & 0xFF;
+				pos = (pos + 1) % data.length;
+				return b;
+			}
+			
+			@Override
+			public int read(byte[] b, int off, int len) {
+				int n = Math.min(len, data.length - pos);
+				System.arraycopy(data, pos, b, off, n);
+				pos = (pos + n) % data.length;
+				return n;
+			}
+		};
+	}
+	
+	/** Parsing nvidia-smi lines of 10 queries. */
+	static void benchCsv() throws Exception {
+		byte[][] ts = timestamps(1000);
+		Synthetic syn = new Synthetic(9);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < ts.length; i++) {
+			sb.append(new String(ts[i], StandardCharsets.ISO_8859_1));
+			for (float v : syn.next()) {
+				sb.append(", ").append(Float.isNaN(v) ? "[N/A]" : String.format("%.2f", v));
+			}
+			sb.append('\n');
+		}
+		SmiParser parser = new SmiParser(loop(sb.toString().getBytes(StandardCharsets.ISO_8859_1)));
+		float[] row = new float[10];
+		bench("csv SmiParser", 100_000, i -> parser.next(row));
+		
+		List<String> lines = Arrays.asList(sb.toString().split("\n"));
+		bench("csv String.split+Float.parseFloat", 100_000, i -> {
+			String[] fields = lines.get(i % lines.size()).split(",");
+			long n = 0;
+			for (int f = 1; f < fields.length; f++) {
+				try {
+					n += (long)Float.parseFloat(fields[f].trim());
+				} catch (NumberFormatException e) {
+					n--;
+				}
+			}
+			return n;
+		});
+	}
+	
+	/** NVML of 8 GPUs, giving the same values without native calls. */
+	static private class MockNvml implements Nvml {
+		/** Return codes of initialization, of the fan speed (e.g. not supported) and of the power limit. */
+		int initRc = SUCCESS, fanRc = SUCCESS, limitRc = SUCCESS;
+		int shutdowns;
+		@Override public int init() { return initRc; }
+		@Override public int shutdown() { shutdowns++; return SUCCESS; }
+		@Override public int deviceGetCount(int[] count) { count[0] = 8; return SUCCESS; }
+		@Override public int deviceGetHandleByIndex(int index, long[] device) { device[0] = index; return SUCCESS; }
+		@Override public int deviceGetUtilizationRates(long device, int[] u) { u[0] = 42; u[1] = 17; return SUCCESS; }
+		@Override public int deviceGetMemoryInfo(long device, long[] m) { m[0] = 16L << 30; m[1] = 12L << 30; m[2] = 4L << 30; return SUCCESS; }
+		@Override public int deviceGetTemperature(long device, int sensor, int[] t) { t[0] = 65; return SUCCESS; }
+		@Override public int deviceGetPowerUsage(long device, int[] p) { p[0] = 180_500; return SUCCESS; }
+		@Override public int deviceGetPowerManagementLimit(long device, int[] p) { p[0] = 300_000; return limitRc; }
+		@Override public int deviceGetEnforcedPowerLimit(long device, int[] p) { p[0] = 300_000; return SUCCESS; }
+		@Override public int deviceGetFanSpeed(long device, int[] s) { s[0] = 40; return fanRc; }
+		@Override public int deviceGetClockInfo(long device, int type, int[] c) { c[0] = (type == CLOCK_SM ? 1500 : 7000); return SUCCESS; }
+		@Override public int deviceGetMaxClockInfo(long device, int type, int[] c) { c[0] = 2000; return SUCCESS; }
+		@Override public int deviceGetPerformanceState(long device, int[] p) { p[0] = 2; return SUCCESS; }
+	}
+	
+	/**
+	 * NVML values must be read in {@code nvidia-smi} units (bytes to MiB, mW to W, clocks in MHz), values not
+	 * supported by a GPU be missing silently, and other errors and queries NVML does not give be missing and reported
+	 * once. NVML failing to initialize must fail the source, shutting NVML down.
+	 */
+	static void checkNvml() throws Exception {
+		List<String> queries = Arrays.asList("timestamp", "index", "memory.used", "memory.total", "power.draw", "clocks.sm",
+				"clocks.mem", "pstate", "fan.speed", "power.limit", "ecc.errors");
+		MockNvml nvml = new MockNvml();
+		nvml.fanRc = Nvml.ERROR_NOT_SUPPORTED;
+		nvml.limitRc = Nvml.ERROR_UNKNOWN;
+		PrintStream err = System.err;
+		ByteArrayOutputStream errors = new ByteArrayOutputStream();
+		System.setErr(new PrintStream(errors, true, "UTF-8"));
+		List<float[]> rows = new ArrayList<>();
+		try (NvmlSource source = new NvmlSource(nvml, queries, 0)) { // A single row of all GPUs
+			Sample s = new Sample(queries.size());
+			while (source.next(s)) {
+				rows.add(s.values.clone());
+			}
+		} finally {
+			System.setErr(err);
+		}
+		float[] expected = { Float.NaN, 0, 4096, 16384, 180.5f, 1500, 7000, 2, Float.NaN, Float.NaN, Float.NaN };
+		for (int g = 0; g < rows.size(); g++) {
+			expected[1] = g;
+			if (!Arrays.equals(rows.get(g), expected)) {
+				throw new IllegalStateException("NVML row of GPU "+g+" "+Arrays.toString(rows.get(g))+", should be "+Arrays.toString(expected));
+			}
+		}
+		List<String> reported = Arrays.asList(errors.toString("UTF-8").split("\\R"));
+		if (rows.size() != 8 || reported.size() != 2 || !reported.get(0).contains("ecc.errors") || !reported.get(1).contains("power.limit")
+				|| !reported.get(1).contains("error "+Nvml.ERROR_UNKNOWN) || nvml.shutdowns != 1) {
+			throw new IllegalStateException("NVML read "+rows.size()+" rows (should be 8), shut down "+nvml.shutdowns+" times (should be 1), reported "+reported
+					+" (should be ecc.errors, then power.limit once)");
+		}
+		
+		MockNvml broken = new MockNvml();
+		broken.initRc = Nvml.ERROR_UNKNOWN;
+		try {
+			new NvmlSource(broken, queries, 0).close();
+			throw new IllegalStateException("NVML failing to initialize should fail the source");
+		} catch (IOException e) {
+			if (broken.shutdowns != 1) {
+				throw new IllegalStateException("NVML failing to initialize shut down "+broken.shutdowns+" times, should be 1");
+			}
+		}
+	}
+	
+	/** Reading rows of the same 10 queries as {@link #benchCsv()} from NVML (mocked: the cost of the source itself). */
+	static void benchNvml() throws Exception {
+		List<String> queries = Arrays.asList("timestamp", "index", "utilization.gpu", "utilization.memory", "memory.used",
+				"memory.total", "temperature.gpu", "power.draw", "power.limit", "clocks.sm");
+		checkNvml();
+		NvmlSource source = new NvmlSource(new MockNvml(), queries, 0);
+		Sample s = new Sample(queries.size());
+		bench("nvml read", 100_000, i -> {
+			source.read(i % source.gpus(), s);
+			return (long)s.values[2];
+		});
+	}
+	
+	/**
+	 * Merging rows of 3 groups of queries read in their own thread, from sources giving rows of 8 GPUs as fast as
+	 * they are read: the cost of the hand over between threads, and of holding the values of other groups.
+	 */
+	/**
+	 * An adaptive group whose source cannot change its period (e.g. {@code nvidia-smi}) must only be restarted on a
+	 * burst and once quiet again, not on each backing-off step, and a failed restart must be retried rather than
+	 * giving up adapting.
+	 */
+	static void checkGrouped() throws Exception {
+		List<String> queries = Arrays.asList("timestamp", "index", "utilization.gpu");
+		AtomicLong clock = new AtomicLong();
+		List<Integer> opens = new ArrayList<>();
+		GroupedSource grouped = new GroupedSource(queries);
+		Sample s = new Sample(queries.size());
+		long lastT = 0, minGap = Long.MAX_VALUE;
+		int n = 0;
+		PrintStream err = System.err;
+		System.setErr(new PrintStream(new ByteArrayOutputStream())); // Failed restart warning
+		try {
+			grouped.add(Arrays.asList("utilization.gpu"), 1000, 100, new float[] { 1 }, (qs, ms) -> {
+				opens.add(ms);
+				if (opens.size() == 2) { // The burst restart fails once
+					throw new IOException("Cannot start");
+				}
+				return new SampleSource() {
+					@Override
+					public boolean next(Sample r) {
+						r.t = clock.addAndGet(ms);
+						r.values[0] = Float.NaN;
+						r.values[1] = 0;
+						r.values[2] = (r.t >= 60_000 && r.t < 65_000 ? r.t % 7 : 0); // Busy for 5 s
+						return r.t < 200_000;
+					}
+					@Override
+					public void close() {
+					}
+				};
+			});
+			while (grouped.next(s)) {
+				if (s.t > 70_000 && s.t < 75_000) { // Backing off at 200, 400 then 800 ms, the source still at 100 ms
+					minGap = Math.min(minGap, s.t - lastT);
+				}
+				lastT = s.t;
+				n++;
+			}
+		} finally {
+			System.setErr(err);
+			grouped.close();
+		}
+		// Started quiet, failed burst restart, retried a period later, back to quiet
+		if (!opens.equals(Arrays.asList(1000, 100, 100, 1000))) {
+			throw new IllegalStateException("Source should be started every 1000, 100 (failing), 100 and 1000 ms, not "+opens);
+		}
+		if (minGap < 150 || n < 200) {
+			throw new IllegalStateException("Rows should be dropped while backing off: "+n+" rows, "+minGap+" ms apart at least");
+		}
+	}
+	
+	static void benchGrouped() throws Exception {
+		checkGrouped();
+		List<String> queries = Arrays.asList("timestamp", "index", "utilization.gpu", "memory.used", "temperature.gpu", "power.draw", "power.limit");
+		GroupedSource grouped = new GroupedSource(queries);
+		float[] deltas = { 5, 5 };
+		grouped.add(Arrays.asList("utilization.gpu", "memory.used"), 100, 100, deltas, (qs, ms) -> rows(qs, 8))
+				.add(Arrays.asList("temperature.gpu", "power.draw"), 1000, 1000, deltas, (qs, ms) -> rows(qs, 8))
+				.add(Arrays.asList("power.limit"), 5000, 5000, deltas, (qs, ms) -> rows(qs, 8));
+		Sample s = new Sample(queries.size());
+		bench("grouped merge", 100_000, i -> {
+			grouped.next(s);
+			return (long)s.values[1];
+		});
+		grouped.close();
+	}
+	
+	/** @return A source of rows of {@code gpus} GPUs, as fast as they are read, until closed. */
+	static private SampleSource rows(List<String> queries, int gpus) {
+		return new SampleSource() {
+			private long n;
+			private volatile boolean closed;
+			@Override
+			public boolean next(Sample s) {
+				s.t = n / gpus;
+				Arrays.fill(s.values, n % 100);
+				s.values[1] = n++ % gpus;
+				return !closed;
+			}
+			@Override
+			public void close() {
+				closed = true;
+			}
+		};
+	}
+	
+	/** Evaluating an alert rule with a duration and hysteresis on a measure, going in and out of alert. */
+	static void benchAlert() throws Exception {
+		Alert alert = new Alert("> 83 for 10s clear 78");
+		Alert.State state = alert.newState();
+		bench("alert update", 1_000_000, i -> alert.update(i * 100L, 50 + (i & 0xffff) * 50f / 0x10000, state));
+	}
+	
+	/**
+	 * Snapshots of 64 processes of 8 programs, 8 of them replaced by new ones in each (short-lived jobs), and the top 5:
+	 * the memory kept must only depend on the processes running at the same time.
+	 */
+	static void benchProcesses() throws Exception {
+		checkProcesses();
+		ProcessTable table = new ProcessTable();
+		String[] programs = new String[8];
+		for (int i = 0; i < programs.length; i++) {
+			programs[i] = "/usr/bin/job"+i;
+		}
+		int[] top = new int[5];
+		bench("processes snapshot", 10_000, i -> {
+			table.begin();
+			for (int p = 0; p < 64; p++) {
+				int pid = 8 * i + p; // The 8 oldest exit
+				table.put(pid, programs[pid % programs.length], (pid * 7919) % 16384);
+			}
+			table.end();
+			return table.top(top);
+		});
+		System.out.println("processes table: "+table.size()+" processes, "+table.capacity()+" slots, "+table.names()+" names");
+	}
+	
+	/**
+	 * The processes table must find every running process (with its name and memory) and no exited one, after churn in
+	 * colliding clusters (backward-shift deletion, reused slots), stay bounded by the running processes, release names
+	 * no longer used (e.g. by a reused PID), and rank processes whose memory is not available as using none.
+	 */
+	static void checkProcesses() throws Exception {
+		// PIDs sharing two adjacent home buckets of the 16-entry table (ProcessTable.hash()), across its wrap-around
+		List<Integer> colliding = new ArrayList<>();
+		for (int pid = 1; colliding.size() < 64; pid++) {
+			int home = (pid * 0x9E3779B9 >>> 7) & 15;
+			if (home == 15 || home == 0) {
+				colliding.add(pid);
+			}
+		}
+		String[] programs = { "python3", "train", "infer" };
+		ProcessTable table = new ProcessTable();
+		Map<Integer,String> names = new HashMap<>();
+		Map<Integer,Float> memory = new HashMap<>();
+		Random r = new Random(0);
+		for (int round = 0; round < 100_000; round++) {
+			// Some processes exit, others start, some PIDs being reused. At most 4 run: exited ones are only evicted at the
+			// end of a snapshot, so up to 8 are in the table, which keeps 16 entries
+			names.keySet().removeIf(pid -> r.nextInt(3) == 0);
+			while (names.size() < 1 + r.nextInt(4)) {
+				names.put(colliding.get(r.nextInt(colliding.size())), programs[r.nextInt(programs.length)]);
+			}
+			memory.clear();
+			table.begin();
+			for (Map.Entry<Integer,String> e : names.entrySet()) {
+				float used = r.nextInt(1000);
+				memory.put(e.getKey(), used);
+				table.put(e.getKey(), e.getValue(), used);
+			}
+			table.end();
+			for (int pid : colliding) {
+				int slot = table.slot(pid);
+				if (!names.containsKey(pid) ? slot != -1
+						: slot < 0 || table.pid(slot) != pid || !table.name(slot).equals(names.get(pid)) || table.memory(slot) != memory.get(pid)) {
+					throw new IllegalStateException("Process "+pid+" at round "+round+": slot "+slot+", should be "+(names.containsKey(pid) ? names.get(pid)+" "+memory.get(pid) : "exited"));
+				}
+			}
+			if (table.size() != names.size() || table.capacity() > 8 || table.names() != new HashSet<>(names.values()).size()) {
+				throw new IllegalStateException("Processes table at round "+round+": "+table.size()+" processes, "+table.capacity()+" slots, "
+						+table.names()+" names, should be "+names.size()+", at most 8 and "+new HashSet<>(names.values()).size());
+			}
+		}
+		
+		// A reused PID releases the name of the process that exited
+		table.begin();
+		table.put(42, "old", 1);
+		table.end();
+		table.begin();
+		table.put(42, "new", 1);
+		table.end();
+		if (table.names() != 1 || !table.name(table.slot(42)).equals("new")) {
+			throw new IllegalStateException("Reused PID: "+table.names()+" names, "+table.name(table.slot(42))+", should be 1 and new");
+		}
+		
+		// Memory not available ranks as none, and is summed over GPUs with available memory
+		table.begin();
+		table.put(1, "a", 10);
+		table.put(2, "b", Float.NaN);
+		table.put(3, "c", 30);
+		table.put(4, "d", 20);
+		table.put(4, "d", Float.NaN); // Second GPU
+		table.put(5, "e", Float.NaN);
+		table.end();
+		int[] top = new int[4];
+		int n = table.top(top);
+		int[] pids = new int[n];
+		for (int i = 0; i < n; i++) {
+			pids[i] = table.pid(top[i]);
+		}
+		if (n != 4 || pids[0] != 3 || pids[1] != 4 || pids[2] != 1 || table.memory(top[1]) != 20) {
+			throw new IllegalStateException("Top processes "+Arrays.toString(pids)+", should be [3, 4, 1, 2 or 5] (d using 20)");
+		}
+	}
+	
+	/** A benchmarked operation. Returns something depending on its work, so the JIT cannot skip it. */
+	@FunctionalInterface
+	interface Op {
+		long run(int i) throws Exception;
+	}
+	
+	static private long allocated() {
+		return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	
+	/**
+	 * Run {@code op} {@code nOps} times per round, for 5 warm-up and 10 measured rounds, and print
+	 * the time and allocation per operation.
+	 */
+	static void bench(String name, int nOps, Op op) throws Exception {
+		long sink = 0;
+		for (int r = 0; r < 5; r++) {
+			for (int i = 0; i < nOps; i++) {
+				sink += op.run(i);
+			}
+		}
+		int rounds = 10;
+		long a0 = allocated();
+		long t0 = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			for (int i = 0; i < nOps; i++) {
+				sink += op.run(i);
+			}
+		}
+		long t1 = System.nanoTime();
+		long a1 = allocated();
+		double n = (double)rounds * nOps;
+		blackhole = sink;
+		System.out.printf("%-40s %10.1f ns/op %10.1f B/op%n", name, (t1 - t0) / n, (a1 - a0) / n);
+	}
+	
+	/** Timestamps as nvidia-smi would give them, every 10 ms. */
+	static byte[][] timestamps(int n) {
+		SimpleDateFormat df = new SimpleDateFormat(tsFormat);
+		long t = System.currentTimeMillis();
+		byte[][] ts = new byte[n][];
+		for (int i = 0; i < n; i++) {
+			ts[i] = df.format(new Date(t + i * 10L)).getBytes(StandardCharsets.ISO_8859_1);
+		}
+		return ts;
+	}
+	
+	static void benchTimestamp() throws Exception {
+		int n = 100_000;
+		byte[][] ts = timestamps(n);
+		SimpleDateFormat df = new SimpleDateFormat(tsFormat);
+		TimestampParser tp = new TimestampParser();
+		
+		// Both must agree
+		for (byte[] b : ts) {
+			long expected = df.parse(new String(b, StandardCharsets.ISO_8859_1)).getTime();
+			if (tp.parse(b, 0, b.length) != expected) {
+				throw new IllegalStateException("TimestampParser disagrees with SimpleDateFormat on "+new String(b, StandardCharsets.ISO_8859_1));
+			}
+		}
+		
+		bench("timestamp SimpleDateFormat", n, i -> {
+			try {
+				return df.parse(new String(ts[i], StandardCharsets.ISO_8859_1)).getTime();
+			} catch (ParseException e) {
+				return 0;
+			}
+		});
+		bench("timestamp TimestampParser", n, i -> tp.parse(ts[i], 0, ts[i].length));
+	}
+	
+}
@@ -36,6 +36,7 @@ public class TestNVTop {
 		pCtl.add(bData);
 		
 		PanelTimeGraph graf = new PanelTimeGraph(clk, "CPU/RAM", 5, "CPU", "RAM"); // 5 seconds
+		graf.refresh(500);
 		f.getContentPane().add(graf, BorderLayout.CENTER);
 		
 		bPlus500.addActionListener(e -> {